@@ -3,8 +3,11 @@ import com.skyfi.atak.plugin.R;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.atakmap.coremap.maps.coords.GeoPoint;
 import com.google.gson.Gson;
@@ -13,9 +16,13 @@ import com.google.gson.reflect.TypeToken;
 import com.optisense.skyfi.atak.skyfiapi.Archive;
 
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Point;
-import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
 
 import java.lang.reflect.Type;
@@ -23,16 +30,40 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class AORFilterManager {
     private static final String TAG = "SkyFi.AORFilter";
     private static final String PREF_KEY_AORS = "skyfi_aor_definitions";
+    // Lists at least this long are filtered in parallel chunks
+    private static final int PARALLEL_THRESHOLD = 512;
+    private static final int CHUNK_SIZE = 256;
+    private static final int FOOTPRINT_CACHE_SIZE = 4096;
+    
+    // Parsed archive footprints by archive id, shared by every filter instance
+    private static final LruCache<String, Geometry> footprintCache = new LruCache<>(FOOTPRINT_CACHE_SIZE);
+    private static ExecutorService filterExecutor;
+    // Runs whole async filter passes; kept apart from the chunk pool so a pass waiting on its
+    // chunks can never starve them
+    private static final ExecutorService asyncExecutor = Executors.newSingleThreadExecutor();
     
     private final Context context;
     private final SharedPreferences prefs;
     private final Gson gson;
-    private Map<String, AORDefinition> aorDefinitions;
-    private String selectedAOR = "all";
+    // Changed on the UI thread, read by filter and cache workers
+    private final Map<String, AORDefinition> aorDefinitions = new ConcurrentHashMap<>();
+    // Prepared (indexed) AOR polygons by name, built on first use
+    private final Map<String, PreparedGeometry> preparedAORs = new HashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile String selectedAOR = "all";
+    
+    public interface FilterCallback {
+        void onFiltered(List<Archive> archives);
+    }
     
     public static class AORDefinition {
         public String name;
@@ -78,9 +109,9 @@ public class AORFilterManager {
     private void loadAORDefinitions() {
         String json = prefs.getString(PREF_KEY_AORS, "{}");
         Type type = new TypeToken<Map<String, AORDefinition>>(){}.getType();
-        aorDefinitions = gson.fromJson(json, type);
-        if (aorDefinitions == null) {
-            aorDefinitions = new HashMap<>();
+        Map<String, AORDefinition> stored = gson.fromJson(json, type);
+        if (stored != null) {
+            aorDefinitions.putAll(stored);
         }
     }
     
@@ -118,6 +149,9 @@ public class AORFilterManager {
     public void addAOR(String name, String description, List<GeoPoint> boundaryPoints) {
         AORDefinition aor = new AORDefinition(name, description, boundaryPoints);
         aorDefinitions.put(name, aor);
+        synchronized (preparedAORs) {
+            preparedAORs.remove(name);
+        }
         saveAORDefinitions();
         Log.d(TAG, "Added AOR: " + name);
     }
@@ -138,48 +172,166 @@ public class AORFilterManager {
     }
     
     public List<Archive> filterArchivesByAOR(List<Archive> archives) {
-        if (selectedAOR == null || selectedAOR.equals("all") || archives.isEmpty()) {
+        return filterArchivesByAOR(archives, selectedAOR);
+    }
+    
+    private List<Archive> filterArchivesByAOR(List<Archive> archives, String aorName) {
+        if (aorName == null || aorName.equals("all") || archives.isEmpty()) {
             return archives;
         }
         
-        AORDefinition aor = aorDefinitions.get(selectedAOR);
-        if (aor == null || aor.wktPolygon == null) {
+        PreparedGeometry aorGeometry = getAORGeometry(aorName);
+        if (aorGeometry == null) {
             return archives;
         }
         
-        List<Archive> filteredArchives = new ArrayList<>();
-        
+        List<Archive> filteredArchives;
         try {
-            WKTReader reader = new WKTReader();
-            Polygon aorPolygon = (Polygon) reader.read(aor.wktPolygon);
-            GeometryFactory geometryFactory = new GeometryFactory();
-            
-            for (Archive archive : archives) {
-                if (isArchiveInAOR(archive, aorPolygon, geometryFactory)) {
-                    filteredArchives.add(archive);
-                }
+            if (archives.size() >= PARALLEL_THRESHOLD) {
+                filteredArchives = filterParallel(archives, aorGeometry);
+            } else {
+                filteredArchives = filterChunk(archives, aorGeometry);
             }
         } catch (Exception e) {
             Log.e(TAG, "Error filtering archives by AOR", e);
             return archives; // Return original list if filtering fails
         }
         
-        Log.d(TAG, "Filtered " + archives.size() + " archives to " + filteredArchives.size() + " for AOR: " + selectedAOR);
+        Log.d(TAG, "Filtered " + archives.size() + " archives to " + filteredArchives.size() + " for AOR: " + aorName);
         return filteredArchives;
     }
     
-    private boolean isArchiveInAOR(Archive archive, Polygon aorPolygon, GeometryFactory geometryFactory) {
+    /**
+     * Filter off the calling thread; the result is delivered on the main thread. Use for large
+     * result sets so the UI thread isn't blocked.
+     */
+    public void filterArchivesByAORAsync(List<Archive> archives, FilterCallback callback) {
+        // Taken on the calling thread, so the pass uses the AOR selected when it was asked for
+        List<Archive> snapshot = new ArrayList<>(archives);
+        String aorName = selectedAOR;
+        asyncExecutor.execute(() -> {
+            List<Archive> filtered = filterArchivesByAOR(snapshot, aorName);
+            mainHandler.post(() -> callback.onFiltered(filtered));
+        });
+    }
+    
+    /**
+     * Archives already in the local {@link ArchiveStore} that intersect an AOR, without a
+     * network search. Queries the database; call from a background thread.
+     */
+    public List<Archive> getStoredArchivesInAOR(String aorName, Float maxCloudCoveragePercent) {
+        AORDefinition aor = aorDefinitions.get(aorName);
+        if (aor == null || aor.wktPolygon == null) {
+            return new ArrayList<>();
+        }
+        return ArchiveStore.getInstance(context).queryArea(aor.wktPolygon, maxCloudCoveragePercent);
+    }
+    
+    /**
+     * The AOR polygon prepared for repeated intersection tests, or null if unknown
+     */
+    public PreparedGeometry getAORGeometry(String aorName) {
+        synchronized (preparedAORs) {
+            PreparedGeometry prepared = preparedAORs.get(aorName);
+            if (prepared != null) {
+                return prepared;
+            }
+            AORDefinition aor = aorDefinitions.get(aorName);
+            if (aor == null || aor.wktPolygon == null) {
+                return null;
+            }
+            try {
+                prepared = PreparedGeometryFactory.prepare(new WKTReader().read(aor.wktPolygon));
+            } catch (ParseException e) {
+                Log.e(TAG, "Invalid AOR polygon: " + aorName, e);
+                return null;
+            }
+            preparedAORs.put(aorName, prepared);
+            return prepared;
+        }
+    }
+    
+    /**
+     * The AOR polygon as WKT, or null if unknown. Changes whenever the AOR is redefined.
+     */
+    public String getAORWkt(String aorName) {
+        AORDefinition aor = aorDefinitions.get(aorName);
+        return aor != null ? aor.wktPolygon : null;
+    }
+    
+    /**
+     * Names of every AOR intersecting a bounding box
+     */
+    public List<String> getAORsIntersecting(Envelope envelope) {
+        Geometry box = new GeometryFactory().toGeometry(envelope);
+        List<String> names = new ArrayList<>();
+        for (String name : aorDefinitions.keySet()) {
+            PreparedGeometry aorGeometry = getAORGeometry(name);
+            if (aorGeometry != null && aorGeometry.intersects(box)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Split the list into chunks filtered concurrently, keeping the original order
+     */
+    private List<Archive> filterParallel(List<Archive> archives, PreparedGeometry aorGeometry) throws Exception {
+        List<Future<List<Archive>>> chunks = new ArrayList<>();
+        for (int start = 0; start < archives.size(); start += CHUNK_SIZE) {
+            List<Archive> chunk = archives.subList(start, Math.min(archives.size(), start + CHUNK_SIZE));
+            chunks.add(getFilterExecutor().submit(new Callable<List<Archive>>() {
+                @Override
+                public List<Archive> call() {
+                    return filterChunk(chunk, aorGeometry);
+                }
+            }));
+        }
+        
+        List<Archive> filteredArchives = new ArrayList<>();
+        for (Future<List<Archive>> chunk : chunks) {
+            filteredArchives.addAll(chunk.get());
+        }
+        return filteredArchives;
+    }
+    
+    private List<Archive> filterChunk(List<Archive> archives, PreparedGeometry aorGeometry) {
+        // WKTReader and GeometryFactory aren't shared across threads
+        WKTReader reader = new WKTReader();
+        GeometryFactory geometryFactory = new GeometryFactory();
+        Envelope aorEnvelope = aorGeometry.getGeometry().getEnvelopeInternal();
+        List<Archive> filteredArchives = new ArrayList<>();
+        for (Archive archive : archives) {
+            if (isArchiveInAOR(archive, aorGeometry, aorEnvelope, reader, geometryFactory)) {
+                filteredArchives.add(archive);
+            }
+        }
+        return filteredArchives;
+    }
+    
+    private static synchronized ExecutorService getFilterExecutor() {
+        if (filterExecutor == null) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+            filterExecutor = Executors.newFixedThreadPool(threads);
+        }
+        return filterExecutor;
+    }
+    
+    private boolean isArchiveInAOR(Archive archive, PreparedGeometry aorGeometry, Envelope aorEnvelope,
+                                   WKTReader reader, GeometryFactory geometryFactory) {
         if (archive.getFootprint() == null) {
             return false; // Can't determine location without footprint
         }
         
         try {
-            // Parse the archive footprint
-            WKTReader reader = new WKTReader();
-            org.locationtech.jts.geom.Geometry archiveGeometry = reader.read(archive.getFootprint());
+            Geometry archiveGeometry = getFootprintGeometry(archive, reader);
             
-            // Check if the archive geometry intersects with the AOR
-            return aorPolygon.intersects(archiveGeometry);
+            // Cheap bounding box rejection before the exact test
+            if (!aorEnvelope.intersects(archiveGeometry.getEnvelopeInternal())) {
+                return false;
+            }
+            return aorGeometry.intersects(archiveGeometry);
             
         } catch (Exception e) {
             Log.w(TAG, "Could not parse archive footprint: " + archive.getFootprint(), e);
@@ -189,7 +341,7 @@ public class AORFilterManager {
                 GeoPoint centerPoint = extractCenterFromFootprint(archive.getFootprint());
                 if (centerPoint != null) {
                     Point point = geometryFactory.createPoint(new Coordinate(centerPoint.getLongitude(), centerPoint.getLatitude()));
-                    return aorPolygon.contains(point);
+                    return aorGeometry.contains(point);
                 }
             } catch (Exception e2) {
                 Log.w(TAG, "Could not extract center point from footprint", e2);
@@ -199,6 +351,19 @@ public class AORFilterManager {
         return false;
     }
     
+    /**
+     * Parse a footprint once per archive; results are reused across filter passes and AORs
+     */
+    private static Geometry getFootprintGeometry(Archive archive, WKTReader reader) throws ParseException {
+        String key = archive.getArchiveId() != null ? archive.getArchiveId() : archive.getFootprint();
+        Geometry geometry = footprintCache.get(key);
+        if (geometry == null) {
+            geometry = reader.read(archive.getFootprint());
+            footprintCache.put(key, geometry);
+        }
+        return geometry;
+    }
+    
     private GeoPoint extractCenterFromFootprint(String footprint) {
         // This is a simple implementation - you might need to enhance this based on your footprint format
         if (footprint == null) return null;
@@ -0,0 +1,584 @@
+package com.optisense.skyfi.atak;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.atakmap.coremap.filesystem.FileSystemUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.optisense.skyfi.atak.skyfiapi.Archive;
+import com.optisense.skyfi.atak.skyfiapi.ArchiveResponse;
+import com.optisense.skyfi.atak.skyfiapi.ArchivesRequest;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local store of every archive search result the plugin has seen, indexed by footprint.
+ *
+ * Archives are kept in SQLite with their footprint bounding box and a coarse grid-cell
+ * index (0.5 degree cells), so "which archives intersect this AOI with cloud below X" is an
+ * indexed lookup followed by an exact JTS intersection, not a network round trip. Completed
+ * searches are recorded as coverage: a later search whose AOI lies inside a recent, complete
+ * search with the same filters can be answered entirely from the store, which also makes
+ * previously viewed areas available offline.
+ *
+ * Queries and writes run on a single background thread; callbacks are delivered on the main
+ * thread.
+ */
+public class ArchiveStore {
+    private static final String TAG = "SkyFi.ArchiveStore";
+    private static final String DATABASE_NAME = "skyfi_archives.sqlite";
+    private static final int DATABASE_VERSION = 1;
+
+    // A completed search answers later searches inside its AOI for this long
+    public static final long COVERAGE_MAX_AGE_MS = TimeUnit.HOURS.toMillis(1);
+    // Archives not returned by any search for this long are dropped
+    private static final long RETENTION_MS = TimeUnit.DAYS.toMillis(30);
+
+    private static final double CELL_DEGREES = 0.5;
+    private static final int CELL_COLUMNS = (int) (360 / CELL_DEGREES);
+    private static final int CELL_ROWS = (int) (180 / CELL_DEGREES);
+    // Past this many cells the bounding box columns are cheaper than a huge IN list
+    private static final int MAX_QUERY_CELLS = 256;
+    // Footprints bigger than this are only indexed by bounding box
+    private static final int MAX_ARCHIVE_CELLS = 64;
+
+    private static ArchiveStore instance;
+
+    private final DatabaseHelper helper;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Gson gson;
+
+    public interface QueryCallback {
+        void onResult(QueryResult result);
+    }
+
+    /**
+     * Archives matching a search, plus whether the store alone is authoritative for it
+     */
+    public static class QueryResult {
+        private final List<Archive> archives;
+        private final boolean covered;
+        private final int freshCount;
+
+        QueryResult(List<Archive> archives, boolean covered, int freshCount) {
+            this.archives = archives;
+            this.covered = covered;
+            this.freshCount = freshCount;
+        }
+
+        /**
+         * Matching archives, newest capture first
+         */
+        public List<Archive> getArchives() {
+            return archives;
+        }
+
+        /**
+         * True when a recent, complete search already covered this AOI with these filters,
+         * so the network has nothing to add
+         */
+        public boolean isCovered() {
+            return covered;
+        }
+
+        /**
+         * Number of matching archives returned by a search within {@link #COVERAGE_MAX_AGE_MS}
+         */
+        public int getFreshCount() {
+            return freshCount;
+        }
+    }
+
+    private ArchiveStore(Context context) {
+        String path;
+        try {
+            path = new File(FileSystemUtils.getItem("Databases"), DATABASE_NAME).getAbsolutePath();
+        } catch (Exception e) {
+            // Outside ATAK's file layout (e.g. tests); fall back to the app database directory
+            path = DATABASE_NAME;
+        }
+        this.helper = new DatabaseHelper(context.getApplicationContext(), path);
+        this.gson = new GsonBuilder()
+                .registerTypeAdapter(Date.class, new EpochDateAdapter())
+                .create();
+        executor.execute(this::prune);
+    }
+
+    public static synchronized ArchiveStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ArchiveStore(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Persist one page of search results in the background
+     */
+    public void storeResponse(ArchiveResponse response) {
+        if (response == null || response.getArchives() == null || response.getArchives().isEmpty()) {
+            return;
+        }
+        List<Archive> archives = new ArrayList<>(response.getArchives());
+        executor.execute(() -> storeArchives(archives));
+    }
+
+    /**
+     * Record that every page of a search has been stored, so later searches inside its AOI
+     * can be answered locally
+     */
+    public void markSearchComplete(ArchivesRequest request) {
+        if (request == null || request.getAoi() == null) {
+            return;
+        }
+        String aoi = request.getAoi();
+        String signature = filterSignature(request);
+        Float maxCloud = request.getMaxCloudCoveragePercent();
+        executor.execute(() -> recordCoverage(aoi, signature, maxCloud));
+    }
+
+    /**
+     * Look up stored archives matching a search request's AOI and filters
+     */
+    public void query(ArchivesRequest request, QueryCallback callback) {
+        executor.execute(() -> {
+            QueryResult result = queryNow(request);
+            mainHandler.post(() -> callback.onResult(result));
+        });
+    }
+
+    /**
+     * Stored archives intersecting a WKT area, optionally capped by cloud cover. Blocks on the
+     * database; call from a background thread.
+     */
+    public List<Archive> queryArea(String wkt, Float maxCloudCoveragePercent) {
+        ArchivesRequest request = new ArchivesRequest();
+        request.setAoi(wkt);
+        request.setMaxCloudCoveragePercent(maxCloudCoveragePercent);
+        // No provider, resolution or product type restriction
+        request.setProviders(new ArrayList<>());
+        request.setResolutions(new ArrayList<>());
+        request.setProductTypes(new ArrayList<>());
+        return queryNow(request).getArchives();
+    }
+
+    /**
+     * Blocking form of {@link #query}; call from a background thread
+     */
+    public QueryResult queryNow(ArchivesRequest request) {
+        List<Archive> archives = new ArrayList<>();
+        if (request == null || request.getAoi() == null) {
+            return new QueryResult(archives, false, 0);
+        }
+
+        Geometry area;
+        try {
+            area = new WKTReader().read(request.getAoi());
+        } catch (ParseException e) {
+            Log.w(TAG, "Unparseable search AOI", e);
+            return new QueryResult(archives, false, 0);
+        }
+
+        int freshCount = 0;
+        long freshSince = System.currentTimeMillis() - COVERAGE_MAX_AGE_MS;
+        try {
+            SQLiteDatabase db = helper.getReadableDatabase();
+            List<String> args = new ArrayList<>();
+            String sql = buildQuery(request, area.getEnvelopeInternal(), args);
+            PreparedGeometry prepared = PreparedGeometryFactory.prepare(area);
+            WKTReader reader = new WKTReader();
+            try (Cursor cursor = db.rawQuery(sql, args.toArray(new String[0]))) {
+                while (cursor.moveToNext()) {
+                    if (!intersects(prepared, reader, cursor.getString(1))) {
+                        continue;
+                    }
+                    Archive archive = gson.fromJson(cursor.getString(2), Archive.class);
+                    if (archive == null) {
+                        continue;
+                    }
+                    archives.add(archive);
+                    if (cursor.getLong(3) >= freshSince) {
+                        freshCount++;
+                    }
+                }
+            }
+            boolean covered = isCovered(db, area, request);
+            return new QueryResult(archives, covered, freshCount);
+        } catch (Exception e) {
+            Log.e(TAG, "Local archive query failed", e);
+            return new QueryResult(archives, false, 0);
+        }
+    }
+
+    private String buildQuery(ArchivesRequest request, Envelope envelope, List<String> args) {
+        StringBuilder sql = new StringBuilder(
+                "SELECT a.archive_id, a.footprint, a.json, a.last_seen FROM archives a");
+
+        List<Integer> cells = cellsFor(envelope, MAX_QUERY_CELLS);
+        if (cells != null) {
+            // Archives too large for the cell index only appear through the bbox branch
+            sql.append(" WHERE (a.archive_id IN (SELECT archive_id FROM archive_cells WHERE cell IN (");
+            for (int i = 0; i < cells.size(); i++) {
+                sql.append(i > 0 ? ",?" : "?");
+                args.add(String.valueOf(cells.get(i)));
+            }
+            sql.append(")) OR a.indexed = 0)");
+        } else {
+            sql.append(" WHERE 1");
+        }
+
+        sql.append(" AND a.max_x >= ? AND a.min_x <= ? AND a.max_y >= ? AND a.min_y <= ?");
+        args.add(String.valueOf(envelope.getMinX()));
+        args.add(String.valueOf(envelope.getMaxX()));
+        args.add(String.valueOf(envelope.getMinY()));
+        args.add(String.valueOf(envelope.getMaxY()));
+
+        if (request.getMaxCloudCoveragePercent() != null) {
+            sql.append(" AND a.cloud_cover <= ?");
+            args.add(String.valueOf(request.getMaxCloudCoveragePercent()));
+        }
+        if (request.getMaxOffNadirAngle() != null) {
+            sql.append(" AND a.off_nadir <= ?");
+            args.add(String.valueOf(request.getMaxOffNadirAngle()));
+        }
+        if (request.isOpenData() != null && !request.isOpenData()) {
+            sql.append(" AND a.open_data = 0");
+        }
+        appendIn(sql, args, "a.provider", request.getProviders());
+        appendIn(sql, args, "a.resolution", request.getResolutions());
+        appendIn(sql, args, "a.product_type", request.getProductTypes());
+
+        long from = parseDay(request.getFromDate());
+        if (from > 0) {
+            sql.append(" AND a.capture_time >= ?");
+            args.add(String.valueOf(from));
+        }
+        long to = parseDay(request.getToDate());
+        if (to > 0) {
+            sql.append(" AND a.capture_time < ?");
+            args.add(String.valueOf(to + TimeUnit.DAYS.toMillis(1)));
+        }
+
+        sql.append(" ORDER BY a.capture_time DESC");
+        return sql.toString();
+    }
+
+    private static void appendIn(StringBuilder sql, List<String> args, String column, List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        sql.append(" AND ").append(column).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            sql.append(i > 0 ? ",?" : "?");
+            args.add(values.get(i));
+        }
+        sql.append(")");
+    }
+
+    private static boolean intersects(PreparedGeometry area, WKTReader reader, String footprint) {
+        try {
+            return area.intersects(reader.read(footprint));
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private void storeArchives(List<Archive> archives) {
+        long now = System.currentTimeMillis();
+        WKTReader reader = new WKTReader();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Archive archive : archives) {
+                if (archive.getArchiveId() == null || archive.getFootprint() == null) {
+                    continue;
+                }
+                Envelope envelope;
+                try {
+                    envelope = reader.read(archive.getFootprint()).getEnvelopeInternal();
+                } catch (ParseException e) {
+                    Log.w(TAG, "Not storing archive with bad footprint: " + archive.getArchiveId());
+                    continue;
+                }
+                List<Integer> cells = cellsFor(envelope, MAX_ARCHIVE_CELLS);
+
+                ContentValues values = new ContentValues();
+                values.put("archive_id", archive.getArchiveId());
+                values.put("provider", archive.getProvider());
+                values.put("product_type", archive.getProductType());
+                values.put("resolution", archive.getResolution());
+                values.put("capture_time", archive.getCaptureTimestamp() != null
+                        ? archive.getCaptureTimestamp().getTime() : 0);
+                values.put("cloud_cover", archive.getCloudCoveragePercent());
+                values.put("off_nadir", archive.getOffNadirAngle());
+                values.put("price_sq_km", archive.getPriceForOneSquareKm());
+                values.put("price_full_scene", archive.getPriceFullScene());
+                values.put("open_data", archive.isOpenData() ? 1 : 0);
+                values.put("footprint", archive.getFootprint());
+                values.put("min_x", envelope.getMinX());
+                values.put("min_y", envelope.getMinY());
+                values.put("max_x", envelope.getMaxX());
+                values.put("max_y", envelope.getMaxY());
+                values.put("indexed", cells != null ? 1 : 0);
+                values.put("json", gson.toJson(archive));
+                values.put("last_seen", now);
+                db.insertWithOnConflict("archives", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+                db.delete("archive_cells", "archive_id = ?", new String[]{archive.getArchiveId()});
+                if (cells != null) {
+                    for (Integer cell : cells) {
+                        ContentValues cellValues = new ContentValues();
+                        cellValues.put("cell", cell);
+                        cellValues.put("archive_id", archive.getArchiveId());
+                        db.insert("archive_cells", null, cellValues);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to store archives", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void recordCoverage(String aoi, String signature, Float maxCloud) {
+        Envelope envelope;
+        try {
+            envelope = new WKTReader().read(aoi).getEnvelopeInternal();
+        } catch (ParseException e) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put("signature", signature);
+        values.put("aoi", aoi);
+        values.put("max_cloud", maxCloud != null ? maxCloud : 100f);
+        values.put("min_x", envelope.getMinX());
+        values.put("min_y", envelope.getMinY());
+        values.put("max_x", envelope.getMaxX());
+        values.put("max_y", envelope.getMaxY());
+        values.put("completed", System.currentTimeMillis());
+        try {
+            helper.getWritableDatabase().insert("searches", null, values);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to record search coverage", e);
+        }
+    }
+
+    /**
+     * A search is covered by an earlier complete one with the same filters (and no stricter
+     * cloud limit) whose AOI contains it
+     */
+    private boolean isCovered(SQLiteDatabase db, Geometry area, ArchivesRequest request) {
+        Envelope envelope = area.getEnvelopeInternal();
+        Float maxCloud = request.getMaxCloudCoveragePercent();
+        String[] args = {
+                filterSignature(request),
+                String.valueOf(System.currentTimeMillis() - COVERAGE_MAX_AGE_MS),
+                String.valueOf(maxCloud != null ? maxCloud : 100f),
+                String.valueOf(envelope.getMinX()),
+                String.valueOf(envelope.getMinY()),
+                String.valueOf(envelope.getMaxX()),
+                String.valueOf(envelope.getMaxY())
+        };
+        WKTReader reader = new WKTReader();
+        try (Cursor cursor = db.rawQuery("SELECT aoi FROM searches WHERE signature = ? AND completed >= ?"
+                + " AND max_cloud >= ? AND min_x <= ? AND min_y <= ? AND max_x >= ? AND max_y >= ?", args)) {
+            while (cursor.moveToNext()) {
+                try {
+                    if (reader.read(cursor.getString(0)).covers(area)) {
+                        return true;
+                    }
+                } catch (ParseException e) {
+                    // Skip; the row will age out
+                }
+            }
+        }
+        return false;
+    }
+
+    private void prune() {
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            long now = System.currentTimeMillis();
+            String[] staleArchives = {String.valueOf(now - RETENTION_MS)};
+            db.delete("archive_cells",
+                    "archive_id IN (SELECT archive_id FROM archives WHERE last_seen < ?)", staleArchives);
+            int archives = db.delete("archives", "last_seen < ?", staleArchives);
+            int searches = db.delete("searches", "completed < ?",
+                    new String[]{String.valueOf(now - COVERAGE_MAX_AGE_MS)});
+            if (archives > 0 || searches > 0) {
+                Log.d(TAG, "Pruned " + archives + " archives and " + searches + " searches");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to prune archive store", e);
+        }
+    }
+
+    /**
+     * Everything in the request that narrows results apart from the AOI, cloud cover (compared
+     * numerically) and paging
+     */
+    static String filterSignature(ArchivesRequest request) {
+        Map<String, Object> parts = new LinkedHashMap<>();
+        parts.put("from", request.getFromDate());
+        parts.put("to", request.getToDate());
+        parts.put("nadir", request.getMaxOffNadirAngle());
+        parts.put("open", request.isOpenData());
+        parts.put("overlap", request.getMinOverlapRatio());
+        parts.put("res", sorted(request.getResolutions()));
+        parts.put("types", sorted(request.getProductTypes()));
+        parts.put("providers", sorted(request.getProviders()));
+        return parts.toString();
+    }
+
+    private static List<String> sorted(List<String> values) {
+        return values == null ? Collections.<String>emptyList() : new ArrayList<>(new TreeSet<>(values));
+    }
+
+    /**
+     * Grid cells overlapped by an envelope, or null if there are more than {@code limit}
+     */
+    static List<Integer> cellsFor(Envelope envelope, int limit) {
+        int minColumn = column(envelope.getMinX());
+        int maxColumn = column(envelope.getMaxX());
+        int minRow = row(envelope.getMinY());
+        int maxRow = row(envelope.getMaxY());
+        if ((long) (maxColumn - minColumn + 1) * (maxRow - minRow + 1) > limit) {
+            return null;
+        }
+        List<Integer> cells = new ArrayList<>();
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                cells.add(row * CELL_COLUMNS + column);
+            }
+        }
+        return cells;
+    }
+
+    private static int column(double longitude) {
+        return Math.max(0, Math.min(CELL_COLUMNS - 1, (int) Math.floor((longitude + 180) / CELL_DEGREES)));
+    }
+
+    private static int row(double latitude) {
+        return Math.max(0, Math.min(CELL_ROWS - 1, (int) Math.floor((latitude + 90) / CELL_DEGREES)));
+    }
+
+    /**
+     * Request dates are ISO timestamps at midnight UTC; only the day matters for filtering
+     */
+    private static long parseDay(String date) {
+        if (date == null || date.length() < 10) {
+            return 0;
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.parse(date.substring(0, 10)).getTime();
+        } catch (java.text.ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stores dates as epoch millis so stored rows don't depend on the device locale
+     */
+    private static class EpochDateAdapter extends TypeAdapter<Date> {
+        @Override
+        public void write(JsonWriter out, Date value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                out.value(value.getTime());
+            }
+        }
+
+        @Override
+        public Date read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return new Date(in.nextLong());
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String path) {
+            super(context, path, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE archives ("
+                    + "archive_id TEXT PRIMARY KEY, "
+                    + "provider TEXT, "
+                    + "product_type TEXT, "
+                    + "resolution TEXT, "
+                    + "capture_time INTEGER, "
+                    + "cloud_cover REAL, "
+                    + "off_nadir REAL, "
+                    + "price_sq_km REAL, "
+                    + "price_full_scene REAL, "
+                    + "open_data INTEGER, "
+                    + "footprint TEXT, "
+                    + "min_x REAL, min_y REAL, max_x REAL, max_y REAL, "
+                    + "indexed INTEGER, "
+                    + "json TEXT, "
+                    + "last_seen INTEGER)");
+            db.execSQL("CREATE TABLE archive_cells (cell INTEGER, archive_id TEXT)");
+            db.execSQL("CREATE INDEX archive_cells_cell ON archive_cells (cell)");
+            db.execSQL("CREATE INDEX archive_cells_archive ON archive_cells (archive_id)");
+            db.execSQL("CREATE INDEX archives_unindexed ON archives (indexed, min_x)");
+            db.execSQL("CREATE INDEX archives_last_seen ON archives (last_seen)");
+            db.execSQL("CREATE TABLE searches ("
+                    + "signature TEXT, "
+                    + "aoi TEXT, "
+                    + "max_cloud REAL, "
+                    + "min_x REAL, min_y REAL, max_x REAL, max_y REAL, "
+                    + "completed INTEGER)");
+            db.execSQL("CREATE INDEX searches_signature ON searches (signature, completed)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Everything here can be re-fetched
+            db.execSQL("DROP TABLE IF EXISTS archive_cells");
+            db.execSQL("DROP TABLE IF EXISTS archives");
+            db.execSQL("DROP TABLE IF EXISTS searches");
+            onCreate(db);
+        }
+    }
+}
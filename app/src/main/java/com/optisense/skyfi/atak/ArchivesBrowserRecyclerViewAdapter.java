@@ -4,8 +4,6 @@ import com.skyfi.atak.plugin.R;
 import android.content.Context;
 import com.atakmap.coremap.log.Log;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.Looper;
 import android.view.LayoutInflater;
@@ -20,15 +18,14 @@ import android.widget.Toast;
 
 import com.optisense.skyfi.atak.skyfiapi.Archive;
 
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Map;
 
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 
-public class ArchivesBrowserRecyclerViewAdapter extends RecyclerView.Adapter<ArchivesBrowserRecyclerViewAdapter.ViewHolder> {
+public class ArchivesBrowserRecyclerViewAdapter extends RecyclerView.Adapter<ArchivesBrowserRecyclerViewAdapter.ViewHolder>
+        implements ThumbnailPrefetcher.UrlSource {
 
     private static final String LOGTAG = "ArchivesBrowserRecycler";
     private ArrayList<Archive> mData;
@@ -38,6 +35,7 @@ public class ArchivesBrowserRecyclerViewAdapter extends RecyclerView.Adapter<Arc
     private Context context;
     private ImagePreferencesManager imagePrefsManager;
     private ImageCacheManager imageCacheManager;
+    private ThumbnailLoader thumbnailLoader;
 
     ArchivesBrowserRecyclerViewAdapter(Context context, ArrayList<Archive> data) {
         this.mInflater = LayoutInflater.from(context);
@@ -45,6 +43,7 @@ public class ArchivesBrowserRecyclerViewAdapter extends RecyclerView.Adapter<Arc
         this.context = context;
         this.imagePrefsManager = ImagePreferencesManager.getInstance(context);
         this.imageCacheManager = ImageCacheManager.getInstance(context);
+        this.thumbnailLoader = ThumbnailLoader.getInstance(context);
     }
 
     @NonNull
@@ -65,27 +64,7 @@ public class ArchivesBrowserRecyclerViewAdapter extends RecyclerView.Adapter<Arc
                 holder.linearLayout.setBackgroundColor(context.getColor(R.color.darker_gray));
             }*/
 
-            Handler handler = new Handler(Looper.getMainLooper());
-            Thread thread = new Thread(() -> {
-                try {
-                    Map.Entry<String, String> entry = archive.getThumbnailUrls().entrySet().iterator().next();
-                    String key = entry.getKey();
-                    String value = entry.getValue();
-                    URL thumbnailUrl = new URL(value);
-                    URLConnection connection = thumbnailUrl.openConnection();
-                    Bitmap image = BitmapFactory.decodeStream(connection.getInputStream());
-                    handler.post(() -> {
-                        holder.thumbnail.setImageBitmap(image);
-                        holder.thumbnail.setAlpha(1f);
-                    });
-
-                } catch (Exception e) {
-                    Log.e(LOGTAG, "Failed to set thumbnail", e);
-                }
-            });
-
-            thread.start();
-
+            thumbnailLoader.load(holder.thumbnail, getThumbnailUrl(archive));
 
             holder.productType.setText(archive.getProductType());
             holder.resolution.setText(archive.getResolution());
@@ -102,11 +81,26 @@ public class ArchivesBrowserRecyclerViewAdapter extends RecyclerView.Adapter<Arc
         }
     }
 
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        thumbnailLoader.cancel(holder.thumbnail);
+    }
+
     @Override
     public int getItemCount() {
         return mData.size();
     }
 
+    @Override
+    public String getThumbnailUrl(int position) {
+        return position >= 0 && position < mData.size() ? getThumbnailUrl(mData.get(position)) : null;
+    }
+
+    static String getThumbnailUrl(Archive archive) {
+        Map<String, String> urls = archive.getThumbnailUrls();
+        return urls != null && !urls.isEmpty() ? urls.values().iterator().next() : null;
+    }
+
     public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
         ImageView thumbnail;
         TextView productType;
@@ -224,47 +218,28 @@ public class ArchivesBrowserRecyclerViewAdapter extends RecyclerView.Adapter<Arc
         holder.cacheButton.setEnabled(false);
         holder.cacheProgressText.setText(context.getString(R.string.caching_progress));
         
-        // Start caching in background thread
-        Thread cacheThread = new Thread(() -> {
-            try {
-                URL url = new URL(imageUrl);
-                URLConnection connection = url.openConnection();
-                Bitmap image = BitmapFactory.decodeStream(connection.getInputStream());
-                
-                if (image != null) {
-                    imageCacheManager.cacheImage(imageUrl, image, success -> {
-                        Handler mainHandler = new Handler(Looper.getMainLooper());
-                        mainHandler.post(() -> {
-                            holder.progressLayout.setVisibility(View.GONE);
-                            if (success) {
-                                updateCacheButtonState(holder, archive);
-                                Toast.makeText(context, context.getString(R.string.cache_complete), Toast.LENGTH_SHORT).show();
-                            } else {
-                                holder.cacheButton.setEnabled(true);
-                                Toast.makeText(context, context.getString(R.string.cache_failed), Toast.LENGTH_SHORT).show();
-                            }
-                        });
-                    });
-                } else {
-                    Handler mainHandler = new Handler(Looper.getMainLooper());
-                    mainHandler.post(() -> {
-                        holder.progressLayout.setVisibility(View.GONE);
-                        holder.cacheButton.setEnabled(true);
-                        Toast.makeText(context, context.getString(R.string.cache_failed), Toast.LENGTH_SHORT).show();
-                    });
-                }
-            } catch (Exception e) {
-                Log.e(LOGTAG, "Failed to cache image", e);
+        // Fetched by the download queue and stored as-is; nothing is decoded or re-encoded
+        imageCacheManager.cacheArchiveImage(imageUrl, archive, new ImageCacheManager.ProgressCallback() {
+            @Override
+            public void onProgress(int progress, int total) {
+            }
+            
+            @Override
+            public void onComplete(boolean success, String message) {
                 Handler mainHandler = new Handler(Looper.getMainLooper());
                 mainHandler.post(() -> {
                     holder.progressLayout.setVisibility(View.GONE);
-                    holder.cacheButton.setEnabled(true);
-                    Toast.makeText(context, context.getString(R.string.cache_failed), Toast.LENGTH_SHORT).show();
+                    if (success) {
+                        updateCacheButtonState(holder, archive);
+                        Toast.makeText(context, context.getString(R.string.cache_complete), Toast.LENGTH_SHORT).show();
+                    } else {
+                        Log.e(LOGTAG, "Failed to cache image: " + message);
+                        holder.cacheButton.setEnabled(true);
+                        Toast.makeText(context, context.getString(R.string.cache_failed), Toast.LENGTH_SHORT).show();
+                    }
                 });
             }
         });
-        
-        cacheThread.start();
     }
 
 }
@@ -0,0 +1,559 @@
+package com.optisense.skyfi.atak;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Size-bounded file cache with a journal, in the style of Android's DiskLruCache.
+ *
+ * Each entry is one file named by its key. The in-memory index (key, size, access order) is
+ * rebuilt from an append-only journal on open, so startup, size queries, {@link #contains}
+ * and eviction never scan the directory. Writes go to a temp file that is renamed over the
+ * entry on {@link Editor#commit()}, so readers only ever see complete files. Any number of
+ * threads may read; each key has at most one editor at a time. {@link #get} opens the file
+ * under the cache's lock, so a reader keeps the version it opened even if the entry is
+ * replaced or evicted while it reads.
+ *
+ * Journal format, one operation per line after a three line header:
+ * <pre>
+ *     CLEAN key size   entry committed with this many bytes
+ *     DIRTY key        edit started; must be followed by CLEAN or REMOVE
+ *     REMOVE key       entry deleted
+ *     READ key         entry read (for LRU order)
+ * </pre>
+ */
+public class DiskLruCache implements Closeable {
+    private static final String TAG = "SkyFi.DiskLruCache";
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String MAGIC = "skyfi.DiskLruCache";
+    static final String VERSION = "1";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    // Rebuild the journal once it holds this many lines that no longer describe an entry
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_.-]{1,120}");
+
+    public interface EvictionListener {
+        /**
+         * An entry was removed to stay within the size budget. Called with the cache locked;
+         * hand any slow work to another thread.
+         */
+        void onEvicted(String key, long size);
+    }
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final long maxSize;
+    private final EvictionListener evictionListener;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private long size;
+    private int redundantOpCount;
+    private Writer journalWriter;
+
+    private static final class Entry {
+        final String key;
+        long length;
+        boolean readable;
+        Editor currentEditor;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private DiskLruCache(File directory, long maxSize, EvictionListener evictionListener) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+        this.maxSize = maxSize;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Open the cache in {@code directory}, creating it if needed. If there is no journal yet,
+     * files already in the directory are adopted as entries.
+     */
+    public static DiskLruCache open(File directory, long maxSize, EvictionListener evictionListener) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+
+        DiskLruCache cache = new DiskLruCache(directory, maxSize, evictionListener);
+        if (cache.journalFile.exists()) {
+            try {
+                cache.readJournal();
+                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true));
+                cache.trimToSize();
+                return cache;
+            } catch (IOException e) {
+                Log.w(TAG, "Corrupt journal in " + directory + ", rebuilding", e);
+                cache.entries.clear();
+                cache.size = 0;
+            }
+        }
+
+        cache.adoptExistingFiles();
+        cache.rebuildJournal();
+        cache.trimToSize();
+        return cache;
+    }
+
+    /**
+     * The committed value for {@code key}, open for reading, or null if absent. The caller
+     * closes it.
+     */
+    public FileInputStream get(String key) {
+        validateKey(key);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null || !entry.readable) {
+                return null;
+            }
+            FileInputStream in;
+            try {
+                in = new FileInputStream(cleanFile(key));
+            } catch (FileNotFoundException e) {
+                // Deleted behind the cache's back
+                deleteEntry(entry);
+                return null;
+            }
+            redundantOpCount++;
+            appendJournal(READ + ' ' + key, false);
+            compactIfNeeded();
+            return in;
+        }
+    }
+
+    /**
+     * Whether a committed entry exists. Never touches the filesystem.
+     */
+    public synchronized boolean contains(String key) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.readable;
+    }
+
+    /**
+     * Start writing {@code key}, or null if another edit of the same key is in progress
+     */
+    public synchronized Editor edit(String key) {
+        validateKey(key);
+        checkNotClosed();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        } else if (entry.currentEditor != null) {
+            return null;
+        }
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+        // Written before the data so a crash leaves a DIRTY line to clean up
+        appendJournal(DIRTY + ' ' + key, true);
+        return editor;
+    }
+
+    /**
+     * Write a complete entry in one step
+     */
+    public boolean put(String key, byte[] data) {
+        Editor editor = edit(key);
+        if (editor == null) {
+            return false;
+        }
+        try (OutputStream out = editor.newOutputStream()) {
+            out.write(data);
+        } catch (IOException e) {
+            editor.abort();
+            Log.e(TAG, "Failed to write " + key, e);
+            return false;
+        }
+        return editor.commit();
+    }
+
+    public synchronized boolean remove(String key) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+        deleteEntry(entry);
+        return true;
+    }
+
+    /**
+     * Bytes held by committed entries
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int entryCount() {
+        return entries.size();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Keys of committed entries, least recently used first
+     */
+    public synchronized List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.readable) {
+                keys.add(entry.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Delete every entry not currently being edited
+     */
+    public synchronized void evictAll() {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.currentEditor == null) {
+                deleteEntry(entry);
+            }
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journalWriter == null) {
+            return;
+        }
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        journalWriter.close();
+        journalWriter = null;
+    }
+
+    /**
+     * Writes one entry to a temp file; nothing is visible to readers until {@link #commit()}
+     */
+    public final class Editor {
+        private final Entry entry;
+        private boolean done;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+        }
+
+        public OutputStream newOutputStream() throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (done || entry.currentEditor != this) {
+                    throw new IllegalStateException("Editor is closed");
+                }
+            }
+            return new FileOutputStream(tempFile(entry.key));
+        }
+
+        /**
+         * Atomically publish the written file. Returns false if nothing usable was written.
+         */
+        public boolean commit() {
+            synchronized (DiskLruCache.this) {
+                if (done) {
+                    throw new IllegalStateException("Editor is closed");
+                }
+                done = true;
+                return completeEdit(this, true);
+            }
+        }
+
+        public void abort() {
+            synchronized (DiskLruCache.this) {
+                if (!done) {
+                    done = true;
+                    completeEdit(this, false);
+                }
+            }
+        }
+    }
+
+    private boolean completeEdit(Editor editor, boolean success) {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            return false;
+        }
+        entry.currentEditor = null;
+
+        File temp = tempFile(entry.key);
+        File clean = cleanFile(entry.key);
+        if (success && temp.exists() && temp.renameTo(clean)) {
+            long oldLength = entry.length;
+            entry.length = clean.length();
+            entry.readable = true;
+            size = size - oldLength + entry.length;
+            appendJournal(CLEAN + ' ' + entry.key + ' ' + entry.length, true);
+            trimToSize();
+            compactIfNeeded();
+            return true;
+        }
+
+        temp.delete();
+        redundantOpCount++;
+        if (entry.readable) {
+            // The previous version is still valid
+            appendJournal(CLEAN + ' ' + entry.key + ' ' + entry.length, true);
+        } else {
+            entries.remove(entry.key);
+            appendJournal(REMOVE + ' ' + entry.key, true);
+        }
+        compactIfNeeded();
+        return false;
+    }
+
+    private void deleteEntry(Entry entry) {
+        cleanFile(entry.key).delete();
+        size -= entry.length;
+        entries.remove(entry.key);
+        redundantOpCount++;
+        appendJournal(REMOVE + ' ' + entry.key, true);
+        compactIfNeeded();
+    }
+
+    private void trimToSize() {
+        // Pick victims first; deleting while iterating would break the iterator
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        List<Entry> evicted = new ArrayList<>();
+        long remaining = size;
+        while (remaining > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.currentEditor != null || !entry.readable) {
+                continue;
+            }
+            evicted.add(entry);
+            remaining -= entry.length;
+        }
+        for (Entry entry : evicted) {
+            deleteEntry(entry);
+            if (evictionListener != null) {
+                evictionListener.onEvicted(entry.key, entry.length);
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= entries.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to compact journal", e);
+            }
+        }
+    }
+
+    private void appendJournal(String line, boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write journal", e);
+        }
+    }
+
+    private void readJournal() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("Unexpected journal header: " + magic + ", " + version);
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount++;
+            }
+            redundantOpCount = lineCount - entries.size();
+        }
+
+        // Edits interrupted by a crash or process death never committed
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.currentEditor != null) {
+                entry.currentEditor = null;
+                tempFile(entry.key).delete();
+                if (!entry.readable) {
+                    iterator.remove();
+                }
+            }
+            if (entry.readable) {
+                size += entry.length;
+            }
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Unexpected journal line: " + line);
+        }
+        String key = parts[1];
+        switch (parts[0]) {
+            case REMOVE:
+                entries.remove(key);
+                return;
+            case READ:
+                entries.get(key);
+                return;
+            case DIRTY: {
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry(key);
+                    entries.put(key, entry);
+                }
+                entry.currentEditor = new Editor(entry);
+                return;
+            }
+            case CLEAN: {
+                if (parts.length != 3) {
+                    throw new IOException("Unexpected journal line: " + line);
+                }
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry(key);
+                    entries.put(key, entry);
+                }
+                entry.readable = true;
+                entry.currentEditor = null;
+                try {
+                    entry.length = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unexpected journal line: " + line);
+                }
+                return;
+            }
+            default:
+                throw new IOException("Unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Files left from before the journal existed become entries, oldest first
+     */
+    private void adoptExistingFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TEMP)) {
+                continue;
+            }
+            if (name.endsWith(TEMP_SUFFIX) || !LEGAL_KEY_PATTERN.matcher(name).matches()) {
+                file.delete();
+                continue;
+            }
+            Entry entry = new Entry(name);
+            entry.length = file.length();
+            entry.readable = true;
+            entries.put(name, entry);
+            size += entry.length;
+        }
+    }
+
+    /**
+     * Write a minimal journal for the current entries and atomically swap it in
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        try (Writer writer = new BufferedWriter(new FileWriter(journalFileTmp))) {
+            writer.write(MAGIC + "\n" + VERSION + "\n\n");
+            for (Entry entry : entries.values()) {
+                if (entry.currentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                } else if (entry.readable) {
+                    writer.write(CLEAN + ' ' + entry.key + ' ' + entry.length + '\n');
+                }
+            }
+        }
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("Unable to replace journal");
+        }
+        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+        redundantOpCount = 0;
+    }
+
+    private File cleanFile(String key) {
+        return new File(directory, key);
+    }
+
+    private File tempFile(String key) {
+        return new File(directory, key + TEMP_SUFFIX);
+    }
+
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (!LEGAL_KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("keys must match " + LEGAL_KEY_PATTERN + ": \"" + key + "\"");
+        }
+    }
+}
@@ -6,28 +6,58 @@ import android.graphics.BitmapFactory;
 import android.util.Log;
 import android.util.LruCache;
 
+import com.optisense.skyfi.atak.skyfiapi.Archive;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.io.WKTReader;
+
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ImageCacheManager {
     private static final String TAG = "SkyFi.ImageCache";
     private static final String CACHE_DIR = "skyfi_image_cache";
+    private static final String INDEX_FILE = "skyfi_image_cache.index";
+    private static final String DOWNLOAD_DATABASE = "skyfi_downloads.db";
+    private static final String DOWNLOAD_DIR = "skyfi_downloads";
     private static final int MEMORY_CACHE_SIZE = 20 * 1024 * 1024; // 20MB
     private static final int DISK_CACHE_SIZE = 100 * 1024 * 1024; // 100MB
+    // Decoded bitmaps handed back by views, kept for inBitmap reuse
+    private static final int REUSE_POOL_SIZE = 8;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
     
     private static ImageCacheManager instance;
     private final Context context;
     private final LruCache<String, Bitmap> memoryCache;
     private final File diskCacheDir;
+    // Journaled store for diskCacheDir; opened off the calling thread
+    private final Future<DiskLruCache> diskCache;
     private final ExecutorService executorService;
     private final AORFilterManager aorFilterManager;
+    // Location, archive and AOR tags of every disk cache entry
+    private final ImageCacheIndex index;
+    // Persistent pre-cache jobs; installs finished files into the disk cache
+    private final DownloadJobQueue downloadQueue;
+    private final LinkedList<Bitmap> reusableBitmaps = new LinkedList<>();
+    // "key|WxH" -> memory cache key of the sampled decode last made for that view size
+    private final LruCache<String, String> sampledKeys = new LruCache<>(512);
     
     public interface CacheCallback {
         void onCached(boolean success);
@@ -36,6 +66,19 @@ public class ImageCacheManager {
     public interface ProgressCallback {
         void onProgress(int progress, int total);
         void onComplete(boolean success, String message);
+        
+        /**
+         * Bytes downloaded so far and the total known so far; the total grows as downloads
+         * start and report their sizes
+         */
+        default void onBytesProgress(long bytesDone, long bytesTotal) {
+        }
+        
+        /**
+         * The downloads were queued as job {@code jobId}, which {@link #cancelPrecacheJob} stops
+         */
+        default void onQueued(long jobId) {
+        }
     }
     
     private ImageCacheManager(Context context) {
@@ -51,14 +94,49 @@ public class ImageCacheManager {
             }
         };
         
-        // Initialize disk cache directory
+        // Initialize disk cache; the journal replays the index and enforces the size budget
         diskCacheDir = new File(context.getCacheDir(), CACHE_DIR);
-        if (!diskCacheDir.exists()) {
-            diskCacheDir.mkdirs();
-        }
+        index = new ImageCacheIndex(context, new File(context.getCacheDir(), INDEX_FILE));
+        diskCache = executorService.submit(this::openDiskCache);
+        executorService.execute(this::indexExistingEntries);
         
-        // Clean up old cache files
-        cleanupOldCache();
+        // Pick up pre-cache jobs interrupted by the last shutdown once the disk cache is open
+        downloadQueue = new DownloadJobQueue(context, new File(context.getCacheDir(), DOWNLOAD_DATABASE),
+                new File(context.getCacheDir(), DOWNLOAD_DIR), this::installDownload);
+        executorService.execute(() -> {
+            getDiskCache();
+            downloadQueue.resume();
+        });
+    }
+    
+    private DiskLruCache openDiskCache() {
+        try {
+            // Evicted entries leave the location index too
+            return DiskLruCache.open(diskCacheDir, DISK_CACHE_SIZE, (key, size) ->
+                    executorService.execute(() -> index.remove(Collections.singletonList(key))));
+        } catch (IOException e) {
+            Log.e(TAG, "Disk cache unavailable", e);
+            return null;
+        }
+    }
+    
+    /**
+     * The disk cache, waiting for it to open if necessary; null if it couldn't be opened
+     */
+    private DiskLruCache getDiskCache() {
+        try {
+            return diskCache.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /**
+     * The AOR definitions cache entries are tagged against. Share it so AORs added elsewhere
+     * are seen here.
+     */
+    public AORFilterManager getAORFilterManager() {
+        return aorFilterManager;
     }
     
     public static synchronized ImageCacheManager getInstance(Context context) {
@@ -68,73 +146,240 @@ public class ImageCacheManager {
         return instance;
     }
     
-    public void cacheImage(String url, Bitmap bitmap, CacheCallback callback) {
-        if (url == null || bitmap == null) {
-            if (callback != null) callback.onCached(false);
+    /**
+     * Download one image of an archive into the disk cache as a persistent job, keeping the
+     * original bytes and recording the archive's footprint so the file takes part in region
+     * statistics and region eviction
+     */
+    public void cacheArchiveImage(String url, Archive archive, ProgressCallback callback) {
+        if (url == null || url.isEmpty()) {
+            if (callback != null) callback.onComplete(false, "No image to cache");
             return;
         }
-        
-        String key = generateKey(url);
-        
-        // Add to memory cache
-        memoryCache.put(key, bitmap);
-        
-        // Save to disk cache asynchronously
-        executorService.execute(() -> {
-            boolean success = saveToDisk(key, bitmap);
-            if (callback != null) {
-                callback.onCached(success);
-            }
-        });
+        executorService.execute(() -> enqueueDownloads("Archive " + archiveId(archive),
+                Collections.singletonList(new DownloadJobQueue.Download(url, archiveId(archive), footprintBounds(archive))),
+                callback));
     }
     
     public void cacheImageData(String url, byte[] data, CacheCallback callback) {
+        cacheImageData(url, data, null, callback);
+    }
+    
+    public void cacheImageData(String url, byte[] data, Archive archive, CacheCallback callback) {
         if (url == null || data == null) {
             if (callback != null) callback.onCached(false);
             return;
         }
         
         executorService.execute(() -> {
-            try {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                if (bitmap != null) {
-                    cacheImage(url, bitmap, callback);
-                } else {
-                    // If it's not a bitmap, save raw data
-                    String key = generateKey(url);
-                    boolean success = saveRawToDisk(key, data);
-                    if (callback != null) {
-                        callback.onCached(success);
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error caching image data", e);
-                if (callback != null) callback.onCached(false);
+            boolean success = storeImageData(url, data, null, archiveId(archive), footprintBounds(archive));
+            if (callback != null) {
+                callback.onCached(success);
             }
         });
     }
     
+    /**
+     * Persist downloaded bytes as-is on the calling (worker) thread. Nothing is decoded here;
+     * bitmaps are only produced on demand by {@link #getFromCache(String, int, int)}.
+     */
+    private boolean storeImageData(String url, byte[] data, String contentType, String archiveId, Envelope bounds) {
+        try {
+            String key = generateKey(url);
+            DiskLruCache cache = getDiskCache();
+            if (cache == null || !cache.put(key, data)) {
+                return false;
+            }
+            String type = contentType != null && contentType.startsWith("image/") ? contentType : sniffContentType(data);
+            recordEntry(key, url, archiveId, bounds, type);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error caching image data", e);
+            return false;
+        }
+    }
+    
     public Bitmap getFromCache(String url) {
+        return getFromCache(url, 0, 0);
+    }
+    
+    /**
+     * Cached image decoded at the smallest power-of-two scale that still covers
+     * {@code reqWidth} x {@code reqHeight} (0 for full size). Decodes from disk on a miss, so
+     * call from a background thread.
+     */
+    public Bitmap getFromCache(String url, int reqWidth, int reqHeight) {
         if (url == null) return null;
         
         String key = generateKey(url);
         
-        // Check memory cache first
+        // Check memory cache first; a full-size copy serves any requested size
         Bitmap bitmap = memoryCache.get(key);
         if (bitmap != null) {
             return bitmap;
         }
         
-        // Check disk cache
-        bitmap = loadFromDisk(key);
+        DiskLruCache cache = getDiskCache();
+        try (FileInputStream in = cache != null ? cache.get(key) : null) {
+            if (in == null) {
+                return null;
+            }
+            bitmap = decodeFile(key, in, reqWidth, reqHeight);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cached image " + key, e);
+            return null;
+        }
         if (bitmap != null) {
-            // Add to memory cache
-            memoryCache.put(key, bitmap);
+            executorService.execute(() -> index.touch(key));
         }
+        return bitmap;
+    }
+    
+    /**
+     * Decode an encoded image file through the memory tier and the reuse pool, sampled for
+     * {@code reqWidth} x {@code reqHeight}. Shared with {@link ThumbnailLoader}, whose files
+     * live in their own disk cache but are keyed the same way. Bounds and pixels both come
+     * from the one open file, so a concurrent replace or eviction can't mix two versions.
+     */
+    Bitmap decodeFile(String key, FileInputStream in, int reqWidth, int reqHeight) throws IOException {
+        // Decoding from the descriptor leaves its position alone, so it can be read twice
+        FileDescriptor fd = in.getFD();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fd, null, options);
+        int sampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        String memoryKey = sampleSize > 1 ? key + "_s" + sampleSize : key;
         
+        Bitmap bitmap = memoryCache.get(memoryKey);
+        if (bitmap == null) {
+            bitmap = decodeSampled(fd, options, sampleSize);
+            if (bitmap != null) {
+                // Add to memory cache
+                memoryCache.put(memoryKey, bitmap);
+            }
+        }
+        if (bitmap != null) {
+            sampledKeys.put(key + "|" + reqWidth + "x" + reqHeight, memoryKey);
+        }
         return bitmap;
     }
     
+    /**
+     * Memory-only lookup matching {@link #getFromCache(String, int, int)} for a size that was
+     * decoded before. Never touches disk, so it is safe on the main thread.
+     */
+    public Bitmap peekFromMemory(String url, int reqWidth, int reqHeight) {
+        if (url == null) return null;
+        String key = generateKey(url);
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        String memoryKey = sampledKeys.get(key + "|" + reqWidth + "x" + reqHeight);
+        return memoryKey != null ? memoryCache.get(memoryKey) : null;
+    }
+    
+    /**
+     * Hand back a bitmap from {@link #getFromCache} once no view displays it. Bitmaps still
+     * held by the memory cache are ignored; evicted ones are reused for later decodes.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        if (memoryCache.snapshot().containsValue(bitmap)) {
+            return;
+        }
+        synchronized (reusableBitmaps) {
+            if (!reusableBitmaps.contains(bitmap)) {
+                reusableBitmaps.addFirst(bitmap);
+                if (reusableBitmaps.size() > REUSE_POOL_SIZE) {
+                    reusableBitmaps.removeLast();
+                }
+            }
+        }
+    }
+    
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0 || width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+    
+    private Bitmap decodeSampled(FileDescriptor fd, BitmapFactory.Options options, int sampleSize) {
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        Bitmap reusable = takeReusableBitmap(options);
+        options.inBitmap = reusable;
+        try {
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all; decode into a fresh one
+            options.inBitmap = null;
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+    }
+    
+    /**
+     * A pooled bitmap big enough for the pending decode, or null
+     */
+    private Bitmap takeReusableBitmap(BitmapFactory.Options options) {
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        long needed = (long) width * height * 4;
+        synchronized (reusableBitmaps) {
+            Iterator<Bitmap> iterator = reusableBitmaps.iterator();
+            while (iterator.hasNext()) {
+                Bitmap candidate = iterator.next();
+                if (candidate.isRecycled()) {
+                    iterator.remove();
+                } else if (candidate.getAllocationByteCount() >= needed) {
+                    iterator.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Content type from the leading magic bytes
+     */
+    static String sniffContentType(byte[] data) {
+        if (data.length >= 3 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8 && (data[2] & 0xff) == 0xff) {
+            return "image/jpeg";
+        }
+        if (data.length >= 8 && (data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return "image/png";
+        }
+        if (data.length >= 12 && data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            return "image/webp";
+        }
+        if (data.length >= 4 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8') {
+            return "image/gif";
+        }
+        if (data.length >= 4 && ((data[0] == 'I' && data[1] == 'I' && data[2] == 42 && data[3] == 0)
+                || (data[0] == 'M' && data[1] == 'M' && data[2] == 0 && data[3] == 42))) {
+            return "image/tiff";
+        }
+        return DEFAULT_CONTENT_TYPE;
+    }
+    
+    /**
+     * Content type of a cached image as downloaded, or null if it isn't cached. Queries the
+     * index database; call from a background thread.
+     */
+    public String getContentType(String url) {
+        return url != null ? index.getContentType(generateKey(url)) : null;
+    }
+    
     public boolean isCached(String url) {
         if (url == null) return false;
         
@@ -145,36 +390,29 @@ public class ImageCacheManager {
             return true;
         }
         
-        // Check disk cache
-        File file = new File(diskCacheDir, key);
-        return file.exists();
+        // Check the disk cache's in-memory index; safe on the UI thread, never blocks on I/O
+        DiskLruCache cache = diskCache.isDone() ? getDiskCache() : null;
+        return cache != null && cache.contains(key);
     }
     
     public void clearCache() {
         memoryCache.evictAll();
         
         executorService.execute(() -> {
-            File[] files = diskCacheDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    file.delete();
-                }
+            DiskLruCache cache = getDiskCache();
+            if (cache != null) {
+                cache.evictAll();
             }
+            index.clear();
         });
     }
     
     public long getCacheSize() {
-        long size = 0;
-        File[] files = diskCacheDir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                size += file.length();
-            }
-        }
-        return size;
+        DiskLruCache cache = getDiskCache();
+        return cache != null ? cache.size() : 0;
     }
     
-    private String generateKey(String url) {
+    String generateKey(String url) {
         try {
             MessageDigest digest = MessageDigest.getInstance("MD5");
             digest.update(url.getBytes());
@@ -190,78 +428,133 @@ public class ImageCacheManager {
         }
     }
     
-    private boolean saveToDisk(String key, Bitmap bitmap) {
-        File file = new File(diskCacheDir, key);
-        FileOutputStream fos = null;
+    /**
+     * One-time migration: entries cached before the location index existed are added without
+     * a location
+     */
+    private void indexExistingEntries() {
+        DiskLruCache cache = getDiskCache();
+        if (cache == null || index.count() > 0) {
+            return;
+        }
+        List<String> keys = cache.keys();
+        for (String key : keys) {
+            index.put(key, null, null, null, new File(diskCacheDir, key).length(), null, null);
+        }
+        if (!keys.isEmpty()) {
+            Log.d(TAG, "Indexed " + keys.size() + " existing cache entries");
+        }
+    }
+    
+    private void recordEntry(String fileKey, String url, String archiveId, Envelope bounds, String contentType) {
         try {
-            fos = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 90, fos);
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "Error saving bitmap to disk", e);
-            return false;
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
-            }
+            File file = new File(diskCacheDir, fileKey);
+            List<String> aorTags = bounds != null ? aorFilterManager.getAORsIntersecting(bounds) : null;
+            index.put(fileKey, url, archiveId, bounds, file.length(), contentType, aorTags);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to index cache entry", e);
         }
     }
     
-    private boolean saveRawToDisk(String key, byte[] data) {
-        File file = new File(diskCacheDir, key + ".raw");
-        FileOutputStream fos = null;
+    private static String archiveId(Archive archive) {
+        return archive != null ? archive.getArchiveId() : null;
+    }
+    
+    private static Envelope footprintBounds(Archive archive) {
+        if (archive == null || archive.getFootprint() == null) {
+            return null;
+        }
         try {
-            fos = new FileOutputStream(file);
-            fos.write(data);
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "Error saving raw data to disk", e);
+            return new WKTReader().read(archive.getFootprint()).getEnvelopeInternal();
+        } catch (Exception e) {
+            Log.w(TAG, "Unparseable footprint for archive " + archive.getArchiveId());
+            return null;
+        }
+    }
+    
+    /**
+     * Bring the index's tags for an AOR up to date with its current polygon
+     */
+    private boolean ensureTagged(String aorName) {
+        String wkt = aorFilterManager.getAORWkt(aorName);
+        PreparedGeometry aorGeometry = aorFilterManager.getAORGeometry(aorName);
+        if (wkt == null || aorGeometry == null) {
             return false;
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
+        }
+        if (wkt.equals(index.getTaggedDefinition(aorName))) {
+            return true;
+        }
+        
+        GeometryFactory geometryFactory = new GeometryFactory();
+        List<String> keys = new ArrayList<>();
+        for (ImageCacheIndex.Entry entry : index.entriesIntersecting(aorGeometry.getGeometry().getEnvelopeInternal())) {
+            if (aorGeometry.intersects(geometryFactory.toGeometry(entry.bounds))) {
+                keys.add(entry.key);
             }
         }
+        index.retag(aorName, wkt, keys);
+        return true;
     }
     
-    private Bitmap loadFromDisk(String key) {
-        File file = new File(diskCacheDir, key);
-        if (file.exists()) {
-            return BitmapFactory.decodeFile(file.getAbsolutePath());
+    /**
+     * Move a verified pre-cache download into the disk cache. Runs on a download worker.
+     */
+    private boolean installDownload(DownloadJobQueue.Download download, File file, String contentType) {
+        String key = generateKey(download.getUrl());
+        DiskLruCache cache = getDiskCache();
+        DiskLruCache.Editor editor = cache != null ? cache.edit(key) : null;
+        if (editor == null) {
+            return false;
         }
-        return null;
+        byte[] head = new byte[12];
+        int headLength = 0;
+        try (InputStream in = new FileInputStream(file); OutputStream out = editor.newOutputStream()) {
+            byte[] buffer = new byte[32 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (headLength < head.length) {
+                    int copied = Math.min(read, head.length - headLength);
+                    System.arraycopy(buffer, 0, head, headLength, copied);
+                    headLength += copied;
+                }
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to install " + download.getUrl(), e);
+            editor.abort();
+            return false;
+        }
+        if (!editor.commit()) {
+            return false;
+        }
+        String type = contentType != null && contentType.startsWith("image/")
+                ? contentType : sniffContentType(Arrays.copyOf(head, headLength));
+        recordEntry(key, download.getUrl(), download.getArchiveId(), download.getBounds(), type);
+        return true;
     }
     
-    private void cleanupOldCache() {
-        executorService.execute(() -> {
-            long totalSize = getCacheSize();
-            if (totalSize > DISK_CACHE_SIZE) {
-                // Delete oldest files until under limit
-                File[] files = diskCacheDir.listFiles();
-                if (files != null && files.length > 0) {
-                    // Sort by last modified
-                    java.util.Arrays.sort(files, (f1, f2) -> 
-                        Long.compare(f1.lastModified(), f2.lastModified()));
-                    
-                    int i = 0;
-                    while (totalSize > DISK_CACHE_SIZE && i < files.length) {
-                        long fileSize = files[i].length();
-                        if (files[i].delete()) {
-                            totalSize -= fileSize;
-                        }
-                        i++;
-                    }
-                }
+    /**
+     * Queue uncached downloads as one persistent pre-cache job. Runs on the calling (worker)
+     * thread; completion and progress arrive on download threads.
+     */
+    private void enqueueDownloads(String name, List<DownloadJobQueue.Download> downloads, ProgressCallback callback) {
+        List<DownloadJobQueue.Download> uncached = new ArrayList<>();
+        for (DownloadJobQueue.Download download : downloads) {
+            if (!isCached(download.getUrl())) {
+                uncached.add(download);
             }
-        });
+        }
+        if (uncached.isEmpty()) {
+            if (callback != null) {
+                callback.onComplete(true, "All " + downloads.size() + " images are already cached");
+            }
+            return;
+        }
+        long jobId = downloadQueue.enqueue(name, uncached, callback);
+        if (jobId != -1 && callback != null) {
+            callback.onQueued(jobId);
+        }
+        Log.d(TAG, "Queued pre-cache job " + jobId + " (" + name + "): " + uncached.size() + " downloads");
     }
     
     /**
@@ -276,58 +569,53 @@ public class ImageCacheManager {
         }
         
         executorService.execute(() -> {
-            int total = imageUrls.size();
-            int completed = 0;
-            int failed = 0;
-            
-            for (int i = 0; i < imageUrls.size(); i++) {
-                String url = imageUrls.get(i);
-                try {
-                    // Check if already cached
-                    if (!isCached(url)) {
-                        // Here you would typically download the high-res image
-                        // For now, we'll simulate the caching process
-                        Log.d(TAG, "Caching high-res image: " + url);
-                        
-                        // In a real implementation, you would:
-                        // 1. Download the high-res version of the image
-                        // 2. Store it using cacheImageData or cacheImage
-                        // For now, we'll mark it as cached
-                        String key = generateKey(url);
-                        File cacheFile = new File(diskCacheDir, key + ".highres");
-                        try {
-                            cacheFile.createNewFile();
-                        } catch (Exception e) {
-                            Log.e(TAG, "Failed to create cache file marker", e);
-                            failed++;
-                        }
-                    }
-                    
-                    completed++;
-                    if (callback != null) {
-                        callback.onProgress(completed, total);
-                    }
-                    
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to cache image: " + url, e);
-                    failed++;
-                    completed++;
-                    if (callback != null) {
-                        callback.onProgress(completed, total);
-                    }
-                }
+            List<DownloadJobQueue.Download> downloads = new ArrayList<>();
+            for (String url : imageUrls) {
+                downloads.add(new DownloadJobQueue.Download(url, null, null));
             }
-            
-            if (callback != null) {
-                boolean success = failed == 0;
-                String message = success ? 
-                    "Successfully cached " + (total - failed) + " images" :
-                    "Cached " + (total - failed) + " images, " + failed + " failed";
-                callback.onComplete(success, message);
+            enqueueDownloads("High-res images", downloads, callback);
+        });
+    }
+    
+    /**
+     * Download every image of a set of archives for offline use, tagged with each archive's
+     * footprint. The job survives plugin restarts; interrupted downloads resume.
+     */
+    public void precacheArchives(String name, List<Archive> archives, ProgressCallback callback) {
+        List<Archive> snapshot = new ArrayList<>(archives);
+        executorService.execute(() -> {
+            List<DownloadJobQueue.Download> downloads = new ArrayList<>();
+            for (Archive archive : snapshot) {
+                addArchiveDownloads(archive, downloads);
             }
+            if (downloads.isEmpty()) {
+                if (callback != null) {
+                    callback.onComplete(false, "No images to cache");
+                }
+                return;
+            }
+            enqueueDownloads(name, downloads, callback);
         });
     }
     
+    private static void addArchiveDownloads(Archive archive, List<DownloadJobQueue.Download> downloads) {
+        List<String> urls = new ArrayList<>();
+        if (archive.getThumbnailUrls() != null) {
+            urls.addAll(archive.getThumbnailUrls().values());
+        }
+        // Likely higher resolution; skip tile URL templates, which aren't a single image
+        String titlesUrl = archive.getTitlesUrl();
+        if (titlesUrl != null && !titlesUrl.contains("{")) {
+            urls.add(titlesUrl);
+        }
+        Envelope bounds = footprintBounds(archive);
+        for (String url : urls) {
+            if (url != null && !url.isEmpty()) {
+                downloads.add(new DownloadJobQueue.Download(url, archive.getArchiveId(), bounds));
+            }
+        }
+    }
+    
     /**
      * Check if a high-resolution version is cached
      */
@@ -335,85 +623,70 @@ public class ImageCacheManager {
         if (url == null) return false;
         
         String key = generateKey(url);
-        File file = new File(diskCacheDir, key + ".highres");
-        return file.exists();
+        DiskLruCache cache = diskCache.isDone() ? getDiskCache() : null;
+        // Markers from before downloads were real count too
+        return cache != null && (cache.contains(key) || cache.contains(key + ".highres"));
     }
     
     /**
-     * Cache images that are within the current AOR region with progress tracking
+     * Limit the combined rate of pre-cache downloads; 0 removes the limit
      */
-    public void cacheRegionImages(List<String> imageUrls, List<Double> latitudes, List<Double> longitudes, ProgressCallback callback) {
-        if (imageUrls == null || imageUrls.isEmpty()) {
-            if (callback != null) {
-                callback.onComplete(false, "No images to cache");
-            }
-            return;
-        }
-        
-        if (latitudes.size() != imageUrls.size() || longitudes.size() != imageUrls.size()) {
-            if (callback != null) {
-                callback.onComplete(false, "Image URLs and coordinates size mismatch");
-            }
-            return;
-        }
-        
+    public void setDownloadBandwidthLimit(long bytesPerSecond) {
+        downloadQueue.setBandwidthLimit(bytesPerSecond);
+    }
+    
+    /**
+     * Pre-cache jobs still running, including ones resumed after a restart
+     */
+    public List<Long> getPrecacheJobIds() {
+        return downloadQueue.getJobIds();
+    }
+    
+    public void addPrecacheProgressCallback(long jobId, ProgressCallback callback) {
+        downloadQueue.addProgressCallback(jobId, callback);
+    }
+    
+    public void cancelPrecacheJob(long jobId) {
+        executorService.execute(() -> downloadQueue.cancelJob(jobId));
+    }
+    
+    /**
+     * Pre-cache the images of every known archive inside an AOR, using archives already in
+     * the local {@link ArchiveStore}
+     */
+    public void cacheRegionImages(String aorName, ProgressCallback callback) {
         executorService.execute(() -> {
-            // Filter images based on current AOR settings
-            List<String> filteredUrls = new ArrayList<>();
-            for (int i = 0; i < imageUrls.size(); i++) {
-                String url = imageUrls.get(i);
-                double lat = latitudes.get(i);
-                double lon = longitudes.get(i);
-                
-                // Check if this image should be cached based on AOR filter settings
-                // For now, cache all images since we don't have specific point-in-region checking
-                // This could be enhanced to check if the point is within the selected AOR bounds
-                if (aorFilterManager.getSelectedAOR().equals("all")) {
-                    filteredUrls.add(url);
-                } else {
-                    // For a specific AOR, we would need to implement point-in-region checking
-                    // For now, include all images when a specific AOR is selected
-                    filteredUrls.add(url);
-                }
+            List<DownloadJobQueue.Download> downloads = new ArrayList<>();
+            for (Archive archive : aorFilterManager.getStoredArchivesInAOR(aorName, null)) {
+                addArchiveDownloads(archive, downloads);
             }
             
-            if (filteredUrls.isEmpty()) {
+            if (downloads.isEmpty()) {
                 if (callback != null) {
                     callback.onComplete(true, "No images in current region to cache");
                 }
                 return;
             }
-            
-            Log.d(TAG, "Caching " + filteredUrls.size() + " images in region (filtered from " + imageUrls.size() + " total)");
-            
-            // Use existing caching logic for filtered URLs
-            cacheHighResImages(filteredUrls, callback);
+            enqueueDownloads("Region " + aorName, downloads, callback);
         });
     }
     
     /**
-     * Get cache statistics for region vs world
+     * Get cache statistics for an AOR vs the whole cache
+     *
+     * @param aorName An AOR name, or "all" to count every file as in region
      */
-    public void getCacheStats(CacheStatsCallback callback) {
+    public void getCacheStats(String aorName, CacheStatsCallback callback) {
         executorService.execute(() -> {
-            File[] files = diskCacheDir.listFiles();
-            if (files == null) {
-                if (callback != null) {
-                    callback.onStatsReady(0, 0, 0);
-                }
-                return;
-            }
-            
-            long totalSize = 0;
-            int totalFiles = 0;
-            int regionFiles = 0;
+            DiskLruCache cache = getDiskCache();
+            int totalFiles = cache != null ? cache.entryCount() : 0;
+            long totalSize = cache != null ? cache.size() : 0;
             
-            for (File file : files) {
-                totalSize += file.length();
-                totalFiles++;
-                
-                // For now, we can't determine which files are region-specific without metadata
-                // In a real implementation, you might store this information
+            int regionFiles;
+            if ("all".equals(aorName)) {
+                regionFiles = totalFiles;
+            } else {
+                regionFiles = ensureTagged(aorName) ? index.countTagged(aorName) : 0;
             }
             
             if (callback != null) {
@@ -423,11 +696,11 @@ public class ImageCacheManager {
     }
     
     /**
-     * Clear cache for images outside current region (if in region mode)
+     * Clear cached images outside an AOR. Images with no known location are kept, and "all"
+     * clears nothing.
      */
-    public void clearNonRegionCache(CacheCallback callback) {
-        if (aorFilterManager.getSelectedAOR().equals("all")) {
-            // Don't clear anything when showing all regions
+    public void clearNonRegionCache(String aorName, CacheCallback callback) {
+        if ("all".equals(aorName)) {
             if (callback != null) {
                 callback.onCached(true);
             }
@@ -435,10 +708,24 @@ public class ImageCacheManager {
         }
         
         executorService.execute(() -> {
-            // In a full implementation, you would need to track which cached files
-            // correspond to which geographic locations to selectively clear them
-            // For now, this is a placeholder that could be enhanced with metadata storage
-            Log.d(TAG, "Selective region cache clearing would be implemented here");
+            if (!ensureTagged(aorName)) {
+                if (callback != null) {
+                    callback.onCached(false);
+                }
+                return;
+            }
+            
+            List<String> removed = new ArrayList<>();
+            DiskLruCache cache = getDiskCache();
+            for (ImageCacheIndex.Entry entry : index.entriesOutside(aorName)) {
+                if (cache != null) {
+                    cache.remove(entry.key);
+                }
+                memoryCache.remove(entry.key);
+                removed.add(entry.key);
+            }
+            index.remove(removed);
+            Log.d(TAG, "Cleared " + removed.size() + " cached images outside " + aorName);
             
             if (callback != null) {
                 callback.onCached(true);
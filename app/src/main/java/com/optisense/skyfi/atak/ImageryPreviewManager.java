@@ -59,6 +59,10 @@ public class ImageryPreviewManager implements MapEventDispatcher.MapEventDispatc
     private boolean previewModeEnabled = false;
     private PopupWindow currentPopup;
     private SkyFiAPI apiClient;
+    private ArchiveStore archiveStore;
+    // Archives currently in the preview, so network results only add what the store didn't have
+    private final List<Archive> shownArchives = new ArrayList<>();
+    private int searchGeneration;
     private PreviewThumbnailAdapter thumbnailAdapter;
 
     // UI components
@@ -75,7 +79,8 @@ public class ImageryPreviewManager implements MapEventDispatcher.MapEventDispatc
     public ImageryPreviewManager(Context context, MapView mapView) {
         this.context = context;
         this.mapView = mapView;
-        this.apiClient = new APIClient().getApiClient();
+        this.apiClient = APIClient.getInstance().getApiClient();
+        this.archiveStore = ArchiveStore.getInstance(context);
         initializePopupView();
     }
 
@@ -198,47 +203,105 @@ public class ImageryPreviewManager implements MapEventDispatcher.MapEventDispatc
             launchFullSearch(aoi);
         });
 
-        // Make the API call
+        // Answer from the local store first; repeated previews of the same area are instant
+        // and work offline. Unless a complete search already covered the area, the network is
+        // still asked in the background, since newer captures may not be stored yet.
+        shownArchives.clear();
+        int generation = ++searchGeneration;
+        archiveStore.query(request, result -> {
+            if (generation != searchGeneration) {
+                return;
+            }
+            if (!result.getArchives().isEmpty()) {
+                handleSearchResults(result.getArchives(), aoi);
+            }
+            if (result.isCovered()) {
+                Log.d(LOGTAG, "Preview answered from local store");
+                if (result.getArchives().isEmpty()) {
+                    showNoResults();
+                }
+                return;
+            }
+            searchNetwork(request, aoi, generation);
+        });
+    }
+
+    private void searchNetwork(ArchivesRequest request, String aoi, int generation) {
         apiClient.searchArchives(request).enqueue(new Callback<ArchiveResponse>() {
             @Override
             public void onResponse(@NonNull Call<ArchiveResponse> call, @NonNull Response<ArchiveResponse> response) {
                 if (response.isSuccessful() && response.body() != null) {
-                    handleSearchResponse(response.body(), aoi);
+                    ArchiveResponse body = response.body();
+                    archiveStore.storeResponse(body);
+                    if (body.getNextPage() == null) {
+                        archiveStore.markSearchComplete(request);
+                    }
+                    if (generation != searchGeneration) {
+                        return;
+                    }
+                    if (body.getArchives() != null && !body.getArchives().isEmpty()) {
+                        handleSearchResults(body.getArchives(), aoi);
+                    } else {
+                        showNoResultsIfEmpty();
+                    }
                 } else {
                     Log.e(LOGTAG, "Search failed with code: " + response.code());
-                    showNoResults();
+                    showNoResultsIfEmpty();
                 }
             }
 
             @Override
             public void onFailure(@NonNull Call<ArchiveResponse> call, @NonNull Throwable t) {
                 Log.e(LOGTAG, "Search request failed", t);
-                showNoResults();
+                showNoResultsIfEmpty();
             }
         });
     }
 
-    private void handleSearchResponse(ArchiveResponse response, String aoi) {
+    private void handleSearchResults(List<Archive> archives, String aoi) {
         mapView.post(() -> {
             if (currentPopup == null || !currentPopup.isShowing()) {
                 return; // Popup was closed while loading
             }
 
-            List<Archive> archives = response.getArchives();
-            if (archives != null && !archives.isEmpty()) {
-                // Limit results for preview
-                List<Archive> limitedArchives = archives.subList(0, Math.min(archives.size(), MAX_PREVIEW_RESULTS));
-                
-                // Sort by capture date (newest first)
-                Collections.sort(limitedArchives, (a1, a2) -> {
-                    if (a1.getCaptureTimestamp() == null || a2.getCaptureTimestamp() == null) {
-                        return 0;
+            // Merge with what is already shown, skipping archives the store already supplied
+            List<Archive> merged = new ArrayList<>(shownArchives);
+            for (Archive archive : archives) {
+                boolean known = false;
+                for (Archive shown : merged) {
+                    if (shown.getArchiveId() != null && shown.getArchiveId().equals(archive.getArchiveId())) {
+                        known = true;
+                        break;
                     }
-                    return a2.getCaptureTimestamp().compareTo(a1.getCaptureTimestamp());
-                });
+                }
+                if (!known) {
+                    merged.add(archive);
+                }
+            }
+            if (merged.isEmpty()) {
+                showNoResults();
+                return;
+            }
 
-                showResults(limitedArchives, aoi);
-            } else {
+            // Sort by capture date (newest first)
+            Collections.sort(merged, (a1, a2) -> {
+                if (a1.getCaptureTimestamp() == null || a2.getCaptureTimestamp() == null) {
+                    return 0;
+                }
+                return a2.getCaptureTimestamp().compareTo(a1.getCaptureTimestamp());
+            });
+
+            // Limit results for preview
+            List<Archive> limitedArchives = new ArrayList<>(merged.subList(0, Math.min(merged.size(), MAX_PREVIEW_RESULTS)));
+            shownArchives.clear();
+            shownArchives.addAll(limitedArchives);
+            showResults(limitedArchives, aoi);
+        });
+    }
+
+    private void showNoResultsIfEmpty() {
+        mapView.post(() -> {
+            if (shownArchives.isEmpty()) {
                 showNoResults();
             }
         });
@@ -96,12 +96,12 @@ public class Orders extends DropDownReceiver implements DropDown.OnStateListener
 
         nextButton.setOnClickListener(view -> {
             pageNumber++;
-            getOrders();
+            getOrders(false);
         });
 
         previousButton.setOnClickListener(view -> {
             pageNumber--;
-            getOrders();
+            getOrders(false);
         });
         
         // Test COG button - opens dialog to add COG layers
@@ -112,17 +112,23 @@ public class Orders extends DropDownReceiver implements DropDown.OnStateListener
         });
 
         updateOrders = mainView.findViewById(R.id.pull_to_refresh);
-        updateOrders.setOnRefreshListener(this::getOrders);
+        updateOrders.setOnRefreshListener(() -> getOrders(true));
     }
 
-    private void getOrders() {
+    /**
+     * @param refresh Skip the cached order list, for an explicit refresh
+     */
+    private void getOrders(boolean refresh) {
         recyclerView.setVisibility(GONE);
         nextButton.setVisibility(GONE);
         previousButton.setVisibility(GONE);
         updateOrders.setRefreshing(true);
         
-        apiClient = new APIClient().getApiClient();
-        apiClient.getOrders(pageNumber, pageSize).enqueue(new Callback<OrderResponse>() {
+        apiClient = APIClient.getInstance().getApiClient();
+        Call<OrderResponse> ordersCall = refresh
+                ? apiClient.refreshOrders(pageNumber, pageSize)
+                : apiClient.getOrders(pageNumber, pageSize);
+        ordersCall.enqueue(new Callback<OrderResponse>() {
             @Override
             public void onResponse(Call<OrderResponse> call, Response<OrderResponse> response) {
                 updateOrders.setRefreshing(false);
@@ -197,7 +203,7 @@ public class Orders extends DropDownReceiver implements DropDown.OnStateListener
                 showDropDown(mainView, FULL_WIDTH, HALF_HEIGHT, FULL_WIDTH, HALF_HEIGHT, false);
             }
 
-            getOrders();
+            getOrders(false);
         }
     }
 
@@ -7,6 +7,8 @@ public class Preferences {
     public static final String PREF_API_KEY = "pref_api_key";
     public static final String PREF_LAYER_OPACITY_PREFIX = "pref_layer_opacity_";
     public static final int DEFAULT_OPACITY = 80;
+    // Pre-cache download limit in KB/s, as a string from the settings screen's list; 0 for none
+    public static final String PREF_PRECACHE_BANDWIDTH = "pref_precache_bandwidth";
     
     // AI Configuration preferences
     public static final String PREF_GOOGLE_PROJECT_ID = "pref_google_project_id";
@@ -34,6 +36,7 @@ public class Preferences {
     public void setApiKey(String apiKey) {
         this.apiKey = apiKey;
         prefs.set(PREF_API_KEY, apiKey);
+        APIClient.onApiKeyChanged(apiKey);
     }
     
     public int getLayerOpacity(String layerName) {
@@ -43,7 +46,18 @@ public class Preferences {
     public void setLayerOpacity(String layerName, int opacity) {
         prefs.set(PREF_LAYER_OPACITY_PREFIX + layerName, opacity);
     }
-    
+
+    /**
+     * Combined rate limit for pre-cache downloads in bytes per second; 0 for none
+     */
+    public long getPrecacheBandwidthLimit() {
+        try {
+            return Math.max(0, Long.parseLong(prefs.get(PREF_PRECACHE_BANDWIDTH, "0"))) * 1024;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     // AI Configuration methods
     
     public String getGoogleProjectId() {
@@ -46,7 +46,7 @@ public class Profile extends DropDownReceiver implements DropDown.OnStateListene
     }
 
     private void getProfile() {
-        new APIClient().getApiClient().getProfile().enqueue(new Callback<MyProfile>() {
+        APIClient.getInstance().getApiClient().getProfile().enqueue(new Callback<MyProfile>() {
             @Override
             public void onResponse(@NonNull Call<MyProfile> call, @NonNull Response<MyProfile> response) {
                 if (response.isSuccessful()) {
@@ -0,0 +1,404 @@
+package com.optisense.skyfi.atak;
+import com.skyfi.atak.plugin.R;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Loads archive thumbnails into list rows on a small shared pool.
+ *
+ * Each ImageView has at most one outstanding request; binding it again cancels the previous
+ * one, so a recycled row never shows a thumbnail meant for the item it displayed before.
+ * Lookups go memory cache, then the user's image cache ({@link ImageCacheManager}), then a
+ * separate thumbnail disk cache, and only then the network. Images are decoded at the
+ * ImageView's size. The newest request runs first, since during a fling the rows bound last
+ * are the ones on screen.
+ *
+ * {@link #prefetch} warms the caches for rows about to scroll in (see
+ * {@link ThumbnailPrefetcher}); prefetches run after every on-screen request, nearest first,
+ * and a row binding a URL that is still being prefetched takes over that request.
+ *
+ * Downloads share the API client's connection pool and dispatcher, and a cancelled request
+ * aborts its download rather than finishing it.
+ *
+ * All public methods must be called on the main thread.
+ */
+public class ThumbnailLoader {
+    private static final String TAG = "SkyFi.ThumbnailLoader";
+    private static final String CACHE_DIR = "skyfi_thumbnails";
+    private static final long DISK_CACHE_SIZE = 32 * 1024 * 1024; // 32MB
+    private static final int THREAD_COUNT = 4;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 20000;
+    // Used when the view hasn't been laid out yet
+    private static final int DEFAULT_SIZE_PX = 256;
+
+    static final int PRIORITY_VISIBLE = 0;
+    static final int PRIORITY_PREFETCH = 1;
+    static final int PRIORITY_NEXT_PAGE = 2;
+
+    private static ThumbnailLoader instance;
+
+    private final ImageCacheManager imageCacheManager;
+    private final File diskCacheDir;
+    private final ThreadPoolExecutor executor;
+    private final OkHttpClient httpClient;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong sequence = new AtomicLong();
+    private final Object diskCacheLock = new Object();
+    private DiskLruCache diskCache;
+
+    // Main thread only
+    private final Map<ImageView, Request> pending = new WeakHashMap<>();
+    private final Map<ImageView, Bitmap> displayed = new WeakHashMap<>();
+    private final Map<ImageView, String> displayedUrls = new WeakHashMap<>();
+    // Alpha the layout gives the placeholder, captured the first time a view is seen
+    private final Map<ImageView, Float> placeholderAlphas = new WeakHashMap<>();
+    private final Map<Bitmap, Integer> displayCounts = new IdentityHashMap<>();
+    private final Map<String, Request> prefetches = new HashMap<>();
+    // Size of the most recently bound view; prefetches decode for the same size
+    private int rowWidth = DEFAULT_SIZE_PX;
+    private int rowHeight = DEFAULT_SIZE_PX;
+
+    private ThumbnailLoader(Context context) {
+        this.imageCacheManager = ImageCacheManager.getInstance(context);
+        this.diskCacheDir = new File(context.getCacheDir(), CACHE_DIR);
+        this.executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>());
+        this.executor.allowCoreThreadTimeOut(true);
+        // Thumbnails come from other hosts: no API key, and they have their own disk cache
+        OkHttpClient.Builder builder = APIClient.getInstance().getHttpClient().newBuilder()
+                .cache(null)
+                .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        builder.interceptors().clear();
+        builder.networkInterceptors().clear();
+        this.httpClient = builder.build();
+    }
+
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Show the image at {@code url} in {@code imageView}, replacing whatever request the view
+     * had before. The view shows the placeholder until the image arrives.
+     */
+    public void load(ImageView imageView, String url) {
+        Request previous = pending.get(imageView);
+        if (previous != null ? previous.url.equals(url) : url != null && url.equals(displayedUrls.get(imageView))) {
+            return;
+        }
+        cancelPending(imageView);
+        if (url == null || url.isEmpty()) {
+            show(imageView, null, null);
+            return;
+        }
+
+        int width = targetWidth(imageView);
+        int height = targetHeight(imageView);
+        rowWidth = width;
+        rowHeight = height;
+        Bitmap cached = imageCacheManager.peekFromMemory(url, width, height);
+        if (cached != null) {
+            show(imageView, url, cached);
+            return;
+        }
+        show(imageView, null, null);
+
+        Request request = prefetches.remove(url);
+        if (request != null) {
+            boolean queued = executor.remove(request);
+            if (queued || request.width != width || request.height != height) {
+                // Not started yet, or decoding for another size; replace it at on-screen priority
+                request.cancel();
+                request = null;
+            }
+            // else already running as a prefetch; take it over rather than downloading twice
+        }
+        if (request == null) {
+            request = new Request(url, width, height, PRIORITY_VISIBLE, 0, sequence.incrementAndGet());
+            executor.execute(request);
+        }
+        request.imageView = imageView;
+        pending.put(imageView, request);
+    }
+
+    /**
+     * Drop the view's outstanding request and return it to the placeholder
+     */
+    public void cancel(ImageView imageView) {
+        cancelPending(imageView);
+        show(imageView, null, null);
+    }
+
+    /**
+     * Warm the caches for a row that isn't bound yet. {@code distance} is how many rows away
+     * from the screen it is; nearer rows load first. Ignored if the image is already in memory.
+     */
+    void prefetch(String url, int distance, int priority) {
+        if (url == null || url.isEmpty() || prefetches.containsKey(url)) {
+            return;
+        }
+        if (imageCacheManager.peekFromMemory(url, rowWidth, rowHeight) != null) {
+            return;
+        }
+        Request request = new Request(url, rowWidth, rowHeight, priority, distance, sequence.incrementAndGet());
+        prefetches.put(url, request);
+        executor.execute(request);
+    }
+
+    /**
+     * Cancel every prefetch whose URL isn't in {@code urls}, e.g. rows the list scrolled away from
+     */
+    void retainPrefetches(Set<String> urls) {
+        Iterator<Map.Entry<String, Request>> iterator = prefetches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Request request = iterator.next().getValue();
+            if (!urls.contains(request.url)) {
+                request.cancel();
+                executor.remove(request);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void cancelPending(ImageView imageView) {
+        Request request = pending.remove(imageView);
+        if (request != null) {
+            request.cancel();
+            executor.remove(request);
+        }
+    }
+
+    private void show(ImageView imageView, String url, Bitmap bitmap) {
+        if (!placeholderAlphas.containsKey(imageView)) {
+            placeholderAlphas.put(imageView, imageView.getAlpha());
+        }
+        Bitmap old = bitmap != null ? displayed.put(imageView, bitmap) : displayed.remove(imageView);
+        if (url != null) {
+            displayedUrls.put(imageView, url);
+        } else {
+            displayedUrls.remove(imageView);
+        }
+        if (bitmap != null) {
+            if (old != bitmap) {
+                Integer count = displayCounts.get(bitmap);
+                displayCounts.put(bitmap, count == null ? 1 : count + 1);
+            }
+            imageView.setImageBitmap(bitmap);
+            imageView.setAlpha(1f);
+        } else {
+            imageView.setImageResource(R.drawable.placeholder);
+            imageView.setAlpha(placeholderAlphas.get(imageView));
+        }
+        if (old != null && old != bitmap) {
+            release(old);
+        }
+    }
+
+    /**
+     * Hand a bitmap back for reuse once no view managed by this loader shows it
+     */
+    private void release(Bitmap bitmap) {
+        Integer count = displayCounts.get(bitmap);
+        if (count != null && count > 1) {
+            displayCounts.put(bitmap, count - 1);
+            return;
+        }
+        displayCounts.remove(bitmap);
+        imageCacheManager.releaseBitmap(bitmap);
+    }
+
+    private void deliver(Request request, Bitmap bitmap) {
+        if (request.imageView == null) {
+            // A prefetch that nobody bound; the decode is in the memory cache now
+            if (prefetches.get(request.url) == request) {
+                prefetches.remove(request.url);
+            }
+            return;
+        }
+        if (request.cancelled || pending.get(request.imageView) != request) {
+            return;
+        }
+        pending.remove(request.imageView);
+        if (bitmap != null) {
+            show(request.imageView, request.url, bitmap);
+        }
+    }
+
+    private static int targetWidth(ImageView imageView) {
+        if (imageView.getWidth() > 0) {
+            return imageView.getWidth();
+        }
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        return params != null && params.width > 0 ? params.width : DEFAULT_SIZE_PX;
+    }
+
+    private static int targetHeight(ImageView imageView) {
+        if (imageView.getHeight() > 0) {
+            return imageView.getHeight();
+        }
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        return params != null && params.height > 0 ? params.height : DEFAULT_SIZE_PX;
+    }
+
+    /**
+     * Load on the calling (worker) thread: caches first, then the network
+     */
+    private Bitmap fetch(Request request) throws IOException {
+        Bitmap bitmap = imageCacheManager.getFromCache(request.url, request.width, request.height);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        String key = imageCacheManager.generateKey(request.url);
+        DiskLruCache cache = getDiskCache();
+        FileInputStream in = cache != null ? cache.get(key) : null;
+        if (in == null) {
+            if (request.cancelled) {
+                return null;
+            }
+            byte[] data = download(request);
+            if (cache != null && cache.put(key, data)) {
+                in = cache.get(key);
+            }
+            if (in == null) {
+                // Another thread is writing the same thumbnail; decode our own copy
+                return decodeBytes(data, request.width, request.height);
+            }
+        }
+        try (FileInputStream entry = in) {
+            return request.cancelled ? null : imageCacheManager.decodeFile(key, entry, request.width, request.height);
+        }
+    }
+
+    private DiskLruCache getDiskCache() {
+        synchronized (diskCacheLock) {
+            if (diskCache == null) {
+                try {
+                    diskCache = DiskLruCache.open(diskCacheDir, DISK_CACHE_SIZE, null);
+                } catch (IOException e) {
+                    Log.e(TAG, "Thumbnail disk cache unavailable", e);
+                }
+            }
+            return diskCache;
+        }
+    }
+
+    private byte[] download(Request request) throws IOException {
+        Call call = httpClient.newCall(new okhttp3.Request.Builder().url(request.url).build());
+        request.call = call;
+        if (request.cancelled) {
+            // Cancelled before the call was published
+            call.cancel();
+        }
+        try (Response response = call.execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code() + " for " + request.url);
+            }
+            return response.body().bytes();
+        } finally {
+            request.call = null;
+        }
+    }
+
+    private static Bitmap decodeBytes(byte[] data, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = ImageCacheManager.calculateInSampleSize(
+                options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private final class Request implements Runnable, Comparable<Request> {
+        final String url;
+        final int width;
+        final int height;
+        final int priority;
+        final int distance;
+        final long sequence;
+        // Set on the main thread when a row binds; null while this is only a prefetch
+        ImageView imageView;
+        volatile boolean cancelled;
+        // The download in progress, if any
+        volatile Call call;
+
+        Request(String url, int width, int height, int priority, int distance, long sequence) {
+            this.url = url;
+            this.width = width;
+            this.height = height;
+            this.priority = priority;
+            this.distance = distance;
+            this.sequence = sequence;
+        }
+
+        void cancel() {
+            cancelled = true;
+            Call download = call;
+            if (download != null) {
+                download.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            Bitmap bitmap = null;
+            try {
+                bitmap = fetch(this);
+            } catch (Exception e) {
+                if (!cancelled) {
+                    Log.w(TAG, "Failed to load thumbnail: " + url, e);
+                }
+            }
+            Bitmap result = bitmap;
+            mainHandler.post(() -> deliver(this, result));
+        }
+
+        /**
+         * Lower priority value first, then nearest to the screen, then newest first
+         */
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            if (distance != other.distance) {
+                return Integer.compare(distance, other.distance);
+            }
+            return Long.compare(other.sequence, sequence);
+        }
+    }
+}
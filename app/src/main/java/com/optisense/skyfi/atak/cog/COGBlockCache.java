@@ -0,0 +1,466 @@
+package com.optisense.skyfi.atak.cog;
+
+import android.util.LruCache;
+
+import com.atakmap.coremap.log.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Block-aligned byte-range cache in front of a remote COG, in the style of GDAL's /vsicurl/.
+ *
+ * Reads are served from fixed {@link #BLOCK_SIZE} blocks kept in an LRU. Missing blocks are
+ * not fetched straight away: the first reader to need one waits {@link #COALESCE_WINDOW_MS}
+ * for other readers (neighbouring tiles requested by the same map redraw) to add theirs, then
+ * plans the whole batch as a few spanning GETs, merging runs separated by small gaps. Each run
+ * is fetched by the first reader waiting on it to claim it, so runs far apart in the file go
+ * out in parallel on the readers' own threads rather than one after another on the leader's.
+ * Readers needing a block that's already being fetched wait for that fetch instead of
+ * starting another. Thread-safe.
+ *
+ * A reader whose thread is interrupted stops waiting at once. Runs no reader is waiting on are
+ * abandoned, before their GET or between blocks of it, so a tile the client has given up on
+ * doesn't keep the link busy.
+ */
+class COGBlockCache implements COGSource {
+
+    private static final String TAG = "SkyFi.COGBlockCache";
+
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int CACHE_SIZE = 8 * 1024 * 1024;
+    // How long the first reader of a batch waits for others to join it
+    private static final long COALESCE_WINDOW_MS = 5;
+    // Missing blocks this close together are fetched in one GET, gap included
+    private static final int MAX_GAP_BLOCKS = 1;
+    private static final int MAX_RUN_BLOCKS = 16;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    // Per thread: bytes received by the runs it has fetched, from any COG
+    private static final ThreadLocal<long[]> FETCHED = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Blocks {@code first..last}, fetched in one GET by whichever reader claims them
+     */
+    private static class Run {
+        final long first;
+        final long last;
+        // Set under the cache's lock
+        volatile boolean claimed;
+
+        Run(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * One block being fetched; readers wait on it
+     */
+    private static class BlockFetch {
+        byte[] data;
+        IOException error;
+        boolean done;
+        // Set once the batch is planned
+        Run run;
+        // Reads waiting on this block, guarded by the cache
+        int waiters;
+
+        synchronized void finish(byte[] data, IOException error) {
+            this.data = data;
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void plan(Run run) {
+            this.run = run;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the block is fetched or its run is there to be claimed
+         *
+         * @return The unclaimed run, or null once the block is done
+         */
+        synchronized Run awaitWork() throws InterruptedIOException {
+            while (!done && (run == null || run.claimed)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for COG block");
+                }
+            }
+            return done ? null : run;
+        }
+
+        synchronized byte[] result() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            return data;
+        }
+    }
+
+    private final String url;
+    private final LruCache<Long, byte[]> blocks;
+    private final Map<Long, BlockFetch> inFlight = new HashMap<>();
+    // Blocks waiting for the current coalescing window to close
+    private final List<Long> wanted = new ArrayList<>();
+    private boolean batchOpen;
+
+    COGBlockCache(String url) {
+        this.url = url;
+        this.blocks = new LruCache<Long, byte[]>(CACHE_SIZE) {
+            @Override
+            protected int sizeOf(Long key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int length) throws IOException {
+        return read(new long[]{offset}, new int[]{length})[0];
+    }
+
+    /**
+     * Every missing block joins the same coalescing batch, so ranges that are close together
+     * in the file cost one round trip between them
+     */
+    @Override
+    public ByteBuffer[] read(long[] offsets, int[] lengths) throws IOException {
+        byte[][][] parts = new byte[offsets.length][][];
+        BlockFetch[][] fetches = new BlockFetch[offsets.length][];
+        // Distinct blocks this read waits on
+        Map<Long, BlockFetch> awaited = new HashMap<>();
+        boolean leader = false;
+        synchronized (this) {
+            for (int r = 0; r < offsets.length; r++) {
+                long firstBlock = offsets[r] / BLOCK_SIZE;
+                long lastBlock = (offsets[r] + lengths[r] - 1) / BLOCK_SIZE;
+                int count = (int) (lastBlock - firstBlock + 1);
+                parts[r] = new byte[count][];
+                fetches[r] = new BlockFetch[count];
+                for (int i = 0; i < count; i++) {
+                    long block = firstBlock + i;
+                    parts[r][i] = blocks.get(block);
+                    if (parts[r][i] != null) {
+                        continue;
+                    }
+                    fetches[r][i] = inFlight.get(block);
+                    if (fetches[r][i] == null) {
+                        fetches[r][i] = new BlockFetch();
+                        inFlight.put(block, fetches[r][i]);
+                        wanted.add(block);
+                    }
+                    if (awaited.put(block, fetches[r][i]) == null) {
+                        fetches[r][i].waiters++;
+                    }
+                }
+            }
+            if (!wanted.isEmpty() && !batchOpen) {
+                batchOpen = true;
+                leader = true;
+            }
+        }
+
+        try {
+            if (leader) {
+                planBatch();
+            }
+            ByteBuffer[] results = new ByteBuffer[offsets.length];
+            for (int r = 0; r < offsets.length; r++) {
+                for (int i = 0; i < parts[r].length; i++) {
+                    if (parts[r][i] == null) {
+                        parts[r][i] = await(fetches[r][i], awaited.keySet());
+                    }
+                }
+                results[r] = assemble(parts[r], offsets[r], lengths[r]);
+            }
+            return results;
+        } finally {
+            synchronized (this) {
+                for (BlockFetch fetch : awaited.values()) {
+                    fetch.waiters--;
+                }
+                // Runs left unclaimed by this read may have nobody else to fetch them
+                for (BlockFetch fetch : awaited.values()) {
+                    Run run = fetch.run;
+                    if (fetch.waiters == 0 && run != null && !run.claimed && !isWanted(run)) {
+                        run.claimed = true;
+                        abandon(run.first, run.last);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for a block, fetching its run if no other reader has claimed it
+     *
+     * @param own Blocks the calling read waits on
+     */
+    private byte[] await(BlockFetch fetch, Set<Long> own) throws IOException {
+        Run run;
+        while ((run = fetch.awaitWork()) != null) {
+            if (claim(run)) {
+                if (isAbandoned(run.first, run.last, own)) {
+                    abandon(run.first, run.last);
+                } else {
+                    fetchRun(run.first, run.last, own);
+                }
+            }
+        }
+        return fetch.result();
+    }
+
+    private synchronized boolean claim(Run run) {
+        if (run.claimed) {
+            return false;
+        }
+        run.claimed = true;
+        return true;
+    }
+
+    /**
+     * Whether any read waits on a block of {@code run}
+     */
+    private synchronized boolean isWanted(Run run) {
+        for (long block = run.first; block <= run.last; block++) {
+            BlockFetch fetch = inFlight.get(block);
+            if (fetch != null && fetch.waiters > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ByteBuffer assemble(byte[][] parts, long offset, int length) throws IOException {
+        long firstBlock = offset / BLOCK_SIZE;
+        byte[] result = new byte[length];
+        int copied = 0;
+        for (int i = 0; i < parts.length; i++) {
+            int from = i == 0 ? (int) (offset - firstBlock * BLOCK_SIZE) : 0;
+            int n = Math.min(parts[i].length - from, length - copied);
+            if (n <= 0) {
+                throw new IOException("Range " + offset + "+" + length + " is past the end of " + url);
+            }
+            System.arraycopy(parts[i], from, result, copied, n);
+            copied += n;
+        }
+        if (copied < length) {
+            throw new IOException("Range " + offset + "+" + length + " is past the end of " + url);
+        }
+        return ByteBuffer.wrap(result);
+    }
+
+    @Override
+    public void close() {
+        blocks.evictAll();
+    }
+
+    /**
+     * Wait out the coalescing window, then plan every block wanted so far into runs for the
+     * waiting readers to claim
+     */
+    private void planBatch() {
+        try {
+            Thread.sleep(COALESCE_WINDOW_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Long> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(wanted);
+            wanted.clear();
+            batchOpen = false;
+        }
+        Collections.sort(batch);
+        synchronized (this) {
+            for (long[] blocks : planRuns(batch)) {
+                Run run = new Run(blocks[0], blocks[1]);
+                if (!isWanted(run)) {
+                    // Every reader of these blocks has given up already
+                    run.claimed = true;
+                    abandon(run.first, run.last);
+                    continue;
+                }
+                for (long block = run.first; block <= run.last; block++) {
+                    BlockFetch fetch = inFlight.get(block);
+                    if (fetch != null) {
+                        fetch.plan(run);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Bytes the calling thread has fetched from remote COGs so far. Take the difference of two
+     * readings to meter a piece of work; blocks that were cached or fetched by another reader
+     * don't count.
+     */
+    static long bytesFetchedByThread() {
+        return FETCHED.get()[0];
+    }
+
+    /**
+     * Group sorted block indexes into inclusive [first, last] runs, bridging gaps of up to
+     * {@link #MAX_GAP_BLOCKS} and capping each run at {@link #MAX_RUN_BLOCKS}
+     */
+    static List<long[]> planRuns(List<Long> sortedBlocks) {
+        List<long[]> runs = new ArrayList<>();
+        long[] run = null;
+        for (long block : sortedBlocks) {
+            if (run != null && block - run[1] <= MAX_GAP_BLOCKS + 1 && block - run[0] < MAX_RUN_BLOCKS) {
+                run[1] = block;
+            } else {
+                run = new long[]{block, block};
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Fetch blocks {@code first..last} in one GET, straight into per-block arrays
+     */
+    private void fetchRun(long first, long last, Set<Long> own) {
+        long start = first * BLOCK_SIZE;
+        long end = (last + 1) * BLOCK_SIZE - 1;
+        IOException error = null;
+        long block = first;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestProperty("Range", String.format("bytes=%d-%d", start, end));
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == 416) {
+                // Entirely past the end of the file
+                for (; block <= last; block++) {
+                    complete(block, new byte[0]);
+                }
+                connection.disconnect();
+                return;
+            }
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                throw new IOException("HTTP error code: " + responseCode + " for range request");
+            }
+
+            // Not disconnecting lets the connection be reused by the next run
+            try (InputStream is = connection.getInputStream()) {
+                for (; block <= last; block++) {
+                    if (block > first && isAbandoned(block, last, own)) {
+                        // Dropping the connection is cheaper than draining the rest
+                        connection.disconnect();
+                        abandon(block, last);
+                        return;
+                    }
+                    byte[] data = readBlock(is);
+                    FETCHED.get()[0] += data.length;
+                    complete(block, data);
+                    if (data.length < BLOCK_SIZE) {
+                        block++;
+                        break;
+                    }
+                }
+            }
+            // Anything left ended with the file
+            for (; block <= last; block++) {
+                complete(block, new byte[0]);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Range fetch failed for " + url + ": " + e.getMessage());
+            error = e;
+        }
+        if (error != null) {
+            synchronized (this) {
+                for (; block <= last; block++) {
+                    BlockFetch fetch = inFlight.remove(block);
+                    if (fetch != null) {
+                        fetch.finish(null, error);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the fetching read was interrupted and no other read waits on blocks
+     * {@code first..last}
+     */
+    private synchronized boolean isAbandoned(long first, long last, Set<Long> own) {
+        if (!Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        for (long block = first; block <= last; block++) {
+            BlockFetch fetch = inFlight.get(block);
+            if (fetch != null && fetch.waiters > (own.contains(block) ? 1 : 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fail blocks {@code first..last} without fetching them
+     */
+    private synchronized void abandon(long first, long last) {
+        InterruptedIOException cancelled = new InterruptedIOException("COG read cancelled");
+        for (long block = first; block <= last; block++) {
+            BlockFetch fetch = inFlight.remove(block);
+            if (fetch != null) {
+                fetch.finish(null, cancelled);
+            }
+        }
+    }
+
+    private static byte[] readBlock(InputStream is) throws IOException {
+        byte[] data = new byte[BLOCK_SIZE];
+        int total = 0;
+        int read;
+        while (total < BLOCK_SIZE && (read = is.read(data, total, BLOCK_SIZE - total)) != -1) {
+            total += read;
+        }
+        if (total < BLOCK_SIZE) {
+            byte[] partial = new byte[total];
+            System.arraycopy(data, 0, partial, 0, total);
+            return partial;
+        }
+        return data;
+    }
+
+    private void complete(long block, byte[] data) {
+        BlockFetch fetch;
+        synchronized (this) {
+            if (data.length > 0) {
+                blocks.put(block, data);
+            }
+            fetch = inFlight.remove(block);
+        }
+        if (fetch != null) {
+            fetch.finish(data, null);
+        }
+    }
+}
@@ -0,0 +1,677 @@
+package com.optisense.skyfi.atak.cog;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.atakmap.coremap.log.Log;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports a COG or mosaic layer as a tile pyramid ATAK can load offline: MBTiles or GeoPackage.
+ *
+ * Each zoom level's tile range over the area of interest is split recursively on a
+ * {@link ForkJoinPool} with one worker per core, so reading, decoding, resampling and encoding
+ * run on every core while idle workers steal the halves of busy ones. Encoded tiles are handed
+ * through a bounded queue to a single writer thread, which inserts them in batched
+ * transactions with a precompiled statement; SQLite allows one writer anyway, and one commit
+ * per batch instead of per tile is what keeps it from being the bottleneck.
+ *
+ * A tile that can't be read is retried, then fails the export rather than leaving a hole in
+ * the file. MBTiles declares a single tile format, so its tiles are all encoded in the
+ * alpha-capable format; GeoPackage tiles may mix JPEG and PNG.
+ */
+public class COGExporter {
+
+    private static final String TAG = "SkyFi.COGExporter";
+
+    // Tiles a fork/join task renders itself rather than splitting further
+    private static final int LEAF_TILES = 16;
+    // Tiles written per transaction
+    private static final int BATCH_SIZE = 256;
+    // Encoded tiles waiting for the writer; workers wait when it falls this far behind
+    private static final int QUEUE_SIZE = 4 * BATCH_SIZE;
+    private static final long POLL_MS = 100;
+    // Larger exports are refused; about 1 GB of imagery at typical tile sizes
+    private static final int MAX_TILES = 1 << 16;
+    // Reads of a tile after the first fails, each after twice the last delay
+    private static final int RETRIES = 2;
+    private static final long RETRY_MS = 500;
+
+    /**
+     * Output file format
+     */
+    public enum Format {
+        MBTILES("mbtiles"),
+        GEOPACKAGE("gpkg");
+
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * Reports an export's progress. Called on the export's writer thread.
+     */
+    public interface Listener {
+        /**
+         * @param done Tiles rendered so far, including empty ones that weren't written
+         * @param total Tiles in the export's range
+         */
+        void onProgress(int done, int total);
+
+        /**
+         * @param written Tiles written to the file; empty tiles are left out
+         */
+        void onComplete(File file, int written);
+
+        /**
+         * The export failed or was cancelled; the partial file has been deleted
+         */
+        void onError(String message);
+    }
+
+    /**
+     * Where exported tiles go
+     */
+    interface TileSink {
+        /**
+         * Write a batch of tiles, in one transaction where the store has them
+         */
+        void write(List<Tile> tiles) throws IOException;
+
+        /**
+         * Record the export's extent, in Web Mercator, and zoom range, and close the store
+         */
+        void finish(Envelope bounds, int minZoom, int maxZoom) throws IOException;
+
+        /**
+         * Close the store and delete what was written
+         */
+        void abort();
+
+        /**
+         * Whether the store declares one format for all its tiles
+         */
+        boolean singleFormat();
+    }
+
+    /**
+     * An encoded XYZ tile
+     */
+    static class Tile {
+        final int z;
+        final int x;
+        final int y;
+        final byte[] data;
+
+        Tile(int z, int x, int y, byte[] data) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.data = data;
+        }
+    }
+
+    private final COGTileServer.TileSource source;
+    private final Envelope bounds;
+    private final int minZoom;
+    private final int maxZoom;
+    private final TileSink sink;
+    private final File file;
+    private final Listener listener;
+    private final int total;
+    private final boolean alphaFormat;
+    private final BlockingQueue<Tile> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicInteger rendered = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    // The read that stopped the export, if one did
+    private volatile IOException failure;
+
+    /**
+     * @param bounds Web Mercator extent to export, already clipped to the source's footprint
+     */
+    COGExporter(COGTileServer.TileSource source, Envelope bounds, int minZoom, int maxZoom,
+                TileSink sink, File file, Listener listener) {
+        this.total = checkRange(bounds, minZoom, maxZoom);
+        this.source = source;
+        this.bounds = bounds;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.sink = sink;
+        this.file = file;
+        this.listener = listener;
+        this.alphaFormat = sink.singleFormat();
+    }
+
+    /**
+     * Open an empty tile store of {@code format}, replacing any file already at {@code file}
+     */
+    static TileSink openSink(Format format, File file, String name) throws IOException {
+        if (file.exists()) {
+            SQLiteDatabase.deleteDatabase(file);
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        try {
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+            return format == Format.GEOPACKAGE ? new GeoPackageSink(db, file, name) : new MBTilesSink(db, file, name);
+        } catch (Exception e) {
+            SQLiteDatabase.deleteDatabase(file);
+            throw new IOException("Failed to create " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Tiles in an export
+     *
+     * @throws IllegalArgumentException if the zoom range is invalid or the export too large
+     */
+    static int checkRange(Envelope bounds, int minZoom, int maxZoom) {
+        if (minZoom < 0 || maxZoom < minZoom || maxZoom > 30) {
+            throw new IllegalArgumentException("Bad zoom range " + minZoom + ".." + maxZoom);
+        }
+        long count = countTiles(bounds, minZoom, maxZoom);
+        if (count > MAX_TILES) {
+            throw new IllegalArgumentException("Export of " + count + " tiles is over the limit of " + MAX_TILES);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Tiles at zoom levels {@code minZoom..maxZoom} covering a Web Mercator extent
+     */
+    static long countTiles(Envelope bounds, int minZoom, int maxZoom) {
+        if (bounds.isNull()) {
+            return 0;
+        }
+        long count = 0;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            int[] range = tileRange(bounds, z);
+            count += (long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Inclusive XYZ tile range covering a Web Mercator extent at zoom {@code z}: {x0, y0, x1, y1}
+     */
+    static int[] tileRange(Envelope bounds, int z) {
+        int[] topLeft = COGTileMath.tileAt(bounds.getMinX(), bounds.getMaxY(), z);
+        int[] bottomRight = COGTileMath.tileAt(bounds.getMaxX(), bounds.getMinY(), z);
+        return new int[]{topLeft[0], topLeft[1], bottomRight[0], bottomRight[1]};
+    }
+
+    /**
+     * Run the export on its own thread
+     */
+    void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                export();
+            }
+        }, "SkyFi-COGExport");
+        thread.start();
+    }
+
+    /**
+     * Stop the export; the listener hears {@link Listener#onError} once the writer stops
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public int getTotalTiles() {
+        return total;
+    }
+
+    /**
+     * Render and write every tile, on the calling thread and a pool of one worker per core
+     */
+    void export() {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ForkJoinTask<Void> render = pool.submit(new RenderAll());
+            int written = write(render);
+            if (cancelled) {
+                throw failure != null ? failure : new IOException("Export cancelled");
+            }
+            // Surfaces anything thrown by a render task
+            render.get();
+            // Trailing empty tiles are counted after the last batch reported
+            listener.onProgress(rendered.get(), total);
+            sink.finish(bounds, minZoom, maxZoom);
+            Log.d(TAG, "Exported " + written + " of " + total + " tiles");
+            done = true;
+            listener.onComplete(file, written);
+        } catch (Exception e) {
+            cancelled = true;
+            pool.shutdownNow();
+            sink.abort();
+            Log.w(TAG, "Export failed: " + e.getMessage());
+            done = true;
+            listener.onError(e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Drain rendered tiles into the sink a batch at a time until rendering finishes
+     *
+     * @return Tiles written
+     */
+    private int write(ForkJoinTask<Void> render) throws IOException, InterruptedException {
+        List<Tile> batch = new ArrayList<>(BATCH_SIZE);
+        int written = 0;
+        while (!cancelled) {
+            Tile first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (first != null) {
+                batch.add(first);
+            } else if (render.isDone()) {
+                // Every tile is queued by now; take any that arrived since the poll
+                queue.drainTo(batch, BATCH_SIZE);
+                if (batch.isEmpty()) {
+                    break;
+                }
+            } else {
+                continue;
+            }
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            sink.write(batch);
+            written += batch.size();
+            batch.clear();
+            listener.onProgress(rendered.get(), total);
+        }
+        return written;
+    }
+
+    /**
+     * Hand a tile to the writer, waiting while its queue is full
+     *
+     * @return false if the export was cancelled
+     */
+    private boolean enqueue(Tile tile) {
+        try {
+            while (!queue.offer(tile, POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Encode a tile, retrying failed reads; the last failure stops the export
+     *
+     * @return null if the tile is empty or the export has stopped
+     */
+    private byte[] encode(int z, int x, int y) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return source.encodeTile(z, x, y, alphaFormat);
+            } catch (IOException e) {
+                if (cancelled) {
+                    return null;
+                }
+                if (attempt == RETRIES) {
+                    fail(new IOException("Failed to read tile " + z + "/" + x + "/" + y + ": " + e.getMessage(), e));
+                    return null;
+                }
+                Log.w(TAG, "Retrying tile " + z + "/" + x + "/" + y + ": " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RETRY_MS << attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        cancelled = true;
+    }
+
+    /**
+     * Every zoom level, forked together so small levels don't leave cores idle
+     */
+    private class RenderAll extends RecursiveAction {
+        @Override
+        protected void compute() {
+            if (bounds.isNull()) {
+                return;
+            }
+            List<RenderRange> levels = new ArrayList<>();
+            for (int z = minZoom; z <= maxZoom; z++) {
+                int[] range = tileRange(bounds, z);
+                levels.add(new RenderRange(z, range[0], range[1], range[2], range[3]));
+            }
+            invokeAll(levels);
+        }
+    }
+
+    /**
+     * An inclusive rectangle of tiles at one zoom level, split in half along its longer side
+     * until it's small enough to render directly
+     */
+    private class RenderRange extends RecursiveAction {
+        final int z;
+        final int x0;
+        final int y0;
+        final int x1;
+        final int y1;
+
+        RenderRange(int z, int x0, int y0, int x1, int y1) {
+            this.z = z;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+            int width = x1 - x0 + 1;
+            int height = y1 - y0 + 1;
+            if ((long) width * height > LEAF_TILES) {
+                if (width >= height) {
+                    int mid = x0 + width / 2;
+                    invokeAll(new RenderRange(z, x0, y0, mid - 1, y1), new RenderRange(z, mid, y0, x1, y1));
+                } else {
+                    int mid = y0 + height / 2;
+                    invokeAll(new RenderRange(z, x0, y0, x1, mid - 1), new RenderRange(z, x0, mid, x1, y1));
+                }
+                return;
+            }
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    byte[] data = encode(z, x, y);
+                    if (cancelled) {
+                        return;
+                    }
+                    rendered.incrementAndGet();
+                    if (data != null && !enqueue(new Tile(z, x, y, data))) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * SQLite tile store: one precompiled insert, a transaction per batch
+     */
+    private abstract static class SQLiteSink implements TileSink {
+        final SQLiteDatabase db;
+        final File file;
+        final String name;
+        SQLiteStatement insert;
+
+        SQLiteSink(SQLiteDatabase db, File file, String name) {
+            this.db = db;
+            this.file = file;
+            this.name = name;
+            // A failed export is deleted rather than recovered, so skip the journal syncs
+            db.execSQL("PRAGMA synchronous = OFF");
+        }
+
+        /**
+         * Bind a tile to {@link #insert}
+         */
+        abstract void bind(Tile tile);
+
+        @Override
+        public void write(List<Tile> tiles) throws IOException {
+            try {
+                db.beginTransaction();
+                try {
+                    for (Tile tile : tiles) {
+                        bind(tile);
+                        insert.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (Exception e) {
+                throw new IOException("Tile write failed: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public boolean singleFormat() {
+            return false;
+        }
+
+        @Override
+        public void abort() {
+            try {
+                db.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to close " + file + ": " + e.getMessage());
+            }
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * MBTiles 1.3: TMS rows, metadata as name/value pairs. Its one {@code format} is read from
+     * the first tile written, since every tile is encoded the same way.
+     */
+    private static class MBTilesSink extends SQLiteSink {
+        private String format;
+
+        MBTilesSink(SQLiteDatabase db, File file, String name) {
+            super(db, file, name);
+            db.execSQL("CREATE TABLE metadata (name TEXT PRIMARY KEY, value TEXT)");
+            db.execSQL("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER,"
+                    + " tile_row INTEGER, tile_data BLOB)");
+            db.execSQL("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            insert = db.compileStatement(
+                    "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+        }
+
+        @Override
+        public boolean singleFormat() {
+            return true;
+        }
+
+        @Override
+        void bind(Tile tile) {
+            if (format == null) {
+                format = COGTileEncoder.contentType(tile.data).substring("image/".length());
+            }
+            insert.bindLong(1, tile.z);
+            insert.bindLong(2, tile.x);
+            insert.bindLong(3, (1 << tile.z) - 1 - tile.y);
+            insert.bindBlob(4, tile.data);
+        }
+
+        @Override
+        public void finish(Envelope bounds, int minZoom, int maxZoom) throws IOException {
+            try {
+                putMetadata("name", name);
+                putMetadata("type", "overlay");
+                putMetadata("version", "1.3");
+                putMetadata("format", "jpeg".equals(format) ? "jpg" : format != null ? format : "png");
+                putMetadata("minzoom", String.valueOf(minZoom));
+                putMetadata("maxzoom", String.valueOf(maxZoom));
+                if (!bounds.isNull()) {
+                    putMetadata("bounds", String.format(Locale.US, "%.6f,%.6f,%.6f,%.6f",
+                            COGTileMath.mercatorToLongitude(bounds.getMinX()),
+                            COGTileMath.mercatorToLatitude(bounds.getMinY()),
+                            COGTileMath.mercatorToLongitude(bounds.getMaxX()),
+                            COGTileMath.mercatorToLatitude(bounds.getMaxY())));
+                }
+                db.close();
+            } catch (Exception e) {
+                throw new IOException("Failed to finish " + file + ": " + e.getMessage(), e);
+            }
+        }
+
+        private void putMetadata(String key, String value) {
+            ContentValues values = new ContentValues();
+            values.put("name", key);
+            values.put("value", value);
+            db.insertWithOnConflict("metadata", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * OGC GeoPackage 1.2 tiles in EPSG:3857, on the XYZ tile matrix set covering the world
+     */
+    private static class GeoPackageSink extends SQLiteSink {
+        private static final String TABLE = "tiles";
+        private static final int APPLICATION_ID = 0x47504B47; // "GPKG"
+        private static final int USER_VERSION = 10200;
+        private static final double WORLD = Math.PI * 6378137.0;
+
+        private static final String WGS84_WKT = "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\","
+                + "SPHEROID[\"WGS 84\",6378137,298.257223563,AUTHORITY[\"EPSG\",\"7030\"]],"
+                + "AUTHORITY[\"EPSG\",\"6326\"]],PRIMEM[\"Greenwich\",0,AUTHORITY[\"EPSG\",\"8901\"]],"
+                + "UNIT[\"degree\",0.0174532925199433,AUTHORITY[\"EPSG\",\"9122\"]],AUTHORITY[\"EPSG\",\"4326\"]]";
+        private static final String MERCATOR_WKT = "PROJCS[\"WGS 84 / Pseudo-Mercator\"," + WGS84_WKT + ","
+                + "PROJECTION[\"Mercator_1SP\"],PARAMETER[\"central_meridian\",0],PARAMETER[\"scale_factor\",1],"
+                + "PARAMETER[\"false_easting\",0],PARAMETER[\"false_northing\",0],"
+                + "UNIT[\"metre\",1,AUTHORITY[\"EPSG\",\"9001\"]],AXIS[\"X\",EAST],AXIS[\"Y\",NORTH],"
+                + "AUTHORITY[\"EPSG\",\"3857\"]]";
+
+        GeoPackageSink(SQLiteDatabase db, File file, String name) {
+            super(db, file, name);
+            db.execSQL("PRAGMA application_id = " + APPLICATION_ID);
+            db.execSQL("PRAGMA user_version = " + USER_VERSION);
+            db.execSQL("CREATE TABLE gpkg_spatial_ref_sys (srs_name TEXT NOT NULL, srs_id INTEGER PRIMARY KEY,"
+                    + " organization TEXT NOT NULL, organization_coordsys_id INTEGER NOT NULL,"
+                    + " definition TEXT NOT NULL, description TEXT)");
+            db.execSQL("CREATE TABLE gpkg_contents (table_name TEXT NOT NULL PRIMARY KEY, data_type TEXT NOT NULL,"
+                    + " identifier TEXT UNIQUE, description TEXT DEFAULT '',"
+                    + " last_change DATETIME NOT NULL DEFAULT (strftime('%Y-%m-%dT%H:%M:%fZ','now')),"
+                    + " min_x DOUBLE, min_y DOUBLE, max_x DOUBLE, max_y DOUBLE,"
+                    + " srs_id INTEGER REFERENCES gpkg_spatial_ref_sys(srs_id))");
+            db.execSQL("CREATE TABLE gpkg_tile_matrix_set (table_name TEXT NOT NULL PRIMARY KEY"
+                    + " REFERENCES gpkg_contents(table_name), srs_id INTEGER NOT NULL"
+                    + " REFERENCES gpkg_spatial_ref_sys(srs_id), min_x DOUBLE NOT NULL, min_y DOUBLE NOT NULL,"
+                    + " max_x DOUBLE NOT NULL, max_y DOUBLE NOT NULL)");
+            db.execSQL("CREATE TABLE gpkg_tile_matrix (table_name TEXT NOT NULL"
+                    + " REFERENCES gpkg_contents(table_name), zoom_level INTEGER NOT NULL,"
+                    + " matrix_width INTEGER NOT NULL, matrix_height INTEGER NOT NULL,"
+                    + " tile_width INTEGER NOT NULL, tile_height INTEGER NOT NULL,"
+                    + " pixel_x_size DOUBLE NOT NULL, pixel_y_size DOUBLE NOT NULL,"
+                    + " PRIMARY KEY (table_name, zoom_level))");
+            db.execSQL("CREATE TABLE " + TABLE + " (id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + " zoom_level INTEGER NOT NULL, tile_column INTEGER NOT NULL, tile_row INTEGER NOT NULL,"
+                    + " tile_data BLOB NOT NULL, UNIQUE (zoom_level, tile_column, tile_row))");
+
+            putSrs("Undefined cartesian SRS", -1, "NONE", -1, "undefined");
+            putSrs("Undefined geographic SRS", 0, "NONE", 0, "undefined");
+            putSrs("WGS 84 geodetic", 4326, "EPSG", 4326, WGS84_WKT);
+            putSrs("WGS 84 / Pseudo-Mercator", 3857, "EPSG", 3857, MERCATOR_WKT);
+            insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+                    + " (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+        }
+
+        @Override
+        void bind(Tile tile) {
+            // GeoPackage rows count from the top, like XYZ
+            insert.bindLong(1, tile.z);
+            insert.bindLong(2, tile.x);
+            insert.bindLong(3, tile.y);
+            insert.bindBlob(4, tile.data);
+        }
+
+        @Override
+        public void finish(Envelope bounds, int minZoom, int maxZoom) throws IOException {
+            try {
+                db.beginTransaction();
+                try {
+                    ContentValues contents = new ContentValues();
+                    contents.put("table_name", TABLE);
+                    contents.put("data_type", "tiles");
+                    contents.put("identifier", name);
+                    if (!bounds.isNull()) {
+                        contents.put("min_x", bounds.getMinX());
+                        contents.put("min_y", bounds.getMinY());
+                        contents.put("max_x", bounds.getMaxX());
+                        contents.put("max_y", bounds.getMaxY());
+                    }
+                    contents.put("srs_id", 3857);
+                    db.insertOrThrow("gpkg_contents", null, contents);
+
+                    ContentValues matrixSet = new ContentValues();
+                    matrixSet.put("table_name", TABLE);
+                    matrixSet.put("srs_id", 3857);
+                    matrixSet.put("min_x", -WORLD);
+                    matrixSet.put("min_y", -WORLD);
+                    matrixSet.put("max_x", WORLD);
+                    matrixSet.put("max_y", WORLD);
+                    db.insertOrThrow("gpkg_tile_matrix_set", null, matrixSet);
+
+                    for (int z = minZoom; z <= maxZoom; z++) {
+                        ContentValues matrix = new ContentValues();
+                        matrix.put("table_name", TABLE);
+                        matrix.put("zoom_level", z);
+                        matrix.put("matrix_width", 1 << z);
+                        matrix.put("matrix_height", 1 << z);
+                        matrix.put("tile_width", COGTileMath.TILE_SIZE);
+                        matrix.put("tile_height", COGTileMath.TILE_SIZE);
+                        matrix.put("pixel_x_size", COGTileMath.resolution(z));
+                        matrix.put("pixel_y_size", COGTileMath.resolution(z));
+                        db.insertOrThrow("gpkg_tile_matrix", null, matrix);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                db.close();
+            } catch (Exception e) {
+                throw new IOException("Failed to finish " + file + ": " + e.getMessage(), e);
+            }
+        }
+
+        private void putSrs(String srsName, int srsId, String organization, int coordsysId, String definition) {
+            ContentValues values = new ContentValues();
+            values.put("srs_name", srsName);
+            values.put("srs_id", srsId);
+            values.put("organization", organization);
+            values.put("organization_coordsys_id", coordsysId);
+            values.put("definition", definition);
+            db.insertOrThrow("gpkg_spatial_ref_sys", null, values);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.optisense.skyfi.atak.cog;
+
+import android.util.LruCache;
+
+import com.atakmap.coremap.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A COG on device storage, read through small memory-mapped windows.
+ *
+ * Reads are slices of a mapping, so serving a tile takes no system call and no copy; the
+ * kernel pages the file in as tiles are decoded and shares those pages with its cache. Windows
+ * are mapped when first read and kept in an LRU shared by every local COG, so a mosaic of many
+ * deliveries holds a bounded amount of address space rather than a mapping of each whole file.
+ * Windows overlap, and any read shorter than the overlap - every tile - fits inside one of
+ * them. A 32-bit process may not find room even for a window; reads then fall back to
+ * positional reads from the file.
+ *
+ * Mapping and reading run on the tile server's render threads, which are interrupted when a
+ * request is cancelled, and an interrupt during a channel operation closes the channel for
+ * every reader. Channel calls are made with the thread's interrupt held off, and a channel
+ * closed anyway is reopened.
+ */
+class COGFileSource implements COGSource {
+
+    private static final String TAG = "SkyFi.COGFileSource";
+
+    // Windows start every WINDOW_STRIDE bytes and run WINDOW_OVERLAP past the next start
+    static final long WINDOW_STRIDE = 64L << 20;
+    private static final long WINDOW_OVERLAP = 4L << 20;
+    // Mapped bytes kept across every local COG
+    private static final int MAX_MAPPED_BYTES = 256 << 20;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+    private static final LruCache<String, MappedByteBuffer> windows =
+            new LruCache<String, MappedByteBuffer>(MAX_MAPPED_BYTES) {
+                @Override
+                protected int sizeOf(String key, MappedByteBuffer value) {
+                    return value.capacity();
+                }
+            };
+
+    private final File file;
+    private final long length;
+    private final long stride;
+    private final long overlap;
+    // Prefixes this source's window keys
+    private final String id = nextId.getAndIncrement() + ":";
+    // Replaced if an interrupt closes its channel
+    private volatile RandomAccessFile raf;
+    private volatile boolean closed;
+
+    COGFileSource(File file) throws IOException {
+        this(file, WINDOW_STRIDE, WINDOW_OVERLAP);
+    }
+
+    COGFileSource(File file, long stride, long overlap) throws IOException {
+        this.file = file;
+        this.stride = stride;
+        this.overlap = overlap;
+        this.raf = new RandomAccessFile(file, "r");
+        this.length = raf.getChannel().size();
+    }
+
+    /**
+     * An operation on the file's channel
+     */
+    private interface ChannelCall<T> {
+        T call(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * The file a COG URL names on this device, or null if it has to be read over HTTP:
+     * {@code file:} URLs, absolute paths, and bare names of files in {@code cacheDir}
+     */
+    static File localFile(String url, File cacheDir) {
+        File file = null;
+        if (url.startsWith("file:")) {
+            try {
+                file = new File(new URI(url));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return null;
+            }
+        } else if (url.startsWith("/")) {
+            file = new File(url);
+        } else if (cacheDir != null && !url.contains(":")) {
+            file = new File(cacheDir, url);
+        }
+        return file != null && file.isFile() ? file : null;
+    }
+
+    @Override
+    public ByteBuffer read(final long offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Closed: " + file);
+        }
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IOException("Range " + offset + "+" + length + " is past the end of " + file);
+        }
+
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+
+        long index = offset / stride;
+        int start = (int) (offset - index * stride);
+        if (start + length <= stride + overlap) {
+            MappedByteBuffer window = window(index);
+            if (window != null) {
+                return slice(window, start, length);
+            }
+        }
+
+        // Longer than the overlap between windows, or no room to map
+        final ByteBuffer copy = ByteBuffer.allocate(length);
+        return withChannel(new ChannelCall<ByteBuffer>() {
+            @Override
+            public ByteBuffer call(FileChannel channel) throws IOException {
+                // From the start again if the channel was reopened part way
+                copy.clear();
+                while (copy.hasRemaining()) {
+                    if (channel.read(copy, offset + copy.position()) < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                }
+                copy.flip();
+                return copy;
+            }
+        });
+    }
+
+    @Override
+    public ByteBuffer[] read(long[] offsets, int[] lengths) throws IOException {
+        ByteBuffer[] results = new ByteBuffer[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            results[i] = read(offsets[i], lengths[i]);
+        }
+        return results;
+    }
+
+    /**
+     * Drop this file's windows and close it; mapped pages are released once the last slice
+     * handed out is collected
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (String key : windows.snapshot().keySet()) {
+            if (key.startsWith(id)) {
+                windows.remove(key);
+            }
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Map {@code size} bytes at {@code start}. Tests override this to simulate a full address space.
+     */
+    MappedByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    /**
+     * Run {@code call} on the file's channel with this thread's interrupt held off, reopening
+     * the file if an interrupt arriving mid-call closed the channel anyway
+     */
+    private <T> T withChannel(ChannelCall<T> call) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                RandomAccessFile current = raf;
+                try {
+                    return call.call(current.getChannel());
+                } catch (ClosedChannelException e) {
+                    // Includes ClosedByInterruptException, which leaves the flag set again
+                    interrupted |= Thread.interrupted();
+                    if (closed || attempt == 1) {
+                        throw e;
+                    }
+                    reopen(current);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void reopen(RandomAccessFile stale) throws IOException {
+        if (raf != stale || closed) {
+            // Another reader got here first
+            return;
+        }
+        Log.w(TAG, "Reopening " + file + " after its channel was closed");
+        try {
+            stale.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + file + ": " + e.getMessage());
+        }
+        raf = new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Window {@code index}, mapped if need be; null if it can't be
+     */
+    private MappedByteBuffer window(long index) {
+        String key = id + index;
+        MappedByteBuffer window = windows.get(key);
+        if (window != null) {
+            return window;
+        }
+        final long start = index * stride;
+        final long size = Math.min(stride + overlap, length - start);
+        try {
+            // Two readers may map the same window; the loser's mapping is simply dropped
+            window = withChannel(new ChannelCall<MappedByteBuffer>() {
+                @Override
+                public MappedByteBuffer call(FileChannel channel) throws IOException {
+                    return map(channel, start, size);
+                }
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map " + file + " at " + start + ", reading instead: " + e.getMessage());
+            return null;
+        }
+        windows.put(key, window);
+        return window;
+    }
+
+    private static ByteBuffer slice(ByteBuffer window, int start, int length) {
+        ByteBuffer slice = window.duplicate();
+        slice.position(start);
+        slice.limit(start + length);
+        return slice.slice();
+    }
+}
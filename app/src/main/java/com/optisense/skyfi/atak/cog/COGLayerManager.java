@@ -8,6 +8,8 @@ import com.atakmap.coremap.log.Log;
 import com.atakmap.coremap.maps.coords.GeoBounds;
 import com.atakmap.coremap.maps.coords.GeoPoint;
 
+import org.locationtech.jts.geom.Envelope;
+
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,6 +22,7 @@ import java.util.UUID;
 public class COGLayerManager {
     
     private static final String TAG = "SkyFi.COGLayerManager";
+    private static final String MOSAIC_PREFIX = "mosaic_";
     private static COGLayerManager instance;
     
     private final Context context;
@@ -60,8 +63,8 @@ public class COGLayerManager {
             cacheDir.mkdirs();
         }
         
-        // Start tile server
-        this.tileServer = new COGTileServer();
+        // Start tile server, persisting rendered tiles in the cache directory
+        this.tileServer = new COGTileServer(cacheDir);
         this.tileServer.startServer();
         
         Log.d(TAG, "COG Layer Manager initialized");
@@ -121,17 +124,78 @@ public class COGLayerManager {
     }
     
     /**
-     * Remove a COG layer
+     * Add an empty mosaic layer. COGs added to it with {@link #addCOGToMosaic} are drawn as one
+     * layer, newest on top, instead of one stacked layer per delivery.
+     * @param name Display name for the layer
+     * @return Layer ID
+     */
+    public String addMosaicLayer(String name) {
+        String layerId = MOSAIC_PREFIX + UUID.randomUUID().toString().substring(0, 8);
+        tileServer.registerMosaic(layerId);
+        String tileUrl = tileServer.getTileUrlPattern(layerId);
+        
+        // Members come and go, so the layer covers the world
+        COGLayer layer = new COGLayer(layerId, name, null, new GeoBounds(-90, -180, 90, 180), tileUrl);
+        activeLayers.put(layerId, layer);
+        
+        Log.d(TAG, "Added mosaic layer: " + name + " (ID: " + layerId + ")");
+        return layerId;
+    }
+    
+    /**
+     * Add a COG to a mosaic layer
+     * @param capturedAt Capture time of the imagery in ms since the epoch; later captures are
+     *                   drawn over earlier ones
+     * @return true if the COG was added
+     */
+    public boolean addCOGToMosaic(String layerId, String cogUrl, long capturedAt) {
+        if (!layerId.startsWith(MOSAIC_PREFIX) || !activeLayers.containsKey(layerId)) {
+            Log.w(TAG, "Not a mosaic layer: " + layerId);
+            return false;
+        }
+        return tileServer.addToMosaic(layerId, cogUrl, capturedAt);
+    }
+    
+    /**
+     * Remove a COG from a mosaic layer
+     */
+    public void removeCOGFromMosaic(String layerId, String cogUrl) {
+        tileServer.removeFromMosaic(layerId, cogUrl);
+    }
+    
+    /**
+     * Export a layer as an MBTiles or GeoPackage file for offline use, in the background
+     * @param file File to write, replaced if it exists
+     * @param aoi Area to export, or null for the whole layer
+     * @return The running export, or null if it couldn't be started
+     */
+    public COGExporter exportLayer(String layerId, File file, COGExporter.Format format, GeoBounds aoi,
+                                   int minZoom, int maxZoom, COGExporter.Listener listener) {
+        if (!activeLayers.containsKey(layerId)) {
+            Log.w(TAG, "No layer to export: " + layerId);
+            return null;
+        }
+        Envelope area = null;
+        if (aoi != null) {
+            area = new Envelope(
+                    COGTileMath.longitudeToMercator(aoi.getWest()), COGTileMath.longitudeToMercator(aoi.getEast()),
+                    COGTileMath.latitudeToMercator(aoi.getSouth()), COGTileMath.latitudeToMercator(aoi.getNorth()));
+        }
+        return tileServer.exportLayer(layerId, file, format, area, minZoom, maxZoom, listener);
+    }
+
+    /**
+     * Remove a COG or mosaic layer
      */
     public void removeCOGLayer(String layerId) {
         COGLayer layer = activeLayers.remove(layerId);
         if (layer != null) {
-            // Remove from tile server
-            tileServer.unregisterCOG(layerId);
-            
-            // Clear cache
-            File layerCache = new File(cacheDir, layerId);
-            FileSystemUtils.deleteDirectory(layerCache, false);
+            // Remove from tile server, which also deletes the layer's cached tiles
+            if (layerId.startsWith(MOSAIC_PREFIX)) {
+                tileServer.unregisterMosaic(layerId);
+            } else {
+                tileServer.unregisterCOG(layerId);
+            }
             
             Log.d(TAG, "Removed COG layer: " + layer.name);
         }
@@ -160,10 +224,8 @@ public class COGLayerManager {
      * Clean up resources
      */
     public void dispose() {
-        // Remove all layers
-        for (String layerId : activeLayers.keySet()) {
-            removeCOGLayer(layerId);
-        }
+        // Drop all layers but keep their cached tiles for the next session
+        activeLayers.clear();
         
         // Stop tile server
         if (tileServer != null) {
@@ -0,0 +1,271 @@
+package com.optisense.skyfi.atak.cog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Predicts the tiles a client will ask for next from the tiles it's asking for now.
+ *
+ * Per layer, the requests of the last {@link #WINDOW_MS} at the latest zoom outline the area
+ * being drawn. Sampling its centre gives a pan velocity; comparing zooms gives a zoom trend.
+ * From those it predicts the tiles a second of panning will reveal (or, at rest, the ring
+ * around the area), the parent tiles a zoom out would show, and when zooming in, the children
+ * of the centre. On a high-latency link each of those would otherwise cost a full round trip
+ * once it came into view.
+ *
+ * Prefetches are charged to a token-bucket byte budget, so speculation can't crowd out the
+ * link; each is charged the bytes it actually fetched from the COG's host.
+ * {@link #onRequest} runs on the server's selector thread; the rest is thread-safe.
+ */
+class COGPrefetcher {
+
+    // Requests this recent outline the area being drawn
+    private static final long WINDOW_MS = 300;
+    // Centre samples for velocity are at least this far apart
+    private static final long SAMPLE_MS = 250;
+    // A gap this long between requests ends a pan
+    private static final long IDLE_MS = 1000;
+    // Predictions per layer are at least this far apart
+    private static final long PREDICT_INTERVAL_MS = 100;
+    // How far ahead a pan is extrapolated, and the most tiles that may lead it by
+    private static final double LOOKAHEAD_SECONDS = 1.0;
+    private static final int MAX_LEAD = 3;
+    // Slower than this, in tiles per second, counts as at rest
+    private static final double MIN_SPEED = 0.5;
+    static final int MAX_PREDICTED = 24;
+    private static final int MAX_ZOOM = 24;
+
+    /**
+     * Takes predicted tiles
+     */
+    interface Target {
+        /**
+         * Prefetch a tile at low priority, unless it's cached or already queued
+         */
+        void prefetch(String layerId, int z, int x, int y);
+    }
+
+    /**
+     * What a layer's client seems to be looking at
+     */
+    private static class View {
+        final ArrayDeque<int[]> recent = new ArrayDeque<>();
+        final ArrayDeque<Long> recentTimes = new ArrayDeque<>();
+        int zoom = -1;
+        int zoomTrend;
+        long lastRequest;
+        long lastPrediction;
+        // Last velocity sample, in tiles at {@link #zoom}
+        long sampleTime;
+        double sampleX;
+        double sampleY;
+        double velocityX;
+        double velocityY;
+    }
+
+    private final Target target;
+    // Views are only touched on the selector thread, but layers are forgotten from any
+    private final Map<String, View> views = new ConcurrentHashMap<>();
+    private long budgetBytesPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param budgetBytesPerSecond Bytes per second prefetching may use; 0 disables it
+     */
+    COGPrefetcher(Target target, long budgetBytesPerSecond) {
+        this.target = target;
+        this.budgetBytesPerSecond = budgetBytesPerSecond;
+        this.tokens = budgetBytesPerSecond;
+    }
+
+    synchronized void setBudget(long bytesPerSecond) {
+        budgetBytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, bytesPerSecond);
+    }
+
+    /**
+     * Whether the budget has room to start a prefetch
+     */
+    synchronized boolean tryStart() {
+        refill(System.currentTimeMillis());
+        return budgetBytesPerSecond > 0 && tokens > 0;
+    }
+
+    /**
+     * Charge a finished prefetch to the budget; it may go into debt, paid off before the next
+     */
+    synchronized void charge(long bytes) {
+        refill(System.currentTimeMillis());
+        tokens -= bytes;
+    }
+
+    /**
+     * Drop what's known about a layer's view
+     */
+    void forget(String layerId) {
+        views.remove(layerId);
+    }
+
+    void onRequest(String layerId, int z, int x, int y) {
+        onRequest(layerId, z, x, y, System.currentTimeMillis());
+    }
+
+    void onRequest(String layerId, int z, int x, int y, long now) {
+        if (z < 0 || z > MAX_ZOOM) {
+            return;
+        }
+        View view = views.get(layerId);
+        if (view == null) {
+            view = new View();
+            views.put(layerId, view);
+        }
+        if (now - view.lastRequest > IDLE_MS) {
+            view.velocityX = 0;
+            view.velocityY = 0;
+            view.sampleTime = 0;
+        }
+        view.lastRequest = now;
+        if (z != view.zoom) {
+            view.zoomTrend = view.zoom < 0 ? 0 : Integer.signum(z - view.zoom);
+            view.zoom = z;
+            view.velocityX = 0;
+            view.velocityY = 0;
+            view.sampleTime = 0;
+        }
+
+        view.recent.add(new int[]{z, x, y});
+        view.recentTimes.add(now);
+        while (now - view.recentTimes.peek() > WINDOW_MS) {
+            view.recent.poll();
+            view.recentTimes.poll();
+        }
+
+        int[] bounds = currentBounds(view);
+        double centreX = (bounds[0] + bounds[2] + 1) / 2.0;
+        double centreY = (bounds[1] + bounds[3] + 1) / 2.0;
+        if (view.sampleTime == 0) {
+            view.sampleTime = now;
+            view.sampleX = centreX;
+            view.sampleY = centreY;
+        } else if (now - view.sampleTime >= SAMPLE_MS) {
+            double seconds = (now - view.sampleTime) / 1000.0;
+            // Smoothed, since a sample can land part way through drawing a frame
+            view.velocityX = (view.velocityX + (centreX - view.sampleX) / seconds) / 2;
+            view.velocityY = (view.velocityY + (centreY - view.sampleY) / seconds) / 2;
+            view.sampleTime = now;
+            view.sampleX = centreX;
+            view.sampleY = centreY;
+        }
+
+        if (now - view.lastPrediction < PREDICT_INTERVAL_MS || !tryStart()) {
+            return;
+        }
+        view.lastPrediction = now;
+        List<int[]> predicted = predict(z, bounds[0], bounds[1], bounds[2], bounds[3],
+                view.velocityX, view.velocityY, view.zoomTrend);
+        // The scheduler runs the newest prefetch first, so the most likely tiles go in last
+        for (int i = predicted.size() - 1; i >= 0; i--) {
+            int[] tile = predicted.get(i);
+            target.prefetch(layerId, tile[0], tile[1], tile[2]);
+        }
+    }
+
+    /**
+     * Tiles likely to be requested next, most likely first: those a pan at {@code velocity}
+     * (tiles per second) reveals within the lookahead, or the ring around the area at rest;
+     * then the parents of the area; then, when zooming in, the children of its centre.
+     *
+     * @return {z, x, y} tiles, at most {@link #MAX_PREDICTED}, none inside the area
+     */
+    static List<int[]> predict(int z, int minX, int minY, int maxX, int maxY,
+                               double velocityX, double velocityY, int zoomTrend) {
+        List<int[]> tiles = new ArrayList<>();
+        int leadX = lead(velocityX);
+        int leadY = lead(velocityY);
+        boolean panning = Math.hypot(velocityX, velocityY) >= MIN_SPEED && (leadX != 0 || leadY != 0);
+        int fromX = panning ? Math.min(minX, minX + leadX) : minX - 1;
+        int toX = panning ? Math.max(maxX, maxX + leadX) : maxX + 1;
+        int fromY = panning ? Math.min(minY, minY + leadY) : minY - 1;
+        int toY = panning ? Math.max(maxY, maxY + leadY) : maxY + 1;
+
+        // Nearest the area first
+        int reach = Math.max(Math.max(minX - fromX, toX - maxX), Math.max(minY - fromY, toY - maxY));
+        for (int ring = 1; ring <= reach; ring++) {
+            for (int y = fromY; y <= toY; y++) {
+                for (int x = fromX; x <= toX; x++) {
+                    int distance = Math.max(Math.max(minX - x, x - maxX), Math.max(minY - y, y - maxY));
+                    if (distance == ring) {
+                        addTile(tiles, z, x, y);
+                    }
+                }
+            }
+        }
+
+        if (z > 0) {
+            for (int y = minY >> 1; y <= maxY >> 1; y++) {
+                for (int x = minX >> 1; x <= maxX >> 1; x++) {
+                    addTile(tiles, z - 1, x, y);
+                }
+            }
+        }
+
+        if (zoomTrend > 0 && z < MAX_ZOOM) {
+            int centreX = (minX + maxX) / 2;
+            int centreY = (minY + maxY) / 2;
+            for (int y = 2 * centreY; y <= 2 * centreY + 1; y++) {
+                for (int x = 2 * centreX; x <= 2 * centreX + 1; x++) {
+                    addTile(tiles, z + 1, x, y);
+                }
+            }
+        }
+        return tiles.size() > MAX_PREDICTED ? new ArrayList<>(tiles.subList(0, MAX_PREDICTED)) : tiles;
+    }
+
+    /**
+     * Whole tiles a pan at {@code velocity} gets ahead by within the lookahead
+     */
+    private static int lead(double velocity) {
+        double lead = velocity * LOOKAHEAD_SECONDS;
+        if (Math.abs(lead) < 0.25) {
+            return 0;
+        }
+        int tiles = (int) Math.ceil(Math.abs(lead));
+        return (int) Math.signum(lead) * Math.min(MAX_LEAD, tiles);
+    }
+
+    private static void addTile(List<int[]> tiles, int z, int x, int y) {
+        long size = 1L << z;
+        if (x >= 0 && y >= 0 && x < size && y < size) {
+            tiles.add(new int[]{z, x, y});
+        }
+    }
+
+    /**
+     * Inclusive bounds {minX, minY, maxX, maxY} of the recent requests at the view's zoom
+     */
+    private static int[] currentBounds(View view) {
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int[] tile : view.recent) {
+            if (tile[0] != view.zoom) {
+                continue;
+            }
+            bounds[0] = Math.min(bounds[0], tile[1]);
+            bounds[1] = Math.min(bounds[1], tile[2]);
+            bounds[2] = Math.max(bounds[2], tile[1]);
+            bounds[3] = Math.max(bounds[3], tile[2]);
+        }
+        return bounds;
+    }
+
+    private void refill(long now) {
+        if (lastRefill != 0) {
+            // At most a second's worth banked
+            tokens = Math.min(budgetBytesPerSecond, tokens + (now - lastRefill) * budgetBytesPerSecond / 1000.0);
+        }
+        lastRefill = now;
+    }
+}
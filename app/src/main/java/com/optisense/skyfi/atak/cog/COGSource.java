@@ -0,0 +1,27 @@
+package com.optisense.skyfi.atak.cog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the bytes of a COG file
+ */
+interface COGSource {
+
+    /**
+     * Read exactly {@code length} bytes at {@code offset}. The returned buffer's position is 0;
+     * its byte order is unspecified.
+     */
+    ByteBuffer read(long offset, int length) throws IOException;
+
+    /**
+     * Read several ranges, as {@link #read(long, int)} would one at a time; sources that fetch
+     * remotely use this to get them all in one round trip
+     */
+    ByteBuffer[] read(long[] offsets, int[] lengths) throws IOException;
+
+    /**
+     * Release anything held for this file
+     */
+    void close();
+}
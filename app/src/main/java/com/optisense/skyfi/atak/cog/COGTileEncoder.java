@@ -0,0 +1,106 @@
+package com.optisense.skyfi.atak.cog;
+
+import android.graphics.Bitmap;
+
+import com.atakmap.coremap.log.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes decoded COG tiles for the tile server.
+ *
+ * Opaque tiles go to a lossy format (JPEG by default), which is several times cheaper to
+ * encode than PNG; only tiles that need alpha pay for a lossless or alpha-capable format. The
+ * blank tile for areas outside a COG is encoded once and shared. Tiles that are already JPEG in
+ * the COG don't come through here at all.
+ */
+class COGTileEncoder {
+
+    private static final String TAG = "SkyFi.COGTileEncoder";
+    private static final int TRANSPARENT_TILE_SIZE = 256;
+
+    // Per upstream thread, reused for every tile
+    private static final ThreadLocal<Bitmap> TILE_BITMAPS = new ThreadLocal<>();
+    private static final ThreadLocal<ByteArrayOutputStream> STREAMS = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(64 * 1024);
+        }
+    };
+
+    private static volatile byte[] transparentTile;
+
+    private volatile Bitmap.CompressFormat opaqueFormat = Bitmap.CompressFormat.JPEG;
+    private volatile Bitmap.CompressFormat translucentFormat = Bitmap.CompressFormat.PNG;
+    private volatile int quality = 85;
+
+    /**
+     * @param opaqueFormat Format for tiles without transparency
+     * @param translucentFormat Format for tiles that need alpha; PNG or WEBP
+     * @param quality Quality for lossy formats, 0-100
+     */
+    void configure(Bitmap.CompressFormat opaqueFormat, Bitmap.CompressFormat translucentFormat, int quality) {
+        if (translucentFormat == Bitmap.CompressFormat.JPEG) {
+            throw new IllegalArgumentException("JPEG can't carry transparency");
+        }
+        this.opaqueFormat = opaqueFormat;
+        this.translucentFormat = translucentFormat;
+        this.quality = Math.max(0, Math.min(100, quality));
+    }
+
+    /**
+     * Encode ARGB pixels
+     *
+     * @param translucent Whether any pixel is less than fully opaque
+     */
+    byte[] encode(int[] pixels, int width, int height, boolean translucent) {
+        Bitmap bitmap = TILE_BITMAPS.get();
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            TILE_BITMAPS.set(bitmap);
+        }
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.setHasAlpha(translucent);
+
+        ByteArrayOutputStream stream = STREAMS.get();
+        stream.reset();
+        bitmap.compress(translucent ? translucentFormat : opaqueFormat, quality, stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * A fully transparent tile, encoded once
+     */
+    static byte[] transparentTile() {
+        byte[] tile = transparentTile;
+        if (tile == null) {
+            try {
+                Bitmap bitmap = Bitmap.createBitmap(TRANSPARENT_TILE_SIZE, TRANSPARENT_TILE_SIZE,
+                        Bitmap.Config.ARGB_8888);
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+                bitmap.recycle();
+                tile = stream.toByteArray();
+                transparentTile = tile;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to create transparent tile", e);
+                return new byte[0];
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * MIME type of an encoded tile, from its signature
+     */
+    static String contentType(byte[] data) {
+        if (data.length >= 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            return "image/jpeg";
+        }
+        if (data.length >= 12 && data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            return "image/webp";
+        }
+        return "image/png";
+    }
+}
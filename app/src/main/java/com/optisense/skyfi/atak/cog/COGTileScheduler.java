@@ -0,0 +1,323 @@
+package com.optisense.skyfi.atak.cog;
+
+import com.atakmap.coremap.log.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders and runs upstream tile work for the tile server.
+ *
+ * A pan or zoom makes every tile requested before it stale, so pending work is taken newest
+ * first, tiles at the zoom level of the latest request ahead of the rest; a plain FIFO would
+ * render the whole trail of the pan before the tiles now in view. When the queue is full the
+ * stalest task is dropped, not the new request. Concurrent requests for the same tile share
+ * one task. Waiters are removed when their client disconnects; a pending task nobody waits
+ * for is discarded, and a running one has its worker interrupted, which abandons any range
+ * fetch no other reader needs (see {@link COGBlockCache}).
+ *
+ * Speculative work ({@link #prefetch}) has no waiters and runs only when no requested tile is
+ * pending, on at most half the workers, so it never stands between a client and a tile it
+ * asked for. A request for a tile that's queued speculatively promotes it.
+ */
+class COGTileScheduler {
+
+    private static final String TAG = "SkyFi.COGTileScheduler";
+
+    /**
+     * Renders one tile on a worker thread
+     */
+    interface Job {
+        /**
+         * @return The encoded tile. May be null or partial if the worker was interrupted.
+         */
+        byte[] render();
+    }
+
+    /**
+     * Receives a scheduled tile
+     */
+    interface Waiter {
+        /**
+         * @param tile The rendered tile, or null if the task was dropped to make room for newer work
+         */
+        void complete(byte[] tile);
+    }
+
+    private static class Entry {
+        final Object owner;
+        final Waiter waiter;
+
+        Entry(Object owner, Waiter waiter) {
+            this.owner = owner;
+            this.waiter = waiter;
+        }
+    }
+
+    private static class Task {
+        final String key;
+        final int zoom;
+        Job job;
+        boolean speculative;
+        final List<Entry> waiters = new ArrayList<>();
+        long sequence;
+        // Set while running
+        Thread worker;
+
+        Task(String key, int zoom, Job job) {
+            this.key = key;
+            this.zoom = zoom;
+            this.job = job;
+        }
+    }
+
+    private final int maxPending;
+    private final Object lock = new Object();
+    // Every pending or running task that still has waiters, by tile key
+    private final Map<String, Task> tasks = new HashMap<>();
+    private final List<Task> pending = new ArrayList<>();
+    // Prefetches, oldest first
+    private final List<Task> speculative = new ArrayList<>();
+    private final int maxSpeculativeRunning;
+    private int speculativeRunning;
+    private final Thread[] workers;
+    private long nextSequence;
+    private int currentZoom = -1;
+    private boolean running = true;
+
+    /**
+     * @param threads Worker threads
+     * @param maxPending Tasks waiting for a worker before the stalest is dropped
+     */
+    COGTileScheduler(int threads, int maxPending) {
+        this.maxPending = maxPending;
+        this.maxSpeculativeRunning = Math.max(1, threads / 2);
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "SkyFi-COGUpstream-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue a tile for {@code waiter}, or join the task already rendering it
+     *
+     * @param key Identifies the tile; requests with equal keys share one render
+     * @param owner The client the waiter answers, for {@link #cancel}
+     */
+    void schedule(String key, int zoom, Object owner, Job job, Waiter waiter) {
+        List<Entry> dropped = null;
+        synchronized (lock) {
+            if (!running) {
+                dropped = new ArrayList<>();
+                dropped.add(new Entry(owner, waiter));
+            } else {
+                currentZoom = zoom;
+                Task task = tasks.get(key);
+                if (task != null && task.speculative) {
+                    if (task.worker == null) {
+                        // Queued speculatively; now it's wanted
+                        speculative.remove(task);
+                        task.speculative = false;
+                        task.job = job;
+                        pending.add(task);
+                        lock.notify();
+                    } else {
+                        // A running prefetch may skip the tile; render it again for the waiter
+                        task = null;
+                    }
+                }
+                if (task == null) {
+                    task = new Task(key, zoom, job);
+                    tasks.put(key, task);
+                    pending.add(task);
+                    lock.notify();
+                }
+                // Re-requested work is as fresh as the request
+                task.sequence = nextSequence++;
+                task.waiters.add(new Entry(owner, waiter));
+                if (pending.size() > maxPending) {
+                    Task stalest = takeStalest();
+                    tasks.remove(stalest.key);
+                    dropped = stalest.waiters;
+                }
+            }
+        }
+        if (dropped != null) {
+            for (Entry entry : dropped) {
+                entry.waiter.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Queue a speculative render, unless the tile is already queued or running. Newer
+     * prefetches run first; past the queue bound the oldest are discarded.
+     */
+    void prefetch(String key, int zoom, Job job) {
+        synchronized (lock) {
+            if (!running || tasks.containsKey(key)) {
+                return;
+            }
+            Task task = new Task(key, zoom, job);
+            task.speculative = true;
+            tasks.put(key, task);
+            speculative.add(task);
+            if (speculative.size() > maxPending) {
+                tasks.remove(speculative.remove(0).key);
+            }
+            lock.notify();
+        }
+    }
+
+    /**
+     * Forget every waiter belonging to {@code owner}, which won't read its tiles. Work left with
+     * no waiters is discarded, or interrupted if it's already running.
+     */
+    void cancel(Object owner) {
+        synchronized (lock) {
+            Iterator<Task> it = tasks.values().iterator();
+            while (it.hasNext()) {
+                Task task = it.next();
+                boolean removed = false;
+                Iterator<Entry> entries = task.waiters.iterator();
+                while (entries.hasNext()) {
+                    if (entries.next().owner == owner) {
+                        entries.remove();
+                        removed = true;
+                    }
+                }
+                // Prefetches never had waiters to lose
+                if (!removed || !task.waiters.isEmpty()) {
+                    continue;
+                }
+                it.remove();
+                if (task.worker != null) {
+                    // Cleared by the worker, under this lock, once the job returns
+                    task.worker.interrupt();
+                } else {
+                    pending.remove(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Requested tiles waiting for a worker, not counting prefetches
+     */
+    int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Stop the workers, dropping pending work without answering it
+     */
+    void shutdown() {
+        synchronized (lock) {
+            running = false;
+            pending.clear();
+            speculative.clear();
+            tasks.clear();
+            lock.notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            boolean ranSpeculative;
+            synchronized (lock) {
+                while (running && pending.isEmpty()
+                        && (speculative.isEmpty() || speculativeRunning >= maxSpeculativeRunning)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Only shutdown interrupts an idle worker
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                ranSpeculative = pending.isEmpty();
+                if (ranSpeculative) {
+                    task = speculative.remove(speculative.size() - 1);
+                    speculativeRunning++;
+                } else {
+                    task = takeFreshest();
+                }
+                task.worker = Thread.currentThread();
+            }
+
+            byte[] tile = null;
+            try {
+                tile = task.job.render();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Tile " + task.key + " failed", e);
+            }
+
+            List<Entry> waiters;
+            synchronized (lock) {
+                task.worker = null;
+                if (ranSpeculative) {
+                    speculativeRunning--;
+                }
+                // A cancel aimed at this task must not leak into the next one
+                Thread.interrupted();
+                if (tasks.get(task.key) == task) {
+                    tasks.remove(task.key);
+                }
+                waiters = new ArrayList<>(task.waiters);
+            }
+            for (Entry entry : waiters) {
+                entry.waiter.complete(tile);
+            }
+        }
+    }
+
+    /**
+     * Remove and return the pending task to run next: the newest at the current zoom, else the
+     * newest overall
+     */
+    private Task takeFreshest() {
+        int best = 0;
+        for (int i = 1; i < pending.size(); i++) {
+            if (fresher(pending.get(i), pending.get(best))) {
+                best = i;
+            }
+        }
+        return pending.remove(best);
+    }
+
+    private Task takeStalest() {
+        int worst = 0;
+        for (int i = 1; i < pending.size(); i++) {
+            if (fresher(pending.get(worst), pending.get(i))) {
+                worst = i;
+            }
+        }
+        return pending.remove(worst);
+    }
+
+    private boolean fresher(Task a, Task b) {
+        boolean aCurrent = a.zoom == currentZoom;
+        boolean bCurrent = b.zoom == currentZoom;
+        if (aCurrent != bCurrent) {
+            return aCurrent;
+        }
+        return a.sequence > b.sequence;
+    }
+}
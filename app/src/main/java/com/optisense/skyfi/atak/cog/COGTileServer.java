@@ -1,64 +1,136 @@
 package com.optisense.skyfi.atak.cog;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.LruCache;
 
 import com.atakmap.coremap.log.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-// Using simplified HTTP server
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Lightweight HTTP server that serves tiles from Cloud Optimized GeoTIFFs (COGs)
  * Runs on the device and provides XYZ tile access for ATAK
+ *
+ * A single selector thread accepts connections and reads requests without blocking. Connections
+ * are HTTP/1.1 keep-alive and may pipeline requests; responses go back in request order. Cached
+ * tiles are answered on the selector thread, so they never wait behind a slow remote read; only
+ * cache misses go upstream, to a {@link COGTileScheduler} that renders the newest requests
+ * first, shares one render between requests for the same tile, and drops the work of clients
+ * that disconnect. The same requests drive a {@link COGPrefetcher}, which fetches the tiles a
+ * pan or zoom is about to reveal when the scheduler is otherwise idle.
+ *
+ * Rendered tiles are kept in a {@link COGTileCache}: memory first, then a per-COG MBTiles file
+ * in the cache directory, held to a byte budget and read on its own thread so disk hits don't
+ * queue behind remote reads.
+ *
+ * A layer is either one COG or a mosaic of many ({@link COGMosaic}), composited into a single
+ * tile so overlapping deliveries don't each need their own ATAK layer.
  */
 public class COGTileServer {
     
     private static final String TAG = "SkyFi.COGTileServer";
     private static final int DEFAULT_PORT = 8282;
-    private static final int TILE_SIZE = 256;
     private static final int CACHE_SIZE = 50 * 1024 * 1024; // 50MB tile cache
+
+    // Upstream render threads; past the queue bound the stalest requests are answered 503
+    private static final int UPSTREAM_THREADS = 4;
+    private static final int UPSTREAM_QUEUE_SIZE = 64;
+    // Request heads larger than this are rejected; tile requests are a few hundred bytes
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+    // Pipelined requests accepted per connection before reading pauses until responses drain
+    private static final int MAX_PIPELINED = 32;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final long SELECT_TIMEOUT_MS = 5000;
+    private static final long DEFAULT_PREFETCH_BUDGET = 256 * 1024; // bytes per second
     
     private final Map<String, COGReader> cogReaders;
-    private final LruCache<String, byte[]> tileCache;
-    private final ExecutorService executor;
-    private ServerSocket serverSocket;
+    private final ConcurrentMap<String, COGMosaic> mosaics = new ConcurrentHashMap<>();
+    private final COGTileCache tileCache;
+    private final COGTileEncoder tileEncoder = new COGTileEncoder();
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+    private final COGTileScheduler upstream;
+    private final COGPrefetcher prefetcher;
+    // Connections with responses completed by the upstream pool, written by the selector thread
+    private final ConcurrentLinkedQueue<Connection> completedConnections = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
     private Thread serverThread;
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
     private final int port;
+    private final File cacheDir;
+
+    /**
+     * Renders encoded XYZ tiles for a layer
+     */
+    interface TileSource {
+        /**
+         * Encoded tile, or null if the source has no data there
+         *
+         * @throws PartialTileException if only part of the tile could be read
+         */
+        byte[] getTile(int z, int x, int y) throws IOException;
+
+        /**
+         * Encoded tile for export: every read error is thrown rather than leaving a gap
+         *
+         * @param alphaFormat Encode every tile in the alpha-capable format, so a file that
+         *                    can only declare one format holds only one
+         * @return null if the source has no data there
+         */
+        byte[] encodeTile(int z, int x, int y, boolean alphaFormat) throws IOException;
+
+        /**
+         * Web Mercator extent of the source's data; a null envelope if it has none
+         */
+        Envelope getFootprint();
+    }
     
     public COGTileServer() {
         this(DEFAULT_PORT);
     }
     
     public COGTileServer(int port) {
+        this(port, null);
+    }
+
+    /**
+     * @param cacheDir Directory for the on-disk tile tier
+     */
+    public COGTileServer(File cacheDir) {
+        this(DEFAULT_PORT, cacheDir);
+    }
+
+    /**
+     * @param port Port to listen on
+     * @param cacheDir Directory for the on-disk tile tier, or null to cache in memory only
+     */
+    public COGTileServer(int port, File cacheDir) {
         this.port = port;
-        this.cogReaders = new HashMap<>();
-        this.executor = Executors.newFixedThreadPool(4);
+        this.cacheDir = cacheDir;
+        this.cogReaders = new ConcurrentHashMap<>();
+        this.upstream = new COGTileScheduler(UPSTREAM_THREADS, UPSTREAM_QUEUE_SIZE);
+        this.prefetcher = new COGPrefetcher(this::prefetchTile, DEFAULT_PREFETCH_BUDGET);
         
         // Initialize tile cache
-        this.tileCache = new LruCache<String, byte[]>(CACHE_SIZE) {
-            @Override
-            protected int sizeOf(String key, byte[] value) {
-                return value.length;
-            }
-        };
+        this.tileCache = new COGTileCache(cacheDir, CACHE_SIZE);
         
         Log.d(TAG, "COG Tile Server initialized on port " + port);
     }
@@ -70,23 +142,27 @@ public class COGTileServer {
         if (isRunning) {
             return;
         }
+        isRunning = true;
         
         serverThread = new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(port);
-                isRunning = true;
+                selector = Selector.open();
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.socket().bind(new InetSocketAddress(port));
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
                 Log.d(TAG, "COG Tile Server started on port " + port);
                 
-                while (isRunning) {
-                    Socket client = serverSocket.accept();
-                    executor.execute(() -> handleClient(client));
-                }
+                runSelector();
             } catch (IOException e) {
                 if (isRunning) {
                     Log.e(TAG, "Server error", e);
                 }
+            } finally {
+                closeAll();
             }
-        });
+        }, "SkyFi-COGTileServer");
         serverThread.start();
     }
     
@@ -95,12 +171,9 @@ public class COGTileServer {
      */
     public void stopServer() {
         isRunning = false;
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing server socket", e);
-            }
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
         }
         if (serverThread != null) {
             try {
@@ -109,58 +182,151 @@ public class COGTileServer {
                 Log.e(TAG, "Error waiting for server thread", e);
             }
         }
-        executor.shutdown();
+        upstream.shutdown();
+        diskExecutor.shutdownNow();
+        tileCache.close();
+        // Releases their connections and their windows of local files
+        for (COGReader reader : cogReaders.values()) {
+            reader.close();
+        }
+        cogReaders.clear();
+        for (COGMosaic mosaic : mosaics.values()) {
+            synchronized (mosaic) {
+                mosaic.close();
+            }
+        }
+        mosaics.clear();
         Log.d(TAG, "COG Tile Server stopped");
     }
-    
-    /**
-     * Handle HTTP client request
-     */
-    private void handleClient(Socket client) {
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            OutputStream output = client.getOutputStream();
-            
-            // Read request line
-            String requestLine = reader.readLine();
-            if (requestLine == null || !requestLine.startsWith("GET ")) {
-                sendError(output, 400, "Bad Request");
-                return;
+
+    private void runSelector() throws IOException {
+        long lastIdleCheck = System.currentTimeMillis();
+        while (isRunning) {
+            selector.select(SELECT_TIMEOUT_MS);
+
+            Connection completed;
+            while ((completed = completedConnections.poll()) != null) {
+                completed.write();
             }
-            
-            // Parse URI from request
-            String[] parts = requestLine.split(" ");
-            if (parts.length < 2) {
-                sendError(output, 400, "Bad Request");
-                return;
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= SELECT_TIMEOUT_MS) {
+                lastIdleCheck = now;
+                closeIdleConnections(now);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (connection.responses.isEmpty() && now - connection.lastActive > IDLE_TIMEOUT_MS) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void closeAll() {
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
             }
-            
-            String uri = parts[1];
-            Log.d(TAG, "Serving request: " + uri);
-            
-            // Serve the tile
-            serveTile(uri, output);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling client", e);
-        } finally {
             try {
-                client.close();
+                selector.close();
             } catch (IOException e) {
                 // Ignore
             }
         }
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing server socket", e);
+            }
+        }
     }
     
     /**
-     * Serve a tile based on the URI
+     * Handle one parsed HTTP request head. Runs on the selector thread.
      */
-    private void serveTile(String uri, OutputStream output) throws IOException {
+    private void handleRequest(Connection connection, String head) {
+        int lineEnd = head.indexOf("\r\n");
+        String requestLine = lineEnd >= 0 ? head.substring(0, lineEnd) : head;
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 3 || !parts[0].equals("GET")) {
+            connection.respond(Response.ready(errorResponse(400, "Bad Request", false), true));
+            return;
+        }
+
+        boolean keepAlive = isKeepAlive(parts[2], head);
+        Response response = new Response(!keepAlive);
+        connection.respond(response);
+        serveTile(connection, response, parts[1]);
+    }
+
+    /**
+     * HTTP/1.1 connections persist unless the client asks to close; HTTP/1.0 ones only on request
+     */
+    static boolean isKeepAlive(String version, String head) {
+        String connectionHeader = null;
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Connection")) {
+                connectionHeader = line.substring(colon + 1).trim();
+            }
+        }
+        if ("HTTP/1.1".equals(version)) {
+            return !"close".equalsIgnoreCase(connectionHeader);
+        }
+        return "keep-alive".equalsIgnoreCase(connectionHeader);
+    }
+    
+    /**
+     * Serve a tile based on the URI. Memory hits and errors are answered immediately; otherwise
+     * {@code response} is completed from the disk tier or the upstream pool.
+     */
+    private void serveTile(Connection connection, Response response, String uri) {
+        boolean keepAlive = !response.close;
         try {
             // Parse the URI: /layerId/z/x/y.png
             String[] parts = uri.split("/");
             if (parts.length < 5) {
-                sendError(output, 400, "Invalid tile request format");
+                connection.complete(response, errorResponse(400, "Invalid tile request format", keepAlive));
                 return;
             }
             
@@ -168,67 +334,322 @@ public class COGTileServer {
             int z = Integer.parseInt(parts[2]);
             int x = Integer.parseInt(parts[3]);
             int y = Integer.parseInt(parts[4].replace(".png", ""));
+            prefetcher.onRequest(layerId, z, x, y);
             
             // Check cache first
-            String cacheKey = getCacheKey(layerId, z, x, y);
-            byte[] cachedTile = tileCache.get(cacheKey);
+            byte[] cachedTile = tileCache.getFromMemory(layerId, z, x, y);
             if (cachedTile != null) {
-                Log.d(TAG, "Serving cached tile: " + cacheKey);
-                sendTile(output, cachedTile);
+                connection.complete(response, tileResponse(cachedTile, keepAlive));
                 return;
             }
             
-            // Get the COG reader
-            COGReader reader = cogReaders.get(layerId);
-            if (reader == null) {
-                sendError(output, 404, "Layer not found: " + layerId);
+            // Get the COG reader, or the mosaic
+            TileSource source = cogReaders.get(layerId);
+            if (source == null) {
+                source = mosaics.get(layerId);
+            }
+            if (source == null) {
+                connection.complete(response, errorResponse(404, "Layer not found: " + layerId, keepAlive));
                 return;
             }
             
-            // Fetch the tile
-            byte[] tileData = reader.getTile(z, x, y);
-            if (tileData == null) {
-                // Return transparent tile for out-of-bounds requests
-                tileData = createTransparentTile();
+            try {
+                TileSource tileSource = source;
+                diskExecutor.execute(() -> {
+                    byte[] storedTile = tileCache.getFromDisk(layerId, z, x, y);
+                    if (storedTile != null) {
+                        connection.complete(response, tileResponse(storedTile, keepAlive));
+                    } else {
+                        fetchTile(connection, response, tileSource, layerId, z, x, y);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                connection.complete(response, errorResponse(503, "Service Unavailable", keepAlive));
             }
             
-            // Cache the tile
-            tileCache.put(cacheKey, tileData);
-            
-            sendTile(output, tileData);
-            
+        } catch (NumberFormatException e) {
+            connection.complete(response, errorResponse(400, "Invalid tile request format", keepAlive));
+        }
+    }
+    
+    /**
+     * Read a tile from its COG or mosaic on the upstream scheduler
+     */
+    private void fetchTile(Connection connection, Response response, TileSource source,
+                           String layerId, int z, int x, int y) {
+        boolean keepAlive = !response.close;
+        if (!connection.channel.isOpen()) {
+            // Disconnected while the disk tier was checked
+            return;
+        }
+        upstream.schedule(tileKey(layerId, z, x, y), z, connection, () -> {
+            String cacheKey = tileCache.getLayerKey(layerId);
+            byte[] tileData = renderTile(source, layerId, cacheKey, z, x, y);
+            if (tileData == null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Cancelled; an empty result here isn't the tile's real content
+                    return null;
+                }
+                // Return transparent tile for out-of-bounds requests and failed reads
+                tileData = COGTileEncoder.transparentTile();
+                tileCache.put(layerId, cacheKey, z, x, y, tileData, false);
+            }
+            return tileData;
+        }, tile -> connection.complete(response, tile != null
+                ? tileResponse(tile, keepAlive)
+                : errorResponse(503, "Service Unavailable", keepAlive)));
+    }
+
+    /**
+     * Speculatively render a tile into the cache, if the prefetch budget allows. Runs on the
+     * selector thread; the render is queued behind every requested tile.
+     */
+    private void prefetchTile(String layerId, int z, int x, int y) {
+        if (tileCache.getFromMemory(layerId, z, x, y) != null) {
+            return;
+        }
+        TileSource source = cogReaders.get(layerId);
+        if (source == null) {
+            source = mosaics.get(layerId);
+        }
+        if (source == null) {
+            return;
+        }
+        TileSource tileSource = source;
+        upstream.prefetch(tileKey(layerId, z, x, y), z, () -> {
+            // The disk tier costs no bandwidth and warms the memory tier
+            byte[] stored = tileCache.getFromDisk(layerId, z, x, y);
+            if (stored != null || !prefetcher.tryStart()) {
+                return stored;
+            }
+            // Only what went over the link counts; local files and cached blocks are free
+            long fetchedBefore = COGBlockCache.bytesFetchedByThread();
+            byte[] tileData = renderTile(tileSource, layerId, tileCache.getLayerKey(layerId), z, x, y);
+            prefetcher.charge(COGBlockCache.bytesFetchedByThread() - fetchedBefore);
+            return tileData;
+        });
+    }
+
+    /**
+     * Read a tile and cache it. A tile with part of it unreadable is kept in memory only, so a
+     * network error isn't remembered across restarts.
+     *
+     * @param cacheKey The layer's cache key, taken before the source is read; if the layer is
+     *                 reset meanwhile, the tile is of the old content and isn't cached
+     * @return null if the source has no data there, the read failed or it was cancelled
+     */
+    private byte[] renderTile(TileSource source, String layerId, String cacheKey, int z, int x, int y) {
+        byte[] tileData;
+        boolean persist = true;
+        try {
+            tileData = source.getTile(z, x, y);
+        } catch (PartialTileException e) {
+            tileData = e.getTile();
+            persist = false;
         } catch (Exception e) {
-            Log.e(TAG, "Error serving tile", e);
-            sendError(output, 500, "Internal Server Error");
+            // Unless the tile server cancelled the request
+            if (!Thread.currentThread().isInterrupted()) {
+                Log.e(TAG, "Failed to get tile " + tileKey(layerId, z, x, y), e);
+            }
+            return null;
         }
+        if (tileData != null) {
+            tileCache.put(layerId, cacheKey, z, x, y, tileData, persist);
+        }
+        return tileData;
+    }
+
+    private static String tileKey(String layerId, int z, int x, int y) {
+        return layerId + "/" + z + "/" + x + "/" + y;
+    }
+
+    /**
+     * Tile data as an HTTP response
+     */
+    private static byte[] tileResponse(byte[] tileData, boolean keepAlive) {
+        return httpResponse("200 OK", COGTileEncoder.contentType(tileData), tileData, keepAlive);
     }
     
     /**
-     * Send tile data as HTTP response
+     * HTTP error response
      */
-    private void sendTile(OutputStream output, byte[] tileData) throws IOException {
-        String headers = "HTTP/1.1 200 OK\r\n" +
-                        "Content-Type: image/png\r\n" +
-                        "Content-Length: " + tileData.length + "\r\n" +
-                        "Connection: close\r\n" +
+    private static byte[] errorResponse(int code, String message, boolean keepAlive) {
+        return httpResponse(code + " " + message, "text/plain", message.getBytes(StandardCharsets.US_ASCII),
+                keepAlive);
+    }
+
+    private static byte[] httpResponse(String status, String contentType, byte[] body, boolean keepAlive) {
+        String headers = "HTTP/1.1 " + status + "\r\n" +
+                        "Content-Type: " + contentType + "\r\n" +
+                        "Content-Length: " + body.length + "\r\n" +
+                        (keepAlive
+                                ? "Connection: keep-alive\r\nKeep-Alive: timeout=" + IDLE_TIMEOUT_MS / 1000 + "\r\n"
+                                : "Connection: close\r\n") +
                         "\r\n";
-        output.write(headers.getBytes());
-        output.write(tileData);
-        output.flush();
+        byte[] head = headers.getBytes(StandardCharsets.US_ASCII);
+        byte[] response = new byte[head.length + body.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
+        return response;
     }
-    
+
     /**
-     * Send HTTP error response
+     * Offset just past the blank line ending the first request head in {@code buffer}'s
+     * remaining bytes, or -1 if no complete head has arrived yet
      */
-    private void sendError(OutputStream output, int code, String message) throws IOException {
-        String response = "HTTP/1.1 " + code + " " + message + "\r\n" +
-                         "Content-Type: text/plain\r\n" +
-                         "Content-Length: " + message.length() + "\r\n" +
-                         "Connection: close\r\n" +
-                         "\r\n" +
-                         message;
-        output.write(response.getBytes());
-        output.flush();
+    static int findHeadEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A response slot, filled in when its tile is ready. Slots are written in request order.
+     */
+    private static class Response {
+        final boolean close;
+        volatile byte[] data;
+
+        Response(boolean close) {
+            this.close = close;
+        }
+
+        static Response ready(byte[] data, boolean close) {
+            Response response = new Response(close);
+            response.data = data;
+            return response;
+        }
+    }
+
+    /**
+     * One client connection. Everything except {@link #complete} runs on the selector thread.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        final ArrayDeque<Response> responses = new ArrayDeque<>();
+        SelectionKey key;
+        ByteBuffer out;
+        long lastActive = System.currentTimeMillis();
+        // Set once a request asked to close; later pipelined requests are ignored
+        boolean closing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            int read;
+            try {
+                read = channel.read(in);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (read < 0) {
+                // Tile clients close to abandon requests; send what's ready and drop the rest
+                closing = true;
+                write();
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            parseRequests();
+            if (!closing && !in.hasRemaining() && responses.size() < MAX_PIPELINED) {
+                // Buffer full without a complete head
+                respond(Response.ready(errorResponse(400, "Bad Request", false), true));
+            }
+            write();
+        }
+
+        private void parseRequests() {
+            in.flip();
+            int end;
+            while (!closing && responses.size() < MAX_PIPELINED && (end = findHeadEnd(in)) >= 0) {
+                byte[] head = new byte[end - in.position()];
+                in.get(head);
+                handleRequest(this, new String(head, StandardCharsets.US_ASCII));
+            }
+            in.compact();
+        }
+
+        void respond(Response response) {
+            responses.add(response);
+            if (response.close) {
+                closing = true;
+            }
+        }
+
+        /**
+         * Fill in a response slot. Safe to call from any thread.
+         */
+        void complete(Response response, byte[] data) {
+            response.data = data;
+            completedConnections.add(this);
+            Selector s = selector;
+            if (s != null && Thread.currentThread() != serverThread) {
+                s.wakeup();
+            }
+        }
+
+        void write() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (out == null) {
+                        Response head = responses.peek();
+                        if (head == null || head.data == null) {
+                            break;
+                        }
+                        out = ByteBuffer.wrap(head.data);
+                    }
+                    channel.write(out);
+                    if (out.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    out = null;
+                    lastActive = System.currentTimeMillis();
+                    if (responses.poll().close) {
+                        close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            if (closing && responses.isEmpty()) {
+                close();
+                return;
+            }
+            // Resume requests held back while the pipeline was full
+            if (!closing && in.position() > 0 && responses.size() < MAX_PIPELINED) {
+                parseRequests();
+                if (responses.peek() != null && responses.peek().data != null) {
+                    write();
+                    return;
+                }
+            }
+            key.interestOps(closing || responses.size() >= MAX_PIPELINED ? 0 : SelectionKey.OP_READ);
+        }
+
+        void close() {
+            upstream.cancel(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
     }
     
     /**
@@ -239,8 +660,9 @@ public class COGTileServer {
      */
     public boolean registerCOG(String layerId, String cogUrl) {
         try {
-            COGReader reader = new COGReader(cogUrl);
+            COGReader reader = new COGReader(cogUrl, openSource(cogUrl), tileEncoder);
             reader.initialize();
+            tileCache.openLayer(layerId, cogUrl);
             cogReaders.put(layerId, reader);
             Log.d(TAG, "Registered COG layer: " + layerId + " -> " + cogUrl);
             return true;
@@ -251,7 +673,7 @@ public class COGTileServer {
     }
     
     /**
-     * Unregister a COG layer
+     * Unregister a COG layer and delete its cached tiles
      */
     public void unregisterCOG(String layerId) {
         COGReader reader = cogReaders.remove(layerId);
@@ -264,142 +686,172 @@ public class COGTileServer {
     }
     
     /**
-     * Get the URL pattern for accessing tiles from this server
-     * @param layerId The layer identifier
-     * @return URL pattern like "http://localhost:8282/layerId/{z}/{x}/{y}.png"
+     * Bytes of a COG: mapped from the device when the URL names a local file (a {@code file:}
+     * URL, an absolute path, or a file in the cache directory), otherwise ranged HTTP reads
      */
-    public String getTileUrlPattern(String layerId) {
-        return String.format("http://localhost:%d/%s/{z}/{x}/{y}.png", port, layerId);
+    private COGSource openSource(String cogUrl) throws IOException {
+        File local = COGFileSource.localFile(cogUrl, cacheDir);
+        if (local != null) {
+            Log.d(TAG, "Mapping local COG " + local);
+            return new COGFileSource(local);
+        }
+        return new COGBlockCache(cogUrl);
     }
-    
+
     /**
-     * Get the port the server is listening on
+     * Register an empty mosaic layer. Its tiles composite every member COG under the tile,
+     * newest on top.
+     * @param mosaicId Unique identifier for the mosaic, used like a layer id in tile URLs
      */
-    public int getListeningPort() {
-        return port;
-    }
-    
-    private String getCacheKey(String layerId, int z, int x, int y) {
-        return String.format("%s_%d_%d_%d", layerId, z, x, y);
-    }
-    
-    private void clearLayerCache(String layerId) {
-        // Note: LruCache doesn't provide iteration, so we'd need to track keys
-        // For now, just clear all cache when a layer is removed
-        tileCache.evictAll();
+    public void registerMosaic(String mosaicId) {
+        COGMosaic mosaic = new COGMosaic(tileEncoder);
+        if (mosaics.putIfAbsent(mosaicId, mosaic) == null) {
+            tileCache.openLayer(mosaicId, mosaic.getCacheKey());
+            Log.d(TAG, "Registered mosaic layer: " + mosaicId);
+        }
     }
-    
-    private byte[] createTransparentTile() {
+
+    /**
+     * Add a COG to a mosaic, replacing it if it's already there
+     * @param capturedAt Capture time of the imagery in ms since the epoch; later captures are
+     *                   drawn over earlier ones
+     * @return true if the COG was read and added
+     */
+    public boolean addToMosaic(String mosaicId, String cogUrl, long capturedAt) {
+        COGMosaic mosaic = mosaics.get(mosaicId);
+        if (mosaic == null) {
+            Log.w(TAG, "No mosaic layer " + mosaicId);
+            return false;
+        }
         try {
-            Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-            bitmap.recycle();
-            return stream.toByteArray();
+            COGReader reader = new COGReader(cogUrl, openSource(cogUrl), tileEncoder);
+            reader.initialize();
+            synchronized (mosaic) {
+                COGReader replaced = mosaic.add(cogUrl, reader, capturedAt);
+                if (replaced != null) {
+                    replaced.close();
+                }
+                resetMosaicCache(mosaicId, mosaic);
+            }
+            Log.d(TAG, "Added to mosaic " + mosaicId + ": " + cogUrl);
+            return true;
         } catch (Exception e) {
-            Log.e(TAG, "Failed to create transparent tile", e);
-            return new byte[0];
+            Log.e(TAG, "Failed to add COG to mosaic: " + mosaicId, e);
+            return false;
         }
     }
-    
+
     /**
-     * Inner class to handle COG reading
+     * Remove a COG from a mosaic
      */
-    private static class COGReader {
-        private final String cogUrl;
-        private COGMetadata metadata;
-        
-        public COGReader(String cogUrl) {
-            this.cogUrl = cogUrl;
-        }
-        
-        public void initialize() throws IOException {
-            // Read COG headers to get metadata
-            metadata = COGMetadata.readFromUrl(cogUrl);
-            Log.d(TAG, "Initialized COG reader: " + metadata.toString());
+    public void removeFromMosaic(String mosaicId, String cogUrl) {
+        COGMosaic mosaic = mosaics.get(mosaicId);
+        if (mosaic == null) {
+            return;
         }
-        
-        public byte[] getTile(int z, int x, int y) {
-            try {
-                // Calculate which overview to use based on zoom level
-                int overviewLevel = metadata.getOverviewForZoom(z);
-                
-                // Calculate byte range for this tile
-                long[] byteRange = metadata.getTileByteRange(overviewLevel, x, y);
-                if (byteRange == null) {
-                    return null; // Tile out of bounds
-                }
-                
-                // Fetch tile data using HTTP range request
-                return fetchTileData(byteRange[0], byteRange[1]);
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to get tile " + z + "/" + x + "/" + y, e);
-                return null;
+        synchronized (mosaic) {
+            COGReader reader = mosaic.remove(cogUrl);
+            if (reader != null) {
+                reader.close();
+                resetMosaicCache(mosaicId, mosaic);
             }
         }
-        
-        private byte[] fetchTileData(long start, long end) throws IOException {
-            URL url = new URL(cogUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            
-            // Set range header
-            String rangeHeader = String.format("bytes=%d-%d", start, end);
-            connection.setRequestProperty("Range", rangeHeader);
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(5000);
-            connection.setReadTimeout(10000);
-            
-            try {
-                int responseCode = connection.getResponseCode();
-                if (responseCode != HttpURLConnection.HTTP_PARTIAL && 
-                    responseCode != HttpURLConnection.HTTP_OK) {
-                    throw new IOException("HTTP error code: " + responseCode);
-                }
-                
-                // Read the tile data
-                try (InputStream is = connection.getInputStream();
-                     ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                    
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        baos.write(buffer, 0, bytesRead);
-                    }
-                    
-                    // Decode TIFF tile to PNG
-                    return decodeTiffToPng(baos.toByteArray());
-                }
-                
-            } finally {
-                connection.disconnect();
+    }
+
+    /**
+     * Unregister a mosaic layer, closing its COGs and deleting its cached tiles
+     */
+    public void unregisterMosaic(String mosaicId) {
+        COGMosaic mosaic = mosaics.remove(mosaicId);
+        if (mosaic != null) {
+            synchronized (mosaic) {
+                mosaic.close();
             }
+            clearLayerCache(mosaicId);
+            Log.d(TAG, "Unregistered mosaic layer: " + mosaicId);
         }
-        
-        private byte[] decodeTiffToPng(byte[] tiffData) {
-            try {
-                // Try Android's native decoder (works for JPEG-compressed TIFFs)
-                Bitmap bitmap = BitmapFactory.decodeByteArray(tiffData, 0, tiffData.length);
-                if (bitmap != null) {
-                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-                    bitmap.recycle();
-                    return stream.toByteArray();
-                }
-                
-                // If Android can't decode it, we'd need a TIFF library
-                // For now, return null which will show a transparent tile
-                Log.w(TAG, "Could not decode TIFF tile (may need JPEG compression)");
-                return null;
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to decode TIFF to PNG", e);
-                return null;
-            }
+    }
+
+    /**
+     * Export a registered COG or mosaic layer as an MBTiles or GeoPackage tile pyramid, in the
+     * background
+     * @param file File to write, replaced if it exists
+     * @param aoi Web Mercator area to export, or null for the whole layer; clipped to the
+     *            layer's footprint
+     * @return The running export, or null if the layer isn't registered, the zoom range is
+     *         invalid or too many tiles, or the file can't be created
+     */
+    public COGExporter exportLayer(String layerId, File file, COGExporter.Format format, Envelope aoi,
+                                   int minZoom, int maxZoom, COGExporter.Listener listener) {
+        TileSource source = cogReaders.get(layerId);
+        if (source == null) {
+            source = mosaics.get(layerId);
         }
-        
-        public void close() {
-            // Cleanup resources if needed
+        if (source == null) {
+            Log.w(TAG, "No layer " + layerId + " to export");
+            return null;
         }
+        Envelope bounds = aoi != null ? aoi.intersection(source.getFootprint()) : source.getFootprint();
+        try {
+            // Before creating the file, so a bad range leaves nothing behind
+            COGExporter.checkRange(bounds, minZoom, maxZoom);
+            COGExporter.TileSink sink = COGExporter.openSink(format, file, layerId);
+            COGExporter exporter = new COGExporter(source, bounds, minZoom, maxZoom, sink, file, listener);
+            exporter.start();
+            Log.d(TAG, "Exporting " + layerId + " z" + minZoom + "-" + maxZoom + " to " + file);
+            return exporter;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to export " + layerId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Composited tiles are only valid for the membership they were drawn from, so a changed
+     * mosaic moves to the cache of its new membership
+     */
+    private void resetMosaicCache(String mosaicId, COGMosaic mosaic) {
+        tileCache.clearLayer(mosaicId);
+        tileCache.openLayer(mosaicId, mosaic.getCacheKey());
+    }
+    
+    /**
+     * Choose how decoded tiles are encoded. Tiles stored as JPEG in the COG are served as-is.
+     * @param opaqueFormat Format for tiles without transparency, JPEG by default
+     * @param translucentFormat Format for tiles that need alpha, PNG by default; WEBP is smaller
+     * @param quality Quality for lossy formats, 0-100
+     */
+    public void setTileEncoding(Bitmap.CompressFormat opaqueFormat, Bitmap.CompressFormat translucentFormat,
+                                int quality) {
+        tileEncoder.configure(opaqueFormat, translucentFormat, quality);
+    }
+    
+    /**
+     * Limit the bandwidth spent prefetching tiles ahead of the view
+     * @param bytesPerSecond Budget in bytes per second; 0 turns prefetching off
+     */
+    public void setPrefetchBudget(long bytesPerSecond) {
+        prefetcher.setBudget(bytesPerSecond);
+    }
+    
+    /**
+     * Get the URL pattern for accessing tiles from this server
+     * @param layerId The layer identifier
+     * @return URL pattern like "http://localhost:8282/layerId/{z}/{x}/{y}.png"
+     */
+    public String getTileUrlPattern(String layerId) {
+        return String.format("http://localhost:%d/%s/{z}/{x}/{y}.png", port, layerId);
+    }
+    
+    /**
+     * Get the port the server is listening on
+     */
+    public int getListeningPort() {
+        return port;
+    }
+    
+    private void clearLayerCache(String layerId) {
+        prefetcher.forget(layerId);
+        tileCache.clearLayer(layerId);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package com.optisense.skyfi.atak.cog;
+
+import java.io.IOException;
+
+/**
+ * Thrown when part of a tile couldn't be read. Carries the tile drawn from the rest, which is
+ * worth showing but not keeping.
+ */
+class PartialTileException extends IOException {
+
+    private final byte[] tile;
+
+    PartialTileException(byte[] tile, IOException cause) {
+        super("Tile is incomplete: " + cause.getMessage(), cause);
+        this.tile = tile;
+    }
+
+    /**
+     * The encoded tile, with a gap where the unreadable data would be
+     */
+    byte[] getTile() {
+        return tile;
+    }
+}
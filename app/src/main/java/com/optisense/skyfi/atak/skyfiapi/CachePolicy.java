@@ -0,0 +1,22 @@
+package com.optisense.skyfi.atak.skyfiapi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Per-endpoint HTTP cache policy for idempotent {@link SkyFiAPI} GET methods.
+ * Applied by {@link CachePolicyInterceptor}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CachePolicy {
+    /** Seconds a cached response is served without contacting the server */
+    int maxAge();
+
+    /** Seconds past maxAge a stale response is served while it is revalidated in the background */
+    int staleWhileRevalidate() default 0;
+}
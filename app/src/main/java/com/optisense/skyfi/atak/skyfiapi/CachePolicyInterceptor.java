@@ -0,0 +1,190 @@
+package com.optisense.skyfi.atak.skyfiapi;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Invocation;
+
+/**
+ * Applies {@link CachePolicy} annotations from {@link SkyFiAPI} on top of the OkHttp disk cache.
+ *
+ * The application interceptor serves fresh or stale-while-revalidate responses straight from the
+ * cache and schedules a conditional (ETag / If-Modified-Since) refresh in the background. When the
+ * network is unreachable any cached copy is returned instead of failing. Requests that set their
+ * own Cache-Control (e.g. no-cache on a pull-to-refresh) go to the network. Successful calls to
+ * {@link InvalidatesCache} methods evict the cached GETs they make stale. The network interceptor
+ * stamps responses with the endpoint's max-age so the platform API's headers don't disable caching.
+ */
+public class CachePolicyInterceptor implements Interceptor {
+    private static final String LOGTAG = "SkyFiCachePolicy";
+
+    private final Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile OkHttpClient client;
+
+    /**
+     * Client used for background revalidation; must be the client this interceptor is installed in
+     */
+    public void setClient(OkHttpClient client) {
+        this.client = client;
+    }
+
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+        Request request = chain.request();
+        InvalidatesCache invalidates = invalidatesFor(request);
+        if (invalidates != null) {
+            Response response = chain.proceed(request);
+            if (response.isSuccessful()) {
+                evict(invalidates.value());
+            }
+            return response;
+        }
+
+        CachePolicy policy = policyFor(request);
+        // Callers that set their own Cache-Control (including our revalidation) bypass the policy
+        if (policy == null || request.header("Cache-Control") != null) {
+            return chain.proceed(request);
+        }
+
+        if (policy.staleWhileRevalidate() > 0) {
+            Request cachedOnly = request.newBuilder()
+                    .cacheControl(new CacheControl.Builder()
+                            .onlyIfCached()
+                            .maxStale(policy.staleWhileRevalidate(), TimeUnit.SECONDS)
+                            .build())
+                    .build();
+            Response cached = chain.proceed(cachedOnly);
+            if (cached.isSuccessful()) {
+                if (isStale(cached)) {
+                    revalidate(request);
+                }
+                return cached;
+            }
+            cached.close();
+        }
+
+        try {
+            return chain.proceed(request);
+        } catch (IOException e) {
+            // Offline: fall back to whatever we have, however old
+            Response cached = chain.proceed(request.newBuilder()
+                    .cacheControl(CacheControl.FORCE_CACHE)
+                    .build());
+            if (cached.isSuccessful()) {
+                Log.d(LOGTAG, "Network unavailable, serving cached " + request.url().encodedPath());
+                return cached;
+            }
+            cached.close();
+            throw e;
+        }
+    }
+
+    private void revalidate(Request request) {
+        OkHttpClient client = this.client;
+        String key = request.url().toString();
+        if (client == null || !revalidating.add(key)) {
+            return;
+        }
+
+        // max-age=0 forces OkHttp to validate the stored entry with its ETag / Last-Modified
+        Request conditional = request.newBuilder()
+                .cacheControl(new CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build())
+                .build();
+        client.newCall(conditional).enqueue(new Callback() {
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                revalidating.remove(key);
+                response.close();
+            }
+
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                revalidating.remove(key);
+                Log.d(LOGTAG, "Background revalidation failed for " + call.request().url().encodedPath(), e);
+            }
+        });
+    }
+
+    private void evict(String[] paths) {
+        OkHttpClient client = this.client;
+        Cache cache = client != null ? client.cache() : null;
+        if (cache == null) {
+            return;
+        }
+        try {
+            Iterator<String> urls = cache.urls();
+            while (urls.hasNext()) {
+                HttpUrl url = HttpUrl.parse(urls.next());
+                if (url == null) {
+                    continue;
+                }
+                for (String path : paths) {
+                    if (path.equals(url.encodedPath())) {
+                        urls.remove();
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to evict cached responses", e);
+        }
+    }
+
+    private static boolean isStale(Response response) {
+        // OkHttp marks responses served past their freshness lifetime with warning 110
+        String warning = response.header("Warning");
+        return warning != null && warning.startsWith("110");
+    }
+
+    static CachePolicy policyFor(Request request) {
+        if (!"GET".equals(request.method())) {
+            return null;
+        }
+        Invocation invocation = request.tag(Invocation.class);
+        return invocation != null ? invocation.method().getAnnotation(CachePolicy.class) : null;
+    }
+
+    static InvalidatesCache invalidatesFor(Request request) {
+        Invocation invocation = request.tag(Invocation.class);
+        return invocation != null ? invocation.method().getAnnotation(InvalidatesCache.class) : null;
+    }
+
+    /**
+     * Network interceptor that overrides response freshness with the endpoint's {@link CachePolicy}
+     */
+    public static class NetworkInterceptor implements Interceptor {
+        @NonNull
+        @Override
+        public Response intercept(@NonNull Chain chain) throws IOException {
+            Request request = chain.request();
+            Response response = chain.proceed(request);
+            CachePolicy policy = policyFor(request);
+            // 304s are stamped too, otherwise their headers would be merged into the stored entry
+            if (policy == null || (!response.isSuccessful() && response.code() != 304)) {
+                return response;
+            }
+            return response.newBuilder()
+                    .header("Cache-Control", "max-age=" + policy.maxAge())
+                    .removeHeader("Pragma")
+                    .removeHeader("Expires")
+                    .build();
+        }
+    }
+}
@@ -1,52 +1,316 @@
 package com.skyfi.atak.plugin;
 
+import android.util.Log;
+
+import com.atakmap.android.maps.MapView;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.skyfi.atak.plugin.skyfiapi.CachePolicyInterceptor;
+import com.skyfi.atak.plugin.skyfiapi.SingleFlightCallAdapterFactory;
 import com.skyfi.atak.plugin.skyfiapi.SkyFiAPI;
+import com.skyfi.atak.plugin.skyfiapi.SkyFiTypeAdapterFactory;
 import com.skyfi.atak.plugin.skyfiapi.UserAgentInterceptor;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.logging.HttpLoggingInterceptor;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
+/**
+ * Process-wide HTTP runtime for the SkyFi platform API.
+ *
+ * All callers share one OkHttpClient (and therefore one connection pool, TLS session
+ * cache and HTTP/2 connection) plus a single Retrofit proxy. The API key is read per
+ * request so changes made in the ATAK settings screen or through
+ * {@link Preferences#setApiKey(String)} apply without rebuilding the client; either way
+ * the previous account's cached responses are evicted before any request carries the new
+ * key. The disk cache outlives the plugin, so a hash of the key that filled it is kept
+ * beside it and checked on the first request after startup.
+ *
+ * Idempotent GET endpoints are backed by a size-bounded disk cache; see
+ * {@link com.skyfi.atak.plugin.skyfiapi.CachePolicy} for per-method freshness rules.
+ * Concurrent identical GETs (e.g. the dashboard and plugin both polling orders) share a
+ * single network call through {@link SingleFlightCallAdapterFactory}.
+ */
 public class APIClient {
     private final static String LOGTAG = "SkyFiAPIClient";
-    private OkHttpClient.Builder okHttpClient;
-    private Retrofit retrofit;
-    private SkyFiAPI skyFiAPI;
+    private final static String BASE_URL = "https://app.skyfi.com/";
+    private final static String HTTP_CACHE_DIR = "skyfi_http_cache";
+    // Beside the cache directory: a hash of the API key its responses were fetched with
+    private final static String HTTP_CACHE_OWNER = HTTP_CACHE_DIR + ".owner";
+    private final static long HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
+
+    // Keep connections warm across drop-down opens; SATCOM handshakes are expensive
+    private final static int MAX_IDLE_CONNECTIONS = 5;
+    private final static long KEEP_ALIVE_MINUTES = 5;
+    private final static int MAX_REQUESTS = 16;
+    private final static int MAX_REQUESTS_PER_HOST = 8;
+    private final static long CONNECT_TIMEOUT_SECONDS = 20;
+    private final static long READ_TIMEOUT_SECONDS = 60;
+    private final static long WRITE_TIMEOUT_SECONDS = 60;
+
+    private static volatile APIClient instance;
+    private static volatile String apiKey;
 
+    private final OkHttpClient httpClient;
+    private final Retrofit retrofit;
+    private final SkyFiAPI skyFiAPI;
+    private final SingleFlightCallAdapterFactory singleFlight;
+
+    /**
+     * Kept for existing callers; prefer {@link #getInstance()}. The returned handle shares
+     * the process-wide client rather than building a new one.
+     */
     public APIClient() {
-        Preferences prefs = new Preferences();
-
-        okHttpClient = new OkHttpClient.Builder();
-        okHttpClient.addInterceptor(new UserAgentInterceptor());
-        okHttpClient.addInterceptor(new Interceptor() {
-            @NonNull
-            @Override
-            public Response intercept(@NonNull Chain chain) throws IOException {
-                Request.Builder builder = chain.request().newBuilder();
-                builder.header("X-Skyfi-Api-Key", prefs.getApiKey());
-                return chain.proceed(builder.build());
+        this(getInstance());
+    }
+
+    private APIClient(APIClient shared) {
+        this.httpClient = shared.httpClient;
+        this.retrofit = shared.retrofit;
+        this.skyFiAPI = shared.skyFiAPI;
+        this.singleFlight = shared.singleFlight;
+    }
+
+    private APIClient(OkHttpClient httpClient) {
+        this.httpClient = httpClient;
+        this.singleFlight = new SingleFlightCallAdapterFactory();
+        this.retrofit = new Retrofit.Builder()
+                .client(httpClient)
+                .baseUrl(BASE_URL)
+                .addCallAdapterFactory(singleFlight)
+                .addConverterFactory(GsonConverterFactory.create(createGson()))
+                .build();
+        this.skyFiAPI = retrofit.create(SkyFiAPI.class);
+    }
+
+    private static Gson createGson() {
+        // Streaming adapters for the large list responses; everything else stays reflective
+        return new GsonBuilder()
+                .registerTypeAdapterFactory(new SkyFiTypeAdapterFactory())
+                .create();
+    }
+
+    public static APIClient getInstance() {
+        APIClient client = instance;
+        if (client == null) {
+            synchronized (APIClient.class) {
+                client = instance;
+                if (client == null) {
+                    client = new APIClient(buildHttpClient());
+                    instance = client;
+                }
             }
-        });
+        }
+        return client;
+    }
+
+    /**
+     * The shared client if one has been built, without building one; e.g. to read its
+     * counters while the plugin unloads
+     */
+    public static APIClient peekInstance() {
+        return instance;
+    }
+
+    private static OkHttpClient buildHttpClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
         HttpLoggingInterceptor httpLoggingInterceptor = new HttpLoggingInterceptor();
         httpLoggingInterceptor.setLevel(HttpLoggingInterceptor.Level.NONE);
-        okHttpClient.addInterceptor(httpLoggingInterceptor);
 
-        retrofit = new Retrofit.Builder()
-                .client(okHttpClient.build())
-                .baseUrl("https://app.skyfi.com/")
-                .addConverterFactory(GsonConverterFactory.create())
-                .build();
-        skyFiAPI = retrofit.create(SkyFiAPI.class);
+        CachePolicyInterceptor cachePolicyInterceptor = new CachePolicyInterceptor();
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .addInterceptor(new UserAgentInterceptor())
+                .addInterceptor(new Interceptor() {
+                    @NonNull
+                    @Override
+                    public Response intercept(@NonNull Chain chain) throws IOException {
+                        Request.Builder builder = chain.request().newBuilder();
+                        builder.header("X-Skyfi-Api-Key", getApiKey());
+                        return chain.proceed(builder.build());
+                    }
+                })
+                .addInterceptor(cachePolicyInterceptor)
+                .addNetworkInterceptor(new CachePolicyInterceptor.NetworkInterceptor())
+                .addInterceptor(httpLoggingInterceptor);
+
+        Cache cache = createCache();
+        if (cache != null) {
+            builder.cache(cache);
+        }
+
+        OkHttpClient client = builder.build();
+        cachePolicyInterceptor.setClient(client);
+        return client;
+    }
+
+    private static Cache createCache() {
+        try {
+            File cacheDir = new File(MapView.getMapView().getContext().getCacheDir(), HTTP_CACHE_DIR);
+            return new Cache(cacheDir, HTTP_CACHE_SIZE);
+        } catch (Exception e) {
+            Log.w(LOGTAG, "HTTP cache unavailable, continuing without it", e);
+            return null;
+        }
+    }
+
+    private static String getApiKey() {
+        // Read every request: the ATAK settings screen writes the preference directly
+        String key;
+        try {
+            key = new Preferences().getApiKey();
+        } catch (Exception e) {
+            Log.w(LOGTAG, "Unable to read API key from preferences", e);
+            key = apiKey != null ? apiKey : "";
+        }
+        if (key == null) {
+            key = "";
+        }
+        if (!key.equals(apiKey)) {
+            // Waits for the old account's responses to be evicted
+            keyChanged(key);
+        }
+        return key;
+    }
+
+    /**
+     * Called by {@link Preferences} when the user changes the API key
+     */
+    static void onApiKeyChanged(String key) {
+        final String newKey = key != null ? key : "";
+        APIClient client = instance;
+        if (client == null) {
+            // The first request checks the cache's owner
+            return;
+        }
+        // Eviction touches the disk; requests with the new key wait for it in getApiKey
+        client.httpClient.dispatcher().executorService().execute(() -> keyChanged(newKey));
+    }
+
+    private static void keyChanged(String newKey) {
+        synchronized (APIClient.class) {
+            if (newKey.equals(apiKey)) {
+                return;
+            }
+            // Publishing the key last keeps every request that carries it waiting on this lock
+            APIClient client = instance;
+            Cache cache = client != null ? client.httpClient.cache() : null;
+            if (cache != null) {
+                claimCache(cache, newKey);
+            }
+            apiKey = newKey;
+        }
+    }
+
+    /**
+     * Evict the cache unless its responses were fetched with {@code key}, then record the
+     * key as its owner
+     */
+    static void claimCache(Cache cache, String key) {
+        File owner = new File(cache.directory().getParentFile(), HTTP_CACHE_OWNER);
+        String hash = sha256Hex(key);
+        try {
+            if (owner.isFile()) {
+                try (BufferedSource source = Okio.buffer(Okio.source(owner))) {
+                    if (hash.equals(source.readUtf8().trim())) {
+                        return;
+                    }
+                }
+            }
+            // Cached responses belong to the previous account
+            cache.evictAll();
+            try (BufferedSink sink = Okio.buffer(Okio.sink(owner))) {
+                sink.writeUtf8(hash);
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to clear HTTP cache", e);
+        }
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cancel outstanding calls and drop pooled connections, e.g. when the plugin is unloaded
+     */
+    public static void shutdown() {
+        synchronized (APIClient.class) {
+            APIClient client = instance;
+            if (client != null) {
+                client.httpClient.dispatcher().cancelAll();
+                client.httpClient.connectionPool().evictAll();
+                Cache cache = client.httpClient.cache();
+                if (cache != null) {
+                    try {
+                        cache.close();
+                    } catch (IOException e) {
+                        Log.w(LOGTAG, "Failed to close HTTP cache", e);
+                    }
+                }
+                instance = null;
+            }
+            apiKey = null;
+        }
     }
 
     public SkyFiAPI getApiClient() {
         return skyFiAPI;
     }
+
+    /**
+     * Shared OkHttpClient for other plugin components (thumbnails, COG reads) so they reuse
+     * the same connection pool and dispatcher
+     */
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Number of GET requests that joined an identical in-flight call instead of hitting the network
+     */
+    public long getCoalescedRequestCount() {
+        return singleFlight.getCoalescedCount();
+    }
+
+    /**
+     * Total GET requests enqueued through the shared API proxy
+     */
+    public long getRequestCount() {
+        return singleFlight.getRequestCount();
+    }
 }
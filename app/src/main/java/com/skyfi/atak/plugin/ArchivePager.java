@@ -0,0 +1,295 @@
+package com.skyfi.atak.plugin;
+
+import android.util.Log;
+
+import com.skyfi.atak.plugin.skyfiapi.ArchiveResponse;
+import com.skyfi.atak.plugin.skyfiapi.ArchivesRequest;
+import com.skyfi.atak.plugin.skyfiapi.SkyFiAPI;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import okhttp3.HttpUrl;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Pages through archive search results ahead of the user.
+ *
+ * The first page is a POST of the {@link ArchivesRequest}; every later page is a GET by the
+ * page hash returned in {@code nextPage}. Once a page is delivered the pager keeps fetching
+ * up to {@code prefetchDepth} pages beyond it in the background, holding parsed pages in a
+ * bounded window keyed by page hash, so scrolling to the next page is usually instant.
+ *
+ * Not thread safe; call from the main thread (Retrofit delivers callbacks there).
+ */
+public class ArchivePager {
+    private static final String LOGTAG = "SkyFiArchivePager";
+    private static final String FIRST_PAGE = "";
+    private static final String BASE_URL = "https://app.skyfi.com";
+
+    public static final int DEFAULT_PREFETCH_DEPTH = 2;
+    public static final int DEFAULT_MAX_CACHED_PAGES = 6;
+
+    public interface Listener {
+        /**
+         * A page of results is ready to display. Pages are delivered strictly in order.
+         */
+        void onPageLoaded(int pageIndex, ArchiveResponse page);
+
+        /**
+         * Loading a page the user is waiting on failed
+         */
+        void onPageFailed(int pageIndex, Response<ArchiveResponse> response, Throwable throwable);
+
+        /**
+         * The last page has been delivered
+         */
+        void onEndReached();
+
+        /**
+         * The page after the last delivered one has been prefetched but not delivered; see
+         * {@link #peekNextPage()}
+         */
+        default void onNextPageReady(int pageIndex, ArchiveResponse page) {
+        }
+    }
+
+    private final SkyFiAPI api;
+    private final int prefetchDepth;
+    private final int maxCachedPages;
+
+    // Page hash chain discovered so far; index 0 is the first (POST) page
+    private final List<String> pageKeys = new ArrayList<>();
+    // Access-ordered window of parsed pages
+    private final LinkedHashMap<String, ArchiveResponse> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> inFlight = new HashSet<>();
+    private final List<Call<ArchiveResponse>> calls = new ArrayList<>();
+
+    private ArchivesRequest request;
+    private Listener listener;
+    private int generation;
+    private int deliveredIndex = -1;
+    private boolean waitingForNext;
+    private boolean endReached;
+
+    public ArchivePager(SkyFiAPI api) {
+        this(api, DEFAULT_PREFETCH_DEPTH, DEFAULT_MAX_CACHED_PAGES);
+    }
+
+    public ArchivePager(SkyFiAPI api, int prefetchDepth, int maxCachedPages) {
+        this.api = api;
+        this.prefetchDepth = Math.max(0, prefetchDepth);
+        // Always keep room for the visible page plus everything prefetched beyond it
+        this.maxCachedPages = Math.max(maxCachedPages, this.prefetchDepth + 1);
+    }
+
+    /**
+     * Start a new search, discarding any previous results
+     */
+    public void start(ArchivesRequest request, Listener listener) {
+        cancel();
+        this.request = request;
+        this.listener = listener;
+        pageKeys.add(FIRST_PAGE);
+        waitingForNext = true;
+        fetch(0);
+    }
+
+    /**
+     * Request the page after the last delivered one, e.g. when the list is scrolled near its end
+     */
+    public void loadNextPage() {
+        if (listener == null || endReached || waitingForNext) {
+            return;
+        }
+        waitingForNext = true;
+        deliverIfReady();
+    }
+
+    public boolean isLoading() {
+        return waitingForNext;
+    }
+
+    public boolean hasMorePages() {
+        return !endReached;
+    }
+
+    /**
+     * Page hash for an already discovered page, or null
+     */
+    public String getPageHash(int pageIndex) {
+        return pageIndex > 0 && pageIndex < pageKeys.size() ? pageKeys.get(pageIndex) : null;
+    }
+
+    /**
+     * The page after the last delivered one if it has already been prefetched, without
+     * delivering it. Lets the UI warm up resources (e.g. thumbnails) for rows not shown yet.
+     */
+    public ArchiveResponse peekNextPage() {
+        int next = deliveredIndex + 1;
+        return next < pageKeys.size() ? pages.get(pageKeys.get(next)) : null;
+    }
+
+    public void cancel() {
+        generation++;
+        for (Call<ArchiveResponse> call : calls) {
+            call.cancel();
+        }
+        calls.clear();
+        inFlight.clear();
+        pages.clear();
+        pageKeys.clear();
+        deliveredIndex = -1;
+        waitingForNext = false;
+        endReached = false;
+        listener = null;
+    }
+
+    private void deliverIfReady() {
+        int next = deliveredIndex + 1;
+        if (next >= pageKeys.size()) {
+            // The previous page said there are no more
+            finish();
+            return;
+        }
+
+        ArchiveResponse page = pages.get(pageKeys.get(next));
+        if (page == null) {
+            fetch(next);
+            return;
+        }
+
+        deliveredIndex = next;
+        waitingForNext = false;
+        listener.onPageLoaded(next, page);
+        if (deliveredIndex == pageKeys.size() - 1) {
+            finish();
+        } else {
+            notifyNextPageReady();
+            prefetch();
+        }
+    }
+
+    private void notifyNextPageReady() {
+        ArchiveResponse nextPage = peekNextPage();
+        if (nextPage != null) {
+            listener.onNextPageReady(deliveredIndex + 1, nextPage);
+        }
+    }
+
+    private void finish() {
+        waitingForNext = false;
+        if (!endReached) {
+            endReached = true;
+            listener.onEndReached();
+        }
+    }
+
+    private void prefetch() {
+        int last = Math.min(deliveredIndex + prefetchDepth, pageKeys.size() - 1);
+        for (int i = deliveredIndex + 1; i <= last; i++) {
+            if (!pages.containsKey(pageKeys.get(i))) {
+                fetch(i);
+            }
+        }
+    }
+
+    private void fetch(int pageIndex) {
+        String key = pageKeys.get(pageIndex);
+        if (!inFlight.add(key)) {
+            return;
+        }
+
+        Call<ArchiveResponse> pageCall = pageIndex == 0
+                ? api.searchArchives(request)
+                : api.searchArchivesNextPage(key);
+        calls.add(pageCall);
+        int requestGeneration = generation;
+        pageCall.enqueue(new Callback<ArchiveResponse>() {
+            @Override
+            public void onResponse(@NonNull Call<ArchiveResponse> call, @NonNull Response<ArchiveResponse> response) {
+                calls.remove(pageCall);
+                if (requestGeneration != generation) {
+                    return;
+                }
+                inFlight.remove(key);
+
+                ArchiveResponse page = response.body();
+                if (!response.isSuccessful() || page == null) {
+                    failed(pageIndex, response, null);
+                    return;
+                }
+                store(pageIndex, key, page);
+            }
+
+            @Override
+            public void onFailure(@NonNull Call<ArchiveResponse> call, @NonNull Throwable throwable) {
+                calls.remove(pageCall);
+                if (requestGeneration != generation) {
+                    return;
+                }
+                inFlight.remove(key);
+                failed(pageIndex, null, throwable);
+            }
+        });
+    }
+
+    private void store(int pageIndex, String key, ArchiveResponse page) {
+        pages.put(key, page);
+
+        // Extend the hash chain so the following page can be prefetched
+        String nextHash = parsePageHash(page.getNextPage());
+        if (nextHash != null && pageIndex == pageKeys.size() - 1 && !pageKeys.contains(nextHash)) {
+            pageKeys.add(nextHash);
+        }
+        trim();
+
+        if (waitingForNext && pageIndex == deliveredIndex + 1) {
+            deliverIfReady();
+        } else if (pageIndex > deliveredIndex) {
+            if (pageIndex == deliveredIndex + 1) {
+                notifyNextPageReady();
+            }
+            prefetch();
+        }
+    }
+
+    private void failed(int pageIndex, Response<ArchiveResponse> response, Throwable throwable) {
+        if (waitingForNext && pageIndex == deliveredIndex + 1) {
+            waitingForNext = false;
+            listener.onPageFailed(pageIndex, response, throwable);
+        } else {
+            // A speculative fetch; the page will be retried when the user gets there
+            Log.d(LOGTAG, "Prefetch of page " + pageIndex + " failed", throwable);
+        }
+    }
+
+    /**
+     * Evict least recently used pages, never dropping the prefetched pages ahead of the user
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, ArchiveResponse>> iterator = pages.entrySet().iterator();
+        while (pages.size() > maxCachedPages && iterator.hasNext()) {
+            int index = pageKeys.indexOf(iterator.next().getKey());
+            if (index <= deliveredIndex) {
+                iterator.remove();
+            }
+        }
+    }
+
+    static String parsePageHash(String nextPage) {
+        if (nextPage == null || nextPage.isEmpty()) {
+            return null;
+        }
+        HttpUrl url = HttpUrl.parse(nextPage.startsWith("http") ? nextPage : BASE_URL + nextPage);
+        return url != null ? url.queryParameter("page") : null;
+    }
+}
@@ -3,10 +3,13 @@ package com.skyfi.atak.plugin;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.res.Configuration;
-import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.text.format.Formatter;
 import android.view.View;
 import android.widget.Button;
+import android.widget.Toast;
 
 import com.atak.plugins.impl.PluginLayoutInflater;
 import com.atakmap.android.dropdown.DropDown;
@@ -24,7 +27,9 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
@@ -47,14 +52,19 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
     private SkyFiAPI apiClient;
     private final RecyclerView recyclerView;
     private Context context;
-    // Start the pageNumber at -1 since we don't know the total results and the first page is a GET and the subsequent pages are a POST
-    private int pageNumber = -1;
-    private ArrayList<String> pageHashes = new ArrayList<>();
+    // Load the next page once the user is this many rows from the end of the list
+    private final static int LOAD_MORE_THRESHOLD = 5;
+    private ArchivePager pager;
+    private final ThumbnailPrefetcher thumbnailPrefetcher;
+    private ArchiveStore archiveStore;
+    // Bumped per search so a slow local lookup can't overwrite a newer search
+    private int searchGeneration;
+    // The current search was seeded from the local store; network pages only add new archives
+    private boolean showingStoredResults;
+    private final Set<String> archiveIds = new HashSet<>();
     private ArchivesRequest request = new ArchivesRequest();
     private String aoi;
 
-    Button nextButton;
-    Button previousButton;
     Button cacheButton;
     Button filterButton;
     Button sortButton;
@@ -63,6 +73,16 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
     AORFilterManager aorFilterManager;
     private ArrayList<Archive> originalArchives = new ArrayList<>();
     private String currentSortMode = "date";
+    // Pre-cache jobs given a progress dialog this session; main thread only
+    private final Set<Long> followedJobs = new HashSet<>();
+    // The ATAK settings screen writes the map's default preferences. Held here because
+    // SharedPreferences only keeps weak references to its listeners.
+    private final SharedPreferences settings;
+    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener = (prefs, key) -> {
+        if (Preferences.PREF_PRECACHE_BANDWIDTH.equals(key)) {
+            applyBandwidthLimit();
+        }
+    };
 
     protected ArchivesBrowser(MapView mapView, Context context) {
         super(mapView);
@@ -71,41 +91,39 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
         mainView = PluginLayoutInflater.inflate(context, R.layout.archives, null);
 
         recyclerView = mainView.findViewById(R.id.archives_recycler_view);
-        recyclerView.setLayoutManager(new LinearLayoutManager(context));
+        LinearLayoutManager layoutManager = new LinearLayoutManager(context);
+        recyclerView.setLayoutManager(layoutManager);
         recyclerViewAdapter = new ArchivesBrowserRecyclerViewAdapter(context, archives);
         recyclerViewAdapter.setClickListener(this);
         recyclerView.setAdapter(recyclerViewAdapter);
 
-        nextButton = mainView.findViewById(R.id.next_button);
-        previousButton = mainView.findViewById(R.id.previous_button);
+        // Thumbnails for rows about to scroll in are fetched ahead of the viewport
+        thumbnailPrefetcher = new ThumbnailPrefetcher(layoutManager, recyclerViewAdapter,
+                ThumbnailLoader.getInstance(context));
+        recyclerView.addOnScrollListener(thumbnailPrefetcher);
+
+        // Infinite scroll; the pager usually has the next page prefetched already
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition() >= archives.size() - LOAD_MORE_THRESHOLD) {
+                    loadNextPage();
+                }
+            }
+        });
+
         cacheButton = mainView.findViewById(R.id.cache_button);
         filterButton = mainView.findViewById(R.id.filter_button);
         sortButton = mainView.findViewById(R.id.sort_button);
         
         // Initialize managers
         cacheManager = ImageCacheManager.getInstance(context);
-        aorFilterManager = new AORFilterManager(context);
-
-        nextButton.setOnClickListener(view -> {
-            if (!pageHashes.isEmpty() && pageNumber < pageHashes.size() - 1)
-                pageNumber++;
-            postArchives();
-            // Auto-scroll to top
-            recyclerView.scrollToPosition(0);
-        });
-
-        previousButton.setOnClickListener(view -> {
-            if (pageNumber > 0) {
-                postArchives();
-                pageNumber--;
-            }
-            else if (pageNumber == 0) {
-                pageNumber--;
-                getArchives();
-            }
-            // Auto-scroll to top
-            recyclerView.scrollToPosition(0);
-        });
+        // Shared with the cache, which tags entries by AOR
+        aorFilterManager = cacheManager.getAORFilterManager();
+        archiveStore = ArchiveStore.getInstance(context);
+        settings = PreferenceManager.getDefaultSharedPreferences(mapView.getContext());
+        settings.registerOnSharedPreferenceChangeListener(settingsListener);
+        applyBandwidthLimit();
 
         cacheButton.setOnClickListener(view -> {
             cacheCurrentImages();
@@ -120,119 +138,186 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
         });
 
         refreshPage = mainView.findViewById(R.id.pull_to_refresh);
-        refreshPage.setOnRefreshListener(() -> {
-            if (pageHashes.isEmpty() || pageNumber == -1)
-                getArchives();
-            else
-                postArchives();
-        });
+        // Pull to refresh always goes to the network
+        refreshPage.setOnRefreshListener(() -> getArchives(true));
     }
 
-    private void getArchives() {
-        apiClient = new APIClient().getApiClient();
-        apiClient.searchArchives(request).enqueue(new Callback<ArchiveResponse>() {
-            @Override
-            public void onResponse(@NonNull Call<ArchiveResponse> call, @NonNull Response<ArchiveResponse> response) {
-                parseResponse(call, response);
-            }
+    /**
+     * Show whatever the local store already knows for this search, then page in the rest from
+     * the network. If a recent complete search already covered this AOI the network is skipped.
+     */
+    private void getArchives(boolean forceNetwork) {
+        if (pager != null) {
+            pager.cancel();
+            pager = null;
+        }
+        refreshPage.setRefreshing(true);
+        showingStoredResults = false;
+        ArchivesRequest searchRequest = request;
+        int generation = ++searchGeneration;
+        if (forceNetwork) {
+            startPager(searchRequest);
+            return;
+        }
 
-            @Override
-            public void onFailure(@NonNull Call<ArchiveResponse> call, @NonNull Throwable throwable) {
-                Log.e(LOGTAG, "Failed to search archives", throwable);
-                showError("Failed to search archives", throwable.getMessage());
+        archiveStore.query(searchRequest, result -> {
+            if (generation != searchGeneration) {
+                return;
+            }
+            if (!result.getArchives().isEmpty()) {
+                showStoredResults(searchRequest, result.getArchives());
             }
+            if (result.isCovered()) {
+                Log.d(LOGTAG, "Answered search from local store: " + result.getArchives().size() + " archives");
+                refreshPage.setRefreshing(false);
+                return;
+            }
+            startPager(searchRequest);
         });
     }
 
-    private void postArchives() {
-        // Don't update if there's only one page of results
-        if (pageHashes.isEmpty())
-            return;
+    private void startPager(ArchivesRequest searchRequest) {
+        pager = new ArchivePager(APIClient.getInstance().getApiClient());
+        pager.start(searchRequest, new ArchivePager.Listener() {
+            @Override
+            public void onPageLoaded(int pageIndex, ArchiveResponse page) {
+                showPage(pageIndex, page);
+            }
 
-        apiClient = new APIClient().getApiClient();
-        apiClient.searchArchivesNextPage(pageHashes.get(pageNumber)).enqueue(new Callback<ArchiveResponse>() {
             @Override
-            public void onResponse(@NonNull Call<ArchiveResponse> call, @NonNull Response<ArchiveResponse> response) {
-                parseResponse(call, response);
+            public void onPageFailed(int pageIndex, Response<ArchiveResponse> response, Throwable throwable) {
+                refreshPage.setRefreshing(false);
+                if (showingStoredResults && response == null) {
+                    // Offline; keep showing what the local store had
+                    Log.w(LOGTAG, "Archive search failed, showing stored results", throwable);
+                    return;
+                }
+                if (response != null) {
+                    showErrorResponse(response);
+                } else {
+                    Log.e(LOGTAG, "Failed to search archives", throwable);
+                    showError("Failed to search archives", throwable != null ? throwable.getMessage() : null);
+                }
             }
 
             @Override
-            public void onFailure(Call<ArchiveResponse> call, Throwable throwable) {
+            public void onEndReached() {
+                Log.d(LOGTAG, "Loaded all archive pages");
+                archiveStore.markSearchComplete(searchRequest);
+            }
 
+            @Override
+            public void onNextPageReady(int pageIndex, ArchiveResponse page) {
+                prefetchNextPageThumbnails(page);
             }
         });
     }
 
-    private void parseResponse(@NonNull Call<ArchiveResponse> call, @NonNull Response<ArchiveResponse> response) {
-        refreshPage.setRefreshing(false);
-        if (response.body() != null) {
-            try {
-                ArchiveResponse archiveResponse = response.body();
-                aoi = archiveResponse.getRequest().getAoi();
-
-                try {
-                    if (archiveResponse.getNextPage() != null) {
-                        String url = "https://app.skyfi.com" + archiveResponse.getNextPage();
-                        Uri uri = Uri.parse(url);
-                        String hash = uri.getQueryParameter("page");
-                        if (!pageHashes.contains(hash)) {
-                            pageHashes.add(hash);
-                        }
-                    }
-                }
-                catch (Exception e) {
-                    Log.e(LOGTAG, "Failed to parse page hash", e);
-                }
+    private void loadNextPage() {
+        if (pager != null && pager.hasMorePages() && !pager.isLoading()) {
+            pager.loadNextPage();
+        }
+    }
 
-                // Store original archives before filtering
-                originalArchives.clear();
-                originalArchives.addAll(archiveResponse.getArchives());
-                
-                // Apply AOR filtering
-                List<Archive> filteredArchives = aorFilterManager.filterArchivesByAOR(originalArchives);
-                archives.clear();
-                archives.addAll(filteredArchives);
+    /**
+     * Start on the thumbnails of the next result page as soon as the pager has it, so they are
+     * warm by the time the page is appended
+     */
+    private void prefetchNextPageThumbnails(ArchiveResponse nextPage) {
+        if (nextPage.getArchives() == null) {
+            return;
+        }
+        List<String> urls = new ArrayList<>();
+        for (Archive archive : nextPage.getArchives()) {
+            String url = ArchivesBrowserRecyclerViewAdapter.getThumbnailUrl(archive);
+            if (url != null && !archiveIds.contains(archive.getArchiveId())) {
+                urls.add(url);
+            }
+        }
+        thumbnailPrefetcher.prefetchUpcoming(urls);
+    }
 
-                if (pageNumber == -1 && archiveResponse.getNextPage() != null) {
-                    // First page
-                    nextButton.setVisibility(VISIBLE);
-                    previousButton.setVisibility(GONE);
-                }
-                else if (archiveResponse.getNextPage() != null){
-                    nextButton.setVisibility(VISIBLE);
-                    previousButton.setVisibility(VISIBLE);
+    private void showStoredResults(ArchivesRequest searchRequest, List<Archive> storedArchives) {
+        refreshPage.setRefreshing(false);
+        showingStoredResults = true;
+        aoi = searchRequest.getAoi();
+        originalArchives.clear();
+        archives.clear();
+        archiveIds.clear();
+        for (Archive archive : storedArchives) {
+            archiveIds.add(archive.getArchiveId());
+        }
+        originalArchives.addAll(storedArchives);
+        archives.addAll(aorFilterManager.filterArchivesByAOR(storedArchives));
+        synchronized (recyclerViewAdapter) {
+            recyclerViewAdapter.notifyDataSetChanged();
+        }
+        thumbnailPrefetcher.clearUpcoming();
+        recyclerView.post(thumbnailPrefetcher::refresh);
+    }
+
+    private void showPage(int pageIndex, ArchiveResponse archiveResponse) {
+        refreshPage.setRefreshing(false);
+        archiveStore.storeResponse(archiveResponse);
+        try {
+            if (pageIndex == 0) {
+                if (archiveResponse.getRequest() != null) {
+                    aoi = archiveResponse.getRequest().getAoi();
                 }
-                else if (pageHashes.isEmpty()) {
-                    // Only one page of results
-                    nextButton.setVisibility(GONE);
-                    previousButton.setVisibility(GONE);
+                if (!showingStoredResults) {
+                    originalArchives.clear();
+                    archives.clear();
+                    archiveIds.clear();
                 }
-                else {
-                    // Last page
-                    nextButton.setVisibility(GONE);
-                    previousButton.setVisibility(VISIBLE);
+            }
+
+            // Only archives the stored results didn't already show
+            List<Archive> pageArchives = new ArrayList<>();
+            if (archiveResponse.getArchives() != null) {
+                for (Archive archive : archiveResponse.getArchives()) {
+                    if (archiveIds.add(archive.getArchiveId())) {
+                        pageArchives.add(archive);
+                    }
                 }
+            }
+            originalArchives.addAll(pageArchives);
 
-                synchronized (recyclerViewAdapter) {
+            // Apply AOR filtering to the new page only
+            List<Archive> filteredArchives = aorFilterManager.filterArchivesByAOR(pageArchives);
+            int start = archives.size();
+            archives.addAll(filteredArchives);
+
+            synchronized (recyclerViewAdapter) {
+                if (pageIndex == 0 && !showingStoredResults) {
                     recyclerViewAdapter.notifyDataSetChanged();
+                } else {
+                    recyclerViewAdapter.notifyItemRangeInserted(start, filteredArchives.size());
                 }
-            } catch (Exception e) {
-                Log.e(LOGTAG, "Failed to search archives", e);
-                showError("Failed to search archives", e.getMessage());
             }
-        }
-        else {
-            int responseCode = response.code();
-            Log.e(LOGTAG, "Archive search response is null: " + responseCode);
-            try {
-                JSONObject errorJson = new JSONObject(response.errorBody().string());
-                String message = errorJson.getJSONArray("detail").getJSONObject(0).getString("msg");
-                Log.d(LOGTAG, call.request().body().toString());
-                Log.e(LOGTAG, message);
-                showError("Error searching archives", message);
-            } catch (Exception e) {
-                Log.e(LOGTAG, "Failed to fail", e);
+            // The upcoming page is in the list now; prefetch by position from here on
+            thumbnailPrefetcher.clearUpcoming();
+            recyclerView.post(thumbnailPrefetcher::refresh);
+
+            // The AOR filter can leave too few rows to scroll; keep pulling pages until it can
+            if (archives.size() < LOAD_MORE_THRESHOLD * 2) {
+                recyclerView.post(this::loadNextPage);
             }
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Failed to search archives", e);
+            showError("Failed to search archives", e.getMessage());
+        }
+    }
+
+    private void showErrorResponse(@NonNull Response<ArchiveResponse> response) {
+        int responseCode = response.code();
+        Log.e(LOGTAG, "Archive search response is null: " + responseCode);
+        try {
+            JSONObject errorJson = new JSONObject(response.errorBody().string());
+            String message = errorJson.getJSONArray("detail").getJSONObject(0).getString("msg");
+            Log.e(LOGTAG, message);
+            showError("Error searching archives", message);
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Failed to fail", e);
         }
     }
 
@@ -266,13 +351,14 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
 
     @Override
     protected void disposeImpl() {
-
+        if (pager != null) {
+            pager.cancel();
+        }
+        settings.unregisterOnSharedPreferenceChangeListener(settingsListener);
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        pageNumber = -1;
-        pageHashes.clear();
         request = new ArchivesRequest();
 
         if (intent.getAction() == null) return;
@@ -288,7 +374,8 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
 
             request = (ArchivesRequest) intent.getSerializableExtra("request");
 
-            getArchives();
+            getArchives(false);
+            followResumedJobs();
         }
     }
 
@@ -311,7 +398,7 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
         order.setArchiveId(archive.getArchiveId());
         order.setAoi(aoi);
 
-        apiClient = new APIClient().getApiClient();
+        apiClient = APIClient.getInstance().getApiClient();
         apiClient.archiveOrder(order).enqueue(new Callback<ArchiveResponse>() {
             @Override
             public void onResponse(@NonNull Call<ArchiveResponse> call, @NonNull Response<ArchiveResponse> response) {
@@ -361,61 +448,103 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
             return;
         }
         
-        // Extract image URLs from current archives
-        java.util.List<String> imageUrls = new java.util.ArrayList<>();
-        for (Archive archive : archives) {
-            // Get thumbnail URLs from the HashMap
-            if (archive.getThumbnailUrls() != null) {
-                for (String thumbnailUrl : archive.getThumbnailUrls().values()) {
-                    if (thumbnailUrl != null && !thumbnailUrl.isEmpty()) {
-                        imageUrls.add(thumbnailUrl);
-                    }
-                }
+        // Start caching every image of the listed archives, with their footprints
+        cacheManager.precacheArchives("Archives", archives, new PrecacheProgress(archives.size()));
+    }
+    
+    /**
+     * Give pre-cache jobs resumed after a restart a progress dialog, so they can be followed
+     * and cancelled
+     */
+    private void followResumedJobs() {
+        for (long jobId : cacheManager.getPrecacheJobIds()) {
+            if (followedJobs.add(jobId)) {
+                PrecacheProgress progress = new PrecacheProgress(0);
+                progress.onQueued(jobId);
+                cacheManager.addPrecacheProgressCallback(jobId, progress);
             }
-            // Also add titles URL if available (likely higher resolution)
-            if (archive.getTitlesUrl() != null && !archive.getTitlesUrl().isEmpty()) {
-                imageUrls.add(archive.getTitlesUrl());
+        }
+    }
+    
+    private void applyBandwidthLimit() {
+        cacheManager.setDownloadBandwidthLimit(new Preferences().getPrecacheBandwidthLimit());
+    }
+    
+    /**
+     * Progress dialog for a pre-cache job. The downloads are a persistent job and keep going
+     * if it's sent to the background; Cancel stops them.
+     */
+    private class PrecacheProgress implements ImageCacheManager.ProgressCallback {
+        private final AlertDialog progressDialog;
+        private volatile int progress;
+        private volatile int total;
+        // Main thread only
+        private long jobId = -1;
+        private boolean cancelRequested;
+        
+        PrecacheProgress(int total) {
+            progressDialog = new AlertDialog.Builder(MapView.getMapView().getContext())
+                    .setTitle(context.getString(R.string.caching_progress))
+                    .setMessage(total > 0 ? "0 / " + total : context.getString(R.string.precache_resuming))
+                    .setCancelable(false)
+                    .setPositiveButton(R.string.cache_in_background, null)
+                    .setNegativeButton(R.string.cancel, (dialog, which) -> cancel())
+                    .create();
+            progressDialog.show();
+        }
+        
+        private void cancel() {
+            // The job may not be queued yet; it's cancelled as soon as it is
+            cancelRequested = true;
+            if (jobId != -1) {
+                cacheManager.cancelPrecacheJob(jobId);
             }
+            Toast.makeText(MapView.getMapView().getContext(), context.getString(R.string.precache_cancelled),
+                    Toast.LENGTH_SHORT).show();
         }
         
-        if (imageUrls.isEmpty()) {
-            showError(context.getString(R.string.cache_failed), context.getString(R.string.no_images_to_cache));
-            return;
+        @Override
+        public void onQueued(long jobId) {
+            MapView.getMapView().post(() -> {
+                this.jobId = jobId;
+                followedJobs.add(jobId);
+                if (cancelRequested) {
+                    cacheManager.cancelPrecacheJob(jobId);
+                }
+            });
         }
         
-        // Show progress dialog
-        AlertDialog progressDialog = new AlertDialog.Builder(MapView.getMapView().getContext())
-                .setTitle(context.getString(R.string.caching_progress))
-                .setMessage("0 / " + imageUrls.size())
-                .setCancelable(false)
-                .create();
-        progressDialog.show();
+        @Override
+        public void onProgress(int progress, int total) {
+            this.progress = progress;
+            this.total = total;
+        }
         
-        // Start caching with progress callback
-        cacheManager.cacheHighResImages(imageUrls, new ImageCacheManager.ProgressCallback() {
-            @Override
-            public void onProgress(int progress, int total) {
-                // Update progress dialog on main thread
-                MapView.getMapView().post(() -> {
-                    if (progressDialog.isShowing()) {
-                        progressDialog.setMessage(progress + " / " + total);
-                    }
-                });
-            }
-            
-            @Override
-            public void onComplete(boolean success, String message) {
-                // Show completion on main thread
-                MapView.getMapView().post(() -> {
-                    if (progressDialog.isShowing()) {
-                        progressDialog.dismiss();
-                    }
-                    
-                    String title = success ? context.getString(R.string.cache_complete) : context.getString(R.string.cache_failed);
-                    showError(title, message);
-                });
-            }
-        });
+        @Override
+        public void onBytesProgress(long bytesDone, long bytesTotal) {
+            String message = String.format(context.getString(R.string.cache_progress_detail), progress, total,
+                    Formatter.formatShortFileSize(context, bytesDone),
+                    Formatter.formatShortFileSize(context, bytesTotal));
+            // Update progress dialog on main thread
+            MapView.getMapView().post(() -> {
+                if (progressDialog.isShowing()) {
+                    progressDialog.setMessage(message);
+                }
+            });
+        }
+        
+        @Override
+        public void onComplete(boolean success, String message) {
+            // Show completion on main thread
+            MapView.getMapView().post(() -> {
+                if (progressDialog.isShowing()) {
+                    progressDialog.dismiss();
+                }
+                
+                String title = success ? context.getString(R.string.cache_complete) : context.getString(R.string.cache_failed);
+                showError(title, message);
+            });
+        }
     }
     
     private void showAORFilterDialog() {
@@ -439,27 +568,64 @@ public class ArchivesBrowser extends DropDownReceiver implements DropDown.OnStat
                     applyCurrentFilter();
                     dialog.dismiss();
                 })
+                .setNeutralButton(context.getString(R.string.cache_usage), (dialog, which) -> showCacheUsageDialog())
                 .setNegativeButton(context.getString(R.string.cancel), null)
                 .show();
     }
     
+    /**
+     * Cached image counts for the selected AOR, with the option to clear everything outside it
+     */
+    private void showCacheUsageDialog() {
+        String selectedAOR = aorFilterManager.getSelectedAOR();
+        String aorLabel = "all".equals(selectedAOR) ? context.getString(R.string.all_aors) : selectedAOR;
+        cacheManager.getCacheStats(selectedAOR, (totalFiles, regionFiles, totalSize) -> MapView.getMapView().post(() -> {
+            String message = String.format(context.getString(R.string.cache_usage_detail), totalFiles,
+                    Formatter.formatShortFileSize(context, totalSize), regionFiles, aorLabel);
+            AlertDialog.Builder builder = new AlertDialog.Builder(MapView.getMapView().getContext())
+                    .setTitle(context.getString(R.string.cache_usage))
+                    .setMessage(message)
+                    .setNegativeButton(context.getString(R.string.cancel), null);
+            if (!"all".equals(selectedAOR) && regionFiles < totalFiles) {
+                builder.setPositiveButton(context.getString(R.string.clear_outside_aor), (dialog, which) ->
+                        cacheManager.clearNonRegionCache(selectedAOR, success -> MapView.getMapView().post(() -> {
+                            if (success) {
+                                Toast.makeText(context, String.format(context.getString(R.string.cleared_outside_aor), aorLabel),
+                                        Toast.LENGTH_SHORT).show();
+                            } else {
+                                showError(context.getString(R.string.cache_usage), context.getString(R.string.clear_outside_aor_failed));
+                            }
+                        })));
+            }
+            builder.show();
+        }));
+    }
+    
     private void applyCurrentFilter() {
         if (!originalArchives.isEmpty()) {
-            List<Archive> filteredArchives = aorFilterManager.filterArchivesByAOR(originalArchives);
-            archives.clear();
-            archives.addAll(filteredArchives);
-            
-            synchronized (recyclerViewAdapter) {
-                recyclerViewAdapter.notifyDataSetChanged();
-            }
-            
-            // Update filter button text to show current filter
-            String selectedAOR = aorFilterManager.getSelectedAOR();
-            if ("all".equals(selectedAOR)) {
-                filterButton.setText(context.getString(R.string.aor_filter));
-            } else {
-                filterButton.setText(selectedAOR);
-            }
+            // Refiltering everything loaded so far can be thousands of footprints; keep it off the UI thread
+            int filteredCount = originalArchives.size();
+            aorFilterManager.filterArchivesByAORAsync(originalArchives, filteredArchives -> {
+                if (filteredCount != originalArchives.size()) {
+                    // A page arrived meanwhile; filter again so it isn't dropped
+                    applyCurrentFilter();
+                    return;
+                }
+                archives.clear();
+                archives.addAll(filteredArchives);
+                
+                synchronized (recyclerViewAdapter) {
+                    recyclerViewAdapter.notifyDataSetChanged();
+                }
+                
+                // Update filter button text to show current filter
+                String selectedAOR = aorFilterManager.getSelectedAOR();
+                if ("all".equals(selectedAOR)) {
+                    filterButton.setText(context.getString(R.string.aor_filter));
+                } else {
+                    filterButton.setText(selectedAOR);
+                }
+            });
         }
     }
     
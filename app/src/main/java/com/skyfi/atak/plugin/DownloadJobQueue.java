@@ -0,0 +1,873 @@
+package com.skyfi.atak.plugin;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Base64;
+import android.util.Log;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent background download queue for offline pre-caching.
+ *
+ * A job is a named batch of URLs (e.g. every image of the archives on screen). Jobs and their
+ * items are kept in SQLite, so a queue interrupted by a plugin restart or a dropped link picks
+ * up where it left off: each item downloads into a {@code .part} file and resumes with an HTTP
+ * range request (guarded by {@code If-Range} on the ETag). Up to {@link #MAX_PARALLEL} items
+ * download at once, at most {@link #MAX_PER_HOST} from any one host. A finished file is checked
+ * against its advertised length and MD5 (Content-MD5, x-goog-hash or an MD5 ETag) before the
+ * {@link Installer} moves it into the image cache; a mismatch discards it and downloads again.
+ *
+ * Progress is reported per job through {@link ImageCacheManager.ProgressCallback}, by item and
+ * by byte, from worker threads. An optional bandwidth limit is shared by all downloads.
+ */
+public class DownloadJobQueue {
+    private static final String TAG = "SkyFi.DownloadJobQueue";
+    private static final int DATABASE_VERSION = 1;
+    private static final int MAX_PARALLEL = 4;
+    private static final int MAX_PER_HOST = 2;
+    private static final int MAX_ATTEMPTS = 3;
+    // Wait before the second attempt; doubles for each one after
+    private static final long RETRY_DELAY_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 32 * 1024;
+    // Byte progress is reported at most this often per job
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    static final String STATE_PENDING = "pending";
+    static final String STATE_DONE = "done";
+    static final String STATE_FAILED = "failed";
+
+    /**
+     * Moves a verified download into its final place. Called on a worker thread; the file is
+     * deleted afterwards either way.
+     */
+    public interface Installer {
+        boolean install(Download download, File file, String contentType);
+    }
+
+    /**
+     * One URL to fetch, with the archive and location it belongs to (both optional)
+     */
+    public static class Download {
+        final String url;
+        final String archiveId;
+        final Envelope bounds;
+        // Filled in by the queue
+        long jobId;
+        String partName;
+        String etag;
+        String md5;
+        String contentType;
+        long totalSize = -1;
+        int attempts;
+        volatile boolean cancelled;
+
+        public Download(String url, String archiveId, Envelope bounds) {
+            this.url = url;
+            this.archiveId = archiveId;
+            this.bounds = bounds;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getArchiveId() {
+            return archiveId;
+        }
+
+        public Envelope getBounds() {
+            return bounds;
+        }
+
+        String host() {
+            try {
+                return new URL(url).getHost().toLowerCase(Locale.US);
+            } catch (IOException e) {
+                return "";
+            }
+        }
+    }
+
+    private static class Job {
+        final long id;
+        final String name;
+        int total;
+        int done;
+        int failed;
+        long bytesDone;
+        long bytesTotal;
+        long lastReport;
+        final List<ImageCacheManager.ProgressCallback> callbacks = new CopyOnWriteArrayList<>();
+
+        Job(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private final DatabaseHelper helper;
+    private final File partDir;
+    private final Installer installer;
+    private final ExecutorService executor;
+    private final BandwidthThrottle throttle = new BandwidthThrottle();
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final LinkedList<Download> queue = new LinkedList<>();
+    private final List<Download> active = new ArrayList<>();
+    private final Map<String, Integer> activePerHost = new HashMap<>();
+    private final Map<Long, Job> jobs = new HashMap<>();
+    private int workers;
+    private boolean started;
+
+    public DownloadJobQueue(Context context, File databaseFile, File partDir, Installer installer) {
+        this.helper = new DatabaseHelper(context.getApplicationContext(), databaseFile.getAbsolutePath());
+        this.partDir = partDir;
+        this.installer = installer;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PARALLEL, MAX_PARALLEL, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Reload unfinished jobs from the database and continue them. Call once, off the main
+     * thread, when whatever the {@link Installer} writes to is ready.
+     */
+    public void resume() {
+        synchronized (lock) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+        if (!partDir.exists() && !partDir.mkdirs()) {
+            Log.e(TAG, "Can't create " + partDir);
+        }
+
+        List<Download> pending = new ArrayList<>();
+        Map<Long, Job> loaded = new HashMap<>();
+        SQLiteDatabase db = helper.getReadableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT id, name FROM jobs", null)) {
+            while (cursor.moveToNext()) {
+                Job job = new Job(cursor.getLong(0), cursor.getString(1));
+                loaded.put(job.id, job);
+            }
+        }
+        try (Cursor cursor = db.rawQuery("SELECT job_id, url, part_name, archive_id, bounded, min_x, min_y, max_x, max_y,"
+                + " etag, md5, content_type, total_size, attempts, state FROM items", null)) {
+            while (cursor.moveToNext()) {
+                Job job = loaded.get(cursor.getLong(0));
+                if (job == null) {
+                    continue;
+                }
+                Envelope bounds = cursor.getInt(4) == 1
+                        ? new Envelope(cursor.getDouble(5), cursor.getDouble(7), cursor.getDouble(6), cursor.getDouble(8))
+                        : null;
+                Download download = new Download(cursor.getString(1), cursor.getString(3), bounds);
+                download.jobId = job.id;
+                download.partName = cursor.getString(2);
+                download.etag = cursor.getString(9);
+                download.md5 = cursor.getString(10);
+                download.contentType = cursor.getString(11);
+                download.totalSize = cursor.getLong(12);
+                // Attempts made before the restart don't count against this session
+                download.attempts = 0;
+                String state = cursor.getString(14);
+
+                job.total++;
+                if (download.totalSize > 0) {
+                    job.bytesTotal += download.totalSize;
+                }
+                if (STATE_DONE.equals(state)) {
+                    job.done++;
+                    job.bytesDone += Math.max(0, download.totalSize);
+                } else if (STATE_FAILED.equals(state)) {
+                    job.failed++;
+                } else {
+                    job.bytesDone += new File(partDir, download.partName).length();
+                    pending.add(download);
+                }
+            }
+        }
+
+        synchronized (lock) {
+            // Jobs enqueued before resume() ran are already live
+            loaded.keySet().removeAll(jobs.keySet());
+            jobs.putAll(loaded);
+            for (Download download : pending) {
+                if (loaded.containsKey(download.jobId)) {
+                    queue.add(download);
+                }
+            }
+            if (!queue.isEmpty()) {
+                Log.d(TAG, "Resuming " + queue.size() + " downloads in " + loaded.size() + " jobs");
+            }
+            startWorkers();
+        }
+        // Jobs that finished while nobody was listening
+        for (Job job : loaded.values()) {
+            checkFinished(job);
+        }
+    }
+
+    /**
+     * Queue a batch of downloads as one job. Returns the job id, or -1 if nothing was queued.
+     * Blocks on the database; call off the main thread.
+     */
+    public long enqueue(String name, List<Download> requested, ImageCacheManager.ProgressCallback callback) {
+        Map<String, Download> unique = new LinkedHashMap<>();
+        for (Download download : requested) {
+            if (download.url != null && !download.url.isEmpty() && !unique.containsKey(download.url)) {
+                unique.put(download.url, download);
+            }
+        }
+        List<Download> downloads = new ArrayList<>(unique.values());
+        if (downloads.isEmpty()) {
+            return -1;
+        }
+        if (!partDir.exists() && !partDir.mkdirs()) {
+            Log.e(TAG, "Can't create " + partDir);
+        }
+        long jobId;
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues job = new ContentValues();
+            job.put("name", name);
+            job.put("created", System.currentTimeMillis());
+            jobId = db.insert("jobs", null, job);
+            for (Download download : downloads) {
+                download.jobId = jobId;
+                download.partName = jobId + "_" + md5Hex(download.url) + ".part";
+                ContentValues item = new ContentValues();
+                item.put("job_id", jobId);
+                item.put("url", download.url);
+                item.put("part_name", download.partName);
+                item.put("archive_id", download.archiveId);
+                item.put("bounded", download.bounds != null ? 1 : 0);
+                if (download.bounds != null) {
+                    item.put("min_x", download.bounds.getMinX());
+                    item.put("min_y", download.bounds.getMinY());
+                    item.put("max_x", download.bounds.getMaxX());
+                    item.put("max_y", download.bounds.getMaxY());
+                }
+                item.put("total_size", -1);
+                item.put("attempts", 0);
+                item.put("state", STATE_PENDING);
+                db.insertWithOnConflict("items", null, item, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Job job = new Job(jobId, name);
+        job.total = downloads.size();
+        if (callback != null) {
+            job.callbacks.add(callback);
+        }
+        synchronized (lock) {
+            jobs.put(jobId, job);
+            queue.addAll(downloads);
+            startWorkers();
+        }
+        return jobId;
+    }
+
+    /**
+     * Follow an existing job, e.g. one resumed after a restart
+     */
+    public void addProgressCallback(long jobId, ImageCacheManager.ProgressCallback callback) {
+        synchronized (lock) {
+            Job job = jobs.get(jobId);
+            if (job != null) {
+                job.callbacks.add(callback);
+            }
+        }
+    }
+
+    /**
+     * Ids of jobs that haven't finished yet
+     */
+    public List<Long> getJobIds() {
+        synchronized (lock) {
+            return new ArrayList<>(jobs.keySet());
+        }
+    }
+
+    /**
+     * Stop a job and throw away its partial downloads. Items already installed stay cached.
+     */
+    public void cancelJob(long jobId) {
+        List<Download> dropped = new ArrayList<>();
+        synchronized (lock) {
+            jobs.remove(jobId);
+            Iterator<Download> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Download download = iterator.next();
+                if (download.jobId == jobId) {
+                    iterator.remove();
+                    dropped.add(download);
+                }
+            }
+            for (Download download : active) {
+                if (download.jobId == jobId) {
+                    // The worker deletes its own part file when it notices
+                    download.cancelled = true;
+                }
+            }
+        }
+        for (Download download : dropped) {
+            deletePart(download);
+        }
+        deleteJob(jobId);
+    }
+
+    /**
+     * Limit the combined download rate; 0 removes the limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        throttle.setRate(bytesPerSecond);
+    }
+
+    // Must hold lock
+    private void startWorkers() {
+        while (workers < MAX_PARALLEL && workers < queue.size() + active.size()) {
+            workers++;
+            executor.execute(this::runWorker);
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Download download;
+            synchronized (lock) {
+                download = takeNext();
+                if (download == null) {
+                    workers--;
+                    return;
+                }
+            }
+            try {
+                process(download);
+            } finally {
+                synchronized (lock) {
+                    active.remove(download);
+                    String host = download.host();
+                    Integer count = activePerHost.get(host);
+                    if (count != null && count > 1) {
+                        activePerHost.put(host, count - 1);
+                    } else {
+                        activePerHost.remove(host);
+                    }
+                    // Items held back by the per-host limit may be runnable now
+                    startWorkers();
+                }
+            }
+        }
+    }
+
+    /**
+     * The first queued item whose host has a free slot. Must hold lock.
+     */
+    private Download takeNext() {
+        Iterator<Download> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Download download = iterator.next();
+            String host = download.host();
+            Integer count = activePerHost.get(host);
+            if (count == null || count < MAX_PER_HOST) {
+                iterator.remove();
+                active.add(download);
+                activePerHost.put(host, count == null ? 1 : count + 1);
+                return download;
+            }
+        }
+        return null;
+    }
+
+    private void process(Download download) {
+        String state = STATE_FAILED;
+        while (download.attempts < MAX_ATTEMPTS && !download.cancelled) {
+            if (download.attempts > 0 && !sleep(RETRY_DELAY_MS << (download.attempts - 1))) {
+                break;
+            }
+            download.attempts++;
+            try {
+                File part = fetch(download);
+                if (part == null) {
+                    // Cancelled
+                    break;
+                }
+                state = installer.install(download, part, download.contentType) ? STATE_DONE : STATE_FAILED;
+                deletePart(download);
+                break;
+            } catch (RetryException e) {
+                Log.w(TAG, "Download attempt " + download.attempts + " failed: " + download.url + ": " + e.getMessage());
+            } catch (IOException e) {
+                Log.w(TAG, "Download attempt " + download.attempts + " failed: " + download.url, e);
+                if (e instanceof PermanentException) {
+                    break;
+                }
+            }
+        }
+
+        if (download.cancelled) {
+            deletePart(download);
+            return;
+        }
+        long partial = 0;
+        if (STATE_FAILED.equals(state)) {
+            partial = new File(partDir, download.partName).length();
+            deletePart(download);
+        }
+        updateItem(download, state);
+
+        Job job;
+        synchronized (lock) {
+            job = jobs.get(download.jobId);
+            if (job == null) {
+                return;
+            }
+            if (STATE_DONE.equals(state)) {
+                job.done++;
+            } else {
+                job.failed++;
+                // A failed item no longer counts towards the byte totals
+                job.bytesTotal -= Math.max(0, download.totalSize);
+                job.bytesDone -= partial;
+            }
+        }
+        reportProgress(job, true);
+        checkFinished(job);
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Download (or resume) one item into its part file and verify it. Returns the complete
+     * file, or null if the item was cancelled meanwhile.
+     */
+    private File fetch(Download download) throws IOException {
+        File part = new File(partDir, download.partName);
+        long offset = part.length();
+        if (offset > 0 && download.totalSize > 0 && offset >= download.totalSize) {
+            if (offset == download.totalSize) {
+                verify(download, part);
+                return part;
+            }
+            restart(download, part);
+            offset = 0;
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(download.url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            if (download.etag != null) {
+                connection.setRequestProperty("If-Range", download.etag);
+            }
+        }
+        try {
+            int code = connection.getResponseCode();
+            boolean resumed = code == HttpURLConnection.HTTP_PARTIAL
+                    && parseContentRangeStart(connection.getHeaderField("Content-Range")) == offset;
+            if (code == 416) {
+                restart(download, part);
+                throw new RetryException("Range not satisfiable");
+            }
+            if (!resumed && code != HttpURLConnection.HTTP_OK) {
+                if (code == HttpURLConnection.HTTP_PARTIAL || code >= 500 || code == 408 || code == 429) {
+                    restart(download, part);
+                    throw new RetryException("HTTP " + code);
+                }
+                throw new PermanentException("HTTP " + code);
+            }
+
+            long previousTotal = Math.max(0, download.totalSize);
+            if (!resumed) {
+                // The server sent the whole file; start over
+                offset = 0;
+                download.totalSize = parseLong(connection.getHeaderField("Content-Length"));
+                download.md5 = expectedMd5(connection.getHeaderField("Content-MD5"),
+                        connection.getHeaderField("x-goog-hash"), connection.getHeaderField("ETag"));
+                download.etag = connection.getHeaderField("ETag");
+                download.contentType = connection.getContentType();
+            } else if (download.totalSize <= 0) {
+                download.totalSize = parseContentRangeTotal(connection.getHeaderField("Content-Range"));
+            }
+            updateItem(download, STATE_PENDING);
+            adjustJobBytes(download.jobId, Math.max(0, download.totalSize) - previousTotal,
+                    resumed ? 0 : -part.length());
+
+            try (InputStream in = connection.getInputStream();
+                 OutputStream out = new FileOutputStream(part, resumed)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (download.cancelled) {
+                        return null;
+                    }
+                    throttle.acquire(read);
+                    out.write(buffer, 0, read);
+                    adjustJobBytes(download.jobId, 0, read);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        verify(download, part);
+        return part;
+    }
+
+    private void verify(Download download, File part) throws IOException {
+        if (download.totalSize > 0 && part.length() != download.totalSize) {
+            restart(download, part);
+            throw new RetryException("Expected " + download.totalSize + " bytes, got " + part.length());
+        }
+        if (download.md5 != null) {
+            String actual = md5Hex(part);
+            if (!download.md5.equals(actual)) {
+                restart(download, part);
+                throw new RetryException("Checksum mismatch");
+            }
+        }
+    }
+
+    /**
+     * Discard a part file so the next attempt downloads from scratch
+     */
+    private void restart(Download download, File part) {
+        long length = part.length();
+        if (part.exists() && !part.delete()) {
+            Log.w(TAG, "Failed to delete " + part);
+        }
+        adjustJobBytes(download.jobId, 0, -length);
+    }
+
+    private void adjustJobBytes(long jobId, long totalDelta, long doneDelta) {
+        Job job;
+        synchronized (lock) {
+            job = jobs.get(jobId);
+            if (job == null) {
+                return;
+            }
+            job.bytesTotal += totalDelta;
+            job.bytesDone += doneDelta;
+        }
+        reportProgress(job, false);
+    }
+
+    private void reportProgress(Job job, boolean force) {
+        int completed;
+        int total;
+        long bytesDone;
+        long bytesTotal;
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (!force && now - job.lastReport < PROGRESS_INTERVAL_MS) {
+                return;
+            }
+            job.lastReport = now;
+            completed = job.done + job.failed;
+            total = job.total;
+            bytesDone = Math.max(0, job.bytesDone);
+            bytesTotal = Math.max(bytesDone, job.bytesTotal);
+        }
+        for (ImageCacheManager.ProgressCallback callback : job.callbacks) {
+            callback.onProgress(completed, total);
+            callback.onBytesProgress(bytesDone, bytesTotal);
+        }
+    }
+
+    private void checkFinished(Job job) {
+        synchronized (lock) {
+            if (job.done + job.failed < job.total || jobs.get(job.id) != job) {
+                return;
+            }
+            jobs.remove(job.id);
+        }
+        deleteJob(job.id);
+        Log.d(TAG, "Job " + job.name + " finished: " + job.done + " cached, " + job.failed + " failed");
+        boolean success = job.failed == 0;
+        String message = success ?
+                "Successfully cached " + job.done + " images" :
+                "Cached " + job.done + " images, " + job.failed + " failed";
+        for (ImageCacheManager.ProgressCallback callback : job.callbacks) {
+            callback.onComplete(success, message);
+        }
+    }
+
+    private void updateItem(Download download, String state) {
+        ContentValues values = new ContentValues();
+        values.put("etag", download.etag);
+        values.put("md5", download.md5);
+        values.put("content_type", download.contentType);
+        values.put("total_size", download.totalSize);
+        values.put("attempts", download.attempts);
+        values.put("state", state);
+        try {
+            helper.getWritableDatabase().update("items", values, "job_id = ? AND url = ?",
+                    new String[]{String.valueOf(download.jobId), download.url});
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to update download " + download.url, e);
+        }
+    }
+
+    private void deleteJob(long jobId) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        String[] args = {String.valueOf(jobId)};
+        db.delete("items", "job_id = ?", args);
+        db.delete("jobs", "id = ?", args);
+    }
+
+    private void deletePart(Download download) {
+        File part = new File(partDir, download.partName);
+        if (part.exists() && !part.delete()) {
+            Log.w(TAG, "Failed to delete " + part);
+        }
+    }
+
+    /**
+     * First byte position of a {@code Content-Range: bytes a-b/c} header, or -1
+     */
+    static long parseContentRangeStart(String header) {
+        if (header == null || !header.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = header.indexOf('-');
+        return dash > 6 ? parseLong(header.substring(6, dash).trim()) : -1;
+    }
+
+    /**
+     * Complete length from a {@code Content-Range} header, or -1 if absent or unknown ("*")
+     */
+    static long parseContentRangeTotal(String header) {
+        if (header == null) {
+            return -1;
+        }
+        int slash = header.lastIndexOf('/');
+        return slash >= 0 ? parseLong(header.substring(slash + 1).trim()) : -1;
+    }
+
+    /**
+     * Lowercase hex MD5 the server vouches for, from (in order) Content-MD5, a Google Cloud
+     * Storage x-goog-hash, or an ETag that is a plain MD5 (single-part S3/GCS objects).
+     * Returns null if none is available.
+     */
+    static String expectedMd5(String contentMd5, String googHash, String etag) {
+        if (contentMd5 != null) {
+            String hex = base64ToHex(contentMd5.trim());
+            if (hex != null) {
+                return hex;
+            }
+        }
+        if (googHash != null) {
+            for (String part : googHash.split(",")) {
+                part = part.trim();
+                if (part.startsWith("md5=")) {
+                    String hex = base64ToHex(part.substring(4));
+                    if (hex != null) {
+                        return hex;
+                    }
+                }
+            }
+        }
+        if (etag != null && !etag.startsWith("W/")) {
+            String value = etag.replace("\"", "").toLowerCase(Locale.US);
+            if (value.matches("[0-9a-f]{32}")) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static String base64ToHex(String value) {
+        try {
+            byte[] bytes = Base64.decode(value, Base64.DEFAULT);
+            return bytes.length == 16 ? toHex(bytes) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String md5Hex(String value) {
+        try {
+            return toHex(MessageDigest.getInstance("MD5").digest(value.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    private static String md5Hex(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A failed attempt worth repeating (server error, truncated or corrupt download)
+     */
+    private static class RetryException extends IOException {
+        RetryException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A failure that another attempt won't fix, e.g. 404
+     */
+    private static class PermanentException extends IOException {
+        PermanentException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Token bucket shared by every download; holds at most one second of burst
+     */
+    static class BandwidthThrottle {
+        private long bytesPerSecond;
+        private double available;
+        // Unset until the first reservation, which starts with a full bucket
+        private boolean primed;
+        private long lastRefillNanos;
+
+        synchronized void setRate(long bytesPerSecond) {
+            this.bytesPerSecond = Math.max(0, bytesPerSecond);
+            primed = false;
+        }
+
+        void acquire(int bytes) throws InterruptedException {
+            long delay = reserve(bytes, System.nanoTime());
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        }
+
+        /**
+         * Take {@code bytes} from the bucket; returns how many milliseconds the caller must wait
+         */
+        synchronized long reserve(int bytes, long nowNanos) {
+            if (bytesPerSecond <= 0) {
+                return 0;
+            }
+            if (!primed) {
+                primed = true;
+                available = bytesPerSecond;
+            } else {
+                double elapsed = (nowNanos - lastRefillNanos) / 1e9;
+                available = Math.min(bytesPerSecond, available + elapsed * bytesPerSecond);
+            }
+            lastRefillNanos = nowNanos;
+            available -= bytes;
+            return available >= 0 ? 0 : (long) Math.ceil(-available * 1000 / bytesPerSecond);
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String path) {
+            super(context, path, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE jobs ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "name TEXT, "
+                    + "created INTEGER)");
+            db.execSQL("CREATE TABLE items ("
+                    + "job_id INTEGER, "
+                    + "url TEXT, "
+                    + "part_name TEXT, "
+                    + "archive_id TEXT, "
+                    + "bounded INTEGER, "
+                    + "min_x REAL, min_y REAL, max_x REAL, max_y REAL, "
+                    + "etag TEXT, "
+                    + "md5 TEXT, "
+                    + "content_type TEXT, "
+                    + "total_size INTEGER, "
+                    + "attempts INTEGER, "
+                    + "state TEXT, "
+                    + "PRIMARY KEY (job_id, url))");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS items");
+            db.execSQL("DROP TABLE IF EXISTS jobs");
+            onCreate(db);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.skyfi.atak.plugin;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Metadata for every file in the image disk cache: where the image is (footprint bounding
+ * box), which archive it belongs to, its size, when it was last used and which AORs it falls
+ * in. Lets region statistics and region eviction run as indexed queries rather than directory
+ * scans. Size budgeting and LRU eviction belong to {@link DiskLruCache}; this index follows it.
+ *
+ * Kept in a SQLite file next to the cache directory so clearing the directory never removes
+ * the index itself. Not synchronized beyond SQLite's own locking; {@link ImageCacheManager}
+ * calls it from its worker threads.
+ */
+class ImageCacheIndex {
+    private static final String TAG = "SkyFi.ImageCacheIndex";
+    private static final int DATABASE_VERSION = 2;
+
+    static class Entry {
+        final String key;
+        final String archiveId;
+        final Envelope bounds;
+        final long size;
+        final long lastAccess;
+
+        Entry(String key, String archiveId, Envelope bounds, long size, long lastAccess) {
+            this.key = key;
+            this.archiveId = archiveId;
+            this.bounds = bounds;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final DatabaseHelper helper;
+
+    ImageCacheIndex(Context context, File databaseFile) {
+        this.helper = new DatabaseHelper(context.getApplicationContext(), databaseFile.getAbsolutePath());
+    }
+
+    /**
+     * Add or replace the entry for a cache file. {@code bounds} and {@code archiveId} may be
+     * null when the image's location is unknown.
+     */
+    void put(String key, String url, String archiveId, Envelope bounds, long size, String contentType,
+             Collection<String> aorTags) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put("key", key);
+            values.put("url", url);
+            values.put("archive_id", archiveId);
+            values.put("size", size);
+            values.put("content_type", contentType);
+            values.put("last_access", System.currentTimeMillis());
+            values.put("bounded", bounds != null ? 1 : 0);
+            if (bounds != null) {
+                values.put("min_x", bounds.getMinX());
+                values.put("min_y", bounds.getMinY());
+                values.put("max_x", bounds.getMaxX());
+                values.put("max_y", bounds.getMaxY());
+            }
+            db.insertWithOnConflict("entries", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+            db.delete("entry_tags", "key = ?", new String[]{key});
+            if (aorTags != null) {
+                for (String aor : aorTags) {
+                    insertTag(db, key, aor);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    boolean contains(String key) {
+        try (Cursor cursor = helper.getReadableDatabase().rawQuery(
+                "SELECT 1 FROM entries WHERE key = ?", new String[]{key})) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    String getContentType(String key) {
+        try (Cursor cursor = helper.getReadableDatabase().rawQuery(
+                "SELECT content_type FROM entries WHERE key = ?", new String[]{key})) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    void touch(String key) {
+        ContentValues values = new ContentValues();
+        values.put("last_access", System.currentTimeMillis());
+        helper.getWritableDatabase().update("entries", values, "key = ?", new String[]{key});
+    }
+
+    void remove(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String key : keys) {
+                String[] args = {key};
+                db.delete("entry_tags", "key = ?", args);
+                db.delete("entries", "key = ?", args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    void clear() {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.delete("entry_tags", null, null);
+        db.delete("entries", null, null);
+        db.delete("tagged_aors", null, null);
+    }
+
+    int count() {
+        return (int) longQuery("SELECT COUNT(*) FROM entries", null);
+    }
+
+    long totalSize() {
+        return longQuery("SELECT COALESCE(SUM(size), 0) FROM entries", null);
+    }
+
+    int countTagged(String aor) {
+        return (int) longQuery("SELECT COUNT(*) FROM entry_tags WHERE aor = ?", new String[]{aor});
+    }
+
+    long sizeTagged(String aor) {
+        return longQuery("SELECT COALESCE(SUM(e.size), 0) FROM entries e JOIN entry_tags t ON t.key = e.key"
+                + " WHERE t.aor = ?", new String[]{aor});
+    }
+
+    /**
+     * Located entries not tagged with an AOR. Entries with no known location are never
+     * returned, since they can't be shown to be outside it.
+     */
+    List<Entry> entriesOutside(String aor) {
+        return queryEntries("SELECT key, archive_id, bounded, min_x, min_y, max_x, max_y, size, last_access"
+                + " FROM entries WHERE bounded = 1 AND key NOT IN (SELECT key FROM entry_tags WHERE aor = ?)",
+                new String[]{aor});
+    }
+
+    /**
+     * Located entries whose bounding box overlaps an envelope
+     */
+    List<Entry> entriesIntersecting(Envelope envelope) {
+        return queryEntries("SELECT key, archive_id, bounded, min_x, min_y, max_x, max_y, size, last_access"
+                + " FROM entries WHERE bounded = 1 AND max_x >= ? AND min_x <= ? AND max_y >= ? AND min_y <= ?",
+                new String[]{
+                        String.valueOf(envelope.getMinX()), String.valueOf(envelope.getMaxX()),
+                        String.valueOf(envelope.getMinY()), String.valueOf(envelope.getMaxY())});
+    }
+
+    /**
+     * The AOR definition (WKT) the current tags for {@code aor} were computed against, or null
+     */
+    String getTaggedDefinition(String aor) {
+        try (Cursor cursor = helper.getReadableDatabase().rawQuery(
+                "SELECT definition FROM tagged_aors WHERE aor = ?", new String[]{aor})) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    /**
+     * Replace every tag for an AOR, e.g. after the AOR polygon changed
+     */
+    void retag(String aor, String definition, Collection<String> keys) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("entry_tags", "aor = ?", new String[]{aor});
+            for (String key : keys) {
+                insertTag(db, key, aor);
+            }
+            ContentValues values = new ContentValues();
+            values.put("aor", aor);
+            values.put("definition", definition);
+            db.insertWithOnConflict("tagged_aors", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void insertTag(SQLiteDatabase db, String key, String aor) {
+        ContentValues tag = new ContentValues();
+        tag.put("key", key);
+        tag.put("aor", aor);
+        db.insert("entry_tags", null, tag);
+    }
+
+    private long longQuery(String sql, String[] args) {
+        try (Cursor cursor = helper.getReadableDatabase().rawQuery(sql, args)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Index query failed", e);
+            return 0;
+        }
+    }
+
+    private List<Entry> queryEntries(String sql, String[] args) {
+        List<Entry> entries = new ArrayList<>();
+        try (Cursor cursor = helper.getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                Envelope bounds = cursor.getInt(2) == 1
+                        ? new Envelope(cursor.getDouble(3), cursor.getDouble(5), cursor.getDouble(4), cursor.getDouble(6))
+                        : null;
+                entries.add(new Entry(cursor.getString(0), cursor.getString(1), bounds,
+                        cursor.getLong(7), cursor.getLong(8)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Index query failed", e);
+        }
+        return entries;
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String path) {
+            super(context, path, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE entries ("
+                    + "key TEXT PRIMARY KEY, "
+                    + "url TEXT, "
+                    + "archive_id TEXT, "
+                    + "size INTEGER, "
+                    + "content_type TEXT, "
+                    + "last_access INTEGER, "
+                    + "bounded INTEGER, "
+                    + "min_x REAL, min_y REAL, max_x REAL, max_y REAL)");
+            db.execSQL("CREATE INDEX entries_last_access ON entries (last_access)");
+            db.execSQL("CREATE INDEX entries_bounds ON entries (bounded, min_x, max_x)");
+            db.execSQL("CREATE INDEX entries_archive ON entries (archive_id)");
+            db.execSQL("CREATE TABLE entry_tags (key TEXT, aor TEXT)");
+            db.execSQL("CREATE INDEX entry_tags_aor ON entry_tags (aor, key)");
+            db.execSQL("CREATE INDEX entry_tags_key ON entry_tags (key)");
+            db.execSQL("CREATE TABLE tagged_aors (aor TEXT PRIMARY KEY, definition TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 1) {
+                db.execSQL("ALTER TABLE entries ADD COLUMN content_type TEXT");
+                return;
+            }
+            db.execSQL("DROP TABLE IF EXISTS entry_tags");
+            db.execSQL("DROP TABLE IF EXISTS entries");
+            db.execSQL("DROP TABLE IF EXISTS tagged_aors");
+            onCreate(db);
+        }
+    }
+}
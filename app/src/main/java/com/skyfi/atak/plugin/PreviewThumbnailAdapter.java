@@ -1,10 +1,6 @@
 package com.skyfi.atak.plugin;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.Handler;
-import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -14,11 +10,8 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.atakmap.coremap.log.Log;
 import com.skyfi.atak.plugin.skyfiapi.Archive;
 
-import java.net.URL;
-import java.net.URLConnection;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -32,6 +25,7 @@ public class PreviewThumbnailAdapter extends RecyclerView.Adapter<PreviewThumbna
     private List<Archive> archives;
     private OnThumbnailClickListener clickListener;
     private SimpleDateFormat dateFormat;
+    private ThumbnailLoader thumbnailLoader;
 
     public interface OnThumbnailClickListener {
         void onThumbnailClick(Archive archive);
@@ -41,6 +35,7 @@ public class PreviewThumbnailAdapter extends RecyclerView.Adapter<PreviewThumbna
         this.context = context;
         this.archives = new ArrayList<>();
         this.dateFormat = new SimpleDateFormat("MM/dd/yy", Locale.getDefault());
+        this.thumbnailLoader = ThumbnailLoader.getInstance(context);
     }
 
     public void setArchives(List<Archive> archives) {
@@ -80,13 +75,8 @@ public class PreviewThumbnailAdapter extends RecyclerView.Adapter<PreviewThumbna
             holder.dateText.setText("N/A");
         }
 
-        // Load thumbnail image using the same pattern as ArchivesBrowserRecyclerViewAdapter
-        String thumbnailUrl = getThumbnailUrl(archive);
-        if (thumbnailUrl != null && !thumbnailUrl.isEmpty()) {
-            loadThumbnailImage(holder.thumbnailImage, thumbnailUrl);
-        } else {
-            holder.thumbnailImage.setImageResource(R.drawable.placeholder);
-        }
+        // Load thumbnail image through the shared loader, cancelling whatever this row showed before
+        thumbnailLoader.load(holder.thumbnailImage, getThumbnailUrl(archive));
 
         // Set click listener
         holder.itemView.setOnClickListener(v -> {
@@ -96,6 +86,11 @@ public class PreviewThumbnailAdapter extends RecyclerView.Adapter<PreviewThumbna
         });
     }
 
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        thumbnailLoader.cancel(holder.thumbnailImage);
+    }
+
     @Override
     public int getItemCount() {
         return archives.size();
@@ -110,29 +105,6 @@ public class PreviewThumbnailAdapter extends RecyclerView.Adapter<PreviewThumbna
         return archive.getTitlesUrl();
     }
 
-    private void loadThumbnailImage(ImageView imageView, String imageUrl) {
-        Handler handler = new Handler(Looper.getMainLooper());
-        Thread thread = new Thread(() -> {
-            try {
-                URL thumbnailUrl = new URL(imageUrl);
-                URLConnection connection = thumbnailUrl.openConnection();
-                Bitmap image = BitmapFactory.decodeStream(connection.getInputStream());
-                handler.post(() -> {
-                    if (image != null) {
-                        imageView.setImageBitmap(image);
-                        imageView.setAlpha(1f);
-                    } else {
-                        imageView.setImageResource(R.drawable.placeholder);
-                    }
-                });
-            } catch (Exception e) {
-                Log.e(LOGTAG, "Failed to load thumbnail: " + imageUrl, e);
-                handler.post(() -> imageView.setImageResource(R.drawable.placeholder));
-            }
-        });
-        thread.start();
-    }
-
     public static class ViewHolder extends RecyclerView.ViewHolder {
         ImageView thumbnailImage;
         TextView providerText;
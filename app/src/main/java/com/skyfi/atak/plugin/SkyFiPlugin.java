@@ -141,7 +141,7 @@ public class SkyFiPlugin implements MainRecyclerViewAdapter.ItemClickListener {
         
         // Initialize API client now that plugin is fully loaded
         try {
-            apiClient = new APIClient().getApiClient();
+            apiClient = APIClient.getInstance().getApiClient();
             apiClient.ping().enqueue(new Callback<Pong>() {
                 @Override
                 public void onResponse(Call<Pong> call, Response<Pong> response) {
@@ -262,6 +262,13 @@ public class SkyFiPlugin implements MainRecyclerViewAdapter.ItemClickListener {
         if (radialMenuReceiver != null) {
             radialMenuReceiver.dispose();
         }
+        
+        // Release pooled API connections
+        APIClient client = APIClient.peekInstance();
+        if (client != null) {
+            Log.d(LOGTAG, "API GET requests: " + client.getRequestCount() + ", coalesced: " + client.getCoalescedRequestCount());
+        }
+        APIClient.shutdown();
     }
 
     /**
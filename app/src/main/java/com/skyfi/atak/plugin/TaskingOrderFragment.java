@@ -734,7 +734,7 @@ public class TaskingOrderFragment extends DropDownReceiver implements DropDown.O
             return;
         }
 
-        apiClient = new APIClient().getApiClient();
+        apiClient = APIClient.getInstance().getApiClient();
         apiClient.taskingOrder(taskingOrder).enqueue(new Callback<Order>() {
             @Override
             public void onResponse(@NonNull Call<Order> call, @NonNull Response<Order> response) {
@@ -767,7 +767,7 @@ public class TaskingOrderFragment extends DropDownReceiver implements DropDown.O
     }
 
     private void getPricing() {
-        apiClient = new APIClient().getApiClient();
+        apiClient = APIClient.getInstance().getApiClient();
         apiClient.getTaskingPricing(new PricingQuery(taskingOrder.getAoi())).enqueue(new Callback<PricingResponse>() {
             @Override
             public void onResponse(@NonNull Call<PricingResponse> call, @NonNull Response<PricingResponse> response) {
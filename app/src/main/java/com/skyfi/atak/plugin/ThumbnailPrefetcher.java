@@ -0,0 +1,155 @@
+package com.skyfi.atak.plugin;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Prefetches thumbnails for the rows a list is about to show.
+ *
+ * On every scroll the prefetcher takes the layout manager's visible range and the smoothed
+ * scroll velocity and asks {@link ThumbnailLoader} for the rows ahead of it: at least one
+ * screenful, more the faster the list moves, enough to cover {@link #LOOKAHEAD_MS} of
+ * scrolling on a slow link. Prefetches for rows that fell out of that window are cancelled.
+ * Thumbnails for a page that hasn't been appended yet can be queued with
+ * {@link #prefetchUpcoming}; they run after everything in the list itself.
+ *
+ * Call from the main thread.
+ */
+public class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+    // How far ahead to fetch, in scrolling time at the current velocity
+    private static final long LOOKAHEAD_MS = 1500;
+    // Rows kept warm behind the scroll direction, for small reversals
+    private static final int BEHIND_ROWS = 2;
+    private static final int MAX_AHEAD_ROWS = 40;
+    // Weight of the newest sample in the velocity average
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
+    /**
+     * Rows of the list being prefetched for
+     */
+    public interface UrlSource {
+        int getItemCount();
+
+        /**
+         * Thumbnail URL of the row at {@code position}, or null if it has none
+         */
+        String getThumbnailUrl(int position);
+    }
+
+    private final LinearLayoutManager layoutManager;
+    private final UrlSource source;
+    private final ThumbnailLoader loader;
+    private final List<String> upcomingUrls = new ArrayList<>();
+
+    private long lastScrollTime;
+    // Pixels per millisecond, positive when scrolling towards the end of the list
+    private float velocity;
+
+    public ThumbnailPrefetcher(LinearLayoutManager layoutManager, UrlSource source, ThumbnailLoader loader) {
+        this.layoutManager = layoutManager;
+        this.source = source;
+        this.loader = loader;
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - lastScrollTime;
+        lastScrollTime = now;
+        if (elapsed > 0 && elapsed < 500) {
+            velocity += VELOCITY_SMOOTHING * ((float) dy / elapsed - velocity);
+        } else {
+            velocity = 0;
+        }
+        update(recyclerView.getHeight());
+    }
+
+    @Override
+    public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            velocity = 0;
+            update(recyclerView.getHeight());
+        }
+    }
+
+    /**
+     * Queue thumbnails for rows that will be appended later (e.g. the next result page) at
+     * the lowest priority. Replaces the previous upcoming set.
+     */
+    public void prefetchUpcoming(Collection<String> urls) {
+        upcomingUrls.clear();
+        upcomingUrls.addAll(urls);
+        int distance = 0;
+        for (String url : upcomingUrls) {
+            loader.prefetch(url, distance++, ThumbnailLoader.PRIORITY_NEXT_PAGE);
+        }
+    }
+
+    /**
+     * Forget the upcoming set, e.g. once those rows are in the list or the search changed
+     */
+    public void clearUpcoming() {
+        upcomingUrls.clear();
+    }
+
+    /**
+     * Recompute the prefetch window around the visible range, e.g. after the data changed
+     */
+    public void refresh() {
+        update(0);
+    }
+
+    private void update(int viewportHeight) {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        int count = source.getItemCount();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION || count == 0) {
+            return;
+        }
+
+        int visibleRows = last - first + 1;
+        int ahead = visibleRows;
+        if (viewportHeight > 0 && velocity != 0) {
+            float rowHeight = (float) viewportHeight / visibleRows;
+            ahead = Math.max(ahead, (int) Math.ceil(Math.abs(velocity) * LOOKAHEAD_MS / rowHeight));
+        }
+        ahead = Math.min(ahead, MAX_AHEAD_ROWS);
+
+        int start;
+        int end;
+        if (velocity < 0) {
+            start = first - ahead;
+            end = last + BEHIND_ROWS;
+        } else {
+            start = first - BEHIND_ROWS;
+            end = last + ahead;
+        }
+        start = Math.max(0, start);
+        end = Math.min(count - 1, end);
+
+        Set<String> window = new HashSet<>(upcomingUrls);
+        // Rows on screen are loaded by binding; the loader orders the rest by distance
+        for (int position = start; position <= end; position++) {
+            if (position >= first && position <= last) {
+                continue;
+            }
+            String url = source.getThumbnailUrl(position);
+            if (url == null) {
+                continue;
+            }
+            window.add(url);
+            int distance = position < first ? first - position : position - last;
+            loader.prefetch(url, distance, ThumbnailLoader.PRIORITY_PREFETCH);
+        }
+        loader.retainPrefetches(window);
+    }
+}
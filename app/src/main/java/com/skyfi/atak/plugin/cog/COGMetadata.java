@@ -2,29 +2,34 @@ package com.skyfi.atak.plugin.cog;
 
 import com.atakmap.coremap.log.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Parses Cloud Optimized GeoTIFF metadata from HTTP headers
+ * Parses Cloud Optimized GeoTIFF metadata using ranged reads
  * Reads TIFF IFDs (Image File Directories) to understand the COG structure
+ *
+ * Only the header and the IFD entries are read up front, each with a small ranged read. Tag
+ * values too large to sit inline are read when needed; the tile offset and byte count tables,
+ * which run to megabytes for a large scene, are read the first time their overview is used.
+ * Classic TIFF and BigTIFF are both supported.
  */
 public class COGMetadata {
-    
+
     private static final String TAG = "SkyFi.COGMetadata";
-    
+
     // TIFF constants
     private static final int TIFF_LITTLE_ENDIAN = 0x4949;
     private static final int TIFF_BIG_ENDIAN = 0x4D4D;
     private static final int TIFF_MAGIC = 42;
-    
+    private static final int BIGTIFF_MAGIC = 43;
+
     // GeoTIFF tags we care about
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
     private static final int TAG_IMAGE_WIDTH = 256;
     private static final int TAG_IMAGE_HEIGHT = 257;
     private static final int TAG_TILE_WIDTH = 322;
@@ -37,13 +42,64 @@ public class COGMetadata {
     private static final int TAG_BITS_PER_SAMPLE = 258;
     private static final int TAG_MODEL_PIXEL_SCALE = 33550;
     private static final int TAG_MODEL_TIEPOINT = 33922;
-    
-    private String cogUrl;
+    private static final int TAG_MODEL_TRANSFORMATION = 34264;
+    private static final int TAG_GEO_KEY_DIRECTORY = 34735;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+    private static final int TAG_PREDICTOR = 317;
+    private static final int TAG_EXTRA_SAMPLES = 338;
+    private static final int TAG_SAMPLE_FORMAT = 339;
+    private static final int TAG_JPEG_TABLES = 347;
+    private static final int TAG_GDAL_NODATA = 42113;
+
+    // TIFF field types
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_UNDEFINED = 7;
+    private static final int TYPE_DOUBLE = 12;
+    private static final int TYPE_IFD = 13;
+    private static final int TYPE_LONG8 = 16;
+    private static final int TYPE_IFD8 = 18;
+
+    // GeoKeys naming the CRS, and the value meaning "user-defined" rather than an EPSG code
+    private static final int GEO_KEY_MODEL_TYPE = 1024;
+    private static final int GEO_KEY_GEOGRAPHIC_TYPE = 2048;
+    private static final int GEO_KEY_PROJECTED_TYPE = 3072;
+    private static final int MODEL_TYPE_GEOGRAPHIC = 2;
+    private static final int USER_DEFINED = 32767;
+    private static final int MAX_GEO_KEYS = 64;
+
+    // NewSubfileType bit marking a transparency mask rather than an overview
+    private static final int SUBFILE_MASK = 4;
+    // Guards against IFD loops in corrupt files
+    private static final int MAX_IFDS = 64;
+
+    private COGSource source;
     private boolean isBigEndian;
+    private boolean isBigTiff;
     private List<IFD> overviews;
     private double[] geoTransform;
     private int epsgCode = 4326; // Default to WGS84
-    
+    private double noData = Double.NaN;
+
+    /**
+     * An array-valued tag whose values haven't been read yet, unless they were inline
+     */
+    private static class DeferredArray {
+        final int type;
+        final int count;
+        final long offset;
+        final long[] inlineValues;
+
+        DeferredArray(int type, int count, long offset, long[] inlineValues) {
+            this.type = type;
+            this.count = count;
+            this.offset = offset;
+            this.inlineValues = inlineValues;
+        }
+    }
+
     /**
      * Image File Directory - represents one overview level
      */
@@ -52,242 +108,603 @@ public class COGMetadata {
         public int height;
         public int tileWidth;
         public int tileHeight;
-        public long[] tileOffsets;
-        public long[] tileByteCounts;
         public int compression;
         public int photometric;
         public int samplesPerPixel;
         public int bitsPerSample;
         public double pixelScale;
-        
+        public int planarConfiguration = 1;
+        public int predictor = 1;
+        public int sampleFormat = 1;
+        // Index of the sample holding alpha, or -1 if every extra sample is just another band
+        public int alphaSample = -1;
+        // Shared JPEG quantization and Huffman tables for compression 7, or null
+        public byte[] jpegTables;
+
+        // Tile index, loaded the first time a tile of this overview is requested
+        private DeferredArray offsetsRef;
+        private DeferredArray byteCountsRef;
+        private long[] tileOffsets;
+        private long[] tileByteCounts;
+
         public int getTilesAcross() {
             return (width + tileWidth - 1) / tileWidth;
         }
-        
+
         public int getTilesDown() {
             return (height + tileHeight - 1) / tileHeight;
         }
-        
+
         public int getTileIndex(int tileX, int tileY) {
             return tileY * getTilesAcross() + tileX;
         }
     }
-    
+
     private COGMetadata() {
         this.overviews = new ArrayList<>();
         this.geoTransform = new double[6];
     }
-    
+
     /**
-     * Read COG metadata from URL using HTTP range requests
+     * Read COG metadata from URL using HTTP range requests, or from the file if the URL names
+     * one on this device
      */
     public static COGMetadata readFromUrl(String cogUrl) throws IOException {
+        File local = COGFileSource.localFile(cogUrl, null);
+        return read(local != null ? new COGFileSource(local) : new COGBlockCache(cogUrl));
+    }
+
+    /**
+     * Read COG metadata from {@code source}, which is kept for loading tile indexes later
+     */
+    static COGMetadata read(COGSource source) throws IOException {
         COGMetadata metadata = new COGMetadata();
-        metadata.cogUrl = cogUrl;
-        
-        // Read first 16KB to get header and first IFD
-        byte[] headerData = fetchBytes(cogUrl, 0, 16384);
-        ByteBuffer buffer = ByteBuffer.wrap(headerData);
-        
+        metadata.source = source;
+
         // Read TIFF header
-        metadata.readHeader(buffer);
-        
+        long ifdOffset = metadata.readHeader();
+
         // Read IFDs (overview levels)
-        metadata.readIFDs(buffer);
-        
-        Log.d(TAG, "Read COG metadata: " + metadata.overviews.size() + " overview levels");
+        metadata.readIFDs(ifdOffset);
+        if (metadata.overviews.isEmpty()) {
+            throw new IOException("COG has no tiled image directories");
+        }
+
+        Log.d(TAG, "Read COG metadata: " + metadata.overviews.size() + " overview levels"
+                + (metadata.isBigTiff ? " (BigTIFF)" : ""));
         return metadata;
     }
-    
-    private void readHeader(ByteBuffer buffer) throws IOException {
+
+    /**
+     * Validate the header and return the offset of the first IFD
+     */
+    private long readHeader() throws IOException {
+        ByteBuffer buffer = source.read(0, 16);
+
         // Check byte order
-        short byteOrder = buffer.getShort();
+        short byteOrder = buffer.getShort(0);
         if (byteOrder == TIFF_LITTLE_ENDIAN) {
             isBigEndian = false;
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
         } else if (byteOrder == TIFF_BIG_ENDIAN) {
             isBigEndian = true;
-            buffer.order(ByteOrder.BIG_ENDIAN);
         } else {
             throw new IOException("Invalid TIFF byte order marker: " + byteOrder);
         }
-        
+        buffer.order(byteOrder());
+
         // Check magic number
-        short magic = buffer.getShort();
-        if (magic != TIFF_MAGIC) {
-            throw new IOException("Invalid TIFF magic number: " + magic);
-        }
-        
-        Log.d(TAG, "TIFF header valid, byte order: " + (isBigEndian ? "big" : "little"));
-    }
-    
-    private void readIFDs(ByteBuffer buffer) throws IOException {
-        // Get offset to first IFD
-        int ifdOffset = buffer.getInt();
-        
-        while (ifdOffset != 0 && overviews.size() < 10) { // Limit to 10 overviews
-            buffer.position(ifdOffset);
-            
+        short magic = buffer.getShort(2);
+        if (magic == TIFF_MAGIC) {
+            isBigTiff = false;
+            return buffer.getInt(4) & 0xFFFFFFFFL;
+        }
+        if (magic == BIGTIFF_MAGIC) {
+            if (buffer.getShort(4) != 8) {
+                throw new IOException("Unsupported BigTIFF offset size: " + buffer.getShort(4));
+            }
+            isBigTiff = true;
+            return buffer.getLong(8);
+        }
+        throw new IOException("Invalid TIFF magic number: " + magic);
+    }
+
+    private void readIFDs(long ifdOffset) throws IOException {
+        int entrySize = isBigTiff ? 20 : 12;
+        int countSize = isBigTiff ? 8 : 2;
+        int offsetSize = isBigTiff ? 8 : 4;
+        int directories = 0;
+
+        while (ifdOffset != 0 && directories++ < MAX_IFDS) {
+            ByteBuffer countBuffer = read(ifdOffset, countSize);
+            long numEntries = isBigTiff ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xFFFF;
+            if (numEntries <= 0 || numEntries > 4096) {
+                throw new IOException("Invalid IFD entry count " + numEntries + " at " + ifdOffset);
+            }
+
+            // The entries and the next-IFD offset in one read
+            ByteBuffer buffer = read(ifdOffset + countSize, (int) numEntries * entrySize + offsetSize);
+
             IFD ifd = new IFD();
-            int numEntries = buffer.getShort() & 0xFFFF;
-            
+            int subfileType = 0;
+            long[] extraSamples = null;
+
             for (int i = 0; i < numEntries; i++) {
-                int tag = buffer.getShort() & 0xFFFF;
-                int type = buffer.getShort() & 0xFFFF;
-                int count = buffer.getInt();
-                int valueOffset = buffer.getInt();
-                
-                // Save current position
-                int savedPos = buffer.position();
-                
+                int entry = i * entrySize;
+                int tag = buffer.getShort(entry) & 0xFFFF;
+                int type = buffer.getShort(entry + 2) & 0xFFFF;
+                long count = isBigTiff ? buffer.getLong(entry + 4) : buffer.getInt(entry + 4) & 0xFFFFFFFFL;
+                int valueField = entry + (isBigTiff ? 12 : 8);
+
                 switch (tag) {
+                    case TAG_NEW_SUBFILE_TYPE:
+                        subfileType = (int) readScalar(buffer, type, valueField);
+                        break;
                     case TAG_IMAGE_WIDTH:
-                        ifd.width = readIntValue(buffer, type, valueOffset);
+                        ifd.width = (int) readScalar(buffer, type, valueField);
                         break;
                     case TAG_IMAGE_HEIGHT:
-                        ifd.height = readIntValue(buffer, type, valueOffset);
+                        ifd.height = (int) readScalar(buffer, type, valueField);
                         break;
                     case TAG_TILE_WIDTH:
-                        ifd.tileWidth = readIntValue(buffer, type, valueOffset);
+                        ifd.tileWidth = (int) readScalar(buffer, type, valueField);
                         break;
                     case TAG_TILE_HEIGHT:
-                        ifd.tileHeight = readIntValue(buffer, type, valueOffset);
+                        ifd.tileHeight = (int) readScalar(buffer, type, valueField);
                         break;
                     case TAG_COMPRESSION:
-                        ifd.compression = readIntValue(buffer, type, valueOffset);
+                        ifd.compression = (int) readScalar(buffer, type, valueField);
                         break;
                     case TAG_PHOTOMETRIC:
-                        ifd.photometric = readIntValue(buffer, type, valueOffset);
+                        ifd.photometric = (int) readScalar(buffer, type, valueField);
                         break;
                     case TAG_SAMPLES_PER_PIXEL:
-                        ifd.samplesPerPixel = readIntValue(buffer, type, valueOffset);
+                        ifd.samplesPerPixel = (int) readScalar(buffer, type, valueField);
                         break;
                     case TAG_BITS_PER_SAMPLE:
-                        ifd.bitsPerSample = readIntValue(buffer, type, valueOffset);
+                        // One value per sample; they're all the same in practice
+                        ifd.bitsPerSample = (int) readValues(buffer, type, count, valueField, 1)[0];
                         break;
                     case TAG_TILE_OFFSETS:
-                        ifd.tileOffsets = readLongArray(buffer, type, count, valueOffset);
+                        ifd.offsetsRef = deferArray(buffer, type, count, valueField);
                         break;
                     case TAG_TILE_BYTE_COUNTS:
-                        ifd.tileByteCounts = readLongArray(buffer, type, count, valueOffset);
+                        ifd.byteCountsRef = deferArray(buffer, type, count, valueField);
                         break;
                     case TAG_MODEL_PIXEL_SCALE:
-                        readPixelScale(buffer, ifd, valueOffset);
+                        readPixelScale(buffer, ifd, type, count, valueField);
+                        break;
+                    case TAG_MODEL_TIEPOINT:
+                        readTiepoint(buffer, type, count, valueField);
+                        break;
+                    case TAG_MODEL_TRANSFORMATION:
+                        readTransformation(buffer, type, count, valueField);
+                        break;
+                    case TAG_GEO_KEY_DIRECTORY:
+                        if (overviews.isEmpty()) {
+                            readGeoKeys(buffer, type, count, valueField);
+                        }
+                        break;
+                    case TAG_PLANAR_CONFIGURATION:
+                        ifd.planarConfiguration = (int) readScalar(buffer, type, valueField);
+                        break;
+                    case TAG_PREDICTOR:
+                        ifd.predictor = (int) readScalar(buffer, type, valueField);
+                        break;
+                    case TAG_SAMPLE_FORMAT:
+                        ifd.sampleFormat = (int) readValues(buffer, type, count, valueField, 1)[0];
+                        break;
+                    case TAG_EXTRA_SAMPLES:
+                        extraSamples = readValues(buffer, type, count, valueField, 4);
+                        break;
+                    case TAG_JPEG_TABLES:
+                        ifd.jpegTables = readBytes(buffer, type, count, valueField);
+                        break;
+                    case TAG_GDAL_NODATA:
+                        if (overviews.isEmpty()) {
+                            readNoData(buffer, type, count, valueField);
+                        }
                         break;
                 }
-                
-                // Restore position
-                buffer.position(savedPos);
             }
-            
-            overviews.add(ifd);
-            
+
+            if (extraSamples != null) {
+                // 1 = associated, 2 = unassociated alpha; extra samples follow the color ones
+                for (int i = 0; i < extraSamples.length; i++) {
+                    if (extraSamples[i] == 1 || extraSamples[i] == 2) {
+                        ifd.alphaSample = ifd.samplesPerPixel - extraSamples.length + i;
+                        break;
+                    }
+                }
+            }
+
             // Get offset to next IFD
-            ifdOffset = buffer.getInt();
-            
-            Log.d(TAG, String.format("Read IFD %d: %dx%d, tiles %dx%d", 
+            int next = (int) numEntries * entrySize;
+            ifdOffset = isBigTiff ? buffer.getLong(next) : buffer.getInt(next) & 0xFFFFFFFFL;
+
+            if ((subfileType & SUBFILE_MASK) != 0 || ifd.tileWidth == 0 || ifd.offsetsRef == null) {
+                // Transparency masks and stripped images can't be served as tiles
+                continue;
+            }
+            if (!overviews.isEmpty() && ifd.pixelScale == 0) {
+                // Overviews carry no georeferencing of their own
+                IFD full = overviews.get(0);
+                ifd.pixelScale = full.pixelScale * full.width / ifd.width;
+            }
+            overviews.add(ifd);
+
+            Log.d(TAG, String.format("Read IFD %d: %dx%d, tiles %dx%d",
                 overviews.size(), ifd.width, ifd.height, ifd.tileWidth, ifd.tileHeight));
         }
     }
-    
-    private int readIntValue(ByteBuffer buffer, int type, int offset) {
-        if (type == 3) { // SHORT
-            return offset & 0xFFFF; // Value is stored in offset field
-        } else if (type == 4) { // LONG
-            return offset; // Value is stored in offset field
+
+    /**
+     * A single SHORT, LONG or LONG8 value stored in an entry's value field
+     */
+    private long readScalar(ByteBuffer buffer, int type, int valueField) {
+        switch (type) {
+            case TYPE_SHORT:
+                return buffer.getShort(valueField) & 0xFFFF;
+            case TYPE_LONG:
+            case TYPE_IFD:
+                return buffer.getInt(valueField) & 0xFFFFFFFFL;
+            case TYPE_LONG8:
+            case TYPE_IFD8:
+                return buffer.getLong(valueField);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The first {@code limit} values of an integer array tag, inline or at its offset
+     */
+    private long[] readValues(ByteBuffer buffer, int type, long count, int valueField, int limit)
+            throws IOException {
+        DeferredArray array = deferArray(buffer, type, count, valueField);
+        if (array.inlineValues != null) {
+            return array.inlineValues;
+        }
+        int n = (int) Math.min(count, limit);
+        return decodeArray(read(array.offset, n * typeSize(type)), 0, type, n);
+    }
+
+    /**
+     * The raw bytes of a BYTE, ASCII or UNDEFINED tag
+     */
+    private byte[] readBytes(ByteBuffer buffer, int type, long count, int valueField) throws IOException {
+        if ((type != TYPE_BYTE && type != TYPE_ASCII && type != TYPE_UNDEFINED) || count > 1 << 20) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) count];
+        if (count <= (isBigTiff ? 8 : 4)) {
+            for (int i = 0; i < count; i++) {
+                bytes[i] = buffer.get(valueField + i);
+            }
+            return bytes;
+        }
+        long offset = isBigTiff ? buffer.getLong(valueField) : buffer.getInt(valueField) & 0xFFFFFFFFL;
+        read(offset, (int) count).get(bytes);
+        return bytes;
+    }
+
+    private void readNoData(ByteBuffer buffer, int type, long count, int valueField) throws IOException {
+        byte[] text = readBytes(buffer, type, count, valueField);
+        if (text == null) {
+            return;
+        }
+        try {
+            // trim() also drops the NUL terminator
+            noData = Double.parseDouble(new String(text, "US-ASCII").trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring unparseable GDAL_NODATA value");
+        }
+    }
+
+    /**
+     * Reference to an array tag's values, decoded straight away when they're inline in the entry
+     */
+    private DeferredArray deferArray(ByteBuffer buffer, int type, long count, int valueField) throws IOException {
+        int size = typeSize(type);
+        if (size == 0 || count > Integer.MAX_VALUE / size) {
+            throw new IOException("Unsupported TIFF array: type " + type + ", count " + count);
+        }
+        if (count * size <= (isBigTiff ? 8 : 4)) {
+            return new DeferredArray(type, (int) count, -1,
+                    type == TYPE_DOUBLE ? null : decodeArray(buffer, valueField, type, (int) count));
+        }
+        long offset = isBigTiff ? buffer.getLong(valueField) : buffer.getInt(valueField) & 0xFFFFFFFFL;
+        return new DeferredArray(type, (int) count, offset, null);
+    }
+
+    private static long[] decodeArray(ByteBuffer buffer, int position, int type, int count) {
+        long[] values = new long[count];
+        int size = typeSize(type);
+        for (int i = 0; i < count; i++) {
+            int at = position + i * size;
+            switch (type) {
+                case TYPE_SHORT:
+                    values[i] = buffer.getShort(at) & 0xFFFF;
+                    break;
+                case TYPE_LONG:
+                case TYPE_IFD:
+                    values[i] = buffer.getInt(at) & 0xFFFFFFFFL;
+                    break;
+                default:
+                    values[i] = buffer.getLong(at);
+                    break;
+            }
+        }
+        return values;
+    }
+
+    static int typeSize(int type) {
+        switch (type) {
+            case TYPE_SHORT:
+                return 2;
+            case TYPE_LONG:
+            case TYPE_IFD:
+                return 4;
+            case TYPE_LONG8:
+            case TYPE_IFD8:
+            case TYPE_DOUBLE:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private void readPixelScale(ByteBuffer buffer, IFD ifd, int type, long count, int valueField) throws IOException {
+        double[] scale = readDoubles(buffer, type, count, valueField);
+        if (scale.length >= 2) {
+            ifd.pixelScale = Math.abs(scale[0]); // Use absolute value
+            if (!overviews.isEmpty()) {
+                return; // Georeferencing comes from the full-resolution image
+            }
+            geoTransform[1] = scale[0];
+            geoTransform[5] = -scale[1];
+        }
+    }
+
+    private void readTiepoint(ByteBuffer buffer, int type, long count, int valueField) throws IOException {
+        // (I, J, K, X, Y, Z): raster point (I, J) sits at model point (X, Y)
+        double[] tiepoint = readDoubles(buffer, type, count, valueField);
+        if (tiepoint.length >= 6 && overviews.isEmpty()) {
+            geoTransform[0] = tiepoint[3] - tiepoint[0] * geoTransform[1];
+            geoTransform[3] = tiepoint[4] - tiepoint[1] * geoTransform[5];
+        }
+    }
+
+    private void readTransformation(ByteBuffer buffer, int type, long count, int valueField) throws IOException {
+        // Row-major 4x4 matrix taking raster (I, J, 0, 1) to model (X, Y, Z, 1)
+        double[] matrix = readDoubles(buffer, type, count, valueField);
+        if (matrix.length >= 16 && overviews.isEmpty()) {
+            geoTransform[0] = matrix[3];
+            geoTransform[1] = matrix[0];
+            geoTransform[2] = matrix[1];
+            geoTransform[3] = matrix[7];
+            geoTransform[4] = matrix[4];
+            geoTransform[5] = matrix[5];
+        }
+    }
+
+    /**
+     * Take the EPSG code from the GeoKeyDirectory: a 4-value header, then (key, location,
+     * count, value) entries whose value is inline when location is 0
+     */
+    private void readGeoKeys(ByteBuffer buffer, int type, long count, int valueField) throws IOException {
+        if (type != TYPE_SHORT || count < 4) {
+            return;
+        }
+        long[] keys = readValues(buffer, type, count, valueField, 4 + MAX_GEO_KEYS * 4);
+        int modelType = 0;
+        int geographic = 0;
+        int projected = 0;
+        for (int at = 4; at + 3 < keys.length && at < 4 + keys[3] * 4; at += 4) {
+            if (keys[at + 1] != 0) {
+                continue;
+            }
+            int value = (int) keys[at + 3];
+            if (keys[at] == GEO_KEY_MODEL_TYPE) {
+                modelType = value;
+            } else if (keys[at] == GEO_KEY_GEOGRAPHIC_TYPE) {
+                geographic = value;
+            } else if (keys[at] == GEO_KEY_PROJECTED_TYPE) {
+                projected = value;
+            }
+        }
+        if (projected != 0 && projected != USER_DEFINED && modelType != MODEL_TYPE_GEOGRAPHIC) {
+            epsgCode = projected;
+        } else if (geographic != 0 && geographic != USER_DEFINED) {
+            epsgCode = geographic;
         }
-        return 0;
     }
-    
-    private long[] readLongArray(ByteBuffer buffer, int type, int count, int offset) {
-        long[] array = new long[count];
-        
-        // For large arrays, offset points to the data
-        if (count * 4 > 4) {
-            buffer.position(offset);
+
+    private double[] readDoubles(ByteBuffer buffer, int type, long count, int valueField) throws IOException {
+        if (type != TYPE_DOUBLE || count > 1024) {
+            return new double[0];
         }
-        
+        DeferredArray array = deferArray(buffer, type, count, valueField);
+        ByteBuffer values = array.offset < 0 ? buffer : read(array.offset, (int) count * 8);
+        int position = array.offset < 0 ? valueField : 0;
+        double[] result = new double[(int) count];
         for (int i = 0; i < count; i++) {
-            if (type == 4) { // LONG
-                array[i] = buffer.getInt() & 0xFFFFFFFFL;
-            } else if (type == 3) { // SHORT
-                array[i] = buffer.getShort() & 0xFFFF;
+            result[i] = values.getDouble(position + i * 8);
+        }
+        return result;
+    }
+
+    /**
+     * Load an overview's tile offsets and byte counts if this is its first use
+     */
+    private void ensureTileIndex(IFD ifd) throws IOException {
+        synchronized (ifd) {
+            if (ifd.tileOffsets != null) {
+                return;
             }
+            long[] byteCounts = loadArray(ifd.byteCountsRef);
+            ifd.tileOffsets = loadArray(ifd.offsetsRef);
+            ifd.tileByteCounts = byteCounts;
+            Log.d(TAG, "Loaded tile index: " + ifd.tileOffsets.length + " tiles for " + ifd.width + "x" + ifd.height);
         }
-        
-        return array;
     }
-    
-    private void readPixelScale(ByteBuffer buffer, IFD ifd, int offset) {
-        buffer.position(offset);
-        double xScale = buffer.getDouble();
-        double yScale = buffer.getDouble();
-        ifd.pixelScale = Math.abs(xScale); // Use absolute value
+
+    private long[] loadArray(DeferredArray array) throws IOException {
+        if (array == null) {
+            throw new IOException("Missing tile index");
+        }
+        if (array.inlineValues != null) {
+            return array.inlineValues;
+        }
+        return decodeArray(read(array.offset, array.count * typeSize(array.type)), 0, array.type, array.count);
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        return source.read(offset, length).order(byteOrder());
     }
-    
+
+    private ByteOrder byteOrder() {
+        return isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
     /**
-     * Get the appropriate overview level for a given zoom
+     * Get the appropriate overview level for a given Web Mercator zoom, judged at the centre
+     * of the image
      */
     public int getOverviewForZoom(int zoom) {
-        // Simple strategy: use full resolution for high zooms,
-        // progressively lower resolution for lower zooms
-        if (zoom >= 18) return 0; // Full resolution
-        if (zoom >= 16) return Math.min(1, overviews.size() - 1);
-        if (zoom >= 14) return Math.min(2, overviews.size() - 1);
-        if (zoom >= 12) return Math.min(3, overviews.size() - 1);
-        return Math.min(4, overviews.size() - 1);
-    }
-    
+        COGTileMath.Projection projection = COGTileMath.forEpsg(epsgCode);
+        if (projection == null || !isGeoreferenced()) {
+            return 0;
+        }
+        IFD full = overviews.get(0);
+        double[] a = new double[2];
+        double[] b = new double[2];
+        pixelToModel(full.width / 2.0, full.height / 2.0, a);
+        pixelToModel(full.width / 2.0 + 1, full.height / 2.0 + 1, b);
+        projection.toMercator(a[0], a[1], a);
+        projection.toMercator(b[0], b[1], b);
+        // Mercator meters per full-resolution pixel, from one pixel's diagonal
+        double pixelSize = Math.hypot(b[0] - a[0], b[1] - a[1]) / Math.sqrt(2);
+        return getOverviewForScale(COGTileMath.resolution(zoom) / pixelSize);
+    }
+
+    /**
+     * The coarsest overview that still has at least one pixel per output pixel
+     *
+     * @param scale Full-resolution pixels covered by one output pixel
+     */
+    public int getOverviewForScale(double scale) {
+        IFD full = overviews.get(0);
+        int best = 0;
+        double bestDecimation = 1;
+        for (int i = 1; i < overviews.size(); i++) {
+            double decimation = (double) full.width / overviews.get(i).width;
+            // Tolerate rounding in the overview sizes of odd-sized images
+            if (decimation > bestDecimation && decimation <= scale * 1.001) {
+                best = i;
+                bestDecimation = decimation;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Model (CRS) coordinates of a full-resolution pixel position; (0, 0) is the top-left
+     * corner of the first pixel
+     */
+    public void pixelToModel(double column, double row, double[] out) {
+        double[] gt = geoTransform;
+        out[0] = gt[0] + column * gt[1] + row * gt[2];
+        out[1] = gt[3] + column * gt[4] + row * gt[5];
+    }
+
+    /**
+     * Full-resolution pixel position of model (CRS) coordinates, as {column, row}
+     */
+    public void modelToPixel(double x, double y, double[] out) {
+        double[] gt = geoTransform;
+        double det = gt[1] * gt[5] - gt[2] * gt[4];
+        double dx = x - gt[0];
+        double dy = y - gt[3];
+        out[0] = (gt[5] * dx - gt[2] * dy) / det;
+        out[1] = (gt[1] * dy - gt[4] * dx) / det;
+    }
+
+    /**
+     * Whether the COG carries a usable pixel-to-model transform
+     */
+    public boolean isGeoreferenced() {
+        double[] gt = geoTransform;
+        return gt[1] * gt[5] - gt[2] * gt[4] != 0;
+    }
+
+    /**
+     * EPSG code of the COG's CRS, WGS84 (4326) if it doesn't declare one
+     */
+    public int getEpsgCode() {
+        return epsgCode;
+    }
+
+    /**
+     * Calculate byte range for a specific tile, loading the overview's tile index on first use
+     */
+    public long[] getTileByteRange(int overviewLevel, int tileX, int tileY) throws IOException {
+        return getTileByteRange(overviewLevel, tileX, tileY, 0);
+    }
+
     /**
-     * Calculate byte range for a specific tile
+     * Byte range of one band's tile when bands are stored in separate planes
+     * (PlanarConfiguration 2); {@code plane} must be 0 for interleaved images
      */
-    public long[] getTileByteRange(int overviewLevel, int tileX, int tileY) {
+    public long[] getTileByteRange(int overviewLevel, int tileX, int tileY, int plane) throws IOException {
         if (overviewLevel >= overviews.size()) {
             return null;
         }
-        
+
         IFD ifd = overviews.get(overviewLevel);
-        
+
         // Check bounds
-        if (tileX >= ifd.getTilesAcross() || tileY >= ifd.getTilesDown()) {
+        if (tileX < 0 || tileY < 0 || tileX >= ifd.getTilesAcross() || tileY >= ifd.getTilesDown()) {
             return null;
         }
-        
-        int tileIndex = ifd.getTileIndex(tileX, tileY);
-        if (tileIndex >= ifd.tileOffsets.length) {
+
+        ensureTileIndex(ifd);
+        int tileIndex = plane * ifd.getTilesAcross() * ifd.getTilesDown() + ifd.getTileIndex(tileX, tileY);
+        if (tileIndex >= ifd.tileOffsets.length || tileIndex >= ifd.tileByteCounts.length) {
             return null;
         }
-        
+
         long offset = ifd.tileOffsets[tileIndex];
         long byteCount = ifd.tileByteCounts[tileIndex];
-        
+
         return new long[] { offset, offset + byteCount - 1 };
     }
-    
+
+    public boolean isBigTiff() {
+        return isBigTiff;
+    }
+
+    public int getOverviewCount() {
+        return overviews.size();
+    }
+
+    public IFD getOverview(int level) {
+        return overviews.get(level);
+    }
+
     /**
-     * Fetch bytes from URL using HTTP range request
+     * Byte order of the file, which is also the byte order of uncompressed multi-byte samples
      */
-    private static byte[] fetchBytes(String url, long start, long length) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setRequestProperty("Range", String.format("bytes=%d-%d", start, start + length - 1));
-        connection.setRequestMethod("GET");
-        
-        try {
-            try (InputStream is = connection.getInputStream()) {
-                byte[] buffer = new byte[(int) length];
-                int totalRead = 0;
-                while (totalRead < length) {
-                    int read = is.read(buffer, totalRead, (int) (length - totalRead));
-                    if (read == -1) break;
-                    totalRead += read;
-                }
-                return buffer;
-            }
-        } finally {
-            connection.disconnect();
-        }
+    public ByteOrder getByteOrder() {
+        return byteOrder();
     }
-    
+
+    /**
+     * The GDAL_NODATA value, or NaN if the COG doesn't declare one
+     */
+    public double getNoData() {
+        return noData;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("COGMetadata{");
@@ -297,7 +714,11 @@ public class COGMetadata {
             sb.append(", fullRes=").append(first.width).append("x").append(first.height);
             sb.append(", tileSize=").append(first.tileWidth).append("x").append(first.tileHeight);
         }
+        sb.append(", epsg=").append(epsgCode);
+        if (isBigTiff) {
+            sb.append(", bigTiff");
+        }
         sb.append("}");
         return sb.toString();
     }
-}
\ No newline at end of file
+}
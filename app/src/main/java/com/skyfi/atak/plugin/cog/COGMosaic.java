@@ -0,0 +1,269 @@
+package com.skyfi.atak.plugin.cog;
+
+import com.atakmap.coremap.log.Log;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Many COGs served as one layer.
+ *
+ * Member footprints are kept in an R-tree (JTS's STRtree, rebuilt whenever membership changes,
+ * which is rare next to tile requests), so a tile only touches the COGs under it. Those are
+ * rendered newest capture first and composited beneath what's already drawn; once the tile is
+ * fully opaque the older COGs aren't read at all.
+ */
+class COGMosaic implements COGTileServer.TileSource {
+
+    private static final String TAG = "SkyFi.COGMosaic";
+    private static final int TILE_SIZE = COGReader.TILE_SIZE;
+
+    // Per upstream thread: the tile being composited and the layer being added beneath it
+    private static final ThreadLocal<int[][]> BUFFERS = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[][]{new int[TILE_SIZE * TILE_SIZE], new int[TILE_SIZE * TILE_SIZE]};
+        }
+    };
+
+    // Newest capture first; among equal captures, the most recently added
+    private static final Comparator<Member> NEWEST_FIRST = new Comparator<Member>() {
+        @Override
+        public int compare(Member a, Member b) {
+            if (a.capturedAt != b.capturedAt) {
+                return a.capturedAt > b.capturedAt ? -1 : 1;
+            }
+            return a.sequence > b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private static class Member {
+        final String url;
+        final COGReader reader;
+        final long capturedAt;
+        final long sequence;
+
+        Member(String url, COGReader reader, long capturedAt, long sequence) {
+            this.url = url;
+            this.reader = reader;
+            this.capturedAt = capturedAt;
+            this.sequence = sequence;
+        }
+    }
+
+    private final COGTileEncoder encoder;
+    private final List<Member> members = new ArrayList<>();
+    private long nextSequence;
+    // Rebuilt on every change and replaced whole, so tile reads never lock
+    private volatile STRtree index = emptyIndex();
+    private volatile Envelope footprint = new Envelope();
+
+    COGMosaic(COGTileEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Add an initialized reader for {@code url}
+     *
+     * @return The reader it replaced, or null
+     */
+    synchronized COGReader add(String url, COGReader reader, long capturedAt) {
+        COGReader replaced = detach(url);
+        members.add(new Member(url, reader, capturedAt, nextSequence++));
+        rebuildIndex();
+        return replaced;
+    }
+
+    /**
+     * Remove the COG at {@code url}
+     *
+     * @return Its reader, for the caller to close, or null if it wasn't a member
+     */
+    synchronized COGReader remove(String url) {
+        COGReader removed = detach(url);
+        if (removed != null) {
+            rebuildIndex();
+        }
+        return removed;
+    }
+
+    /**
+     * Close every member
+     */
+    synchronized void close() {
+        for (Member member : members) {
+            member.reader.close();
+        }
+        members.clear();
+        rebuildIndex();
+    }
+
+    /**
+     * Identifies the current membership and stacking order, for keying cached tiles
+     */
+    synchronized String getCacheKey() {
+        List<Member> ordered = new ArrayList<>(members);
+        Collections.sort(ordered, NEWEST_FIRST);
+        StringBuilder key = new StringBuilder("mosaic:");
+        for (Member member : ordered) {
+            key.append(member.url).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Union of the members' footprints
+     */
+    @Override
+    public Envelope getFootprint() {
+        return footprint;
+    }
+
+    /**
+     * Encoded tile; a member that can't be read is left out, and the tile thrown as partial
+     */
+    @Override
+    public byte[] getTile(int z, int x, int y) throws IOException {
+        return compose(z, x, y, false, false);
+    }
+
+    @Override
+    public byte[] encodeTile(int z, int x, int y, boolean alphaFormat) throws IOException {
+        return compose(z, x, y, true, alphaFormat);
+    }
+
+    /**
+     * Composite the members under one tile, newest on top
+     *
+     * @param strict Throw a member's read error rather than leaving it out of the tile
+     * @throws PartialTileException if not strict and a member was left out
+     */
+    private byte[] compose(int z, int x, int y, boolean strict, boolean alphaFormat) throws IOException {
+        double[] bounds = COGTileMath.tileBounds(z, x, y);
+        @SuppressWarnings("unchecked")
+        List<Member> hits = index.query(new Envelope(bounds[0], bounds[2], bounds[1], bounds[3]));
+        if (hits.isEmpty()) {
+            return null;
+        }
+        if (hits.size() == 1) {
+            // Nothing to composite; lets aligned JPEG tiles pass through untouched
+            return hits.get(0).reader.encodeTile(z, x, y, alphaFormat);
+        }
+        Collections.sort(hits, NEWEST_FIRST);
+
+        int[][] buffers = BUFFERS.get();
+        int[] tile = buffers[0];
+        int[] layer = buffers[1];
+        boolean drawn = false;
+        boolean opaque = false;
+        IOException skipped = null;
+        for (Member member : hits) {
+            try {
+                if (!member.reader.renderTile(z, x, y, drawn ? layer : tile)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                // Or the tile server cancelled the request
+                if (strict || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                Log.w(TAG, "Skipping " + member.url + " for tile " + z + "/" + x + "/" + y + ": " + e.getMessage());
+                skipped = e;
+                continue;
+            }
+            opaque = drawn ? compositeUnder(tile, layer) : isOpaque(tile);
+            drawn = true;
+            if (opaque) {
+                break;
+            }
+        }
+        if (!drawn) {
+            if (skipped != null) {
+                throw skipped;
+            }
+            return null;
+        }
+        byte[] encoded = encoder.encode(tile, TILE_SIZE, TILE_SIZE, !opaque || alphaFormat);
+        if (skipped != null) {
+            throw new PartialTileException(encoded, skipped);
+        }
+        return encoded;
+    }
+
+    /**
+     * Draw {@code below} beneath {@code tile}, in place
+     *
+     * @return Whether {@code tile} is now fully opaque
+     */
+    static boolean compositeUnder(int[] tile, int[] below) {
+        boolean opaque = true;
+        for (int i = 0; i < tile.length; i++) {
+            int top = tile[i];
+            int topAlpha = top >>> 24;
+            if (topAlpha == 0xff) {
+                continue;
+            }
+            int bottom = below[i];
+            int bottomAlpha = bottom >>> 24;
+            if (topAlpha == 0) {
+                tile[i] = bottom;
+            } else if (bottomAlpha != 0) {
+                // Porter-Duff "over" on unpremultiplied colour
+                int under = bottomAlpha * (0xff - topAlpha) / 0xff;
+                int alpha = topAlpha + under;
+                int argb = alpha << 24;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int channel = ((top >> shift & 0xff) * topAlpha + (bottom >> shift & 0xff) * under) / alpha;
+                    argb |= channel << shift;
+                }
+                tile[i] = argb;
+            }
+            if (tile[i] >>> 24 != 0xff) {
+                opaque = false;
+            }
+        }
+        return opaque;
+    }
+
+    private static boolean isOpaque(int[] tile) {
+        for (int argb : tile) {
+            if (argb >>> 24 != 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private COGReader detach(String url) {
+        for (int i = 0; i < members.size(); i++) {
+            if (members.get(i).url.equals(url)) {
+                return members.remove(i).reader;
+            }
+        }
+        return null;
+    }
+
+    private void rebuildIndex() {
+        STRtree tree = new STRtree();
+        Envelope union = new Envelope();
+        for (Member member : members) {
+            tree.insert(member.reader.getFootprint(), member);
+            union.expandToInclude(member.reader.getFootprint());
+        }
+        tree.build();
+        index = tree;
+        footprint = union;
+    }
+
+    private static STRtree emptyIndex() {
+        STRtree tree = new STRtree();
+        tree.build();
+        return tree;
+    }
+}
@@ -0,0 +1,486 @@
+package com.skyfi.atak.plugin.cog;
+
+import com.atakmap.coremap.log.Log;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Renders Web Mercator XYZ tiles from one COG.
+ *
+ * An output tile is mapped into the COG through its CRS and geotransform. The overview is
+ * chosen by ground resolution, so zoomed-out views read coarse overviews rather than
+ * full-resolution data; the internal tiles under the output tile's footprint, usually two to
+ * four, are read in one batch, decoded, and resampled into the 256x256 output. Source
+ * positions are projected exactly on a coarse grid and interpolated in between, which stays
+ * well under a pixel of error at tile scale. When an internal JPEG tile lines up exactly with
+ * the output tile it is served as-is.
+ */
+class COGReader implements COGTileServer.TileSource {
+
+    private static final String TAG = "SkyFi.COGReader";
+
+    static final int TILE_SIZE = COGTileMath.TILE_SIZE;
+
+    // Output pixels between exactly projected grid points
+    private static final int GRID_STEP = 16;
+    private static final int GRID_POINTS = TILE_SIZE / GRID_STEP + 1;
+    // More internal tiles than this under one output tile means the COG has no overview
+    // coarse enough, and the tile is left empty rather than reading the whole image
+    private static final int MAX_SOURCE_TILES = 16;
+    // Points traced along each image edge for the footprint
+    private static final int FOOTPRINT_STEPS = 16;
+    // Fraction of samples clipped at each end when stretching 16-bit imagery
+    private static final double STRETCH_CLIP = 0.02;
+
+    // Per upstream thread, reused for every tile
+    private static final ThreadLocal<int[]> PIXEL_BUFFERS = new ThreadLocal<>();
+    private static final ThreadLocal<int[][]> SOURCE_BUFFERS = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[MAX_SOURCE_TILES][];
+        }
+    };
+
+    /**
+     * Where an output tile falls in the COG
+     */
+    private static class Window {
+        int level;
+        // Source pixel position, in overview pixels, of each grid point
+        final double[] gridX = new double[GRID_POINTS * GRID_POINTS];
+        final double[] gridY = new double[GRID_POINTS * GRID_POINTS];
+        // Inclusive range of internal tiles to read
+        int tileX0;
+        int tileY0;
+        int tileX1;
+        int tileY1;
+    }
+
+    /**
+     * Decoded internal tiles of a window, addressed by overview pixel
+     */
+    private static class SourcePixels {
+        final int[][] tiles;
+        final int tileX0;
+        final int tileY0;
+        final int across;
+        final int tileWidth;
+        final int tileHeight;
+        final int width;
+        final int height;
+
+        SourcePixels(int[][] tiles, Window window, COGMetadata.IFD ifd) {
+            this.tiles = tiles;
+            this.tileX0 = window.tileX0;
+            this.tileY0 = window.tileY0;
+            this.across = window.tileX1 - window.tileX0 + 1;
+            this.tileWidth = ifd.tileWidth;
+            this.tileHeight = ifd.tileHeight;
+            this.width = ifd.width;
+            this.height = ifd.height;
+        }
+
+        /**
+         * The pixel at (x, y), transparent outside the image or in a sparse tile
+         */
+        int get(int x, int y) {
+            if (x < 0 || y < 0 || x >= width || y >= height) {
+                return 0;
+            }
+            int[] tile = tiles[(y / tileHeight - tileY0) * across + (x / tileWidth - tileX0)];
+            return tile == null ? 0 : tile[(y % tileHeight) * tileWidth + x % tileWidth];
+        }
+
+        /**
+         * Bilinear sample at a continuous position, nearest-neighbour next to transparency so
+         * nodata edges stay crisp instead of bleeding dark
+         */
+        int sample(double x, double y) {
+            double fx = x - 0.5;
+            double fy = y - 0.5;
+            int x0 = (int) Math.floor(fx);
+            int y0 = (int) Math.floor(fy);
+            int p00 = get(x0, y0);
+            int p10 = get(x0 + 1, y0);
+            int p01 = get(x0, y0 + 1);
+            int p11 = get(x0 + 1, y0 + 1);
+            if ((p00 & p10 & p01 & p11) >>> 24 != 0xff) {
+                return get((int) Math.floor(x), (int) Math.floor(y));
+            }
+            double wx = fx - x0;
+            double wy = fy - y0;
+            int argb = 0xff000000;
+            for (int shift = 0; shift < 24; shift += 8) {
+                double top = (p00 >> shift & 0xff) * (1 - wx) + (p10 >> shift & 0xff) * wx;
+                double bottom = (p01 >> shift & 0xff) * (1 - wx) + (p11 >> shift & 0xff) * wx;
+                argb |= (int) (top + (bottom - top) * wy + 0.5) << shift;
+            }
+            return argb;
+        }
+    }
+
+    private final String cogUrl;
+    private final COGSource source;
+    private final COGTileEncoder encoder;
+    private COGMetadata metadata;
+    private COGTileMath.Projection projection;
+    private COGTileDecoder[] decoders;
+    private int[] stretch;
+    private Envelope footprint;
+
+    /**
+     * @param source The COG's bytes: a {@link COGBlockCache} for remote files, a
+     *               {@link COGFileSource} for files on the device. Closed with the reader.
+     */
+    COGReader(String cogUrl, COGSource source, COGTileEncoder encoder) {
+        this.cogUrl = cogUrl;
+        this.source = source;
+        this.encoder = encoder;
+    }
+
+    void initialize() throws IOException {
+        // Read COG headers to get metadata
+        metadata = COGMetadata.read(source);
+        if (!metadata.isGeoreferenced()) {
+            throw new IOException("COG has no georeferencing: " + cogUrl);
+        }
+        projection = COGTileMath.forEpsg(metadata.getEpsgCode());
+        if (projection == null) {
+            throw new IOException("Unsupported COG CRS EPSG:" + metadata.getEpsgCode());
+        }
+        decoders = new COGTileDecoder[metadata.getOverviewCount()];
+        footprint = traceFootprint();
+        Log.d(TAG, "Initialized COG reader: " + metadata.toString());
+
+        COGTileDecoder coarsest = getDecoder(metadata.getOverviewCount() - 1);
+        if (coarsest.isSixteenBit()) {
+            initStretch(coarsest);
+        }
+    }
+
+    /**
+     * Pick one 16-bit stretch for the whole image from the coarsest overview, so that
+     * neighbouring tiles match
+     */
+    private void initStretch(COGTileDecoder coarsest) {
+        try {
+            ByteBuffer[] tileData = fetchPlanes(metadata.getOverviewCount() - 1, coarsest, 0, 0);
+            if (tileData == null) {
+                return;
+            }
+            int[] histogram = coarsest.histogram(tileData);
+            boolean signed = metadata.getOverview(0).sampleFormat == 2;
+            int[] range = COGTileDecoder.percentileRange(histogram, STRETCH_CLIP, 1 - STRETCH_CLIP, signed);
+            synchronized (this) {
+                stretch = range;
+                for (COGTileDecoder decoder : decoders) {
+                    if (decoder != null) {
+                        decoder.setStretch(range[0], range[1]);
+                    }
+                }
+            }
+            Log.d(TAG, "16-bit stretch " + range[0] + ".." + range[1]);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not sample COG for a stretch: " + e.getMessage());
+        }
+    }
+
+    private synchronized COGTileDecoder getDecoder(int overviewLevel) throws IOException {
+        if (decoders[overviewLevel] == null) {
+            COGMetadata.IFD ifd = metadata.getOverview(overviewLevel);
+            decoders[overviewLevel] = new COGTileDecoder(ifd, metadata.getByteOrder(), metadata.getNoData());
+            if (stretch != null) {
+                decoders[overviewLevel].setStretch(stretch[0], stretch[1]);
+            }
+        }
+        return decoders[overviewLevel];
+    }
+
+    /**
+     * Web Mercator bounding box of the image, traced along its edges so that edges which
+     * curve once projected are still covered
+     */
+    @Override
+    public Envelope getFootprint() {
+        return footprint;
+    }
+
+    private Envelope traceFootprint() {
+        COGMetadata.IFD full = metadata.getOverview(0);
+        Envelope envelope = new Envelope();
+        double[] point = new double[2];
+        for (int i = 0; i <= FOOTPRINT_STEPS; i++) {
+            double along = (double) i / FOOTPRINT_STEPS;
+            double[][] edges = {
+                    {along * full.width, 0}, {along * full.width, full.height},
+                    {0, along * full.height}, {full.width, along * full.height}};
+            for (double[] edge : edges) {
+                metadata.pixelToModel(edge[0], edge[1], point);
+                projection.toMercator(point[0], point[1], point);
+                envelope.expandToInclude(point[0], point[1]);
+            }
+        }
+        return envelope;
+    }
+
+    /**
+     * Encoded XYZ tile, or null if the tile doesn't touch the image
+     */
+    @Override
+    public byte[] getTile(int z, int x, int y) throws IOException {
+        return encodeTile(z, x, y, false);
+    }
+
+    @Override
+    public byte[] encodeTile(int z, int x, int y, boolean alphaFormat) throws IOException {
+        Window window = locate(z, x, y);
+        if (window == null) {
+            return null;
+        }
+
+        COGMetadata.IFD ifd = metadata.getOverview(window.level);
+        if (!alphaFormat && isAligned(window, ifd)) {
+            // Already a JPEG covering exactly this tile; no need to decode and re-encode it
+            int tileX = (int) Math.round(window.gridX[0] / TILE_SIZE);
+            int tileY = (int) Math.round(window.gridY[0] / TILE_SIZE);
+            ByteBuffer[] tileData = fetchPlanes(window.level, getDecoder(window.level), tileX, tileY);
+            if (tileData != null) {
+                return COGTileDecoder.spliceJpegTables(ifd.jpegTables, tileData[0]);
+            }
+        }
+
+        int[] pixels = pixelBuffer(TILE_SIZE * TILE_SIZE);
+        boolean translucent = render(window, pixels);
+        return encoder.encode(pixels, TILE_SIZE, TILE_SIZE, translucent || alphaFormat);
+    }
+
+    /**
+     * Render an XYZ tile as {@link #TILE_SIZE} square ARGB pixels, without encoding it
+     *
+     * @return false, leaving {@code out} untouched, if the tile doesn't touch the image
+     */
+    boolean renderTile(int z, int x, int y, int[] out) throws IOException {
+        Window window = locate(z, x, y);
+        if (window == null) {
+            return false;
+        }
+        render(window, out);
+        return true;
+    }
+
+    /**
+     * Map an XYZ tile into the COG and choose its overview, or return null if it misses the
+     * image entirely or would need more than {@link #MAX_SOURCE_TILES} internal tiles
+     */
+    private Window locate(int z, int x, int y) {
+        Window window = new Window();
+        double[] bounds = COGTileMath.tileBounds(z, x, y);
+        double step = (bounds[2] - bounds[0]) / TILE_SIZE * GRID_STEP;
+        double[] point = new double[2];
+        for (int j = 0, k = 0; j < GRID_POINTS; j++) {
+            for (int i = 0; i < GRID_POINTS; i++, k++) {
+                projection.fromMercator(bounds[0] + i * step, bounds[3] - j * step, point);
+                metadata.modelToPixel(point[0], point[1], point);
+                window.gridX[k] = point[0];
+                window.gridY[k] = point[1];
+            }
+        }
+
+        // Full-resolution pixels per output pixel along each edge of the tile
+        int right = GRID_POINTS - 1;
+        int bottom = (GRID_POINTS - 1) * GRID_POINTS;
+        double scaleX = Math.hypot(window.gridX[right] - window.gridX[0], window.gridY[right] - window.gridY[0]);
+        double scaleY = Math.hypot(window.gridX[bottom] - window.gridX[0], window.gridY[bottom] - window.gridY[0]);
+        window.level = metadata.getOverviewForScale(Math.min(scaleX, scaleY) / TILE_SIZE);
+
+        COGMetadata.IFD full = metadata.getOverview(0);
+        COGMetadata.IFD ifd = metadata.getOverview(window.level);
+        double factorX = (double) ifd.width / full.width;
+        double factorY = (double) ifd.height / full.height;
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int k = 0; k < window.gridX.length; k++) {
+            window.gridX[k] *= factorX;
+            window.gridY[k] *= factorY;
+            minX = Math.min(minX, window.gridX[k]);
+            minY = Math.min(minY, window.gridY[k]);
+            maxX = Math.max(maxX, window.gridX[k]);
+            maxY = Math.max(maxY, window.gridY[k]);
+        }
+
+        if (maxX <= 0 || maxY <= 0 || minX >= ifd.width || minY >= ifd.height) {
+            return null;
+        }
+
+        // One pixel of margin for bilinear sampling
+        int x0 = (int) Math.max(0, Math.floor(minX) - 1);
+        int y0 = (int) Math.max(0, Math.floor(minY) - 1);
+        int x1 = (int) Math.min(ifd.width - 1, Math.ceil(maxX));
+        int y1 = (int) Math.min(ifd.height - 1, Math.ceil(maxY));
+        window.tileX0 = x0 / ifd.tileWidth;
+        window.tileY0 = y0 / ifd.tileHeight;
+        window.tileX1 = x1 / ifd.tileWidth;
+        window.tileY1 = y1 / ifd.tileHeight;
+        int tiles = (window.tileX1 - window.tileX0 + 1) * (window.tileY1 - window.tileY0 + 1);
+        if (tiles > MAX_SOURCE_TILES) {
+            Log.d(TAG, "No overview coarse enough for z" + z + "; tile would need " + tiles + " COG tiles");
+            return null;
+        }
+        return window;
+    }
+
+    /**
+     * Whether the window is exactly one whole internal JPEG tile at 1:1, so it can be served
+     * without resampling
+     */
+    private static boolean isAligned(Window window, COGMetadata.IFD ifd) {
+        if (ifd.compression != COGTileDecoder.COMPRESSION_JPEG
+                || ifd.tileWidth != TILE_SIZE || ifd.tileHeight != TILE_SIZE) {
+            return false;
+        }
+        double originX = window.gridX[0];
+        double originY = window.gridY[0];
+        long tileX = Math.round(originX / TILE_SIZE);
+        long tileY = Math.round(originY / TILE_SIZE);
+        if (Math.abs(originX - tileX * TILE_SIZE) > 0.01 || Math.abs(originY - tileY * TILE_SIZE) > 0.01
+                || tileX < 0 || tileY < 0
+                || (tileX + 1) * TILE_SIZE > ifd.width || (tileY + 1) * TILE_SIZE > ifd.height) {
+            return false;
+        }
+        for (int j = 0, k = 0; j < GRID_POINTS; j++) {
+            for (int i = 0; i < GRID_POINTS; i++, k++) {
+                if (Math.abs(window.gridX[k] - originX - i * GRID_STEP) > 0.01
+                        || Math.abs(window.gridY[k] - originY - j * GRID_STEP) > 0.01) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read, decode and resample the window into a {@link #TILE_SIZE} square of ARGB pixels
+     *
+     * @return Whether any output pixel is translucent
+     */
+    private boolean render(Window window, int[] out) throws IOException {
+        COGMetadata.IFD ifd = metadata.getOverview(window.level);
+        COGTileDecoder decoder = getDecoder(window.level);
+        int across = window.tileX1 - window.tileX0 + 1;
+        int down = window.tileY1 - window.tileY0 + 1;
+
+        // Every plane of every internal tile in one batched read
+        int[] planes = decoder.getPlanes();
+        long[] offsets = new long[across * down * planes.length];
+        int[] lengths = new int[offsets.length];
+        int ranges = 0;
+        boolean[] present = new boolean[across * down];
+        long[][] tileRanges = new long[planes.length][];
+        for (int t = 0; t < present.length; t++) {
+            present[t] = true;
+            for (int p = 0; p < planes.length && present[t]; p++) {
+                tileRanges[p] = metadata.getTileByteRange(window.level,
+                        window.tileX0 + t % across, window.tileY0 + t / across, planes[p]);
+                // Sparse tiles have no data
+                present[t] = tileRanges[p] != null && tileRanges[p][1] >= tileRanges[p][0];
+            }
+            for (int p = 0; p < planes.length && present[t]; p++) {
+                offsets[ranges] = tileRanges[p][0];
+                lengths[ranges++] = (int) (tileRanges[p][1] - tileRanges[p][0] + 1);
+            }
+        }
+        ByteBuffer[] data = source.read(Arrays.copyOf(offsets, ranges), Arrays.copyOf(lengths, ranges));
+
+        int[][] buffers = SOURCE_BUFFERS.get();
+        int[][] tiles = new int[across * down][];
+        for (int t = 0, next = 0; t < tiles.length; t++) {
+            if (!present[t]) {
+                continue;
+            }
+            ByteBuffer[] tileData = new ByteBuffer[planes.length];
+            for (int p = 0; p < planes.length; p++) {
+                tileData[p] = data[next++];
+            }
+            if (buffers[t] == null || buffers[t].length < ifd.tileWidth * ifd.tileHeight) {
+                buffers[t] = new int[ifd.tileWidth * ifd.tileHeight];
+            }
+            decoder.decode(tileData, buffers[t]);
+            tiles[t] = buffers[t];
+        }
+
+        SourcePixels source = new SourcePixels(tiles, window, ifd);
+        boolean translucent = false;
+        for (int py = 0; py < TILE_SIZE; py++) {
+            double v = (py + 0.5) / GRID_STEP;
+            int row = (int) v;
+            double fv = v - row;
+            for (int px = 0; px < TILE_SIZE; px++) {
+                double u = (px + 0.5) / GRID_STEP;
+                int column = (int) u;
+                double fu = u - column;
+                int k = row * GRID_POINTS + column;
+                int argb = source.sample(interpolate(window.gridX, k, fu, fv),
+                        interpolate(window.gridY, k, fu, fv));
+                out[py * TILE_SIZE + px] = argb;
+                translucent |= argb >>> 24 != 0xff;
+            }
+        }
+        return translucent;
+    }
+
+    private static double interpolate(double[] grid, int k, double fu, double fv) {
+        double top = grid[k] + (grid[k + 1] - grid[k]) * fu;
+        double bottom = grid[k + GRID_POINTS] + (grid[k + GRID_POINTS + 1] - grid[k + GRID_POINTS]) * fu;
+        return top + (bottom - top) * fv;
+    }
+
+    /**
+     * Raw bytes of every plane the decoder needs for one internal tile, or null if it has no data
+     */
+    private ByteBuffer[] fetchPlanes(int overviewLevel, COGTileDecoder decoder, int x, int y) throws IOException {
+        int[] planes = decoder.getPlanes();
+        ByteBuffer[] tileData = new ByteBuffer[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            // Calculate byte range for this tile
+            long[] byteRange = metadata.getTileByteRange(overviewLevel, x, y, planes[i]);
+            if (byteRange == null) {
+                return null;
+            }
+            tileData[i] = fetchTileData(byteRange[0], byteRange[1]);
+            if (tileData[i] == null) {
+                return null;
+            }
+        }
+        return tileData;
+    }
+
+    private ByteBuffer fetchTileData(long start, long end) throws IOException {
+        int length = (int) (end - start + 1);
+        if (length <= 0) {
+            return null; // Sparse tile with no data
+        }
+
+        // Remote: neighbouring tiles usually share blocks, and misses are coalesced into
+        // spanning GETs. Local: a slice of the mapped file.
+        return source.read(start, length);
+    }
+
+    private static int[] pixelBuffer(int size) {
+        int[] pixels = PIXEL_BUFFERS.get();
+        if (pixels == null || pixels.length < size) {
+            pixels = new int[size];
+            PIXEL_BUFFERS.set(pixels);
+        }
+        return pixels;
+    }
+
+    void close() {
+        source.close();
+    }
+}
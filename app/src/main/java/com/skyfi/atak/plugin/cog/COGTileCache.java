@@ -0,0 +1,507 @@
+package com.skyfi.atak.plugin.cog;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import com.atakmap.coremap.log.Log;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier cache of rendered COG tiles.
+ *
+ * The memory tier is an {@link LruCache} keyed by a packed long (source, z, x, y) rather than a
+ * formatted string, so one source's tiles can be evicted without flushing the others. The disk
+ * tier is one MBTiles file per COG source in the cache directory, named after its URL, so tiles
+ * survive restarts and re-adding the same COG reuses them.
+ *
+ * The disk tier is held to a byte budget across the whole directory. Stores not opened for
+ * {@link #STALE_MS} are deleted, then closed stores least recently used first; that also reclaims
+ * the orphans left when a delivery is re-added under a new signed URL. If the open stores alone
+ * are over budget, their oldest-written tiles go.
+ *
+ * Layers showing the same COG share one source. Thread-safe.
+ */
+class COGTileCache {
+
+    private static final String TAG = "SkyFi.COGTileCache";
+
+    // Packed key layout: source index | zoom | x | y
+    private static final int XY_BITS = 24;
+    private static final int ZOOM_BITS = 5;
+    private static final int SOURCE_BITS = 64 - ZOOM_BITS - 2 * XY_BITS;
+    static final int MAX_SOURCES = 1 << SOURCE_BITS;
+
+    static final long DEFAULT_DISK_BYTES = 512L * 1024 * 1024;
+    // Stores unused this long are deleted whatever the budget
+    static final long STALE_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final String STORE_SUFFIX = ".mbtiles";
+
+    /**
+     * Cached tiles of one COG
+     */
+    private static class Source {
+        final int index;
+        final String url;
+        SQLiteDatabase db;
+        int layers;
+
+        Source(int index, String url) {
+            this.index = index;
+            this.url = url;
+        }
+    }
+
+    private final File directory;
+    private final long diskBytes;
+    // Persisted bytes since the budget was last enforced
+    private final AtomicLong unchecked = new AtomicLong();
+    private final Object trimLock = new Object();
+    private final LruCache<Long, byte[]> memoryCache;
+    private final Map<String, Source> sourcesByLayer = new HashMap<>();
+    private final Map<String, Source> sourcesByUrl = new HashMap<>();
+    private final ArrayDeque<Integer> freeIndexes = new ArrayDeque<>();
+    private int nextIndex;
+
+    /**
+     * @param directory Directory for the per-source MBTiles files, or null for memory only
+     * @param memoryBytes Size of the memory tier
+     */
+    COGTileCache(File directory, int memoryBytes) {
+        this(directory, memoryBytes, DEFAULT_DISK_BYTES);
+    }
+
+    /**
+     * @param directory Directory for the per-source MBTiles files, or null for memory only
+     * @param memoryBytes Size of the memory tier
+     * @param diskBytes Budget for every store in {@code directory} together
+     */
+    COGTileCache(File directory, int memoryBytes, long diskBytes) {
+        this.directory = directory;
+        this.diskBytes = diskBytes;
+        this.memoryCache = new LruCache<Long, byte[]>(memoryBytes) {
+            @Override
+            protected int sizeOf(Long key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * Attach a layer to the cache of the COG at {@code url}, opening its tile store
+     */
+    void openLayer(String layerId, String url) {
+        if (attach(layerId, url)) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * @return Whether a store was opened
+     */
+    private synchronized boolean attach(String layerId, String url) {
+        if (sourcesByLayer.containsKey(layerId)) {
+            return false;
+        }
+        boolean opened = false;
+        Source source = sourcesByUrl.get(url);
+        if (source == null) {
+            Integer index = freeIndexes.poll();
+            if (index == null) {
+                if (nextIndex >= MAX_SOURCES) {
+                    throw new IllegalStateException("Too many COG sources");
+                }
+                index = nextIndex++;
+            }
+            source = new Source(index, url);
+            source.db = openStore(url);
+            sourcesByUrl.put(url, source);
+            opened = source.db != null;
+        }
+        source.layers++;
+        sourcesByLayer.put(layerId, source);
+        return opened;
+    }
+
+    /**
+     * Detach a layer, keeping its tiles on disk for the next time the COG is added
+     */
+    void closeLayer(String layerId) {
+        Source source = detach(layerId);
+        if (source != null && source.db != null) {
+            closeStore(source.db);
+        }
+    }
+
+    /**
+     * Detach a layer and delete its cached tiles. Other layers and, if another layer still shows
+     * the same COG, this COG's tiles are left alone.
+     */
+    void clearLayer(String layerId) {
+        Source source = detach(layerId);
+        if (source != null && source.db != null) {
+            File file = new File(source.db.getPath());
+            source.db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Close every store, keeping the files
+     */
+    synchronized void close() {
+        for (Source source : sourcesByUrl.values()) {
+            evictMemory(source.index);
+            if (source.db != null) {
+                closeStore(source.db);
+            }
+        }
+        sourcesByUrl.clear();
+        sourcesByLayer.clear();
+        freeIndexes.clear();
+        nextIndex = 0;
+    }
+
+    /**
+     * A tile from the memory tier. Cheap enough for the server's selector thread.
+     */
+    byte[] getFromMemory(String layerId, int z, int x, int y) {
+        long key = keyFor(layerId, z, x, y);
+        return key != -1 ? memoryCache.get(key) : null;
+    }
+
+    /**
+     * A tile from the disk tier, promoted to memory when found. Does disk I/O.
+     */
+    byte[] getFromDisk(String layerId, int z, int x, int y) {
+        Source source = getSource(layerId);
+        if (source == null || source.db == null || !isPackable(z, x, y)) {
+            return null;
+        }
+        byte[] data = null;
+        try (Cursor cursor = source.db.rawQuery(
+                "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?",
+                new String[]{String.valueOf(z), String.valueOf(x), String.valueOf(tmsRow(z, y))})) {
+            if (cursor.moveToFirst()) {
+                data = cursor.getBlob(0);
+            }
+        } catch (Exception e) {
+            // The store was closed by a concurrent remove
+            Log.w(TAG, "Tile store read failed: " + e.getMessage());
+        }
+        if (data != null) {
+            memoryCache.put(packKey(source.index, z, x, y), data);
+        }
+        return data;
+    }
+
+    /**
+     * The URL or key a layer was opened with, or null if it isn't open
+     */
+    synchronized String getLayerKey(String layerId) {
+        Source source = sourcesByLayer.get(layerId);
+        return source != null ? source.url : null;
+    }
+
+    /**
+     * Cache a tile. Only {@code persist}ed tiles go to disk; placeholders for failed reads stay
+     * in memory so a network error isn't remembered across restarts.
+     */
+    void put(String layerId, int z, int x, int y, byte[] data, boolean persist) {
+        put(layerId, getLayerKey(layerId), z, x, y, data, persist);
+    }
+
+    /**
+     * Cache a tile rendered while the layer was open with {@code url}; dropped if the layer
+     * has since been reopened with another
+     */
+    void put(String layerId, String url, int z, int x, int y, byte[] data, boolean persist) {
+        Source source;
+        synchronized (this) {
+            // Under the lock, so a reset can't free the source's index between check and put
+            source = sourcesByLayer.get(layerId);
+            if (source == null || !source.url.equals(url) || !isPackable(z, x, y)) {
+                return;
+            }
+            memoryCache.put(packKey(source.index, z, x, y), data);
+        }
+        if (!persist || source.db == null) {
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues();
+            values.put("zoom_level", z);
+            values.put("tile_column", x);
+            values.put("tile_row", tmsRow(z, y));
+            values.put("tile_data", data);
+            source.db.insertWithOnConflict("tiles", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (Exception e) {
+            Log.w(TAG, "Tile store write failed: " + e.getMessage());
+            return;
+        }
+        if (unchecked.addAndGet(data.length) > diskBytes / 16) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * Bring the directory within the disk budget. Does disk I/O.
+     */
+    void trimDisk() {
+        if (directory == null) {
+            return;
+        }
+        synchronized (trimLock) {
+            unchecked.set(0);
+            Map<String, Source> open = new HashMap<>();
+            synchronized (this) {
+                for (Source source : sourcesByUrl.values()) {
+                    if (source.db != null) {
+                        open.put(new File(source.db.getPath()).getAbsolutePath(), source);
+                    }
+                }
+            }
+
+            List<File> closed = new ArrayList<>();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(STORE_SUFFIX) && !open.containsKey(file.getAbsolutePath())) {
+                        closed.add(file);
+                    }
+                }
+            }
+            long openBytes = 0;
+            for (Source source : open.values()) {
+                openBytes += liveBytes(source.db);
+            }
+
+            long closedBytes = 0;
+            for (File file : closed) {
+                closedBytes += storeBytes(file);
+            }
+            for (File file : storesToDelete(closed, openBytes, diskBytes, System.currentTimeMillis())) {
+                closedBytes -= storeBytes(file);
+                SQLiteDatabase.deleteDatabase(file);
+                Log.d(TAG, "Deleted tile store " + file.getName());
+            }
+
+            long excess = openBytes + Math.max(0, closedBytes) - diskBytes;
+            for (Source source : open.values()) {
+                if (excess <= 0) {
+                    break;
+                }
+                excess -= trimTiles(source.db, excess);
+            }
+        }
+    }
+
+    /**
+     * The closed stores to delete: those unused for {@link #STALE_MS}, then the least recently
+     * used until everything fits in {@code budget}
+     *
+     * @param openBytes Bytes held by open stores, which are never deleted
+     */
+    static List<File> storesToDelete(List<File> closed, long openBytes, long budget, long now) {
+        List<File> byAge = new ArrayList<>(closed);
+        Collections.sort(byAge, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long total = openBytes;
+        for (File file : byAge) {
+            total += storeBytes(file);
+        }
+        List<File> doomed = new ArrayList<>();
+        for (File file : byAge) {
+            if (total <= budget && now - file.lastModified() <= STALE_MS) {
+                break;
+            }
+            total -= storeBytes(file);
+            doomed.add(file);
+        }
+        return doomed;
+    }
+
+    /**
+     * A store file with its journal and WAL
+     */
+    private static long storeBytes(File file) {
+        String path = file.getPath();
+        return file.length() + new File(path + "-wal").length() + new File(path + "-shm").length()
+                + new File(path + "-journal").length();
+    }
+
+    /**
+     * Bytes of an open store in use; freed pages don't count, since they're reused before the
+     * file grows
+     */
+    private static long liveBytes(SQLiteDatabase db) {
+        try {
+            return (pragma(db, "page_count") - pragma(db, "freelist_count")) * pragma(db, "page_size");
+        } catch (Exception e) {
+            // Closed by a concurrent remove
+            return 0;
+        }
+    }
+
+    /**
+     * Delete the oldest-written tiles of an open store to free about {@code bytes}
+     *
+     * @return Bytes freed
+     */
+    private static long trimTiles(SQLiteDatabase db, long bytes) {
+        try {
+            long before = liveBytes(db);
+            long count = DatabaseUtils.queryNumEntries(db, "tiles");
+            if (before == 0 || count == 0) {
+                return 0;
+            }
+            long rows = Math.min(count, bytes * count / before + 1);
+            // Replaced tiles get a new rowid, so rowid order is write order
+            db.execSQL("DELETE FROM tiles WHERE rowid IN (SELECT rowid FROM tiles ORDER BY rowid LIMIT " + rows + ")");
+            // Hands freed pages back to the file system in stores created with auto_vacuum
+            pragma(db, "incremental_vacuum");
+            Log.d(TAG, "Trimmed " + rows + " tiles from " + new File(db.getPath()).getName());
+            return before - liveBytes(db);
+        } catch (Exception e) {
+            Log.w(TAG, "Tile store trim failed: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private static long pragma(SQLiteDatabase db, String pragma) {
+        try (Cursor cursor = db.rawQuery("PRAGMA " + pragma, null)) {
+            return cursor.moveToFirst() && cursor.getColumnCount() > 0 ? cursor.getLong(0) : 0;
+        }
+    }
+
+    /**
+     * Pack a tile address into one long. Zoom must be below 32 and x/y below 2^24.
+     */
+    static long packKey(int sourceIndex, int z, int x, int y) {
+        return ((long) sourceIndex << (ZOOM_BITS + 2 * XY_BITS))
+                | ((long) z << (2 * XY_BITS))
+                | ((long) x << XY_BITS)
+                | y;
+    }
+
+    static int sourceOf(long key) {
+        return (int) (key >>> (ZOOM_BITS + 2 * XY_BITS));
+    }
+
+    static boolean isPackable(int z, int x, int y) {
+        return z >= 0 && z < (1 << ZOOM_BITS) && x >= 0 && x < (1 << XY_BITS) && y >= 0 && y < (1 << XY_BITS);
+    }
+
+    private synchronized Source getSource(String layerId) {
+        return sourcesByLayer.get(layerId);
+    }
+
+    private long keyFor(String layerId, int z, int x, int y) {
+        Source source = getSource(layerId);
+        return source != null && isPackable(z, x, y) ? packKey(source.index, z, x, y) : -1;
+    }
+
+    /**
+     * Remove a layer; returns its source if that was the last layer using it
+     */
+    private synchronized Source detach(String layerId) {
+        Source source = sourcesByLayer.remove(layerId);
+        if (source == null || --source.layers > 0) {
+            return null;
+        }
+        sourcesByUrl.remove(source.url);
+        evictMemory(source.index);
+        freeIndexes.add(source.index);
+        return source;
+    }
+
+    private void evictMemory(int sourceIndex) {
+        for (Long key : memoryCache.snapshot().keySet()) {
+            if (sourceOf(key) == sourceIndex) {
+                memoryCache.remove(key);
+            }
+        }
+    }
+
+    private SQLiteDatabase openStore(String url) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            File file = new File(directory, hashUrl(url) + STORE_SUFFIX);
+            // Marks the store as recently used for the disk budget
+            file.setLastModified(System.currentTimeMillis());
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+            // Only takes effect in a new file, before any table exists
+            pragma(db, "auto_vacuum = INCREMENTAL");
+            db.enableWriteAheadLogging();
+            db.execSQL("CREATE TABLE IF NOT EXISTS metadata (name TEXT PRIMARY KEY, value TEXT)");
+            db.execSQL("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, tile_column INTEGER,"
+                    + " tile_row INTEGER, tile_data BLOB)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            putMetadata(db, "name", url);
+            putMetadata(db, "type", "overlay");
+            putMetadata(db, "version", "1.1");
+            putMetadata(db, "format", "png");
+            return db;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to open tile store for " + url, e);
+            return null;
+        }
+    }
+
+    private static void closeStore(SQLiteDatabase db) {
+        File file = new File(db.getPath());
+        db.close();
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    private static void putMetadata(SQLiteDatabase db, String name, String value) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("value", value);
+        db.insertWithOnConflict("metadata", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * MBTiles rows count from the south (TMS), XYZ rows from the north
+     */
+    private static int tmsRow(int z, int y) {
+        return (1 << z) - 1 - y;
+    }
+
+    private static String hashUrl(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(url.getBytes());
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(url.hashCode());
+        }
+    }
+}
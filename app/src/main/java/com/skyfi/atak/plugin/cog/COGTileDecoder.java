@@ -0,0 +1,537 @@
+package com.skyfi.atak.plugin.cog;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the tiles of one COG overview straight to ARGB pixels.
+ *
+ * Handles uncompressed, LZW, Deflate and JPEG tiles, the horizontal differencing predictor,
+ * interleaved and per-band planes, gray/RGB with an optional alpha band, GDAL nodata, and
+ * 8- or 16-bit samples; 16-bit samples are mapped to 8 bits through a stretch lookup table.
+ * Pixels are written into a caller-owned buffer and every intermediate buffer is per-thread
+ * and reused, so decoding a tile allocates nothing in the steady state. Tile bytes may be
+ * slices of a memory-mapped file; uncompressed and LZW tiles are read from them in place.
+ *
+ * One instance per overview; safe to use from several threads.
+ */
+class COGTileDecoder {
+
+    static final int COMPRESSION_NONE = 1;
+    static final int COMPRESSION_LZW = 5;
+    static final int COMPRESSION_JPEG = 7;
+    static final int COMPRESSION_DEFLATE = 8;
+    static final int COMPRESSION_DEFLATE_OLD = 32946;
+
+    private static final int PREDICTOR_NONE = 1;
+    private static final int PREDICTOR_HORIZONTAL = 2;
+    private static final int PHOTOMETRIC_WHITE_IS_ZERO = 0;
+    private static final int PHOTOMETRIC_PALETTE = 3;
+    private static final int SAMPLE_FORMAT_INT = 2;
+    private static final int PLANAR_SEPARATE = 2;
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final COGMetadata.IFD ifd;
+    private final boolean bigEndian;
+    private final double noData;
+    private final int bytesPerSample;
+    // Samples used for color: 1 (gray) or 3 (RGB)
+    private final int colorSamples;
+    private final int[] planes;
+    private final ThreadLocal<byte[][]> rawBuffers = new ThreadLocal<>();
+    // Compressed bytes copied off-heap data for the APIs that only take arrays
+    private final ThreadLocal<byte[]> scratchBuffers = new ThreadLocal<>();
+    private final ThreadLocal<Bitmap> jpegBitmaps = new ThreadLocal<>();
+    // 16-bit sample (offset to unsigned) to 8-bit output
+    private volatile byte[] stretch;
+
+    COGTileDecoder(COGMetadata.IFD ifd, ByteOrder byteOrder, double noData) throws IOException {
+        this.ifd = ifd;
+        this.bigEndian = byteOrder == ByteOrder.BIG_ENDIAN;
+        this.noData = noData;
+        this.bytesPerSample = Math.max(1, ifd.bitsPerSample / 8);
+
+        if (ifd.compression != COMPRESSION_NONE && ifd.compression != COMPRESSION_LZW
+                && ifd.compression != COMPRESSION_JPEG && ifd.compression != COMPRESSION_DEFLATE
+                && ifd.compression != COMPRESSION_DEFLATE_OLD) {
+            throw new IOException("Unsupported TIFF compression " + ifd.compression);
+        }
+        if (ifd.compression != COMPRESSION_JPEG) {
+            if (ifd.bitsPerSample != 8 && ifd.bitsPerSample != 16) {
+                throw new IOException("Unsupported sample size " + ifd.bitsPerSample);
+            }
+            if (ifd.sampleFormat != 1 && ifd.sampleFormat != SAMPLE_FORMAT_INT) {
+                throw new IOException("Unsupported sample format " + ifd.sampleFormat);
+            }
+            if (ifd.predictor != PREDICTOR_NONE && ifd.predictor != PREDICTOR_HORIZONTAL) {
+                throw new IOException("Unsupported predictor " + ifd.predictor);
+            }
+        }
+
+        int samples = Math.max(1, ifd.samplesPerPixel);
+        int bands = samples - (ifd.alphaSample >= 0 ? 1 : 0);
+        // Multispectral deliveries often say MinIsBlack; their first three bands are still RGB
+        this.colorSamples = bands >= 3 && ifd.photometric != PHOTOMETRIC_PALETTE ? 3 : 1;
+
+        if (ifd.planarConfiguration == PLANAR_SEPARATE && ifd.compression != COMPRESSION_JPEG) {
+            int count = colorSamples + (ifd.alphaSample >= 0 ? 1 : 0);
+            planes = new int[count];
+            for (int i = 0; i < colorSamples; i++) {
+                planes[i] = i;
+            }
+            if (ifd.alphaSample >= 0) {
+                planes[colorSamples] = ifd.alphaSample;
+            }
+        } else {
+            planes = new int[]{0};
+        }
+
+        setStretch(0, ifd.sampleFormat == SAMPLE_FORMAT_INT ? 32767 : 65535);
+    }
+
+    /**
+     * The planes whose tile data {@link #decode} needs, in the order it expects them. Always
+     * {0} unless bands are stored separately.
+     */
+    int[] getPlanes() {
+        return planes;
+    }
+
+    boolean isSixteenBit() {
+        return ifd.bitsPerSample == 16 && ifd.compression != COMPRESSION_JPEG;
+    }
+
+    /**
+     * Map 16-bit samples in [min, max] onto 0..255. Values are as stored, signed for signed data.
+     */
+    void setStretch(int min, int max) {
+        int offset = ifd.sampleFormat == SAMPLE_FORMAT_INT ? 32768 : 0;
+        byte[] lut = new byte[65536];
+        double scale = max > min ? 255.0 / (max - min) : 0;
+        for (int i = 0; i < lut.length; i++) {
+            double v = (i - offset - min) * scale;
+            lut[i] = (byte) (v <= 0 ? 0 : v >= 255 ? 255 : (int) (v + 0.5));
+        }
+        stretch = lut;
+    }
+
+    /**
+     * Decode one tile into {@code out} (tileWidth * tileHeight ARGB pixels, row-major).
+     *
+     * @param tileData Raw tile bytes, one buffer per entry of {@link #getPlanes()}, each from
+     *                 position 0 to its limit
+     * @return true if any pixel isn't fully opaque
+     */
+    boolean decode(ByteBuffer[] tileData, int[] out) throws IOException {
+        int pixels = ifd.tileWidth * ifd.tileHeight;
+        if (out.length < pixels) {
+            throw new IllegalArgumentException("Pixel buffer too small");
+        }
+        if (ifd.compression == COMPRESSION_JPEG) {
+            decodeJpeg(tileData[0], out);
+            return false;
+        }
+
+        byte[][] raw = decodeSamples(tileData);
+        return toArgb(raw, samplesPerPlane(), pixels, out);
+    }
+
+    /**
+     * Histogram of the color samples of one tile, for choosing a 16-bit stretch. Indexes are
+     * offset to unsigned for signed data; nodata pixels are skipped.
+     */
+    int[] histogram(ByteBuffer[] tileData) throws IOException {
+        int pixels = ifd.tileWidth * ifd.tileHeight;
+        int samplesPerPlane = samplesPerPlane();
+        byte[][] raw = decodeSamples(tileData);
+        int[] histogram = new int[65536];
+        int offset = ifd.sampleFormat == SAMPLE_FORMAT_INT ? 32768 : 0;
+        for (int p = 0; p < pixels; p++) {
+            for (int c = 0; c < colorSamples; c++) {
+                byte[] plane = planes.length > 1 ? raw[c] : raw[0];
+                int index = planes.length > 1 ? p : p * samplesPerPlane + c;
+                int value = sample16(plane, index * 2);
+                if (value != noData) {
+                    histogram[value + offset]++;
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * The values at the {@code low} and {@code high} fractions of a histogram, as stored
+     * (i.e. with the signed offset removed)
+     */
+    static int[] percentileRange(int[] histogram, double low, double high, boolean signed) {
+        long total = 0;
+        for (int count : histogram) {
+            total += count;
+        }
+        int offset = signed ? 32768 : 0;
+        if (total == 0) {
+            return new int[]{-offset, histogram.length - 1 - offset};
+        }
+        long lowCount = (long) (total * low);
+        long highCount = (long) Math.ceil(total * high);
+        int min = -1;
+        int max = histogram.length - 1;
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (min < 0 && seen > lowCount) {
+                min = i;
+            }
+            if (seen >= highCount) {
+                max = i;
+                break;
+            }
+        }
+        return new int[]{min - offset, Math.max(min + 1, max) - offset};
+    }
+
+    private int samplesPerPlane() {
+        return planes.length > 1 ? 1 : Math.max(1, ifd.samplesPerPixel);
+    }
+
+    /**
+     * Decompress each plane into a per-thread buffer and undo the predictor
+     */
+    private byte[][] decodeSamples(ByteBuffer[] tileData) throws IOException {
+        int samplesPerPlane = samplesPerPlane();
+        int planeSize = ifd.tileWidth * ifd.tileHeight * samplesPerPlane * bytesPerSample;
+        byte[][] raw = rawBuffers(planes.length, planeSize);
+        for (int i = 0; i < planes.length; i++) {
+            decompress(tileData[i], raw[i], planeSize);
+            if (ifd.predictor == PREDICTOR_HORIZONTAL) {
+                undoPredictor(raw[i], ifd.tileWidth, ifd.tileHeight, samplesPerPlane);
+            }
+        }
+        return raw;
+    }
+
+    private byte[][] rawBuffers(int count, int size) {
+        byte[][] buffers = rawBuffers.get();
+        if (buffers == null || buffers.length < count || buffers[0].length < size) {
+            buffers = new byte[count][size];
+            rawBuffers.set(buffers);
+        }
+        return buffers;
+    }
+
+    private void decompress(ByteBuffer in, byte[] out, int size) throws IOException {
+        switch (ifd.compression) {
+            case COMPRESSION_NONE:
+                in.duplicate().get(out, 0, Math.min(in.limit(), size));
+                break;
+            case COMPRESSION_LZW:
+                lzwDecode(in, out, size);
+                break;
+            case COMPRESSION_DEFLATE:
+            case COMPRESSION_DEFLATE_OLD:
+                inflate(in, out, size);
+                break;
+            default:
+                throw new IOException("Unsupported TIFF compression " + ifd.compression);
+        }
+    }
+
+    private void inflate(ByteBuffer in, byte[] out, int size) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset(), in.limit());
+        } else {
+            inflater.setInput(copyToScratch(in, null), 0, in.limit());
+        }
+        try {
+            int total = 0;
+            while (total < size && !inflater.finished()) {
+                int n = inflater.inflate(out, total, size - total);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                total += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt Deflate tile", e);
+        }
+    }
+
+    /**
+     * TIFF LZW: MSB-first codes of 9 to 12 bits, widening one code early as libtiff does
+     *
+     * @return bytes written
+     */
+    static int lzwDecode(ByteBuffer in, byte[] out, int size) {
+        final int clear = 256;
+        final int eoi = 257;
+        int[] prefix = new int[4096];
+        byte[] suffix = new byte[4096];
+        byte[] first = new byte[4096];
+        int[] length = new int[4096];
+        for (int i = 0; i < 256; i++) {
+            suffix[i] = (byte) i;
+            first[i] = (byte) i;
+            length[i] = 1;
+        }
+
+        int next = 258;
+        int codeLength = 9;
+        int old = -1;
+        int written = 0;
+        long bitBuffer = 0;
+        int bits = 0;
+        int position = 0;
+
+        while (written < size) {
+            while (bits < codeLength && position < in.limit()) {
+                bitBuffer = (bitBuffer << 8) | (in.get(position++) & 0xFF);
+                bits += 8;
+            }
+            if (bits < codeLength) {
+                break;
+            }
+            int code = (int) (bitBuffer >>> (bits - codeLength)) & ((1 << codeLength) - 1);
+            bits -= codeLength;
+
+            if (code == eoi) {
+                break;
+            }
+            if (code == clear) {
+                next = 258;
+                codeLength = 9;
+                old = -1;
+                continue;
+            }
+
+            if (old == -1) {
+                if (code >= 256) {
+                    break; // Corrupt: first code after a clear must be a literal
+                }
+                out[written++] = (byte) code;
+                old = code;
+                continue;
+            }
+
+            int entry;
+            if (code < next) {
+                entry = code;
+                if (next < 4096) {
+                    prefix[next] = old;
+                    suffix[next] = first[code];
+                    first[next] = first[old];
+                    length[next] = length[old] + 1;
+                    next++;
+                }
+            } else if (code == next && next < 4096) {
+                prefix[next] = old;
+                suffix[next] = first[old];
+                first[next] = first[old];
+                length[next] = length[old] + 1;
+                entry = next++;
+            } else {
+                break; // Corrupt
+            }
+
+            // Write the entry's string back to front
+            int len = length[entry];
+            int end = Math.min(written + len, size);
+            int at = written + len - 1;
+            for (int c = entry; at >= written; c = prefix[c], at--) {
+                if (at < end) {
+                    out[at] = suffix[c];
+                }
+            }
+            written = end;
+            old = code;
+
+            if (next >= (1 << codeLength) - 1 && codeLength < 12) {
+                codeLength++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Undo horizontal differencing: each sample is stored as the difference from the same
+     * sample of the pixel to its left
+     */
+    private void undoPredictor(byte[] data, int width, int height, int samples) {
+        int rowSamples = width * samples;
+        if (bytesPerSample == 1) {
+            for (int row = 0; row < height; row++) {
+                int start = row * rowSamples;
+                for (int i = start + samples; i < start + rowSamples; i++) {
+                    data[i] += data[i - samples];
+                }
+            }
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            int start = row * rowSamples;
+            for (int i = start + samples; i < start + rowSamples; i++) {
+                int value = sample16(data, i * 2) + sample16(data, (i - samples) * 2);
+                if (bigEndian) {
+                    data[i * 2] = (byte) (value >> 8);
+                    data[i * 2 + 1] = (byte) value;
+                } else {
+                    data[i * 2] = (byte) value;
+                    data[i * 2 + 1] = (byte) (value >> 8);
+                }
+            }
+        }
+    }
+
+    private int sample16(byte[] data, int at) {
+        int value = bigEndian
+                ? ((data[at] & 0xFF) << 8) | (data[at + 1] & 0xFF)
+                : ((data[at + 1] & 0xFF) << 8) | (data[at] & 0xFF);
+        return ifd.sampleFormat == SAMPLE_FORMAT_INT ? (short) value : value;
+    }
+
+    private boolean toArgb(byte[][] raw, int samplesPerPlane, int pixels, int[] out) {
+        boolean separate = planes.length > 1;
+        boolean invert = ifd.photometric == PHOTOMETRIC_WHITE_IS_ZERO;
+        boolean hasNoData = !Double.isNaN(noData);
+        boolean sixteen = bytesPerSample == 2;
+        byte[] lut = stretch;
+        int offset = ifd.sampleFormat == SAMPLE_FORMAT_INT ? 32768 : 0;
+        int alphaPlane = separate ? colorSamples : 0;
+        int alphaSample = separate ? 0 : ifd.alphaSample;
+        int[] color = new int[3];
+        boolean translucent = false;
+
+        for (int p = 0; p < pixels; p++) {
+            boolean allNoData = hasNoData;
+            for (int c = 0; c < colorSamples; c++) {
+                byte[] plane = separate ? raw[c] : raw[0];
+                int index = separate ? p : p * samplesPerPlane + c;
+                int value;
+                if (sixteen) {
+                    int stored = sample16(plane, index * 2);
+                    allNoData &= stored == noData;
+                    value = lut[stored + offset] & 0xFF;
+                } else {
+                    value = plane[index] & 0xFF;
+                    allNoData &= value == noData;
+                }
+                color[c] = invert ? 255 - value : value;
+            }
+
+            int alpha = 255;
+            if (ifd.alphaSample >= 0) {
+                byte[] plane = raw[alphaPlane];
+                int index = separate ? p : p * samplesPerPlane + alphaSample;
+                alpha = sixteen ? (sample16(plane, index * 2) >> 8) & 0xFF : plane[index] & 0xFF;
+            }
+            if (allNoData) {
+                alpha = 0;
+            }
+            if (alpha != 255) {
+                translucent = true;
+            }
+
+            int r = color[0];
+            int g = colorSamples == 3 ? color[1] : r;
+            int b = colorSamples == 3 ? color[2] : r;
+            out[p] = (alpha << 24) | (r << 16) | (g << 8) | b;
+        }
+        return translucent;
+    }
+
+    private void decodeJpeg(ByteBuffer data, int[] out) throws IOException {
+        byte[] jpeg;
+        int offset;
+        int length = jpegLength(ifd.jpegTables, data);
+        if (ifd.jpegTables == null && data.hasArray()) {
+            jpeg = data.array();
+            offset = data.arrayOffset();
+        } else {
+            jpeg = copyToScratch(data, ifd.jpegTables);
+            offset = 0;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        Bitmap reusable = jpegBitmaps.get();
+        options.inBitmap = reusable;
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(jpeg, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // The reusable bitmap didn't fit this tile
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, offset, length, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode JPEG tile");
+        }
+        if (bitmap != reusable) {
+            jpegBitmaps.set(bitmap);
+        }
+        int width = Math.min(bitmap.getWidth(), ifd.tileWidth);
+        int height = Math.min(bitmap.getHeight(), ifd.tileHeight);
+        bitmap.getPixels(out, 0, ifd.tileWidth, 0, 0, width, height);
+    }
+
+    /**
+     * A complete JPEG stream for a tile that relies on the IFD's shared JPEGTables: the tables
+     * without their end marker, then the tile without its start marker
+     */
+    static byte[] spliceJpegTables(byte[] tables, ByteBuffer tile) {
+        if (tables == null && tile.hasArray() && tile.arrayOffset() == 0 && tile.limit() == tile.array().length) {
+            return tile.array();
+        }
+        byte[] jpeg = new byte[jpegLength(tables, tile)];
+        spliceInto(jpeg, tables, tile);
+        return jpeg;
+    }
+
+    private static boolean hasTables(byte[] tables, ByteBuffer tile) {
+        return tables != null && tables.length >= 4 && tile.limit() >= 2;
+    }
+
+    private static int jpegLength(byte[] tables, ByteBuffer tile) {
+        return hasTables(tables, tile) ? tables.length - 2 + tile.limit() - 2 : tile.limit();
+    }
+
+    private static void spliceInto(byte[] jpeg, byte[] tables, ByteBuffer tile) {
+        ByteBuffer in = tile.duplicate();
+        if (hasTables(tables, tile)) {
+            System.arraycopy(tables, 0, jpeg, 0, tables.length - 2);
+            in.position(2);
+            in.get(jpeg, tables.length - 2, tile.limit() - 2);
+        } else {
+            in.position(0);
+            in.get(jpeg, 0, tile.limit());
+        }
+    }
+
+    /**
+     * Copy a tile, with JPEG tables spliced in front when given, into this thread's scratch array
+     */
+    private byte[] copyToScratch(ByteBuffer tile, byte[] jpegTables) {
+        int length = jpegLength(jpegTables, tile);
+        byte[] scratch = scratchBuffers.get();
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 64 * 1024)];
+            scratchBuffers.set(scratch);
+        }
+        spliceInto(scratch, jpegTables, tile);
+        return scratch;
+    }
+}
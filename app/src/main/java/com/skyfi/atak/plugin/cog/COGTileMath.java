@@ -0,0 +1,208 @@
+package com.skyfi.atak.plugin.cog;
+
+/**
+ * Web Mercator tile math and the map projections COGs are delivered in.
+ *
+ * XYZ tiles are addressed in EPSG:3857 meters. A {@link Projection} converts between those and
+ * a COG's own CRS: geographic WGS84 (4326), Web Mercator itself (3857), or WGS84 UTM
+ * (326xx north, 327xx south).
+ */
+final class COGTileMath {
+
+    static final int TILE_SIZE = 256;
+
+    private static final double EARTH_RADIUS = 6378137.0;
+    private static final double ORIGIN_SHIFT = Math.PI * EARTH_RADIUS;
+    private static final double MAX_LATITUDE = 85.0511287798;
+
+    // WGS84 ellipsoid, for UTM
+    private static final double FLATTENING = 1 / 298.257223563;
+    private static final double E2 = FLATTENING * (2 - FLATTENING);
+    private static final double EP2 = E2 / (1 - E2);
+    private static final double UTM_SCALE = 0.9996;
+
+    /**
+     * Converts between EPSG:3857 meters and a COG's CRS
+     */
+    interface Projection {
+        /**
+         * Web Mercator (x, y) to source CRS coordinates, written to {@code out[0..1]}
+         */
+        void fromMercator(double x, double y, double[] out);
+
+        /**
+         * Source CRS coordinates to Web Mercator (x, y), written to {@code out[0..1]}
+         */
+        void toMercator(double x, double y, double[] out);
+    }
+
+    private COGTileMath() {
+    }
+
+    /**
+     * Projection for an EPSG code, or null if it isn't supported
+     */
+    static Projection forEpsg(int epsg) {
+        if (epsg == 3857 || epsg == 900913 || epsg == 3785) {
+            return new Projection() {
+                @Override
+                public void fromMercator(double x, double y, double[] out) {
+                    out[0] = x;
+                    out[1] = y;
+                }
+
+                @Override
+                public void toMercator(double x, double y, double[] out) {
+                    out[0] = x;
+                    out[1] = y;
+                }
+            };
+        }
+        if (epsg == 4326) {
+            return new Projection() {
+                @Override
+                public void fromMercator(double x, double y, double[] out) {
+                    out[0] = mercatorToLongitude(x);
+                    out[1] = mercatorToLatitude(y);
+                }
+
+                @Override
+                public void toMercator(double x, double y, double[] out) {
+                    out[0] = longitudeToMercator(x);
+                    out[1] = latitudeToMercator(y);
+                }
+            };
+        }
+        if ((epsg > 32600 && epsg <= 32660) || (epsg > 32700 && epsg <= 32760)) {
+            final int zone = epsg % 100;
+            final boolean south = epsg > 32700;
+            return new Projection() {
+                @Override
+                public void fromMercator(double x, double y, double[] out) {
+                    utmForward(mercatorToLatitude(y), mercatorToLongitude(x), zone, south, out);
+                }
+
+                @Override
+                public void toMercator(double x, double y, double[] out) {
+                    utmInverse(x, y, zone, south, out);
+                    double longitude = out[0];
+                    out[0] = longitudeToMercator(longitude);
+                    out[1] = latitudeToMercator(out[1]);
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Web Mercator meters per pixel at zoom {@code z} (true ground resolution at the equator)
+     */
+    static double resolution(int z) {
+        return 2 * ORIGIN_SHIFT / (TILE_SIZE * (double) (1L << z));
+    }
+
+    /**
+     * Web Mercator bounds of an XYZ tile: {minX, minY, maxX, maxY}
+     */
+    static double[] tileBounds(int z, int x, int y) {
+        double size = 2 * ORIGIN_SHIFT / (1L << z);
+        double minX = -ORIGIN_SHIFT + x * size;
+        double maxY = ORIGIN_SHIFT - y * size;
+        return new double[]{minX, maxY - size, minX + size, maxY};
+    }
+
+    /**
+     * XYZ tile containing a Web Mercator point at zoom {@code z}: {x, y}, clamped to the grid
+     */
+    static int[] tileAt(double x, double y, int z) {
+        long tiles = 1L << z;
+        double size = 2 * ORIGIN_SHIFT / tiles;
+        long tx = (long) Math.floor((x + ORIGIN_SHIFT) / size);
+        long ty = (long) Math.floor((ORIGIN_SHIFT - y) / size);
+        return new int[]{(int) Math.max(0, Math.min(tiles - 1, tx)), (int) Math.max(0, Math.min(tiles - 1, ty))};
+    }
+
+    static double longitudeToMercator(double longitude) {
+        return longitude * ORIGIN_SHIFT / 180.0;
+    }
+
+    static double latitudeToMercator(double latitude) {
+        double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        return Math.log(Math.tan((90 + clamped) * Math.PI / 360.0)) * EARTH_RADIUS;
+    }
+
+    static double mercatorToLongitude(double x) {
+        return x / ORIGIN_SHIFT * 180.0;
+    }
+
+    static double mercatorToLatitude(double y) {
+        return Math.toDegrees(2 * Math.atan(Math.exp(y / EARTH_RADIUS)) - Math.PI / 2);
+    }
+
+    /**
+     * WGS84 latitude/longitude to UTM easting/northing (Snyder, Map Projections p. 61)
+     */
+    static void utmForward(double latitude, double longitude, int zone, boolean south, double[] out) {
+        double phi = Math.toRadians(latitude);
+        double lambda0 = Math.toRadians((zone - 1) * 6 - 180 + 3);
+        double sin = Math.sin(phi);
+        double cos = Math.cos(phi);
+        double tan = Math.tan(phi);
+
+        double n = EARTH_RADIUS / Math.sqrt(1 - E2 * sin * sin);
+        double t = tan * tan;
+        double c = EP2 * cos * cos;
+        double a = cos * (Math.toRadians(longitude) - lambda0);
+        double m = meridianArc(phi);
+
+        double a2 = a * a;
+        out[0] = UTM_SCALE * n * (a + (1 - t + c) * a2 * a / 6
+                + (5 - 18 * t + t * t + 72 * c - 58 * EP2) * a2 * a2 * a / 120) + 500000;
+        out[1] = UTM_SCALE * (m + n * tan * (a2 / 2 + (5 - t + 9 * c + 4 * c * c) * a2 * a2 / 24
+                + (61 - 58 * t + t * t + 600 * c - 330 * EP2) * a2 * a2 * a2 / 720))
+                + (south ? 10000000 : 0);
+    }
+
+    /**
+     * UTM easting/northing to WGS84 {longitude, latitude} (Snyder, Map Projections p. 63)
+     */
+    static void utmInverse(double easting, double northing, int zone, boolean south, double[] out) {
+        double lambda0 = Math.toRadians((zone - 1) * 6 - 180 + 3);
+        double m = (northing - (south ? 10000000 : 0)) / UTM_SCALE;
+        double mu = m / (EARTH_RADIUS * (1 - E2 / 4 - 3 * E2 * E2 / 64 - 5 * E2 * E2 * E2 / 256));
+        double e1 = (1 - Math.sqrt(1 - E2)) / (1 + Math.sqrt(1 - E2));
+
+        double phi1 = mu + (3 * e1 / 2 - 27 * Math.pow(e1, 3) / 32) * Math.sin(2 * mu)
+                + (21 * e1 * e1 / 16 - 55 * Math.pow(e1, 4) / 32) * Math.sin(4 * mu)
+                + (151 * Math.pow(e1, 3) / 96) * Math.sin(6 * mu)
+                + (1097 * Math.pow(e1, 4) / 512) * Math.sin(8 * mu);
+
+        double sin = Math.sin(phi1);
+        double cos = Math.cos(phi1);
+        double tan = Math.tan(phi1);
+        double n1 = EARTH_RADIUS / Math.sqrt(1 - E2 * sin * sin);
+        double t1 = tan * tan;
+        double c1 = EP2 * cos * cos;
+        double r1 = EARTH_RADIUS * (1 - E2) / Math.pow(1 - E2 * sin * sin, 1.5);
+        double d = (easting - 500000) / (n1 * UTM_SCALE);
+        double d2 = d * d;
+
+        double phi = phi1 - (n1 * tan / r1) * (d2 / 2
+                - (5 + 3 * t1 + 10 * c1 - 4 * c1 * c1 - 9 * EP2) * d2 * d2 / 24
+                + (61 + 90 * t1 + 298 * c1 + 45 * t1 * t1 - 252 * EP2 - 3 * c1 * c1) * d2 * d2 * d2 / 720);
+        double lambda = lambda0 + (d - (1 + 2 * t1 + c1) * d2 * d / 6
+                + (5 - 2 * c1 + 28 * t1 - 3 * c1 * c1 + 8 * EP2 + 24 * t1 * t1) * d2 * d2 * d / 120) / cos;
+
+        out[0] = Math.toDegrees(lambda);
+        out[1] = Math.toDegrees(phi);
+    }
+
+    private static double meridianArc(double phi) {
+        double e4 = E2 * E2;
+        double e6 = e4 * E2;
+        return EARTH_RADIUS * ((1 - E2 / 4 - 3 * e4 / 64 - 5 * e6 / 256) * phi
+                - (3 * E2 / 8 + 3 * e4 / 32 + 45 * e6 / 1024) * Math.sin(2 * phi)
+                + (15 * e4 / 256 + 45 * e6 / 1024) * Math.sin(4 * phi)
+                - (35 * e6 / 3072) * Math.sin(6 * phi));
+    }
+}
@@ -0,0 +1,19 @@
+package com.skyfi.atak.plugin.skyfiapi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link SkyFiAPI} method whose successful response makes cached GETs stale, e.g. placing
+ * an order changes the order list. Applied by {@link CachePolicyInterceptor}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface InvalidatesCache {
+    /** Paths whose cached responses, for any query, are evicted */
+    String[] value();
+}
@@ -0,0 +1,274 @@
+package com.skyfi.atak.plugin.skyfiapi;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.Timeout;
+import retrofit2.Call;
+import retrofit2.CallAdapter;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * Coalesces concurrent identical GET requests into a single network call.
+ *
+ * While a request for a given method + URL is in flight, further {@link Call#enqueue} calls
+ * for the same key attach to it and receive the same parsed response instead of going to the
+ * network again. Non-GET requests (orders, searches) are never coalesced.
+ */
+public class SingleFlightCallAdapterFactory extends CallAdapter.Factory {
+    private final Map<String, Flight<?>> inFlight = new HashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    @Override
+    public CallAdapter<?, ?> get(@NonNull Type returnType, @NonNull Annotation[] annotations, @NonNull Retrofit retrofit) {
+        if (getRawType(returnType) != Call.class) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        CallAdapter<Object, Call<?>> next = (CallAdapter<Object, Call<?>>) retrofit.nextCallAdapter(this, returnType, annotations);
+        return new CallAdapter<Object, Call<?>>() {
+            @NonNull
+            @Override
+            public Type responseType() {
+                return next.responseType();
+            }
+
+            @NonNull
+            @Override
+            public Call<?> adapt(@NonNull Call<Object> call) {
+                return new SingleFlightCall<>(next.adapt(call));
+            }
+        };
+    }
+
+    /**
+     * Number of enqueued GET requests seen by this factory
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Number of those requests that were served by joining an existing in-flight call
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private static String keyFor(Request request) {
+        if (!"GET".equals(request.method())) {
+            return null;
+        }
+        // A forced refresh must not join a call that may be answered from the cache
+        String cacheControl = request.header("Cache-Control");
+        return request.method() + " " + request.url() + (cacheControl != null ? " " + cacheControl : "");
+    }
+
+    /**
+     * One network call plus every caller waiting on it
+     */
+    private class Flight<T> implements Callback<T> {
+        private final String key;
+        private final Call<T> leader;
+        private final List<SingleFlightCall<T>> waiters = new ArrayList<>();
+
+        Flight(String key, Call<T> leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        @Override
+        public void onResponse(@NonNull Call<T> call, @NonNull Response<T> response) {
+            List<SingleFlightCall<T>> targets = complete();
+            if (response.isSuccessful() || response.errorBody() == null) {
+                for (SingleFlightCall<T> waiter : targets) {
+                    waiter.deliver(response);
+                }
+                return;
+            }
+
+            // The error body is a one-shot stream; buffer it so every waiter can read it
+            ResponseBody errorBody = response.errorBody();
+            byte[] bytes;
+            try {
+                bytes = errorBody.bytes();
+            } catch (IOException e) {
+                for (SingleFlightCall<T> waiter : targets) {
+                    waiter.fail(e);
+                }
+                return;
+            }
+            for (SingleFlightCall<T> waiter : targets) {
+                waiter.deliver(Response.error(ResponseBody.create(bytes, errorBody.contentType()), response.raw()));
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Call<T> call, @NonNull Throwable throwable) {
+            for (SingleFlightCall<T> waiter : complete()) {
+                waiter.fail(throwable);
+            }
+        }
+
+        private List<SingleFlightCall<T>> complete() {
+            synchronized (inFlight) {
+                if (inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+                return new ArrayList<>(waiters);
+            }
+        }
+
+        void detach(SingleFlightCall<T> waiter) {
+            boolean cancelLeader;
+            synchronized (inFlight) {
+                waiters.remove(waiter);
+                cancelLeader = waiters.isEmpty();
+                if (cancelLeader && inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+            }
+            if (cancelLeader) {
+                leader.cancel();
+            }
+        }
+    }
+
+    private class SingleFlightCall<T> implements Call<T> {
+        private final Call<T> delegate;
+        private volatile Callback<T> callback;
+        private volatile Flight<T> flight;
+        private volatile boolean executed;
+        private volatile boolean canceled;
+
+        SingleFlightCall(Call<T> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void enqueue(@NonNull Callback<T> callback) {
+            synchronized (this) {
+                if (executed) {
+                    throw new IllegalStateException("Already executed.");
+                }
+                executed = true;
+            }
+            this.callback = callback;
+
+            String key = keyFor(delegate.request());
+            if (key == null) {
+                delegate.enqueue(new Callback<T>() {
+                    @Override
+                    public void onResponse(@NonNull Call<T> call, @NonNull Response<T> response) {
+                        callback.onResponse(SingleFlightCall.this, response);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Call<T> call, @NonNull Throwable throwable) {
+                        callback.onFailure(SingleFlightCall.this, throwable);
+                    }
+                });
+                return;
+            }
+            requestCount.incrementAndGet();
+
+            boolean leader = false;
+            synchronized (inFlight) {
+                @SuppressWarnings("unchecked")
+                Flight<T> existing = (Flight<T>) inFlight.get(key);
+                if (existing == null) {
+                    existing = new Flight<>(key, delegate);
+                    inFlight.put(key, existing);
+                    leader = true;
+                } else {
+                    coalescedCount.incrementAndGet();
+                }
+                existing.waiters.add(this);
+                flight = existing;
+            }
+            if (leader) {
+                delegate.enqueue(flight);
+            }
+        }
+
+        void deliver(Response<T> response) {
+            if (!canceled) {
+                callback.onResponse(this, response);
+            }
+        }
+
+        void fail(Throwable throwable) {
+            if (!canceled) {
+                callback.onFailure(this, throwable);
+            }
+        }
+
+        @NonNull
+        @Override
+        public Response<T> execute() throws IOException {
+            synchronized (this) {
+                if (executed) {
+                    throw new IllegalStateException("Already executed.");
+                }
+                executed = true;
+            }
+            // Blocking callers aren't coalesced
+            return delegate.execute();
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed;
+        }
+
+        /**
+         * Detaches this caller from the shared flight; the network call itself is only
+         * cancelled once every caller has cancelled. Detached callers receive no callback.
+         */
+        @Override
+        public void cancel() {
+            canceled = true;
+            Flight<T> current = flight;
+            if (current != null) {
+                current.detach(this);
+            } else {
+                delegate.cancel();
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled || (flight == null && delegate.isCanceled());
+        }
+
+        @NonNull
+        @Override
+        public Call<T> clone() {
+            return new SingleFlightCall<>(delegate.clone());
+        }
+
+        @NonNull
+        @Override
+        public Request request() {
+            return delegate.request();
+        }
+
+        @NonNull
+        @Override
+        public Timeout timeout() {
+            return delegate.timeout();
+        }
+    }
+}
@@ -4,6 +4,7 @@ package com.skyfi.atak.plugin.skyfiapi;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.GET;
+import retrofit2.http.Headers;
 import retrofit2.http.POST;
 import retrofit2.http.Query;
 
@@ -21,24 +22,35 @@ public interface SkyFiAPI {
 
     // Orders
     @GET("/platform-api/orders")
+    @CachePolicy(maxAge = 15, staleWhileRevalidate = 60)
     Call<OrderResponse> getOrders(@Query("pageNumber") int pageNumber, @Query("pageSize") int pageSize);
 
+    // Same as getOrders but always revalidated with the server, for user-initiated refreshes
+    @GET("/platform-api/orders")
+    @Headers("Cache-Control: no-cache")
+    @CachePolicy(maxAge = 15, staleWhileRevalidate = 60)
+    Call<OrderResponse> refreshOrders(@Query("pageNumber") int pageNumber, @Query("pageSize") int pageSize);
+
     @POST("/platform-api/order-tasking")
+    @InvalidatesCache("/platform-api/orders")
     Call<Order> taskingOrder(@Body TaskingOrder order);
 
     @POST("/platform-api/order-archive")
+    @InvalidatesCache("/platform-api/orders")
     Call<ArchiveResponse> archiveOrder(@Body ArchiveOrder order);
 
     @POST("/platform-api/archives")
     Call<ArchiveResponse> searchArchives(@Body ArchivesRequest request);
 
     @GET("/platform-api/archives")
+    @CachePolicy(maxAge = 300, staleWhileRevalidate = 3600)
     Call<ArchiveResponse> searchArchivesNextPage(@Query("page") String pageHash);
 
     @POST("/platform-api/pricing")
     Call<PricingResponse> getTaskingPricing(@Body PricingQuery pricingQuery);
 
     @GET("/platform-api/auth/whoami")
+    @CachePolicy(maxAge = 60, staleWhileRevalidate = 3600)
     Call<MyProfile> getProfile();
     
     // AI Endpoints - Commented out until AI model classes are implemented
@@ -0,0 +1,478 @@
+package com.skyfi.atak.plugin.skyfiapi;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hand-written streaming deserializers for the large platform API responses.
+ *
+ * Reads {@link Archive}, {@link Order}, {@link ArchiveResponse}, {@link OrderResponse} and
+ * {@link PricingResponse} straight off the {@link JsonReader} without reflection, interns the
+ * small set of repeated enum-like strings (provider, productType, resolution, status) and skips
+ * fields the plugin never reads. Serialization is delegated to Gson's reflective adapters.
+ */
+public class SkyFiTypeAdapterFactory implements TypeAdapterFactory {
+    // Enum-like values repeat across every archive/order; cap the pool so a bad server can't grow it
+    private static final int MAX_INTERNED = 1024;
+    private static final ConcurrentHashMap<String, String> internPool = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+        if (rawType == Archive.class) {
+            return (TypeAdapter<T>) new ArchiveAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(Archive.class)));
+        }
+        if (rawType == Order.class) {
+            return (TypeAdapter<T>) new OrderAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(Order.class)));
+        }
+        if (rawType == ArchiveResponse.class) {
+            return (TypeAdapter<T>) new ArchiveResponseAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(ArchiveResponse.class)));
+        }
+        if (rawType == OrderResponse.class) {
+            return (TypeAdapter<T>) new OrderResponseAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(OrderResponse.class)));
+        }
+        if (rawType == PricingResponse.class) {
+            return (TypeAdapter<T>) new PricingResponseAdapter(gson.getDelegateAdapter(this, TypeToken.get(PricingResponse.class)));
+        }
+        return null;
+    }
+
+    static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = internPool.get(value);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (internPool.size() >= MAX_INTERNED) {
+            return value;
+        }
+        pooled = internPool.putIfAbsent(value, value);
+        return pooled != null ? pooled : value;
+    }
+
+    private static boolean skipNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    private static String nextString(JsonReader in) throws IOException {
+        return skipNull(in) ? null : in.nextString();
+    }
+
+    private static float nextFloat(JsonReader in) throws IOException {
+        return skipNull(in) ? 0f : (float) in.nextDouble();
+    }
+
+    private static Float nextFloatObject(JsonReader in) throws IOException {
+        return skipNull(in) ? null : (float) in.nextDouble();
+    }
+
+    private static int nextInt(JsonReader in) throws IOException {
+        return skipNull(in) ? 0 : in.nextInt();
+    }
+
+    private static Integer nextIntObject(JsonReader in) throws IOException {
+        return skipNull(in) ? null : in.nextInt();
+    }
+
+    private static boolean nextBoolean(JsonReader in) throws IOException {
+        return !skipNull(in) && in.nextBoolean();
+    }
+
+    private static Boolean nextBooleanObject(JsonReader in) throws IOException {
+        return skipNull(in) ? null : in.nextBoolean();
+    }
+
+    private static String[] nextStringArray(JsonReader in) throws IOException {
+        if (skipNull(in)) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(intern(nextString(in)));
+        }
+        in.endArray();
+        return values.toArray(new String[0]);
+    }
+
+    private static HashMap<String, String> nextStringMap(JsonReader in) throws IOException {
+        if (skipNull(in)) {
+            return null;
+        }
+        HashMap<String, String> values = new HashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            values.put(intern(in.nextName()), nextString(in));
+        }
+        in.endObject();
+        return values;
+    }
+
+    /**
+     * Base for read-only adapters; writes fall back to Gson's reflective adapter
+     */
+    private abstract static class ReadingAdapter<T> extends TypeAdapter<T> {
+        private final TypeAdapter<T> delegate;
+
+        ReadingAdapter(TypeAdapter<T> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            delegate.write(out, value);
+        }
+    }
+
+    private static class ArchiveAdapter extends ReadingAdapter<Archive> {
+        private final TypeAdapter<Date> dateAdapter;
+
+        ArchiveAdapter(Gson gson, TypeAdapter<Archive> delegate) {
+            super(delegate);
+            this.dateAdapter = gson.getAdapter(Date.class);
+        }
+
+        @Override
+        public Archive read(JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            Archive archive = new Archive();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "archiveId": archive.setArchiveId(nextString(in)); break;
+                    case "provider": archive.setProvider(intern(nextString(in))); break;
+                    case "productType": archive.setProductType(intern(nextString(in))); break;
+                    case "platformResolution": archive.setPlatformResolution(nextFloat(in)); break;
+                    case "resolution": archive.setResolution(intern(nextString(in))); break;
+                    case "captureTimestamp": archive.setCaptureTimestamp(dateAdapter.read(in)); break;
+                    case "cloudCoveragePercent": archive.setCloudCoveragePercent(nextFloat(in)); break;
+                    case "offNadirAngle": archive.setOffNadirAngle(nextFloat(in)); break;
+                    case "footprint": archive.setFootprint(nextString(in)); break;
+                    case "minSqKm": archive.setMinSqKm(nextFloat(in)); break;
+                    case "maxSqKm": archive.setMaxSqKm(nextFloat(in)); break;
+                    case "priceForOneSquareKm": archive.setPriceForOneSquareKm(nextFloat(in)); break;
+                    case "priceFullScene": archive.setPriceFullScene(nextFloat(in)); break;
+                    case "openData": archive.setOpenData(nextBoolean(in)); break;
+                    case "totalAreaSquareKm": archive.setTotalAreaSquareKm(nextFloat(in)); break;
+                    case "deliveryTimeHours": archive.setDeliveryTimeHours(nextFloat(in)); break;
+                    case "gsd": archive.setGsd(nextFloat(in)); break;
+                    case "titlesUrl": archive.setTitlesUrl(nextString(in)); break;
+                    case "overlapRatio": archive.setOverlapRatio(nextFloat(in)); break;
+                    case "overlapSqkm": archive.setOverlapSqkm(nextFloat(in)); break;
+                    case "thumbnailUrls": archive.setThumbnailUrls(nextStringMap(in)); break;
+                    // constellation and any new server fields are never displayed
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return archive;
+        }
+    }
+
+    private static class OrderAdapter extends ReadingAdapter<Order> {
+        private final TypeAdapter<Date> dateAdapter;
+        private final TypeAdapter<Archive> archiveAdapter;
+
+        OrderAdapter(Gson gson, TypeAdapter<Order> delegate) {
+            super(delegate);
+            this.dateAdapter = gson.getAdapter(Date.class);
+            this.archiveAdapter = gson.getAdapter(Archive.class);
+        }
+
+        @Override
+        public Order read(JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            Order order = new Order();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id": order.setId(nextString(in)); break;
+                    case "orderType": order.setOrderType(intern(nextString(in))); break;
+                    case "orderCost": order.setOrderCost(nextFloat(in)); break;
+                    case "status": order.setStatus(intern(nextString(in))); break;
+                    case "aoiSqkm": order.setAoiSqkm(nextFloat(in)); break;
+                    case "tilesUrl": order.setTilesUrl(nextString(in)); break;
+                    case "downloadImageUrl": order.setDownloadImageUrl(nextString(in)); break;
+                    case "downloadPayloadUrl": order.setDownloadPayloadUrl(nextString(in)); break;
+                    case "createdAt": order.setCreatedAt(dateAdapter.read(in)); break;
+                    case "aoi": order.setAoi(nextString(in)); break;
+                    case "windowStart": order.setWindowStart(dateAdapter.read(in)); break;
+                    case "windowEnd": order.setWindowEnd(dateAdapter.read(in)); break;
+                    case "productType": order.setProductType(intern(nextString(in))); break;
+                    case "resolution": order.setResolution(intern(nextString(in))); break;
+                    case "priorityItem": order.setPriorityItem(nextBoolean(in)); break;
+                    case "maxCloudCoveragePercent": order.setMaxCloudCoveragePercent(nextFloat(in)); break;
+                    case "maxOffNadirAngle": order.setMaxOffNadirAngle(nextFloat(in)); break;
+                    case "requiredProvider": order.setRequiredProvider(intern(nextString(in))); break;
+                    case "sarProductTypes": order.setSarProductTypes(nextStringArray(in)); break;
+                    case "sarPolarisation": order.setSarPolarisation(intern(nextString(in))); break;
+                    case "sarGrazingAngleMin": order.setSarGrazingAngleMin(nextFloat(in)); break;
+                    case "sarGrazingAngleMax": order.setSarGrazingAngleMax(nextFloat(in)); break;
+                    case "sarAzimuthAngleMin": order.setSarAzimuthAngleMin(nextFloat(in)); break;
+                    case "sarAzimuthAngleMax": order.setSarAzimuthAngleMax(nextFloat(in)); break;
+                    case "sarNumberOfLooks": order.setSarNumberOfLooks(nextInt(in)); break;
+                    case "geocodeLocation": order.setGeocodeLocation(nextString(in)); break;
+                    case "orderLabel": order.setOrderLabel(nextString(in)); break;
+                    case "orderCode": order.setOrderCode(nextString(in)); break;
+                    case "archive": order.setArchive(archiveAdapter.read(in)); break;
+                    // ownerId, deliveryDriver, webhookUrl and label are never displayed
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return order;
+        }
+    }
+
+    private static class ArchiveResponseAdapter extends ReadingAdapter<ArchiveResponse> {
+        private final TypeAdapter<Archive> archiveAdapter;
+        private final TypeAdapter<ArchivesRequest> requestAdapter;
+
+        ArchiveResponseAdapter(Gson gson, TypeAdapter<ArchiveResponse> delegate) {
+            super(delegate);
+            this.archiveAdapter = gson.getAdapter(Archive.class);
+            this.requestAdapter = gson.getAdapter(ArchivesRequest.class);
+        }
+
+        @Override
+        public ArchiveResponse read(JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            ArchiveResponse response = new ArchiveResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "request": response.setRequest(requestAdapter.read(in)); break;
+                    case "archive": response.setArchive(archiveAdapter.read(in)); break;
+                    case "nextPage": response.setNextPage(nextString(in)); break;
+                    case "total": response.setTotal(nextIntObject(in)); break;
+                    case "archives":
+                        if (skipNull(in)) {
+                            break;
+                        }
+                        ArrayList<Archive> archives = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            archives.add(archiveAdapter.read(in));
+                        }
+                        in.endArray();
+                        response.setArchives(archives);
+                        break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return response;
+        }
+    }
+
+    private static class OrderResponseAdapter extends ReadingAdapter<OrderResponse> {
+        private final TypeAdapter<Order> orderAdapter;
+        private final TypeAdapter<OrderRequest> requestAdapter;
+
+        OrderResponseAdapter(Gson gson, TypeAdapter<OrderResponse> delegate) {
+            super(delegate);
+            this.orderAdapter = gson.getAdapter(Order.class);
+            this.requestAdapter = gson.getAdapter(OrderRequest.class);
+        }
+
+        @Override
+        public OrderResponse read(JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            OrderResponse response = new OrderResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "request": response.setRequest(requestAdapter.read(in)); break;
+                    case "total": response.setTotal(nextInt(in)); break;
+                    case "orders":
+                        if (skipNull(in)) {
+                            break;
+                        }
+                        List<Order> orders = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            orders.add(orderAdapter.read(in));
+                        }
+                        in.endArray();
+                        response.setOrders(orders.toArray(new Order[0]));
+                        break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return response;
+        }
+    }
+
+    private static class PricingResponseAdapter extends ReadingAdapter<PricingResponse> {
+
+        PricingResponseAdapter(TypeAdapter<PricingResponse> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public PricingResponse read(JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            PricingResponse response = new PricingResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                if ("productTypes".equals(in.nextName()) && !skipNull(in)) {
+                    ArrayList<PricingResponse.ProductType> productTypes = new ArrayList<>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        PricingResponse.ProductType productType = readProductType(response, in);
+                        if (productType != null) {
+                            productTypes.add(productType);
+                        }
+                    }
+                    in.endArray();
+                    response.productTypes = productTypes;
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return response;
+        }
+
+        private PricingResponse.ProductType readProductType(PricingResponse response, JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            PricingResponse.ProductType productType = response.new ProductType();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "productType": productType.productType = intern(nextString(in)); break;
+                    case "resolutions":
+                        if (skipNull(in)) {
+                            break;
+                        }
+                        ArrayList<PricingResponse.ProductType.Resolution> resolutions = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            PricingResponse.ProductType.Resolution resolution = readResolution(productType, in);
+                            if (resolution != null) {
+                                resolutions.add(resolution);
+                            }
+                        }
+                        in.endArray();
+                        productType.resolutions = resolutions;
+                        break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return productType;
+        }
+
+        private PricingResponse.ProductType.Resolution readResolution(PricingResponse.ProductType productType, JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            PricingResponse.ProductType.Resolution resolution = productType.new Resolution();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "resolution": resolution.resolution = intern(nextString(in)); break;
+                    case "isSupported": resolution.isSupported = nextBooleanObject(in); break;
+                    case "isComingSoon": resolution.isComingSoon = nextBooleanObject(in); break;
+                    case "pricing": resolution.pricing = readPricing(productType, in); break;
+                    case "providers":
+                        if (skipNull(in)) {
+                            break;
+                        }
+                        HashMap<String, PricingResponse.ProductType.Provider> providers = new HashMap<>();
+                        in.beginObject();
+                        while (in.hasNext()) {
+                            String name = intern(in.nextName());
+                            providers.put(name, readProvider(productType, in));
+                        }
+                        in.endObject();
+                        resolution.providers = providers;
+                        break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return resolution;
+        }
+
+        private PricingResponse.ProductType.Pricing readPricing(PricingResponse.ProductType productType, JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            PricingResponse.ProductType.Pricing pricing = productType.new Pricing();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "taskingMaxAoiSideKm": pricing.taskingMaxAoiSideKm = nextFloatObject(in); break;
+                    case "taskingMinSqkm": pricing.taskingMinSqkm = nextFloatObject(in); break;
+                    case "taskingMaxSqkm": pricing.taskingMaxSqkm = nextFloatObject(in); break;
+                    case "taskingPriceOneSqkm": pricing.taskingPriceOneSqkm = nextFloatObject(in); break;
+                    case "isPriorityEnabled": pricing.isPriorityEnabled = nextBooleanObject(in); break;
+                    case "priorityTaskingPriceOneSqkm": pricing.priorityTaskingPriceOneSqkm = nextFloatObject(in); break;
+                    case "isAssuredTaskingEnabled": pricing.isAssuredTaskingEnabled = nextBooleanObject(in); break;
+                    case "assuredTaskingPriceOneSqkm": pricing.assuredTaskingPriceOneSqkm = nextFloatObject(in); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return pricing;
+        }
+
+        private PricingResponse.ProductType.Provider readProvider(PricingResponse.ProductType productType, JsonReader in) throws IOException {
+            if (skipNull(in)) {
+                return null;
+            }
+            PricingResponse.ProductType.Provider provider = productType.new Provider();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "taskingMaxAoiSideKm": provider.taskingMaxAoiSideKm = nextFloatObject(in); break;
+                    case "taskingMinSqkm": provider.taskingMinSqkm = nextFloatObject(in); break;
+                    case "taskingMaxSqkm": provider.taskingMaxSqkm = nextFloatObject(in); break;
+                    case "taskingPriceOneSqkm": provider.taskingPriceOneSqkm = nextFloatObject(in); break;
+                    case "isPriorityEnabled": provider.isPriorityEnabled = nextBooleanObject(in); break;
+                    case "priorityTaskingPriceOneSqkm": provider.priorityTaskingPriceOneSqkm = nextFloatObject(in); break;
+                    case "isAssuredTaskingEnabled": provider.isAssuredTaskingEnabled = nextBooleanObject(in); break;
+                    case "assuredTaskingPriceOneSqkm": provider.assuredTaskingPriceOneSqkm = nextFloatObject(in); break;
+                    case "provider": provider.provider = intern(nextString(in)); break;
+                    case "providerOperational": provider.providerOperational = intern(nextString(in)); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return provider;
+        }
+    }
+}
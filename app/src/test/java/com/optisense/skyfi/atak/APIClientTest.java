@@ -10,7 +10,9 @@ import com.optisense.skyfi.atak.skyfiapi.SkyFiAPI;
 import com.optisense.skyfi.atak.skyfiapi.User;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -19,12 +21,20 @@ import org.robolectric.RuntimeEnvironment;
 
 import java.io.IOException;
 
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
 import retrofit2.Call;
 import retrofit2.Response;
 
 @RunWith(RobolectricTestRunner.class)
 public class APIClientTest {
     
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private APIClient apiClient;
     
     @Mock
@@ -52,6 +62,30 @@ public class APIClientTest {
         assertNotNull("API client should not be null", api);
     }
     
+    @Test
+    public void testCacheIsEvictedForAnotherKey() throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=600").setBody("orders"));
+        server.start();
+        Cache cache = new Cache(tempFolder.newFolder("skyfi_http_cache"), 1024 * 1024);
+        try {
+            APIClient.claimCache(cache, "key-a");
+            OkHttpClient client = new OkHttpClient.Builder().cache(cache).build();
+            client.newCall(new Request.Builder().url(server.url("/orders")).build()).execute().body().string();
+            assertTrue(cache.urls().hasNext());
+
+            // As on the next startup with the same key
+            APIClient.claimCache(cache, "key-a");
+            assertTrue(cache.urls().hasNext());
+
+            APIClient.claimCache(cache, "key-b");
+            assertFalse("Another account's responses are evicted", cache.urls().hasNext());
+        } finally {
+            cache.close();
+            server.shutdown();
+        }
+    }
+
     @Test
     public void testPreferencesIntegration() {
         // Test that preferences are used for API key
@@ -0,0 +1,244 @@
+package com.optisense.skyfi.atak;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+import com.optisense.skyfi.atak.skyfiapi.Archive;
+import com.optisense.skyfi.atak.skyfiapi.ArchiveResponse;
+import com.optisense.skyfi.atak.skyfiapi.ArchivesRequest;
+import com.optisense.skyfi.atak.skyfiapi.SkyFiAPI;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import okhttp3.Request;
+import okio.Timeout;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+@RunWith(RobolectricTestRunner.class)
+public class ArchivePagerTest {
+
+    @Mock
+    private SkyFiAPI mockApi;
+
+    private FakeCall firstPage;
+    private final Map<String, FakeCall> nextPages = new HashMap<>();
+    private final List<Integer> delivered = new ArrayList<>();
+    private final List<Integer> failed = new ArrayList<>();
+    private final List<Integer> ready = new ArrayList<>();
+    private boolean endReached;
+
+    private final ArchivePager.Listener listener = new ArchivePager.Listener() {
+        @Override
+        public void onPageLoaded(int pageIndex, ArchiveResponse page) {
+            delivered.add(pageIndex);
+        }
+
+        @Override
+        public void onPageFailed(int pageIndex, Response<ArchiveResponse> response, Throwable throwable) {
+            failed.add(pageIndex);
+        }
+
+        @Override
+        public void onEndReached() {
+            endReached = true;
+        }
+
+        @Override
+        public void onNextPageReady(int pageIndex, ArchiveResponse page) {
+            ready.add(pageIndex);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        firstPage = new FakeCall();
+        when(mockApi.searchArchives(any())).thenReturn(firstPage);
+        when(mockApi.searchArchivesNextPage(anyString())).thenAnswer(invocation -> {
+            FakeCall call = new FakeCall();
+            nextPages.put(invocation.getArgument(0), call);
+            return call;
+        });
+    }
+
+    @Test
+    public void testPrefetchesAheadOfDeliveredPage() {
+        ArchivePager pager = new ArchivePager(mockApi, 2, 6);
+        pager.start(new ArchivesRequest(), listener);
+
+        firstPage.succeed(page("h1"));
+        assertEquals(Arrays.asList(0), delivered);
+        assertTrue("Page 1 should be prefetched", nextPages.containsKey("h1"));
+
+        nextPages.get("h1").succeed(page("h2"));
+        assertTrue("Page 2 should be prefetched", nextPages.containsKey("h2"));
+        nextPages.get("h2").succeed(page(null));
+        assertEquals("Prefetching must not deliver pages", Arrays.asList(0), delivered);
+
+        pager.loadNextPage();
+        pager.loadNextPage();
+        assertEquals(Arrays.asList(0, 1, 2), delivered);
+        assertTrue(endReached);
+        verify(mockApi, times(2)).searchArchivesNextPage(anyString());
+    }
+
+    @Test
+    public void testWaitsForInFlightPage() {
+        ArchivePager pager = new ArchivePager(mockApi, 1, 6);
+        pager.start(new ArchivesRequest(), listener);
+        firstPage.succeed(page("h1"));
+
+        pager.loadNextPage();
+        assertTrue(pager.isLoading());
+        assertEquals(Arrays.asList(0), delivered);
+
+        nextPages.get("h1").succeed(page(null));
+        assertEquals(Arrays.asList(0, 1), delivered);
+        assertFalse(pager.hasMorePages());
+        verify(mockApi, times(1)).searchArchivesNextPage("h1");
+    }
+
+    @Test
+    public void testFailureReportedOnlyWhenWaiting() {
+        ArchivePager pager = new ArchivePager(mockApi, 1, 6);
+        pager.start(new ArchivesRequest(), listener);
+        firstPage.succeed(page("h1"));
+
+        nextPages.get("h1").fail(new IOException("offline"));
+        assertTrue("Prefetch failures are silent", failed.isEmpty());
+
+        pager.loadNextPage();
+        nextPages.get("h1").fail(new IOException("offline"));
+        assertEquals(Arrays.asList(1), failed);
+        assertFalse(pager.isLoading());
+    }
+
+    @Test
+    public void testPeekNextPageDoesNotDeliver() {
+        ArchivePager pager = new ArchivePager(mockApi, 1, 6);
+        pager.start(new ArchivesRequest(), listener);
+        firstPage.succeed(page("h1"));
+        assertNull("Page 1 is still in flight", pager.peekNextPage());
+
+        ArchiveResponse next = page(null);
+        nextPages.get("h1").succeed(next);
+        assertSame(next, pager.peekNextPage());
+        assertEquals(Arrays.asList(0), delivered);
+
+        pager.loadNextPage();
+        assertEquals(Arrays.asList(0, 1), delivered);
+        assertNull(pager.peekNextPage());
+    }
+
+    @Test
+    public void testNextPageReadyReportedWhenPrefetched() {
+        ArchivePager pager = new ArchivePager(mockApi, 2, 6);
+        pager.start(new ArchivesRequest(), listener);
+        firstPage.succeed(page("h1"));
+        assertTrue(ready.isEmpty());
+
+        nextPages.get("h1").succeed(page("h2"));
+        assertEquals(Arrays.asList(1), ready);
+        nextPages.get("h2").succeed(page("h3"));
+        assertEquals("Only the page right after the delivered one", Arrays.asList(1), ready);
+
+        // Page 2 is already held, so it is next up as soon as page 1 is delivered
+        pager.loadNextPage();
+        assertEquals(Arrays.asList(0, 1), delivered);
+        assertEquals(Arrays.asList(1, 2), ready);
+
+        // Page 3 is still in flight when page 2 is delivered; the user waits for it instead
+        pager.loadNextPage();
+        pager.loadNextPage();
+        nextPages.get("h3").succeed(page(null));
+        assertEquals(Arrays.asList(0, 1, 2, 3), delivered);
+        assertEquals(Arrays.asList(1, 2), ready);
+    }
+
+    @Test
+    public void testParsePageHash() {
+        assertEquals("abc", ArchivePager.parsePageHash("/platform-api/archives?page=abc"));
+        assertNull(ArchivePager.parsePageHash(null));
+    }
+
+    private static ArchiveResponse page(String nextHash) {
+        ArchiveResponse response = new ArchiveResponse();
+        response.setArchives(new ArrayList<>(Arrays.asList(new Archive())));
+        if (nextHash != null) {
+            response.setNextPage("/platform-api/archives?page=" + nextHash);
+        }
+        return response;
+    }
+
+    private static class FakeCall implements Call<ArchiveResponse> {
+        private Callback<ArchiveResponse> callback;
+
+        void succeed(ArchiveResponse response) {
+            callback.onResponse(this, Response.success(response));
+        }
+
+        void fail(Throwable throwable) {
+            callback.onFailure(this, throwable);
+        }
+
+        @NonNull
+        @Override
+        public Response<ArchiveResponse> execute() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void enqueue(@NonNull Callback<ArchiveResponse> callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return callback != null;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @NonNull
+        @Override
+        public Call<ArchiveResponse> clone() {
+            return new FakeCall();
+        }
+
+        @NonNull
+        @Override
+        public Request request() {
+            return new Request.Builder().url("https://app.skyfi.com/").build();
+        }
+
+        @NonNull
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.optisense.skyfi.atak;
+
+import static org.junit.Assert.*;
+
+import com.optisense.skyfi.atak.skyfiapi.CachePolicy;
+import com.optisense.skyfi.atak.skyfiapi.CachePolicyInterceptor;
+import com.optisense.skyfi.atak.skyfiapi.InvalidatesCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Headers;
+import retrofit2.http.POST;
+
+@RunWith(RobolectricTestRunner.class)
+public class CachePolicyInterceptorTest {
+
+    interface TestAPI {
+        @GET("/fresh")
+        @CachePolicy(maxAge = 60)
+        Call<ResponseBody> fresh();
+
+        @GET("/stale")
+        @CachePolicy(maxAge = 0, staleWhileRevalidate = 600)
+        Call<ResponseBody> stale();
+
+        @GET("/stale")
+        @Headers("Cache-Control: no-cache")
+        @CachePolicy(maxAge = 0, staleWhileRevalidate = 600)
+        Call<ResponseBody> refreshStale();
+
+        @POST("/change")
+        @InvalidatesCache("/stale")
+        Call<ResponseBody> change();
+
+        @GET("/uncached")
+        Call<ResponseBody> uncached();
+    }
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private TestAPI api;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+
+        CachePolicyInterceptor interceptor = new CachePolicyInterceptor();
+        OkHttpClient client = new OkHttpClient.Builder()
+                .cache(new Cache(tempFolder.newFolder("http"), 1024 * 1024))
+                .addInterceptor(interceptor)
+                .addNetworkInterceptor(new CachePolicyInterceptor.NetworkInterceptor())
+                .build();
+        interceptor.setClient(client);
+
+        api = new Retrofit.Builder()
+                .client(client)
+                .baseUrl(server.url("/"))
+                .build()
+                .create(TestAPI.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void testFreshResponseServedFromCache() throws IOException {
+        server.enqueue(new MockResponse().setBody("one").addHeader("Cache-Control", "no-cache"));
+
+        assertEquals("one", api.fresh().execute().body().string());
+        assertEquals("one", api.fresh().execute().body().string());
+        assertEquals("Second call should not reach the server", 1, server.getRequestCount());
+    }
+
+    @Test
+    public void testStaleResponseServedThenRevalidated() throws Exception {
+        server.enqueue(new MockResponse().setBody("one").addHeader("ETag", "\"v1\""));
+        server.enqueue(new MockResponse().setResponseCode(304).addHeader("ETag", "\"v1\""));
+
+        assertEquals("one", api.stale().execute().body().string());
+        server.takeRequest();
+
+        Response<ResponseBody> second = api.stale().execute();
+        assertEquals("Stale copy should be returned immediately", "one", second.body().string());
+
+        RecordedRequest revalidation = server.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull("Background revalidation should be sent", revalidation);
+        assertEquals("\"v1\"", revalidation.getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void testUnannotatedEndpointAlwaysHitsNetwork() throws IOException {
+        server.enqueue(new MockResponse().setBody("one").addHeader("Cache-Control", "no-store"));
+        server.enqueue(new MockResponse().setBody("two").addHeader("Cache-Control", "no-store"));
+
+        assertEquals("one", api.uncached().execute().body().string());
+        assertEquals("two", api.uncached().execute().body().string());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testRefreshBypassesStaleCopy() throws IOException {
+        server.enqueue(new MockResponse().setBody("one"));
+        server.enqueue(new MockResponse().setBody("two"));
+
+        assertEquals("one", api.stale().execute().body().string());
+        assertEquals("two", api.refreshStale().execute().body().string());
+        assertEquals(2, server.getRequestCount());
+        // The refreshed copy replaces the cached one
+        assertEquals("two", api.stale().execute().body().string());
+    }
+
+    @Test
+    public void testSuccessfulChangeEvictsInvalidatedPaths() throws IOException {
+        server.enqueue(new MockResponse().setBody("one"));
+        server.enqueue(new MockResponse().setResponseCode(201));
+        server.enqueue(new MockResponse().setBody("two"));
+
+        assertEquals("one", api.stale().execute().body().string());
+        assertTrue(api.change().execute().isSuccessful());
+        assertEquals("two", api.stale().execute().body().string());
+        assertEquals(3, server.getRequestCount());
+    }
+}
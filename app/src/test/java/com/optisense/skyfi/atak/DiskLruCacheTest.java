@@ -0,0 +1,233 @@
+package com.optisense.skyfi.atak;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class DiskLruCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private final List<String> evicted = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("cache");
+    }
+
+    private DiskLruCache open(long maxSize) throws IOException {
+        return DiskLruCache.open(directory, maxSize, (key, size) -> evicted.add(key));
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        DiskLruCache cache = open(1024);
+        assertTrue(cache.put("a", new byte[]{1, 2, 3}));
+
+        assertTrue(cache.contains("a"));
+        assertArrayEquals(new byte[]{1, 2, 3}, read(cache, "a"));
+        assertEquals(3, cache.size());
+        assertNull(cache.get("missing"));
+        cache.close();
+    }
+
+    @Test
+    public void testReaderKeepsTheVersionItOpened() throws IOException {
+        DiskLruCache cache = open(1024);
+        cache.put("a", new byte[]{1, 1});
+        try (InputStream in = cache.get("a")) {
+            cache.put("a", new byte[]{2, 2, 2});
+            assertArrayEquals(new byte[]{1, 1}, readAll(in));
+        }
+        try (InputStream in = cache.get("a")) {
+            cache.remove("a");
+            assertArrayEquals(new byte[]{2, 2, 2}, readAll(in));
+        }
+        assertNull(cache.get("a"));
+        cache.close();
+    }
+
+    @Test
+    public void testReadsCompactTheJournal() throws IOException {
+        DiskLruCache cache = open(1024);
+        cache.put("a", new byte[3]);
+        for (int i = 0; i < 10000; i++) {
+            cache.get("a").close();
+        }
+        cache.flush();
+        List<String> lines = Files.readAllLines(new File(directory, DiskLruCache.JOURNAL_FILE).toPath());
+        assertTrue("Journal has " + lines.size() + " lines", lines.size() < 2500);
+        cache.close();
+    }
+
+    @Test
+    public void testReplaceUpdatesSize() throws IOException {
+        DiskLruCache cache = open(1024);
+        cache.put("a", new byte[10]);
+        cache.put("a", new byte[4]);
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.entryCount());
+        cache.close();
+    }
+
+    @Test
+    public void testJournalRestoresIndexOnReopen() throws IOException {
+        DiskLruCache cache = open(1024);
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[20]);
+        cache.put("c", new byte[30]);
+        cache.remove("b");
+        cache.get("a").close();
+        cache.close();
+
+        DiskLruCache reopened = open(1024);
+        assertEquals(40, reopened.size());
+        assertFalse(reopened.contains("b"));
+        // "a" was read after "c" was written
+        assertEquals(Arrays.asList("c", "a"), reopened.keys());
+        reopened.close();
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        DiskLruCache cache = open(25);
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[10]);
+        cache.get("a").close();
+        cache.put("c", new byte[10]);
+
+        assertEquals(Arrays.asList("b"), evicted);
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertFalse(new File(directory, "b").exists());
+        assertEquals(20, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void testAbortKeepsPreviousValue() throws IOException {
+        DiskLruCache cache = open(1024);
+        cache.put("a", new byte[]{1});
+
+        DiskLruCache.Editor editor = cache.edit("a");
+        try (OutputStream out = editor.newOutputStream()) {
+            out.write(new byte[]{2, 2});
+        }
+        editor.abort();
+
+        assertArrayEquals(new byte[]{1}, read(cache, "a"));
+        assertFalse(new File(directory, "a.tmp").exists());
+        cache.close();
+    }
+
+    @Test
+    public void testOnlyOneEditorPerKey() throws IOException {
+        DiskLruCache cache = open(1024);
+        DiskLruCache.Editor editor = cache.edit("a");
+        assertNotNull(editor);
+        assertNull(cache.edit("a"));
+        editor.abort();
+        assertNotNull(cache.edit("a"));
+        cache.close();
+    }
+
+    @Test
+    public void testUncommittedEditIsDiscardedAfterCrash() throws IOException {
+        DiskLruCache cache = open(1024);
+        DiskLruCache.Editor editor = cache.edit("a");
+        try (OutputStream out = editor.newOutputStream()) {
+            out.write(new byte[5]);
+        }
+        // Simulate process death: reopen without committing or closing
+        cache.flush();
+
+        DiskLruCache reopened = open(1024);
+        assertFalse(reopened.contains("a"));
+        assertFalse(new File(directory, "a.tmp").exists());
+        assertEquals(0, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void testAdoptsFilesWithoutJournal() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "0123abcd"))) {
+            out.write(new byte[7]);
+        }
+        new File(directory, "stale.tmp").createNewFile();
+
+        DiskLruCache cache = open(1024);
+        assertTrue(cache.contains("0123abcd"));
+        assertEquals(7, cache.size());
+        assertFalse(new File(directory, "stale.tmp").exists());
+        cache.close();
+    }
+
+    @Test
+    public void testCorruptJournalIsRebuilt() throws IOException {
+        DiskLruCache cache = open(1024);
+        cache.put("a", new byte[3]);
+        cache.close();
+        try (FileWriter writer = new FileWriter(new File(directory, DiskLruCache.JOURNAL_FILE))) {
+            writer.write("garbage\n");
+        }
+
+        DiskLruCache reopened = open(1024);
+        assertTrue(reopened.contains("a"));
+        assertEquals(3, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void testEvictAll() throws IOException {
+        DiskLruCache cache = open(1024);
+        cache.put("a", new byte[3]);
+        cache.put("b", new byte[3]);
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.entryCount());
+        assertFalse(new File(directory, "a").exists());
+        cache.close();
+    }
+
+    private static byte[] read(DiskLruCache cache, String key) throws IOException {
+        try (InputStream in = cache.get(key)) {
+            assertNotNull(in);
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnsafeKeys() throws IOException {
+        open(1024).edit("../escape");
+    }
+}
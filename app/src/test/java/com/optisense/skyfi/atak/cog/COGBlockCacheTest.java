@@ -0,0 +1,185 @@
+package com.optisense.skyfi.atak.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGBlockCacheTest {
+
+    private static final int FILE_SIZE = 5 * COGBlockCache.BLOCK_SIZE + 1000;
+
+    private MockWebServer server;
+    private byte[] file;
+    private volatile long responseDelayMs;
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        file = new byte[FILE_SIZE];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) (i * 31);
+        }
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                int active = activeRequests.incrementAndGet();
+                try {
+                    maxActiveRequests.set(Math.max(maxActiveRequests.get(), active));
+                    Thread.sleep(responseDelayMs);
+                    return respond(request);
+                } finally {
+                    activeRequests.decrementAndGet();
+                }
+            }
+
+            private MockResponse respond(RecordedRequest request) {
+                String[] range = request.getHeader("Range").substring("bytes=".length()).split("-");
+                int start = Integer.parseInt(range[0]);
+                int end = Math.min(Integer.parseInt(range[1]), file.length - 1);
+                if (start >= file.length) {
+                    return new MockResponse().setResponseCode(416);
+                }
+                return new MockResponse().setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + file.length)
+                        .setBody(new Buffer().write(file, start, end - start + 1));
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void testPlanRunsBridgesSmallGaps() {
+        List<long[]> runs = COGBlockCache.planRuns(Arrays.asList(0L, 1L, 3L, 7L, 8L));
+        assertEquals(2, runs.size());
+        assertArrayEquals(new long[]{0, 3}, runs.get(0));
+        assertArrayEquals(new long[]{7, 8}, runs.get(1));
+    }
+
+    @Test
+    public void testConcurrentNeighbouringReadsShareOneRequest() throws Exception {
+        COGBlockCache cache = new COGBlockCache(server.url("/scene.tif").toString());
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+        pool.prestartAllCoreThreads();
+        try {
+            List<Future<byte[]>> reads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                long offset = 1000L + i * 150_000L;
+                reads.add(pool.submit(() -> cache.read(offset, 20_000).array()));
+            }
+            for (int i = 0; i < 4; i++) {
+                int offset = 1000 + i * 150_000;
+                assertArrayEquals(Arrays.copyOfRange(file, offset, offset + 20_000), reads.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        // Normally one spanning GET; never one per read
+        int requests = server.getRequestCount();
+        assertTrue(requests < 4);
+
+        // Served from the block cache
+        cache.read(2000, 100);
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void testReadEndingAtEndOfFile() throws Exception {
+        COGBlockCache cache = new COGBlockCache(server.url("/scene.tif").toString());
+        assertArrayEquals(Arrays.copyOfRange(file, FILE_SIZE - 500, FILE_SIZE), cache.read(FILE_SIZE - 500, 500).array());
+        try {
+            cache.read(FILE_SIZE - 10, 20);
+            fail("Read past the end should fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFetchedBytesCountedOnTheFetchingThread() throws Exception {
+        COGBlockCache cache = new COGBlockCache(server.url("/scene.tif").toString());
+        long before = COGBlockCache.bytesFetchedByThread();
+        cache.read(1000, 100);
+        assertEquals(COGBlockCache.BLOCK_SIZE, COGBlockCache.bytesFetchedByThread() - before);
+
+        // Cached blocks are free
+        cache.read(2000, 100);
+        assertEquals(COGBlockCache.BLOCK_SIZE, COGBlockCache.bytesFetchedByThread() - before);
+
+        // The last block is short
+        cache.read(FILE_SIZE - 10, 10);
+        assertEquals(COGBlockCache.BLOCK_SIZE + 1000, COGBlockCache.bytesFetchedByThread() - before);
+    }
+
+    @Test
+    public void testInterruptedReadFetchesNothing() throws Exception {
+        COGBlockCache cache = new COGBlockCache(server.url("/scene.tif").toString());
+        Thread.currentThread().interrupt();
+        try {
+            cache.read(1000, 100);
+            fail("Interrupted read should fail");
+        } catch (InterruptedIOException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(0, server.getRequestCount());
+
+        // Nothing is left in flight
+        assertArrayEquals(Arrays.copyOfRange(file, 1000, 1100), cache.read(1000, 100).array());
+    }
+
+    @Test
+    public void testDistantRunsOfOneBatchFetchInParallel() throws Exception {
+        COGBlockCache cache = new COGBlockCache(server.url("/scene.tif").toString());
+        responseDelayMs = 300;
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+        pool.prestartAllCoreThreads();
+        CyclicBarrier start = new CyclicBarrier(2);
+        try {
+            // Blocks 0 and 4: too far apart for one GET
+            List<Future<byte[]>> reads = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                long offset = 100L + i * 4L * COGBlockCache.BLOCK_SIZE;
+                reads.add(pool.submit(() -> {
+                    start.await();
+                    return cache.read(offset, 1000).array();
+                }));
+            }
+            for (int i = 0; i < 2; i++) {
+                int offset = 100 + i * 4 * COGBlockCache.BLOCK_SIZE;
+                assertArrayEquals(Arrays.copyOfRange(file, offset, offset + 1000), reads.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(2, server.getRequestCount());
+        assertEquals(2, maxActiveRequests.get());
+    }
+}
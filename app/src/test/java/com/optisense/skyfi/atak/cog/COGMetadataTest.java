@@ -0,0 +1,189 @@
+package com.optisense.skyfi.atak.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGMetadataTest {
+
+    // 1024x512 image in 256x256 tiles: 4x2 tiles
+    private static final int TILES = 8;
+    private static final int INDEX_OFFSET = 200_000;
+    private static final int GEO_OFFSET = 100_000;
+
+    /**
+     * In-memory file that records every read
+     */
+    private static class RecordingSource implements COGSource {
+        final ByteBuffer file;
+        final List<Long> reads = new ArrayList<>();
+
+        RecordingSource(ByteBuffer file) {
+            this.file = file;
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int length) {
+            reads.add(offset);
+            ByteBuffer slice = file.duplicate();
+            slice.position((int) offset);
+            slice.limit((int) offset + length);
+            return slice.slice();
+        }
+
+        @Override
+        public ByteBuffer[] read(long[] offsets, int[] lengths) {
+            ByteBuffer[] results = new ByteBuffer[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                results[i] = read(offsets[i], lengths[i]);
+            }
+            return results;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testClassicTiffLoadsTileIndexLazily() throws IOException {
+        RecordingSource source = new RecordingSource(buildTiff(false, ByteOrder.LITTLE_ENDIAN, false));
+        COGMetadata metadata = COGMetadata.read(source);
+        assertFalse(metadata.isBigTiff());
+        for (long offset : source.reads) {
+            assertTrue("Tile index read before first tile request", offset < INDEX_OFFSET);
+        }
+
+        assertArrayEquals(new long[]{1_000_000 + 5 * 4096, 1_000_000 + 5 * 4096 + 99},
+                metadata.getTileByteRange(0, 1, 1));
+        assertNull(metadata.getTileByteRange(0, 4, 0));
+        assertNull(metadata.getTileByteRange(1, 0, 0));
+    }
+
+    @Test
+    public void testBigTiffWithLong8Offsets() throws IOException {
+        RecordingSource source = new RecordingSource(buildTiff(true, ByteOrder.BIG_ENDIAN, false));
+        COGMetadata metadata = COGMetadata.read(source);
+        assertTrue(metadata.isBigTiff());
+        assertArrayEquals(new long[]{1_000_000 + 7 * 4096, 1_000_000 + 7 * 4096 + 99},
+                metadata.getTileByteRange(0, 3, 1));
+    }
+
+    @Test
+    public void testGeoreferencingFromGeoKeys() throws IOException {
+        COGMetadata metadata = COGMetadata.read(new RecordingSource(buildTiff(false, ByteOrder.LITTLE_ENDIAN, true)));
+        assertTrue(metadata.isGeoreferenced());
+        assertEquals(32633, metadata.getEpsgCode());
+
+        // 0.5 m pixels from (400000, 5800000)
+        double[] point = new double[2];
+        metadata.pixelToModel(10, 20, point);
+        assertEquals(400005, point[0], 1e-9);
+        assertEquals(5799990, point[1], 1e-9);
+        metadata.modelToPixel(point[0], point[1], point);
+        assertEquals(10, point[0], 1e-9);
+        assertEquals(20, point[1], 1e-9);
+
+        // Only full resolution to choose from
+        assertEquals(0, metadata.getOverviewForScale(8));
+        assertEquals(0, metadata.getOverviewForZoom(10));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsNonTiff() throws IOException {
+        COGMetadata.read(new RecordingSource(ByteBuffer.wrap(new byte[64])));
+    }
+
+    private static ByteBuffer buildTiff(boolean bigTiff, ByteOrder order, boolean georeferenced) {
+        ByteBuffer file = ByteBuffer.allocate(INDEX_OFFSET + TILES * 16).order(order);
+        file.putShort((short) (order == ByteOrder.LITTLE_ENDIAN ? 0x4949 : 0x4D4D));
+        int ifdOffset = 16;
+        if (bigTiff) {
+            file.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifdOffset);
+        } else {
+            file.putShort((short) 42).putInt(ifdOffset);
+        }
+
+        int offsetsAt = INDEX_OFFSET;
+        int countsAt = INDEX_OFFSET + TILES * 8;
+        int[][] entries = {
+                {256, 3, 1, 1024},
+                {257, 3, 1, 512},
+                {258, 3, 1, 8},
+                {259, 3, 1, 1},
+                {277, 3, 1, 1},
+                {322, 3, 1, 256},
+                {323, 3, 1, 256},
+                {324, bigTiff ? 16 : 4, TILES, offsetsAt},
+                {325, bigTiff ? 16 : 4, TILES, countsAt},
+        };
+        if (georeferenced) {
+            entries = Arrays.copyOf(entries, entries.length + 3);
+            entries[entries.length - 3] = new int[]{33550, 12, 3, GEO_OFFSET};
+            entries[entries.length - 2] = new int[]{33922, 12, 6, GEO_OFFSET + 24};
+            entries[entries.length - 1] = new int[]{34735, 3, 12, GEO_OFFSET + 72};
+            double[] doubles = {0.5, 0.5, 0, 0, 0, 0, 400000, 5800000, 0};
+            for (int i = 0; i < doubles.length; i++) {
+                file.putDouble(GEO_OFFSET + i * 8, doubles[i]);
+            }
+            // Version header, then GTModelType = projected and ProjectedCSType = UTM 33N
+            short[] keys = {1, 1, 0, 2, 1024, 0, 1, 1, 3072, 0, 1, (short) 32633};
+            for (int i = 0; i < keys.length; i++) {
+                file.putShort(GEO_OFFSET + 72 + i * 2, keys[i]);
+            }
+        }
+        file.position(ifdOffset);
+        if (bigTiff) {
+            file.putLong(entries.length);
+        } else {
+            file.putShort((short) entries.length);
+        }
+        for (int[] entry : entries) {
+            file.putShort((short) entry[0]).putShort((short) entry[1]);
+            if (bigTiff) {
+                file.putLong(entry[2]);
+                if (entry[1] == 3 && entry[2] == 1) {
+                    file.putShort((short) entry[3]).putShort((short) 0).putInt(0);
+                } else {
+                    file.putLong(entry[3]);
+                }
+            } else {
+                file.putInt(entry[2]);
+                if (entry[1] == 3 && entry[2] == 1) {
+                    file.putShort((short) entry[3]).putShort((short) 0);
+                } else {
+                    file.putInt(entry[3]);
+                }
+            }
+        }
+        // No next IFD
+        if (bigTiff) {
+            file.putLong(0);
+        } else {
+            file.putInt(0);
+        }
+
+        for (int i = 0; i < TILES; i++) {
+            long offset = 1_000_000 + i * 4096L;
+            if (bigTiff) {
+                file.putLong(offsetsAt + i * 8, offset);
+                file.putLong(countsAt + i * 8, 100);
+            } else {
+                file.putInt(offsetsAt + i * 4, (int) offset);
+                file.putInt(countsAt + i * 4, 100);
+            }
+        }
+        file.clear();
+        return file;
+    }
+}
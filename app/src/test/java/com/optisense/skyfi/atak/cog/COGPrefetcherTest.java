@@ -0,0 +1,94 @@
+package com.optisense.skyfi.atak.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGPrefetcherTest {
+
+    private static boolean contains(List<int[]> tiles, int z, int x, int y) {
+        for (int[] tile : tiles) {
+            if (tile[0] == z && tile[1] == x && tile[2] == y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testPanPredictsLeadingEdgeOnly() {
+        // 3x2 area at z10, panning east at 2 tiles/s
+        List<int[]> tiles = COGPrefetcher.predict(10, 100, 200, 102, 201, 2.0, 0, 0);
+        assertTrue(contains(tiles, 10, 103, 200));
+        assertTrue(contains(tiles, 10, 104, 201));
+        assertFalse(contains(tiles, 10, 99, 200));
+        assertFalse(contains(tiles, 10, 101, 200));
+        // Nearest column first
+        assertEquals(103, tiles.get(0)[1]);
+        // Then the parents
+        assertTrue(contains(tiles, 9, 50, 100));
+        assertTrue(contains(tiles, 9, 51, 100));
+    }
+
+    @Test
+    public void testAtRestPredictsRingAndZoomNeighbours() {
+        List<int[]> tiles = COGPrefetcher.predict(4, 5, 5, 5, 5, 0, 0, 1);
+        for (int y = 4; y <= 6; y++) {
+            for (int x = 4; x <= 6; x++) {
+                assertEquals(x != 5 || y != 5, contains(tiles, 4, x, y));
+            }
+        }
+        assertTrue(contains(tiles, 3, 2, 2));
+        assertTrue(contains(tiles, 5, 10, 10));
+        assertTrue(contains(tiles, 5, 11, 11));
+
+        // Nothing off the edge of the grid
+        for (int[] tile : COGPrefetcher.predict(1, 0, 0, 1, 1, -5, -5, 1)) {
+            assertTrue(tile[1] >= 0 && tile[2] >= 0 && tile[1] < 1 << tile[0] && tile[2] < 1 << tile[0]);
+        }
+    }
+
+    @Test
+    public void testRequestStreamDrivesPrefetch() {
+        final List<int[]> prefetched = new ArrayList<>();
+        COGPrefetcher prefetcher = new COGPrefetcher((layerId, z, x, y) -> {
+            assertEquals("layer", layerId);
+            prefetched.add(new int[]{z, x, y});
+        }, 1024 * 1024);
+
+        // A column of tiles drawn every 300ms, one further south each time
+        long now = 1000;
+        for (int frame = 0; frame < 6; frame++) {
+            for (int x = 10; x <= 12; x++) {
+                prefetcher.onRequest("layer", 12, x, 40 + frame, now);
+                now += 10;
+            }
+            now += 270;
+        }
+        int[] last = prefetched.get(prefetched.size() - 1);
+        // The most likely tile is issued last: just south of the newest row
+        assertEquals(12, last[0]);
+        assertEquals(46, last[2]);
+        assertFalse(contains(prefetched.subList(prefetched.size() - 12, prefetched.size()), 12, 11, 44));
+    }
+
+    @Test
+    public void testZeroBudgetDisablesPrefetch() {
+        final List<int[]> prefetched = new ArrayList<>();
+        COGPrefetcher prefetcher = new COGPrefetcher((layerId, z, x, y) -> prefetched.add(new int[]{z, x, y}), 0);
+        prefetcher.onRequest("layer", 8, 1, 1, 1000);
+        prefetcher.onRequest("layer", 8, 2, 1, 1200);
+        assertTrue(prefetched.isEmpty());
+        assertFalse(prefetcher.tryStart());
+
+        prefetcher.setBudget(1000);
+        prefetcher.charge(5000);
+        assertFalse(prefetcher.tryStart());
+    }
+}
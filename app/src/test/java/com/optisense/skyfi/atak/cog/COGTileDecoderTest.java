@@ -0,0 +1,184 @@
+package com.optisense.skyfi.atak.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGTileDecoderTest {
+
+    @Test
+    public void testLzwRoundTrip() {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i * 7 + i / 13) % 17);
+        }
+        byte[] out = new byte[data.length];
+        assertEquals(data.length, COGTileDecoder.lzwDecode(ByteBuffer.wrap(lzwEncode(data)), out, out.length));
+        assertArrayEquals(data, out);
+    }
+
+    @Test
+    public void testDeflateRgbWithPredictor() throws Exception {
+        COGMetadata.IFD ifd = ifd(4, 2, 3, 8);
+        ifd.compression = COGTileDecoder.COMPRESSION_DEFLATE;
+        ifd.predictor = 2;
+
+        // Every pixel (10, 20, 30), stored as differences along each row
+        byte[] samples = new byte[4 * 2 * 3];
+        for (int row = 0; row < 2; row++) {
+            int start = row * 12;
+            samples[start] = 10;
+            samples[start + 1] = 20;
+            samples[start + 2] = 30;
+        }
+        int[] out = new int[8];
+        COGTileDecoder decoder = new COGTileDecoder(ifd, ByteOrder.LITTLE_ENDIAN, Double.NaN);
+        // Off-heap, like a slice of a mapped file
+        assertFalse(decoder.decode(new ByteBuffer[]{direct(deflate(samples))}, out));
+        for (int pixel : out) {
+            assertEquals(0xFF0A141E, pixel);
+        }
+    }
+
+    @Test
+    public void testSixteenBitStretchAndNoData() throws Exception {
+        COGMetadata.IFD ifd = ifd(2, 1, 1, 16);
+        ifd.compression = COGTileDecoder.COMPRESSION_NONE;
+        // Big-endian samples 0 (nodata) and 1000
+        byte[] samples = {0, 0, 0x03, (byte) 0xE8};
+        COGTileDecoder decoder = new COGTileDecoder(ifd, ByteOrder.BIG_ENDIAN, 0);
+        decoder.setStretch(0, 1000);
+
+        int[] out = new int[2];
+        assertTrue(decoder.decode(new ByteBuffer[]{direct(samples)}, out));
+        assertEquals(0, out[0] >>> 24);
+        assertEquals(0xFFFFFFFF, out[1]);
+    }
+
+    @Test
+    public void testSeparatePlanes() throws Exception {
+        COGMetadata.IFD ifd = ifd(2, 1, 4, 8);
+        ifd.compression = COGTileDecoder.COMPRESSION_NONE;
+        ifd.planarConfiguration = 2;
+        ifd.alphaSample = 3;
+        COGTileDecoder decoder = new COGTileDecoder(ifd, ByteOrder.LITTLE_ENDIAN, Double.NaN);
+        assertArrayEquals(new int[]{0, 1, 2, 3}, decoder.getPlanes());
+
+        int[] out = new int[2];
+        ByteBuffer[] planes = {
+                ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.wrap(new byte[]{3, 4}),
+                ByteBuffer.wrap(new byte[]{5, 6}), ByteBuffer.wrap(new byte[]{(byte) 255, (byte) 128})};
+        assertTrue(decoder.decode(planes, out));
+        assertEquals(0xFF010305, out[0]);
+        assertEquals(0x80020406, out[1]);
+    }
+
+    @Test
+    public void testPercentileRange() {
+        int[] histogram = new int[65536];
+        histogram[100] = 1;
+        histogram[200] = 98;
+        histogram[60000] = 1;
+        assertArrayEquals(new int[]{200, 201}, COGTileDecoder.percentileRange(histogram, 0.02, 0.98, false));
+        assertArrayEquals(new int[]{100, 60000}, COGTileDecoder.percentileRange(histogram, 0, 1, false));
+    }
+
+    @Test
+    public void testSpliceJpegTables() {
+        byte[] tables = {(byte) 0xFF, (byte) 0xD8, 1, 2, (byte) 0xFF, (byte) 0xD9};
+        byte[] tile = {(byte) 0xFF, (byte) 0xD8, 3, 4, (byte) 0xFF, (byte) 0xD9};
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, (byte) 0xFF, (byte) 0xD9},
+                COGTileDecoder.spliceJpegTables(tables, direct(tile)));
+        assertSame(tile, COGTileDecoder.spliceJpegTables(null, ByteBuffer.wrap(tile)));
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static COGMetadata.IFD ifd(int width, int height, int samples, int bits) {
+        COGMetadata.IFD ifd = new COGMetadata.IFD();
+        ifd.width = ifd.tileWidth = width;
+        ifd.height = ifd.tileHeight = height;
+        ifd.samplesPerPixel = samples;
+        ifd.bitsPerSample = bits;
+        ifd.photometric = samples >= 3 ? 2 : 1;
+        return ifd;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Minimal TIFF LZW encoder with libtiff's early code-width change
+     */
+    private static byte[] lzwEncode(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long[] bits = {0, 0}; // buffer, count
+        Map<String, Integer> table = new HashMap<>();
+        int[] state = {258, 9}; // next code, code width
+
+        writeCode(out, bits, 256, state[1]);
+        String current = "";
+        for (byte b : data) {
+            String extended = current + (char) (b & 0xFF);
+            if (extended.length() == 1 || table.containsKey(extended)) {
+                current = extended;
+                continue;
+            }
+            writeCode(out, bits, code(table, current), state[1]);
+            table.put(extended, state[0]++);
+            if (state[0] > (1 << state[1]) - 1) {
+                state[1]++;
+            }
+            if (state[0] >= 4094) {
+                writeCode(out, bits, 256, state[1]);
+                table.clear();
+                state[0] = 258;
+                state[1] = 9;
+            }
+            current = String.valueOf((char) (b & 0xFF));
+        }
+        writeCode(out, bits, code(table, current), state[1]);
+        writeCode(out, bits, 257, state[1]);
+        if (bits[1] > 0) {
+            out.write((int) (bits[0] << (8 - bits[1])));
+        }
+        return out.toByteArray();
+    }
+
+    private static int code(Map<String, Integer> table, String string) {
+        return string.length() == 1 ? string.charAt(0) : table.get(string);
+    }
+
+    private static void writeCode(ByteArrayOutputStream out, long[] bits, int code, int width) {
+        bits[0] = (bits[0] << width) | code;
+        bits[1] += width;
+        while (bits[1] >= 8) {
+            out.write((int) (bits[0] >>> (bits[1] - 8)));
+            bits[1] -= 8;
+            bits[0] &= (1L << bits[1]) - 1;
+        }
+    }
+}
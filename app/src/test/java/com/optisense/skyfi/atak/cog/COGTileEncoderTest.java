@@ -0,0 +1,30 @@
+package com.optisense.skyfi.atak.cog;
+
+import static org.junit.Assert.*;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGTileEncoderTest {
+
+    @Test
+    public void testContentTypeFromSignature() {
+        assertEquals("image/jpeg", COGTileEncoder.contentType(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0}));
+        assertEquals("image/webp", COGTileEncoder.contentType("RIFF\0\0\0\0WEBPVP8 ".getBytes()));
+        assertEquals("image/png", COGTileEncoder.contentType(new byte[]{(byte) 0x89, 'P', 'N', 'G'}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testJpegCannotCarryAlpha() {
+        new COGTileEncoder().configure(Bitmap.CompressFormat.JPEG, Bitmap.CompressFormat.JPEG, 80);
+    }
+
+    @Test
+    public void testTransparentTileIsShared() {
+        assertSame(COGTileEncoder.transparentTile(), COGTileEncoder.transparentTile());
+    }
+}
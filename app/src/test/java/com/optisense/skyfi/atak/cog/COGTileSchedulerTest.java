@@ -0,0 +1,143 @@
+package com.optisense.skyfi.atak.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGTileSchedulerTest {
+
+    private COGTileScheduler scheduler;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch blocking = new CountDownLatch(1);
+    private final List<String> rendered = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws InterruptedException {
+        // One worker, held by a tile until the test releases it
+        scheduler = new COGTileScheduler(1, 8);
+        scheduler.schedule("block", 0, this, () -> {
+            blocking.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[0];
+        }, tile -> { });
+        assertTrue(blocking.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private COGTileScheduler.Job job(final String name) {
+        return () -> {
+            rendered.add(name);
+            return name.getBytes();
+        };
+    }
+
+    @Test
+    public void testNewestAtCurrentZoomRunsFirst() throws Exception {
+        CountDownLatch done = new CountDownLatch(4);
+        scheduler.schedule("a", 5, this, job("a"), tile -> done.countDown());
+        scheduler.schedule("b", 6, this, job("b"), tile -> done.countDown());
+        scheduler.schedule("c", 5, this, job("c"), tile -> done.countDown());
+        scheduler.schedule("d", 6, this, job("d"), tile -> done.countDown());
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("d", "b", "c", "a"), rendered);
+    }
+
+    @Test
+    public void testSameTileRendersOnce() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        List<byte[]> tiles = Collections.synchronizedList(new ArrayList<byte[]>());
+        COGTileScheduler.Waiter waiter = tile -> {
+            tiles.add(tile);
+            done.countDown();
+        };
+        scheduler.schedule("layer/3/1/2", 3, "first", job("tile"), waiter);
+        scheduler.schedule("layer/3/1/2", 3, "second", job("tile"), waiter);
+        assertEquals(1, scheduler.getPendingCount());
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("tile"), rendered);
+        assertArrayEquals("tile".getBytes(), tiles.get(0));
+        assertArrayEquals("tile".getBytes(), tiles.get(1));
+    }
+
+    @Test
+    public void testFullQueueDropsStalest() {
+        AtomicInteger dropped = new AtomicInteger(-1);
+        for (int i = 0; i < 9; i++) {
+            final int index = i;
+            scheduler.schedule("t" + i, 10, this, job("t" + i), tile -> {
+                if (tile == null) {
+                    dropped.set(index);
+                }
+            });
+        }
+        assertEquals(0, dropped.get());
+        assertEquals(8, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void testCancelDiscardsPendingAndInterruptsRunning() throws Exception {
+        CountDownLatch kept = new CountDownLatch(1);
+        scheduler.schedule("gone", 4, "closed", job("gone"), tile -> fail("Cancelled tile was answered"));
+        scheduler.schedule("shared", 4, "closed", job("shared"), tile -> { });
+        scheduler.schedule("shared", 4, "open", job("shared"), tile -> kept.countDown());
+
+        scheduler.cancel("closed");
+        assertEquals(1, scheduler.getPendingCount());
+        // The blocking tile belongs to the test; cancelling it interrupts the worker
+        scheduler.cancel(this);
+
+        assertTrue(kept.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("shared"), rendered);
+    }
+
+    @Test
+    public void testPrefetchRunsAfterRequestsAndIsPromotedWhenRequested() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        byte[][] promoted = new byte[1][];
+        scheduler.prefetch("spare", 7, job("spare"));
+        scheduler.prefetch("wanted", 7, () -> {
+            fail("Promoted prefetch kept its speculative job");
+            return null;
+        });
+        scheduler.schedule("wanted", 7, "client", job("wanted"), tile -> {
+            promoted[0] = tile;
+            done.countDown();
+        });
+        scheduler.schedule("other", 7, "client", job("other"), tile -> done.countDown());
+        // Prefetches never count against requested work
+        assertEquals(2, scheduler.getPendingCount());
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals("wanted".getBytes(), promoted[0]);
+        for (int i = 0; i < 50 && rendered.size() < 3; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.asList("other", "wanted", "spare"), rendered);
+    }
+}
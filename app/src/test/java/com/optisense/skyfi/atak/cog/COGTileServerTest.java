@@ -0,0 +1,67 @@
+package com.optisense.skyfi.atak.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGTileServerTest {
+
+    @Test
+    public void testKeepAliveDefaults() {
+        assertTrue(COGTileServer.isKeepAlive("HTTP/1.1", "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+        assertFalse(COGTileServer.isKeepAlive("HTTP/1.1", "GET / HTTP/1.1\r\nconnection: Close\r\n\r\n"));
+        assertFalse(COGTileServer.isKeepAlive("HTTP/1.0", "GET / HTTP/1.0\r\n\r\n"));
+        assertTrue(COGTileServer.isKeepAlive("HTTP/1.0", "GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n"));
+    }
+
+    @Test
+    public void testFindHeadEnd() {
+        ByteBuffer buffer = ByteBuffer.wrap("GET /a HTTP/1.1\r\n\r\nGET /b".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(19, COGTileServer.findHeadEnd(buffer));
+        buffer.position(19);
+        assertEquals(-1, COGTileServer.findHeadEnd(buffer));
+    }
+
+    @Test
+    public void testPipelinedRequestsAnsweredInOrderOnOneConnection() throws Exception {
+        COGTileServer server = new COGTileServer(18283);
+        server.startServer();
+        try {
+            Thread.sleep(200);
+            try (Socket socket = new Socket("127.0.0.1", 18283)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET /missing/1/2/3.png HTTP/1.1\r\n\r\n"
+                        + "GET /bad HTTP/1.1\r\n\r\n"
+                        + "GET /missing/1/2/3.png HTTP/1.1\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                InputStream in = socket.getInputStream();
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    received.write(buffer, 0, read);
+                }
+                String responses = received.toString("US-ASCII");
+                int first = responses.indexOf("HTTP/1.1 404");
+                int second = responses.indexOf("HTTP/1.1 400");
+                int third = responses.indexOf("HTTP/1.1 404", second);
+                assertTrue(first == 0 && second > first && third > second);
+                assertTrue(responses.endsWith("Connection: close\r\n\r\nLayer not found: missing"));
+            }
+        } finally {
+            server.stopServer();
+        }
+    }
+}
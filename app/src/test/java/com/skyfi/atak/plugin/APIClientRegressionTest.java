@@ -30,6 +30,17 @@ public class APIClientRegressionTest {
         assertNotNull("APIClient should be created successfully", apiClient);
     }
 
+    @Test
+    public void testPeekDoesNotBuildAClient() {
+        APIClient.shutdown();
+        assertNull("Nothing should be built after shutdown", APIClient.peekInstance());
+
+        APIClient client = APIClient.getInstance();
+        assertSame(client, APIClient.peekInstance());
+        APIClient.shutdown();
+        assertNull(APIClient.peekInstance());
+    }
+
     @Test
     public void testGetApiClient() {
         SkyFiAPI api = apiClient.getApiClient();
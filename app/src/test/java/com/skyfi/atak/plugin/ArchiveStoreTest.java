@@ -0,0 +1,70 @@
+package com.skyfi.atak.plugin;
+
+import static org.junit.Assert.*;
+
+import com.skyfi.atak.plugin.skyfiapi.ArchivesRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.locationtech.jts.geom.Envelope;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ArchiveStoreTest {
+
+    @Test
+    public void testCellsForSmallArea() {
+        // A ~5km box sits in one or two half-degree cells
+        List<Integer> cells = ArchiveStore.cellsFor(new Envelope(31.20, 31.25, 29.90, 29.95), 256);
+        assertNotNull(cells);
+        assertEquals(1, cells.size());
+
+        List<Integer> straddling = ArchiveStore.cellsFor(new Envelope(31.45, 31.55, 29.90, 29.95), 256);
+        assertNotNull(straddling);
+        assertEquals(2, straddling.size());
+    }
+
+    @Test
+    public void testCellsForLargeAreaFallsBackToBoundingBox() {
+        // Continental AORs would need thousands of cells
+        assertNull(ArchiveStore.cellsFor(new Envelope(-10, 40, 35, 70), 256));
+    }
+
+    @Test
+    public void testCellsClampAtWorldEdges() {
+        List<Integer> cells = ArchiveStore.cellsFor(new Envelope(179.9, 180, 89.9, 90), 256);
+        assertNotNull(cells);
+        assertEquals(1, cells.size());
+    }
+
+    @Test
+    public void testFilterSignatureIgnoresOrderAoiAndCloud() {
+        ArchivesRequest first = new ArchivesRequest();
+        first.setAoi("POLYGON((0 0, 1 0, 1 1, 0 1, 0 0))");
+        first.setMaxCloudCoveragePercent(10f);
+        first.setProviders(new ArrayList<>(Arrays.asList("PLANET", "UMBRA")));
+
+        ArchivesRequest second = new ArchivesRequest();
+        second.setAoi("POLYGON((5 5, 6 5, 6 6, 5 6, 5 5))");
+        second.setMaxCloudCoveragePercent(30f);
+        second.setProviders(new ArrayList<>(Arrays.asList("UMBRA", "PLANET")));
+
+        assertEquals(ArchiveStore.filterSignature(first), ArchiveStore.filterSignature(second));
+    }
+
+    @Test
+    public void testFilterSignatureChangesWithFilters() {
+        ArchivesRequest first = new ArchivesRequest();
+        ArchivesRequest second = new ArchivesRequest();
+        second.setOpenData(false);
+        assertNotEquals(ArchiveStore.filterSignature(first), ArchiveStore.filterSignature(second));
+
+        ArchivesRequest third = new ArchivesRequest();
+        third.removeProvider(Constants.PLANET);
+        assertNotEquals(ArchiveStore.filterSignature(first), ArchiveStore.filterSignature(third));
+    }
+}
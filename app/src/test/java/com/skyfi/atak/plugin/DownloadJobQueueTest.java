@@ -0,0 +1,54 @@
+package com.skyfi.atak.plugin;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DownloadJobQueueTest {
+
+    @Test
+    public void testParseContentRange() {
+        assertEquals(1024, DownloadJobQueue.parseContentRangeStart("bytes 1024-2047/4096"));
+        assertEquals(4096, DownloadJobQueue.parseContentRangeTotal("bytes 1024-2047/4096"));
+        assertEquals(-1, DownloadJobQueue.parseContentRangeTotal("bytes 0-99/*"));
+        assertEquals(-1, DownloadJobQueue.parseContentRangeStart("items 0-1/2"));
+        assertEquals(-1, DownloadJobQueue.parseContentRangeStart(null));
+    }
+
+    @Test
+    public void testExpectedMd5FromEtag() {
+        assertEquals("9e107d9d372bb6826bd81d3542a419d6",
+                DownloadJobQueue.expectedMd5(null, null, "\"9E107D9D372BB6826BD81D3542A419D6\""));
+        // Multipart S3 ETags and weak ETags aren't content hashes
+        assertNull(DownloadJobQueue.expectedMd5(null, null, "\"9e107d9d372bb6826bd81d3542a419d6-3\""));
+        assertNull(DownloadJobQueue.expectedMd5(null, null, "W/\"9e107d9d372bb6826bd81d3542a419d6\""));
+    }
+
+    @Test
+    public void testExpectedMd5FromHeaders() {
+        // MD5 of "The quick brown fox jumps over the lazy dog"
+        String hex = "9e107d9d372bb6826bd81d3542a419d6";
+        String base64 = "nhB9nTcrtoJr2B01QqQZ1g==";
+        assertEquals(hex, DownloadJobQueue.expectedMd5(base64, null, null));
+        assertEquals(hex, DownloadJobQueue.expectedMd5(null, "crc32c=AAAAAA==, md5=" + base64, null));
+        assertNull(DownloadJobQueue.expectedMd5(null, "crc32c=AAAAAA==", null));
+    }
+
+    @Test
+    public void testThrottleAllowsOneSecondBurstThenPaces() {
+        DownloadJobQueue.BandwidthThrottle throttle = new DownloadJobQueue.BandwidthThrottle();
+        long start = 0;
+        assertEquals("Unlimited by default", 0, throttle.reserve(1 << 20, start));
+
+        throttle.setRate(1000);
+        assertEquals("Starts with a full bucket", 0, throttle.reserve(1000, start));
+        assertEquals(500, throttle.reserve(500, start));
+        // Half a second later the debt is paid off
+        assertEquals(0, throttle.reserve(0, start + 500_000_000L));
+        // Idle time never banks more than one second
+        assertEquals(1000, throttle.reserve(2000, start + 10_000_000_000L));
+    }
+}
@@ -146,4 +146,23 @@ public class ImageCacheManagerTest {
         // and that similar URLs don't collide
         assertNotEquals("Different URLs should have different cache keys", url1, url2);
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void testCalculateInSampleSize() {
+        assertEquals(1, ImageCacheManager.calculateInSampleSize(1024, 768, 0, 0));
+        assertEquals(1, ImageCacheManager.calculateInSampleSize(200, 200, 300, 300));
+        assertEquals(4, ImageCacheManager.calculateInSampleSize(1024, 768, 200, 150));
+        // Never drops below the requested size
+        assertEquals(2, ImageCacheManager.calculateInSampleSize(1024, 768, 300, 300));
+    }
+    
+    @Test
+    public void testSniffContentType() {
+        assertEquals("image/jpeg", ImageCacheManager.sniffContentType(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, 0}));
+        assertEquals("image/png", ImageCacheManager.sniffContentType(
+                new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}));
+        assertEquals("image/webp", ImageCacheManager.sniffContentType(
+                new byte[]{'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P'}));
+        assertEquals("application/octet-stream", ImageCacheManager.sniffContentType(new byte[]{1, 2}));
+    }
+}
@@ -0,0 +1,148 @@
+package com.skyfi.atak.plugin;
+
+import static org.junit.Assert.*;
+
+import com.skyfi.atak.plugin.skyfiapi.Pong;
+import com.skyfi.atak.plugin.skyfiapi.SingleFlightCallAdapterFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.http.Body;
+import retrofit2.http.GET;
+import retrofit2.http.POST;
+
+@RunWith(RobolectricTestRunner.class)
+public class SingleFlightCallAdapterFactoryTest {
+
+    interface TestAPI {
+        @GET("/ping")
+        Call<Pong> ping();
+
+        @POST("/ping")
+        Call<Pong> postPing(@Body Pong pong);
+    }
+
+    private MockWebServer server;
+    private SingleFlightCallAdapterFactory singleFlight;
+    private TestAPI api;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        singleFlight = new SingleFlightCallAdapterFactory();
+        api = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .callbackExecutor(Runnable::run)
+                .addCallAdapterFactory(singleFlight)
+                .addConverterFactory(GsonConverterFactory.create())
+                .build()
+                .create(TestAPI.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void testConcurrentGetsShareOneCall() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"message\":\"pong\"}").setBodyDelay(200, TimeUnit.MILLISECONDS));
+
+        List<Pong> results = collect(api.ping(), api.ping(), api.ping());
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(3, results.size());
+        assertSame("Callers should share one parsed result", results.get(0), results.get(1));
+        assertSame(results.get(0), results.get(2));
+        assertEquals(3, singleFlight.getRequestCount());
+        assertEquals(2, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void testErrorBodyReadableByEveryCaller() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("boom").setBodyDelay(200, TimeUnit.MILLISECONDS));
+
+        CountDownLatch latch = new CountDownLatch(2);
+        List<String> bodies = new ArrayList<>();
+        Callback<Pong> callback = new Callback<Pong>() {
+            @Override
+            public void onResponse(@NonNull Call<Pong> call, @NonNull Response<Pong> response) {
+                try {
+                    synchronized (bodies) {
+                        bodies.add(response.errorBody().string());
+                    }
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(@NonNull Call<Pong> call, @NonNull Throwable throwable) {
+                latch.countDown();
+            }
+        };
+        api.ping().enqueue(callback);
+        api.ping().enqueue(callback);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, server.getRequestCount());
+        assertEquals(2, bodies.size());
+        assertEquals("boom", bodies.get(0));
+        assertEquals("boom", bodies.get(1));
+    }
+
+    @Test
+    public void testPostsAreNotCoalesced() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"message\":\"one\"}").setBodyDelay(200, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setBody("{\"message\":\"two\"}").setBodyDelay(200, TimeUnit.MILLISECONDS));
+
+        collect(api.postPing(new Pong()), api.postPing(new Pong()));
+
+        assertEquals(2, server.getRequestCount());
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    @SafeVarargs
+    private final List<Pong> collect(Call<Pong>... calls) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(calls.length);
+        List<Pong> results = new ArrayList<>();
+        for (Call<Pong> call : calls) {
+            call.enqueue(new Callback<Pong>() {
+                @Override
+                public void onResponse(@NonNull Call<Pong> call, @NonNull Response<Pong> response) {
+                    synchronized (results) {
+                        results.add(response.body());
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(@NonNull Call<Pong> call, @NonNull Throwable throwable) {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return results;
+    }
+}
@@ -0,0 +1,102 @@
+package com.skyfi.atak.plugin;
+
+import static org.junit.Assert.*;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.skyfi.atak.plugin.skyfiapi.Archive;
+import com.skyfi.atak.plugin.skyfiapi.ArchiveResponse;
+import com.skyfi.atak.plugin.skyfiapi.Order;
+import com.skyfi.atak.plugin.skyfiapi.OrderResponse;
+import com.skyfi.atak.plugin.skyfiapi.PricingResponse;
+import com.skyfi.atak.plugin.skyfiapi.SkyFiTypeAdapterFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class SkyFiTypeAdapterFactoryTest {
+
+    private static final String ARCHIVE_JSON = "{"
+            + "\"archiveId\":\"a1\",\"provider\":\"SIWEI\",\"constellation\":\"SuperView\","
+            + "\"productType\":\"DAY\",\"resolution\":\"VERY HIGH\",\"platformResolution\":50,"
+            + "\"captureTimestamp\":\"2024-05-01T12:34:56+00:00\",\"cloudCoveragePercent\":12.5,"
+            + "\"footprint\":\"POLYGON ((0 0, 1 0, 1 1, 0 1, 0 0))\",\"openData\":false,"
+            + "\"priceForOneSquareKm\":8.5,\"thumbnailUrls\":{\"300x300\":\"https://example.com/t.png\"},"
+            + "\"unknownField\":{\"nested\":[1,2,3]}}";
+
+    private Gson streaming;
+    private Gson reflective;
+
+    @Before
+    public void setUp() {
+        streaming = new GsonBuilder().registerTypeAdapterFactory(new SkyFiTypeAdapterFactory()).create();
+        reflective = new Gson();
+    }
+
+    @Test
+    public void testArchiveMatchesReflectiveParse() {
+        Archive fast = streaming.fromJson(ARCHIVE_JSON, Archive.class);
+        Archive slow = reflective.fromJson(ARCHIVE_JSON, Archive.class);
+
+        assertEquals(slow.getArchiveId(), fast.getArchiveId());
+        assertEquals(slow.getProvider(), fast.getProvider());
+        assertEquals(slow.getResolution(), fast.getResolution());
+        assertEquals(slow.getCaptureTimestamp(), fast.getCaptureTimestamp());
+        assertEquals(slow.getCloudCoveragePercent(), fast.getCloudCoveragePercent(), 0.0001f);
+        assertEquals(slow.getFootprint(), fast.getFootprint());
+        assertEquals(slow.getThumbnailUrls(), fast.getThumbnailUrls());
+        assertNull("Unused fields should be skipped", fast.getConstellation());
+    }
+
+    @Test
+    public void testArchiveResponseInternsRepeatedValues() {
+        String json = "{\"nextPage\":\"hash2\",\"total\":2,\"archives\":[" + ARCHIVE_JSON + "," + ARCHIVE_JSON + "]}";
+
+        ArchiveResponse response = streaming.fromJson(json, ArchiveResponse.class);
+
+        assertEquals("hash2", response.getNextPage());
+        assertEquals(Integer.valueOf(2), response.getTotal());
+        assertEquals(2, response.getArchives().size());
+        assertSame("Provider strings should be interned",
+                response.getArchives().get(0).getProvider(), response.getArchives().get(1).getProvider());
+    }
+
+    @Test
+    public void testOrderResponseParse() {
+        String json = "{\"request\":{\"pageNumber\":1,\"pageSize\":25},\"total\":1,\"orders\":[{"
+                + "\"id\":\"o1\",\"status\":\"PROCESSING\",\"orderCost\":100,\"orderLabel\":\"Label\","
+                + "\"ownerId\":\"u1\",\"sarProductTypes\":[\"GEC\"],\"archive\":" + ARCHIVE_JSON + "}]}";
+
+        OrderResponse response = streaming.fromJson(json, OrderResponse.class);
+
+        assertEquals(1, response.getTotal());
+        assertEquals(1, response.getRequest().getPageNumber());
+        Order order = response.getOrders()[0];
+        assertEquals("o1", order.getId());
+        assertEquals("PROCESSING", order.getStatus());
+        assertEquals("Label", order.getOrderName());
+        assertArrayEquals(new String[]{"GEC"}, order.getSarProductTypes());
+        assertEquals("a1", order.getArchive().getArchiveId());
+    }
+
+    @Test
+    public void testPricingResponseParse() {
+        String json = "{\"productTypes\":[{\"productType\":\"DAY\",\"resolutions\":[{"
+                + "\"resolution\":\"HIGH\",\"isSupported\":true,"
+                + "\"pricing\":{\"taskingPriceOneSqkm\":12.5,\"isPriorityEnabled\":true},"
+                + "\"providers\":{\"SATELLOGIC\":{\"provider\":\"SATELLOGIC\",\"taskingMinSqkm\":10}}}]}]}";
+
+        PricingResponse response = streaming.fromJson(json, PricingResponse.class);
+
+        PricingResponse.ProductType productType = response.getProductTypes().get(0);
+        assertEquals("DAY", productType.getProductType());
+        PricingResponse.ProductType.Resolution resolution = productType.getResolutions().get(0);
+        assertEquals("HIGH", resolution.getResolution());
+        assertTrue(resolution.getSupported());
+        assertEquals(Float.valueOf(12.5f), resolution.getPricing().getTaskingPriceOneSqkm());
+        assertEquals("SATELLOGIC", resolution.getProviders().get("SATELLOGIC").getProvider());
+    }
+}
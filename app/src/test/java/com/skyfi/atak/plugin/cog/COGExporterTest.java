@@ -0,0 +1,223 @@
+package com.skyfi.atak.plugin.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.locationtech.jts.geom.Envelope;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGExporterTest {
+
+    /**
+     * Tiles on even columns only, each tagged with its address and whether the alpha format
+     * was asked for. Reads of tile 0 in each row fail {@code failures} times.
+     */
+    private static class StripedSource implements COGTileServer.TileSource {
+        final AtomicInteger reads = new AtomicInteger();
+        int failures;
+
+        @Override
+        public byte[] getTile(int z, int x, int y) {
+            try {
+                return encodeTile(z, x, y, false);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public byte[] encodeTile(int z, int x, int y, boolean alphaFormat) throws IOException {
+            if (x == 0 && reads.getAndIncrement() < failures) {
+                throw new IOException("connection reset");
+            }
+            return x % 2 == 0 ? new byte[]{(byte) z, (byte) x, (byte) y, (byte) (alphaFormat ? 1 : 0)} : null;
+        }
+
+        @Override
+        public Envelope getFootprint() {
+            return new Envelope();
+        }
+    }
+
+    private static class MemorySink implements COGExporter.TileSink {
+        final List<COGExporter.Tile> tiles = new ArrayList<>();
+        int batches;
+        boolean finished;
+        boolean aborted;
+        boolean failWrites;
+        boolean singleFormat;
+
+        @Override
+        public synchronized void write(List<COGExporter.Tile> batch) throws IOException {
+            if (failWrites) {
+                throw new IOException("disk full");
+            }
+            tiles.addAll(batch);
+            batches++;
+        }
+
+        @Override
+        public void finish(Envelope bounds, int minZoom, int maxZoom) {
+            finished = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public boolean singleFormat() {
+            return singleFormat;
+        }
+    }
+
+    private static class RecordingListener implements COGExporter.Listener {
+        int written = -1;
+        int lastDone;
+        String error;
+
+        @Override
+        public void onProgress(int done, int total) {
+            assertTrue(done >= lastDone && done <= total);
+            lastDone = done;
+        }
+
+        @Override
+        public void onComplete(File file, int written) {
+            this.written = written;
+        }
+
+        @Override
+        public void onError(String message) {
+            error = message;
+        }
+    }
+
+    @Test
+    public void testTileRangeCoversExtent() {
+        // Tile 3/4/2 exactly, shrunk slightly so no neighbour is touched
+        double[] b = COGTileMath.tileBounds(3, 4, 2);
+        Envelope extent = new Envelope(b[0] + 1, b[2] - 1, b[1] + 1, b[3] - 1);
+        assertArrayEquals(new int[]{4, 2, 4, 2}, COGExporter.tileRange(extent, 3));
+        assertArrayEquals(new int[]{8, 4, 9, 5}, COGExporter.tileRange(extent, 4));
+        assertEquals(1 + 4 + 16, COGExporter.countTiles(extent, 3, 5));
+        assertEquals(0, COGExporter.countTiles(new Envelope(), 0, 20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOversizedExportIsRefused() {
+        double[] b = COGTileMath.tileBounds(0, 0, 0);
+        COGExporter.checkRange(new Envelope(b[0], b[2], b[1], b[3]), 0, 12);
+    }
+
+    @Test
+    public void testExportWritesEveryTileWithData() {
+        double[] b = COGTileMath.tileBounds(4, 2, 5);
+        Envelope extent = new Envelope(b[0] + 1, b[2] - 1, b[1] + 1, b[3] - 1);
+        MemorySink sink = new MemorySink();
+        RecordingListener listener = new RecordingListener();
+        COGExporter exporter = new COGExporter(new StripedSource(), extent, 4, 9, sink, null, listener);
+        exporter.export();
+
+        assertTrue(exporter.isDone());
+        assertNull(listener.error);
+        assertTrue(sink.finished);
+        assertEquals(exporter.getTotalTiles(), listener.lastDone);
+
+        // Half of each level's columns are even; every one written exactly once
+        Set<String> seen = new HashSet<>();
+        for (COGExporter.Tile tile : sink.tiles) {
+            assertEquals(0, tile.x % 2);
+            assertArrayEquals(new byte[]{(byte) tile.z, (byte) tile.x, (byte) tile.y, 0}, tile.data);
+            assertTrue(seen.add(tile.z + "/" + tile.x + "/" + tile.y));
+        }
+        int expected = 0;
+        for (int z = 4; z <= 9; z++) {
+            int side = 1 << (z - 4);
+            expected += side * side / 2 + (side == 1 ? 1 : 0);
+        }
+        assertEquals(expected, sink.tiles.size());
+        assertEquals(expected, listener.written);
+        assertTrue(sink.batches < sink.tiles.size());
+    }
+
+    @Test
+    public void testFailedWriteAbortsExport() {
+        double[] b = COGTileMath.tileBounds(6, 10, 10);
+        MemorySink sink = new MemorySink();
+        sink.failWrites = true;
+        RecordingListener listener = new RecordingListener();
+        COGExporter exporter = new COGExporter(new StripedSource(), new Envelope(b[0], b[2], b[1], b[3]),
+                6, 10, sink, null, listener);
+        exporter.export();
+
+        assertTrue(exporter.isDone());
+        assertTrue(sink.aborted);
+        assertFalse(sink.finished);
+        assertEquals(-1, listener.written);
+        assertNotNull(listener.error);
+    }
+
+    @Test
+    public void testSingleFormatSinkGetsAlphaFormatTiles() {
+        double[] b = COGTileMath.tileBounds(3, 2, 2);
+        MemorySink sink = new MemorySink();
+        sink.singleFormat = true;
+        COGExporter exporter = new COGExporter(new StripedSource(), new Envelope(b[0], b[2], b[1], b[3]),
+                3, 5, sink, null, new RecordingListener());
+        exporter.export();
+
+        assertTrue(sink.finished);
+        assertFalse(sink.tiles.isEmpty());
+        for (COGExporter.Tile tile : sink.tiles) {
+            assertEquals(1, tile.data[3]);
+        }
+    }
+
+    @Test
+    public void testFailedReadIsRetried() {
+        // Tile 1/0/0 alone
+        double[] b = COGTileMath.tileBounds(1, 0, 0);
+        StripedSource source = new StripedSource();
+        source.failures = 1;
+        MemorySink sink = new MemorySink();
+        RecordingListener listener = new RecordingListener();
+        COGExporter exporter = new COGExporter(source, new Envelope(b[0] + 1, b[2] - 1, b[1] + 1, b[3] - 1),
+                1, 1, sink, null, listener);
+        exporter.export();
+
+        assertNull(listener.error);
+        assertEquals(2, source.reads.get());
+        assertEquals(1, listener.written);
+    }
+
+    @Test
+    public void testUnreadableTileFailsExport() {
+        double[] b = COGTileMath.tileBounds(1, 0, 0);
+        StripedSource source = new StripedSource();
+        source.failures = Integer.MAX_VALUE;
+        MemorySink sink = new MemorySink();
+        RecordingListener listener = new RecordingListener();
+        COGExporter exporter = new COGExporter(source, new Envelope(b[0] + 1, b[2] - 1, b[1] + 1, b[3] - 1),
+                1, 1, sink, null, listener);
+        exporter.export();
+
+        // The first read and every retry
+        assertEquals(3, source.reads.get());
+        assertTrue(sink.aborted);
+        assertFalse(sink.finished);
+        assertEquals(-1, listener.written);
+        assertTrue(listener.error.contains("1/0/0"));
+    }
+}
@@ -0,0 +1,166 @@
+package com.skyfi.atak.plugin.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGFileSourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadsAreSlicesOfTheMapping() throws IOException {
+        byte[] bytes = pattern(10000);
+        COGFileSource source = new COGFileSource(write("scene.tif", bytes));
+
+        ByteBuffer slice = source.read(1234, 100);
+        assertEquals(0, slice.position());
+        assertEquals(100, slice.limit());
+        assertFalse("Mapped, not copied to the heap", slice.hasArray());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(bytes[1234 + i], slice.get(i));
+        }
+
+        ByteBuffer[] batch = source.read(new long[]{0, 9990}, new int[]{4, 10});
+        assertEquals(bytes[3], batch[0].get(3));
+        assertEquals(bytes[9999], batch[1].get(9));
+        source.close();
+    }
+
+    @Test
+    public void testWindowsAreMappedLazilyAndReadsSpanningThemAreCopied() throws IOException {
+        byte[] bytes = pattern(10000);
+        final int[] mapped = new int[1];
+        // 1000-byte windows overlapping by 100
+        COGFileSource source = new COGFileSource(write("windows.tif", bytes), 1000, 100) {
+            @Override
+            MappedByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+                mapped[0]++;
+                assertTrue(size <= 1100);
+                return super.map(channel, start, size);
+            }
+        };
+        assertEquals(0, mapped[0]);
+
+        // Inside the overlap of window 2
+        ByteBuffer slice = source.read(2950, 100);
+        assertFalse(slice.hasArray());
+        assertEquals(bytes[3049], slice.get(99));
+        assertEquals(1, mapped[0]);
+
+        ByteBuffer spanning = source.read(4500, 2000);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(bytes[4500 + i], spanning.get(i));
+        }
+        source.close();
+    }
+
+    @Test
+    public void testFallsBackToReadsWhenMappingFails() throws IOException {
+        byte[] bytes = pattern(5000);
+        COGFileSource source = new COGFileSource(write("unmappable.tif", bytes)) {
+            @Override
+            MappedByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+                throw new IOException("Map failed");
+            }
+        };
+        ByteBuffer copy = source.read(1000, 500);
+        assertEquals(0, copy.position());
+        assertEquals(500, copy.remaining());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(bytes[1000 + i], copy.get(i));
+        }
+        source.close();
+        try {
+            source.read(0, 1);
+            fail("Read after close should fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testInterruptedReaderLeavesFileReadable() throws IOException {
+        byte[] bytes = pattern(10000);
+        // Every read maps a new window, then one too long for a window is read from the channel
+        COGFileSource source = new COGFileSource(write("interrupted.tif", bytes), 1000, 100);
+        try {
+            Thread.currentThread().interrupt();
+            assertEquals(bytes[2500], source.read(2500, 10).get(0));
+            assertEquals(bytes[4000], source.read(4000, 3000).get(0));
+            assertTrue("Interrupt is restored", Thread.interrupted());
+
+            assertEquals(bytes[6500], source.read(6500, 10).get(0));
+            assertEquals(bytes[100], source.read(100, 3000).get(0));
+        } finally {
+            Thread.interrupted();
+            source.close();
+        }
+    }
+
+    @Test
+    public void testClosedChannelIsReopened() throws IOException {
+        byte[] bytes = pattern(5000);
+        final boolean[] closedOnce = new boolean[1];
+        COGFileSource source = new COGFileSource(write("reopened.tif", bytes)) {
+            @Override
+            MappedByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+                if (!closedOnce[0]) {
+                    // As an interrupt arriving mid-call would
+                    closedOnce[0] = true;
+                    channel.close();
+                }
+                return super.map(channel, start, size);
+            }
+        };
+        assertEquals(bytes[1234], source.read(1234, 10).get(0));
+        assertTrue(closedOnce[0]);
+        assertEquals(bytes[4000], source.read(4000, 10).get(0));
+        source.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadPastEndFails() throws IOException {
+        new COGFileSource(write("short.tif", new byte[16])).read(10, 10);
+    }
+
+    @Test
+    public void testLocalFileResolution() throws IOException {
+        File cached = write("delivery.tif", new byte[16]);
+        File cacheDir = folder.getRoot();
+
+        assertEquals(cached, COGFileSource.localFile(cached.toURI().toString(), null));
+        assertEquals(cached, COGFileSource.localFile(cached.getAbsolutePath(), null));
+        assertEquals(cached, COGFileSource.localFile("delivery.tif", cacheDir));
+        assertNull(COGFileSource.localFile("missing.tif", cacheDir));
+        assertNull(COGFileSource.localFile("https://example.com/delivery.tif", cacheDir));
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        File file = folder.newFile(name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+}
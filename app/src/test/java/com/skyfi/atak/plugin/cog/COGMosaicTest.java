@@ -0,0 +1,43 @@
+package com.skyfi.atak.plugin.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGMosaicTest {
+
+    @Test
+    public void testCompositeFillsTransparentPixelsFromBelow() {
+        int[] tile = {0xff112233, 0x00000000, 0x00000000};
+        int[] below = {0xffaabbcc, 0xff445566, 0x00000000};
+        assertFalse(COGMosaic.compositeUnder(tile, below));
+        assertEquals(0xff112233, tile[0]);
+        assertEquals(0xff445566, tile[1]);
+        assertEquals(0x00000000, tile[2]);
+
+        int[] rest = {0xff000000, 0xff000000, 0xff778899};
+        assertTrue(COGMosaic.compositeUnder(tile, rest));
+        assertEquals(0xff778899, tile[2]);
+    }
+
+    @Test
+    public void testCompositeBlendsPartialAlpha() {
+        // Half-transparent white over opaque black
+        int[] tile = {0x80ffffff};
+        assertTrue(COGMosaic.compositeUnder(tile, new int[]{0xff000000}));
+        assertEquals(0xff808080, tile[0]);
+    }
+
+    @Test
+    public void testEmptyMosaicHasNoTiles() throws IOException {
+        COGMosaic mosaic = new COGMosaic(new COGTileEncoder());
+        assertNull(mosaic.getTile(3, 4, 2));
+        assertNull(mosaic.remove("https://example.com/scene.tif"));
+        assertEquals("mosaic:", mosaic.getCacheKey());
+    }
+}
@@ -0,0 +1,111 @@
+package com.skyfi.atak.plugin.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGTileCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File store(String name, int bytes, long lastUsed) throws IOException {
+        File file = tempFolder.newFile(name + ".mbtiles");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[bytes]);
+        }
+        assertTrue(file.setLastModified(lastUsed));
+        return file;
+    }
+
+    @Test
+    public void testPackedKeysAreDistinct() {
+        long key = COGTileCache.packKey(3, 21, (1 << 21) - 1, 12345);
+        assertEquals(3, COGTileCache.sourceOf(key));
+        assertNotEquals(key, COGTileCache.packKey(3, 21, 12345, (1 << 21) - 1));
+        assertNotEquals(key, COGTileCache.packKey(4, 21, (1 << 21) - 1, 12345));
+        assertEquals(COGTileCache.MAX_SOURCES - 1,
+                COGTileCache.sourceOf(COGTileCache.packKey(COGTileCache.MAX_SOURCES - 1, 31, 0, 0)));
+        assertFalse(COGTileCache.isPackable(32, 0, 0));
+        assertFalse(COGTileCache.isPackable(25, 1 << 24, 0));
+    }
+
+    @Test
+    public void testClearingOneLayerKeepsOthers() {
+        COGTileCache cache = new COGTileCache(null, 1024 * 1024);
+        cache.openLayer("a", "https://example.com/a.tif");
+        cache.openLayer("b", "https://example.com/b.tif");
+        cache.put("a", 10, 1, 2, new byte[]{1}, true);
+        cache.put("b", 10, 1, 2, new byte[]{2}, true);
+
+        cache.clearLayer("a");
+        assertNull(cache.getFromMemory("a", 10, 1, 2));
+        assertArrayEquals(new byte[]{2}, cache.getFromMemory("b", 10, 1, 2));
+    }
+
+    @Test
+    public void testTileRenderedBeforeResetIsDropped() {
+        COGTileCache cache = new COGTileCache(null, 1024 * 1024);
+        cache.openLayer("mosaic", "mosaic:a");
+        String started = cache.getLayerKey("mosaic");
+
+        // A member is added while the tile renders
+        cache.clearLayer("mosaic");
+        cache.openLayer("mosaic", "mosaic:a,b");
+        cache.put("mosaic", started, 6, 1, 1, new byte[]{1}, true);
+        assertNull(cache.getFromMemory("mosaic", 6, 1, 1));
+
+        cache.put("mosaic", cache.getLayerKey("mosaic"), 6, 1, 1, new byte[]{2}, true);
+        assertArrayEquals(new byte[]{2}, cache.getFromMemory("mosaic", 6, 1, 1));
+    }
+
+    @Test
+    public void testLayersShowingTheSameCogShareTiles() {
+        COGTileCache cache = new COGTileCache(null, 1024 * 1024);
+        cache.openLayer("a", "https://example.com/scene.tif");
+        cache.openLayer("b", "https://example.com/scene.tif");
+        cache.put("a", 5, 3, 4, new byte[]{7}, true);
+        assertArrayEquals(new byte[]{7}, cache.getFromMemory("b", 5, 3, 4));
+
+        // Still shown by "b", so removing "a" keeps the tiles
+        cache.clearLayer("a");
+        assertArrayEquals(new byte[]{7}, cache.getFromMemory("b", 5, 3, 4));
+        cache.clearLayer("b");
+        assertNull(cache.getFromMemory("b", 5, 3, 4));
+    }
+
+    @Test
+    public void testStoresDeletedLeastRecentlyUsedFirst() throws IOException {
+        long now = 1_000_000_000_000L;
+        File oldest = store("oldest", 1000, now - 3000);
+        File older = store("older", 1000, now - 2000);
+        File recent = store("recent", 1000, now - 1000);
+
+        // Open stores hold 500 bytes; 2500 fits the budget once the oldest goes
+        assertEquals(Collections.singletonList(oldest),
+                COGTileCache.storesToDelete(Arrays.asList(recent, oldest, older), 500, 2500, now));
+        assertEquals(Arrays.asList(oldest, older),
+                COGTileCache.storesToDelete(Arrays.asList(recent, oldest, older), 500, 1500, now));
+        assertTrue(COGTileCache.storesToDelete(Arrays.asList(recent, oldest, older), 0, 10_000, now).isEmpty());
+    }
+
+    @Test
+    public void testStaleStoresDeletedWithinBudget() throws IOException {
+        long now = 1_000_000_000_000L;
+        File orphan = store("orphan", 10, now - COGTileCache.STALE_MS - 1);
+        File recent = store("recent", 10, now - 1000);
+        assertEquals(Collections.singletonList(orphan),
+                COGTileCache.storesToDelete(Arrays.asList(recent, orphan), 0, 1024 * 1024, now));
+    }
+}
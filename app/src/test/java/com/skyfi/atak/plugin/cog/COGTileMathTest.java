@@ -0,0 +1,59 @@
+package com.skyfi.atak.plugin.cog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class COGTileMathTest {
+
+    private static final double WORLD_HALF = 20037508.342789244;
+
+    @Test
+    public void testTileGrid() {
+        assertArrayEquals(new double[]{-WORLD_HALF, -WORLD_HALF, WORLD_HALF, WORLD_HALF},
+                COGTileMath.tileBounds(0, 0, 0), 1e-6);
+        assertEquals(156543.03392804097, COGTileMath.resolution(0), 1e-6);
+        assertEquals(COGTileMath.resolution(0) / 1024, COGTileMath.resolution(10), 1e-9);
+
+        double[] bounds = COGTileMath.tileBounds(12, 2200, 1343);
+        assertArrayEquals(new int[]{2200, 1343},
+                COGTileMath.tileAt((bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2, 12));
+        assertArrayEquals(new int[]{0, 0}, COGTileMath.tileAt(-2 * WORLD_HALF, 2 * WORLD_HALF, 3));
+    }
+
+    @Test
+    public void testUtmAtCentralMeridian() {
+        double[] out = new double[2];
+        COGTileMath.utmForward(0, 15, 33, false, out);
+        assertEquals(500000, out[0], 1e-6);
+        assertEquals(0, out[1], 1e-6);
+
+        COGTileMath.utmForward(0, 15, 33, true, out);
+        assertEquals(10000000, out[1], 1e-6);
+    }
+
+    @Test
+    public void testProjectionsRoundTrip() {
+        int[] codes = {3857, 4326, 32633, 32718};
+        // Points inside each CRS's area of use, in Web Mercator
+        double[][] points = {
+                {COGTileMath.longitudeToMercator(13.4), COGTileMath.latitudeToMercator(52.5)},
+                {COGTileMath.longitudeToMercator(-77.0), COGTileMath.latitudeToMercator(-12.1)},
+        };
+        double[] source = new double[2];
+        double[] back = new double[2];
+        for (int code : codes) {
+            COGTileMath.Projection projection = COGTileMath.forEpsg(code);
+            assertNotNull(projection);
+            double[] point = points[code == 32718 ? 1 : 0];
+            projection.fromMercator(point[0], point[1], source);
+            projection.toMercator(source[0], source[1], back);
+            assertEquals("EPSG:" + code, point[0], back[0], 0.01);
+            assertEquals("EPSG:" + code, point[1], back[1], 0.01);
+        }
+        assertNull(COGTileMath.forEpsg(2154));
+    }
+}